@@ -24,7 +24,6 @@
 package com.raphfrk.bitcoin.bcnode;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
@@ -32,6 +31,7 @@ import java.security.Security;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
+import com.raphfrk.bitcoin.bcnode.config.Config;
 import com.raphfrk.bitcoin.bcnode.log.LogManager;
 import com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p.BitcoinP2PManager;
 
@@ -39,15 +39,14 @@ public class BCNode {
 	public static void main( String[] args ) throws NoSuchAlgorithmException, NoSuchProviderException, UnknownHostException, IOException, InterruptedException {
 		Security.addProvider(new BouncyCastleProvider());
 		LogManager.init();
+		Config.startWatcher();
 		
-		BitcoinP2PManager manager = new BitcoinP2PManager(16);
-		
-		//manager.connect(new InetSocketAddress("bitseed.xf2.org", 8333), false);
-		manager.connect(new InetSocketAddress("seed.bitcoin.sipa.be", 8333));
-		//manager.connect(new InetSocketAddress("localhost", 8333), false);
+		BitcoinP2PManager manager = new BitcoinP2PManager();
 		
 		manager.start();
 		
+		manager.bootstrap();
+		
 		System.in.read();
 
 		manager.interrupt();
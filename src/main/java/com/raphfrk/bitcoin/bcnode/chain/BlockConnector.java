@@ -0,0 +1,216 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+
+import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.log.LogSubsystem;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.BlockMessage;
+
+/**
+ * Connects blocks to the UTXO set and checks their signatures.<br>
+ * <br>
+ * The signatures of a block are checked in the background while the next block is connected, so looking up 
+ * spent outputs overlaps with signature checks.  If a block's signatures fail, it is disconnected along 
+ * with the block connected after it.  The UTXO cache is only flushed once every connected block has been 
+ * verified.<br>
+ * <br>
+ * The listener is told the result of each block's checks from the thread which connects blocks, once the 
+ * next block has been connected or finish is called.<br>
+ * <br>
+ * The spent coins of the most recently connected blocks are kept, so that the owner can disconnect them 
+ * when the header chain reorganizes.
+ */
+public class BlockConnector {
+	
+	private final UtxoSet utxoSet;
+	private final BlockVerifier verifier;
+	private final int undoDepth;
+	private final ArrayDeque<Connected> connected = new ArrayDeque<Connected>();
+	private BlockListener listener;
+	private Pending pending;
+	
+	/**
+	 * Creates a block connector
+	 * 
+	 * @param utxoSet
+	 * @param verifier
+	 * @param undoDepth the number of recent blocks which can be disconnected
+	 */
+	public BlockConnector(UtxoSet utxoSet, BlockVerifier verifier, int undoDepth) {
+		this.utxoSet = utxoSet;
+		this.verifier = verifier;
+		this.undoDepth = undoDepth;
+	}
+	
+	/**
+	 * Sets the listener for the results of the signature checks
+	 * 
+	 * @param listener
+	 */
+	public synchronized void setListener(BlockListener listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * Connects a block if it extends the UTXO set's best block.  The block's signature checks may still be 
+	 * running when this method returns.
+	 * 
+	 * @param header
+	 * @param block
+	 * @return false if the block does not extend the best block or is invalid
+	 */
+	public synchronized boolean connect(StoredHeader header, BlockMessage block) {
+		try {
+			if (utxoSet.isCacheFull()) {
+				if (!finish()) {
+					return false;
+				}
+				utxoSet.flush();
+			}
+			if (!block.getHeader().getPrevHash().equals(utxoSet.getBestBlock())) {
+				return false;
+			}
+			BlockUndo undo = utxoSet.connect(block, header.getHeight());
+			if (undo == null) {
+				LogManager.log(LogSubsystem.CHAIN, Level.WARNING, "Block {} at height {} spends missing outputs and was not connected", header.getHash(), header.getHeight());
+				return false;
+			}
+			BlockVerifier.Verification verification = verifier.verify(block, header.getHeight(), undo);
+			if (pending != null && !pending.verification.isValid()) {
+				verification.cancel();
+				utxoSet.disconnect(block, undo);
+				finish();
+				return false;
+			}
+			connected.addLast(new Connected(header, undo));
+			if (connected.size() > undoDepth) {
+				connected.removeFirst();
+			}
+			Pending verified = pending;
+			pending = new Pending(header, block, undo, verification);
+			if (verified != null && listener != null) {
+				listener.onVerified(verified.header, verified.block);
+			}
+			return true;
+		} catch (IOException e) {
+			LogManager.log(LogSubsystem.CHAIN, Level.SEVERE, "Unable to connect block {}, {}", header.getHash(), e.getMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * Waits for the signature checks of the last connected block, and disconnects it if they fail
+	 * 
+	 * @return false if the block was disconnected
+	 * @throws IOException
+	 */
+	public synchronized boolean finish() throws IOException {
+		if (pending == null) {
+			return true;
+		}
+		Pending p = pending;
+		pending = null;
+		BlockVerifier.Verification verification = p.verification;
+		if (verification.isValid()) {
+			if (listener != null) {
+				listener.onVerified(p.header, p.block);
+			}
+			return true;
+		}
+		LogManager.log(LogSubsystem.CHAIN, Level.SEVERE, "Block {} at height {} has an invalid signature at input {}", p.header.getHash(), p.header.getHeight(), verification.getFailedInput());
+		utxoSet.disconnect(p.block, p.undo);
+		connected.pollLast();
+		if (listener != null) {
+			listener.onFailed(p.header, p.block);
+		}
+		return false;
+	}
+	
+	/**
+	 * Disconnects the block at the tip of the UTXO set, after waiting for the signature checks of the last 
+	 * connected block
+	 * 
+	 * @param header
+	 * @param block
+	 * @return false if the block is not the tip or its spent coins are no longer held
+	 * @throws IOException
+	 */
+	public synchronized boolean disconnect(StoredHeader header, BlockMessage block) throws IOException {
+		if (!finish()) {
+			return false;
+		}
+		Connected last = connected.peekLast();
+		if (last == null || !last.header.getHash().equals(header.getHash()) || !utxoSet.getBestBlock().equals(header.getHash())) {
+			return false;
+		}
+		utxoSet.disconnect(block, last.undo);
+		connected.pollLast();
+		return true;
+	}
+	
+	/**
+	 * Waits for running signature checks and stops the verifier
+	 */
+	public synchronized void close() {
+		try {
+			finish();
+		} catch (IOException e) {
+			LogManager.log(LogSubsystem.CHAIN, Level.SEVERE, "Unable to disconnect block, {}", e.getMessage());
+		}
+		verifier.shutdown();
+	}
+	
+	private static class Connected {
+		
+		private final StoredHeader header;
+		private final BlockUndo undo;
+		
+		public Connected(StoredHeader header, BlockUndo undo) {
+			this.header = header;
+			this.undo = undo;
+		}
+		
+	}
+	
+	private static class Pending {
+		
+		private final StoredHeader header;
+		private final BlockMessage block;
+		private final BlockUndo undo;
+		private final BlockVerifier.Verification verification;
+		
+		public Pending(StoredHeader header, BlockMessage block, BlockUndo undo, BlockVerifier.Verification verification) {
+			this.header = header;
+			this.block = block;
+			this.undo = undo;
+			this.verification = verification;
+		}
+		
+	}
+
+}
@@ -0,0 +1,352 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.BlockHeader;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.util.MathUtils;
+
+/**
+ * A compact index of block headers.  Entries are identified by an int id, which is allocated in insertion 
+ * order.<br>
+ * <br>
+ * Each entry is held as 14 longs in pages of a flat long[] store, so there is no object per entry.  Entries 
+ * are found by hash through an open addressing table of ids, using the first 4 bytes of the hash as the 
+ * hash code, since block hashes are uniformly distributed there.  Each entry has a skip pointer to an 
+ * ancestor, so the ancestor at any height can be found in O(log n) steps.<br>
+ * <br>
+ * This class is not thread safe.
+ */
+public class BlockIndex {
+	
+	public final static int NONE = -1;
+	
+	/**
+	 * The header has been validated
+	 */
+	public final static int STATUS_HEADER_VALID = 1;
+	/**
+	 * The full block has been stored
+	 */
+	public final static int STATUS_HAVE_DATA = 2;
+	/**
+	 * The full block has been validated
+	 */
+	public final static int STATUS_BLOCK_VALID = 4;
+	/**
+	 * The block, or one of its ancestors, is invalid
+	 */
+	public final static int STATUS_FAILED = 8;
+	
+	private final static int HASH = 0;
+	private final static int MERKLE_ROOT = 4;
+	private final static int VERSION_TIME = 8;
+	private final static int BITS_NONCE = 9;
+	private final static int WORK_HIGH = 10;
+	private final static int WORK_LOW = 11;
+	private final static int HEIGHT_PARENT = 12;
+	private final static int SKIP_STATUS = 13;
+	private final static int ENTRY_LONGS = 14;
+	
+	private final static int PAGE_SHIFT = 12;
+	private final static int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+	
+	private long[][] pages = new long[0][];
+	private int size;
+	private int[] table;
+	private int mask;
+	
+	public BlockIndex() {
+		this(1024);
+	}
+	
+	/**
+	 * Creates an index
+	 * 
+	 * @param expected the expected number of entries
+	 */
+	public BlockIndex(int expected) {
+		int capacity = MathUtils.increaseToPow2(Math.max(16, expected * 2));
+		this.table = new int[capacity];
+		this.mask = capacity - 1;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Adds a header to the index.  The header must not already be in the index.
+	 * 
+	 * @param header
+	 * @param parent the id of the parent, or NONE for a genesis header
+	 * @return the id of the new entry
+	 */
+	public int add(BlockHeader header, int parent) {
+		if (size >= (table.length >> 1)) {
+			resize(table.length << 1);
+		}
+		int id = size;
+		if ((id >> PAGE_SHIFT) == pages.length) {
+			pages = Arrays.copyOf(pages, pages.length + 1);
+			pages[pages.length - 1] = new long[ENTRY_LONGS << PAGE_SHIFT];
+		}
+		size++;
+		
+		long[] page = pages[id >> PAGE_SHIFT];
+		int base = (id & PAGE_MASK) * ENTRY_LONGS;
+		Hash256 hash = header.getHash();
+		Hash256 merkle = header.getMerkleRoot();
+		for (int i = 0; i < 4; i++) {
+			page[base + HASH + i] = hash.getWord(i);
+			page[base + MERKLE_ROOT + i] = merkle.getWord(i);
+		}
+		page[base + VERSION_TIME] = ((long) header.getVersion() << 32) | header.getTime();
+		page[base + BITS_NONCE] = ((long) header.getBits() << 32) | (header.getNonce() & 0xFFFFFFFFL);
+		
+		BigInteger work = header.getWork();
+		long workHigh;
+		long workLow;
+		if (work.bitLength() > 128) {
+			workHigh = -1L;
+			workLow = -1L;
+		} else {
+			workHigh = work.shiftRight(64).longValue();
+			workLow = work.longValue();
+		}
+		int height = 0;
+		if (parent != NONE) {
+			height = getHeight(parent) + 1;
+			long parentLow = getLong(parent, WORK_LOW);
+			long low = parentLow + workLow;
+			long carry = (low + Long.MIN_VALUE) < (parentLow + Long.MIN_VALUE) ? 1 : 0;
+			workHigh = getLong(parent, WORK_HIGH) + workHigh + carry;
+			workLow = low;
+		}
+		page[base + WORK_HIGH] = workHigh;
+		page[base + WORK_LOW] = workLow;
+		page[base + HEIGHT_PARENT] = ((long) height << 32) | (parent & 0xFFFFFFFFL);
+		int skip = parent == NONE ? NONE : getAncestor(parent, getSkipHeight(height));
+		page[base + SKIP_STATUS] = ((long) skip << 32);
+		
+		insert(id, hash.getWord(0));
+		return id;
+	}
+	
+	/**
+	 * Finds a header by hash
+	 * 
+	 * @param hash
+	 * @return the id of the entry, or NONE if the hash is not in the index
+	 */
+	public int find(Hash256 hash) {
+		long w0 = hash.getWord(0);
+		int slot = (int) (w0 >>> 32) & mask;
+		int entry;
+		while ((entry = table[slot]) != 0) {
+			int id = entry - 1;
+			if (getLong(id, HASH) == w0 && 
+					getLong(id, HASH + 1) == hash.getWord(1) && 
+					getLong(id, HASH + 2) == hash.getWord(2) && 
+					getLong(id, HASH + 3) == hash.getWord(3)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return NONE;
+	}
+	
+	public Hash256 getHash(int id) {
+		return new Hash256(getLong(id, HASH), getLong(id, HASH + 1), getLong(id, HASH + 2), getLong(id, HASH + 3));
+	}
+	
+	/**
+	 * Gets the header of an entry
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public BlockHeader getHeader(int id) {
+		int parent = getParent(id);
+		Hash256 prevHash = parent == NONE ? Hash256.ZERO : getHash(parent);
+		Hash256 merkle = new Hash256(getLong(id, MERKLE_ROOT), getLong(id, MERKLE_ROOT + 1), getLong(id, MERKLE_ROOT + 2), getLong(id, MERKLE_ROOT + 3));
+		long versionTime = getLong(id, VERSION_TIME);
+		long bitsNonce = getLong(id, BITS_NONCE);
+		return new BlockHeader((int) (versionTime >> 32), prevHash, merkle, versionTime & 0xFFFFFFFFL, (int) (bitsNonce >> 32), (int) bitsNonce, getHash(id));
+	}
+	
+	public int getHeight(int id) {
+		return (int) (getLong(id, HEIGHT_PARENT) >> 32);
+	}
+	
+	/**
+	 * Gets the id of the parent of an entry
+	 * 
+	 * @param id
+	 * @return the parent id, or NONE for the genesis entry
+	 */
+	public int getParent(int id) {
+		return (int) getLong(id, HEIGHT_PARENT);
+	}
+	
+	public long getTime(int id) {
+		return getLong(id, VERSION_TIME) & 0xFFFFFFFFL;
+	}
+	
+	public int getBits(int id) {
+		return (int) (getLong(id, BITS_NONCE) >> 32);
+	}
+	
+	/**
+	 * Gets the total work of the chain ending at an entry
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public BigInteger getChainWork(int id) {
+		long high = getLong(id, WORK_HIGH);
+		long low = getLong(id, WORK_LOW);
+		return toUnsigned(high).shiftLeft(64).or(toUnsigned(low));
+	}
+	
+	/**
+	 * Compares the total work of the chains ending at two entries
+	 * 
+	 * @param a
+	 * @param b
+	 * @return a negative number, zero, or a positive number if the chain ending at a has less, equal or more work
+	 */
+	public int compareWork(int a, int b) {
+		long aHigh = getLong(a, WORK_HIGH) + Long.MIN_VALUE;
+		long bHigh = getLong(b, WORK_HIGH) + Long.MIN_VALUE;
+		if (aHigh != bHigh) {
+			return aHigh < bHigh ? -1 : 1;
+		}
+		long aLow = getLong(a, WORK_LOW) + Long.MIN_VALUE;
+		long bLow = getLong(b, WORK_LOW) + Long.MIN_VALUE;
+		return aLow < bLow ? -1 : (aLow == bLow ? 0 : 1);
+	}
+	
+	public int getStatus(int id) {
+		return (int) getLong(id, SKIP_STATUS);
+	}
+	
+	/**
+	 * Sets status bits for an entry
+	 * 
+	 * @param id
+	 * @param flags
+	 */
+	public void setStatus(int id, int flags) {
+		long[] page = pages[id >> PAGE_SHIFT];
+		page[(id & PAGE_MASK) * ENTRY_LONGS + SKIP_STATUS] |= flags & 0xFFFFFFFFL;
+	}
+	
+	/**
+	 * Clears status bits for an entry
+	 * 
+	 * @param id
+	 * @param flags
+	 */
+	public void clearStatus(int id, int flags) {
+		long[] page = pages[id >> PAGE_SHIFT];
+		page[(id & PAGE_MASK) * ENTRY_LONGS + SKIP_STATUS] &= ~(flags & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Gets the ancestor of an entry at the given height, following skip pointers where possible
+	 * 
+	 * @param id
+	 * @param height
+	 * @return the id of the ancestor, or NONE if the height is greater than the entry's height
+	 */
+	public int getAncestor(int id, int height) {
+		int walkHeight = getHeight(id);
+		if (height > walkHeight || height < 0) {
+			return NONE;
+		}
+		int walk = id;
+		while (walkHeight > height) {
+			int skipHeight = getSkipHeight(walkHeight);
+			int skipHeightPrev = getSkipHeight(walkHeight - 1);
+			int skip = (int) (getLong(walk, SKIP_STATUS) >> 32);
+			if (skip != NONE && (skipHeight == height || 
+					(skipHeight > height && !(skipHeightPrev < skipHeight - 2 && skipHeightPrev >= height)))) {
+				walk = skip;
+				walkHeight = skipHeight;
+			} else {
+				walk = getParent(walk);
+				walkHeight--;
+			}
+		}
+		return walk;
+	}
+	
+	/**
+	 * Gets the height of the skip pointer target for a height.  Clearing the lowest set bits means that 
+	 * any ancestor can be reached by following a logarithmic number of pointers.
+	 * 
+	 * @param height
+	 * @return
+	 */
+	private static int getSkipHeight(int height) {
+		if (height < 2) {
+			return 0;
+		}
+		return (height & 1) != 0 ? clearLowestBit(clearLowestBit(height - 1)) + 1 : clearLowestBit(height);
+	}
+	
+	private static int clearLowestBit(int n) {
+		return n & (n - 1);
+	}
+	
+	private long getLong(int id, int field) {
+		return pages[id >> PAGE_SHIFT][(id & PAGE_MASK) * ENTRY_LONGS + field];
+	}
+	
+	private void insert(int id, long w0) {
+		int slot = (int) (w0 >>> 32) & mask;
+		while (table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = id + 1;
+	}
+	
+	private void resize(int capacity) {
+		table = new int[capacity];
+		mask = capacity - 1;
+		for (int id = 0; id < size; id++) {
+			insert(id, getLong(id, HASH));
+		}
+	}
+	
+	private static BigInteger toUnsigned(long x) {
+		BigInteger b = BigInteger.valueOf(x & Long.MAX_VALUE);
+		return x < 0 ? b.setBit(63) : b;
+	}
+
+}
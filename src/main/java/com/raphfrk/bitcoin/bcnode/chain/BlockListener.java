@@ -0,0 +1,50 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.BlockMessage;
+
+/**
+ * Receives the result of the signature checks of connected blocks
+ */
+public interface BlockListener {
+	
+	/**
+	 * Called once the signatures of a connected block have been checked and are valid
+	 * 
+	 * @param header
+	 * @param block
+	 */
+	public void onVerified(StoredHeader header, BlockMessage block);
+	
+	/**
+	 * Called after a block with an invalid signature has been disconnected.  Blocks connected after it have 
+	 * also been disconnected.
+	 * 
+	 * @param header
+	 * @param block
+	 */
+	public void onFailed(StoredHeader header, BlockMessage block);
+
+}
@@ -0,0 +1,523 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.log.LogSubsystem;
+import com.raphfrk.bitcoin.bcnode.network.elements.BlockHeader;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+
+/**
+ * An append-only store of serialized blocks, held in segment files named blkNNNNN.dat.<br>
+ * <br>
+ * Blocks are appended to the last segment with a single gathering write through a FileChannel.  Segments 
+ * are extended in chunks, so the file doesn't grow on every write, and are flushed to disk in batches 
+ * rather than after every block.  A full segment is flushed and trimmed to its used length before the 
+ * next segment is started.<br>
+ * <br>
+ * Each segment is memory mapped read only, and reads return a slice of the mapping, so a stored block can 
+ * be written to a peer without being copied onto the heap.<br>
+ * <br>
+ * The index from block hash to segment, offset and length is rebuilt when the store is opened by walking 
+ * the record headers.  The records of the last segment are also checked against their checksum, since a 
+ * crash can leave a partly written tail there.  The segment is truncated at the first bad record.<br>
+ * <br>
+ * A removed block keeps its space, but the magic value of its record is replaced by its complement, so the 
+ * record is skipped when the index is rebuilt.<br>
+ * <br>
+ * Record: int magic, int length (little endian), int CRC32 of the block, block
+ */
+public class BlockStore {
+	
+	public final static int RECORD_HEADER_SIZE = 12;
+	/**
+	 * The size at which a new segment is started
+	 */
+	public final static int SEGMENT_SIZE = 128 * 1024 * 1024;
+	/**
+	 * The size of the steps in which segments are extended
+	 */
+	public final static int CHUNK_SIZE = 16 * 1024 * 1024;
+	/**
+	 * The number of bytes written between flushes to disk
+	 */
+	public final static int SYNC_SIZE = 32 * 1024 * 1024;
+	
+	private final File dir;
+	private final int magic;
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+	private final CRC32 crc = new CRC32();
+	private final byte[] crcBuffer = new byte[8192];
+	
+	private long[] hashes = new long[4 * 1024];
+	private long[] locations = new long[1024];
+	private int[] lengths = new int[1024];
+	private int[] table = new int[2048];
+	private int mask = table.length - 1;
+	private int size;
+	private int removed;
+	
+	private Segment current;
+	private int unsynced;
+	private boolean closed;
+	
+	/**
+	 * Opens the store in the given directory, recovering from a partly written tail if required
+	 * 
+	 * @param dir
+	 * @param magic the network magic value, which starts each record
+	 * @throws IOException
+	 */
+	public BlockStore(File dir, int magic) throws IOException {
+		this.dir = dir;
+		this.magic = magic;
+		dir.mkdirs();
+		int last = -1;
+		for (File file : getSegmentFiles(dir)) {
+			last = Math.max(last, getIndex(file.getName()));
+		}
+		for (int i = 0; i <= last; i++) {
+			Segment segment = openSegment(i);
+			scan(segment, i == last);
+			if (i < last) {
+				segment.release();
+			}
+			segments.add(segment);
+		}
+		if (last == -1) {
+			segments.add(openSegment(0));
+		}
+		current = segments.get(segments.size() - 1);
+		LogManager.log(LogSubsystem.CHAIN, Level.INFO, "Opened block store with {} blocks in {} segments", size, segments.size());
+	}
+	
+	/**
+	 * Gets the number of stored blocks
+	 * 
+	 * @return
+	 */
+	public synchronized int size() {
+		return size - removed;
+	}
+	
+	/**
+	 * Checks if a block is stored
+	 * 
+	 * @param hash
+	 * @return
+	 */
+	public synchronized boolean contains(Hash256 hash) {
+		return find(hash) != -1;
+	}
+	
+	/**
+	 * Gets a stored block
+	 * 
+	 * @param hash
+	 * @return a read only slice of the segment mapping, or null if the block is not stored
+	 */
+	public synchronized ByteBuffer get(Hash256 hash) {
+		int id = find(hash);
+		if (id == -1) {
+			return null;
+		}
+		long location = locations[id];
+		Segment segment = segments.get((int) (location >>> 32));
+		int offset = (int) location;
+		ByteBuffer buf = segment.map.duplicate();
+		buf.limit(offset + lengths[id]);
+		buf.position(offset);
+		return buf.slice().asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Appends a block to the store, unless it is already stored
+	 * 
+	 * @param hash the hash of the block
+	 * @param block the serialized block, from its position to its limit
+	 * @return false if the block was already stored
+	 * @throws IOException
+	 */
+	public synchronized boolean put(Hash256 hash, ByteBuffer block) throws IOException {
+		if (closed) {
+			throw new IOException("Block store is closed");
+		}
+		if (find(hash) != -1) {
+			return false;
+		}
+		block = block.duplicate();
+		int length = block.remaining();
+		int recordSize = RECORD_HEADER_SIZE + length;
+		if (current.size > 0 && (long) current.size + recordSize > SEGMENT_SIZE) {
+			roll();
+		}
+		current.ensureAllocated(current.size + recordSize);
+		
+		recordHeader.clear();
+		recordHeader.putInt(magic);
+		recordHeader.order(ByteOrder.LITTLE_ENDIAN);
+		recordHeader.putInt(length);
+		recordHeader.putInt(checksum(block));
+		recordHeader.order(ByteOrder.BIG_ENDIAN);
+		recordHeader.flip();
+		
+		ByteBuffer[] record = new ByteBuffer[] {recordHeader, block};
+		FileChannel channel = current.channel;
+		channel.position(current.size);
+		long written = 0;
+		while (written < recordSize) {
+			written += channel.write(record);
+		}
+		
+		add(hash, segments.size() - 1, current.size + RECORD_HEADER_SIZE, length);
+		current.size += recordSize;
+		unsynced += recordSize;
+		if (unsynced >= SYNC_SIZE) {
+			sync();
+		}
+		return true;
+	}
+	
+	/**
+	 * Removes a block, so that it is no longer served or reused
+	 * 
+	 * @param hash
+	 * @return false if the block was not stored
+	 * @throws IOException
+	 */
+	public synchronized boolean remove(Hash256 hash) throws IOException {
+		if (closed) {
+			throw new IOException("Block store is closed");
+		}
+		int id = find(hash);
+		if (id == -1) {
+			return false;
+		}
+		int index = (int) (locations[id] >>> 32);
+		long position = (int) locations[id] - RECORD_HEADER_SIZE;
+		ByteBuffer marker = ByteBuffer.allocate(4);
+		marker.putInt(~magic);
+		marker.flip();
+		if (segments.get(index) == current) {
+			current.channel.write(marker, position);
+		} else {
+			RandomAccessFile raf = new RandomAccessFile(getSegmentFile(index), "rw");
+			try {
+				raf.getChannel().write(marker, position);
+				raf.getChannel().force(false);
+			} finally {
+				raf.close();
+			}
+		}
+		lengths[id] = -1;
+		removed++;
+		return true;
+	}
+	
+	/**
+	 * Flushes all stored blocks to disk
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void sync() throws IOException {
+		if (!closed) {
+			current.channel.force(false);
+			unsynced = 0;
+		}
+	}
+	
+	/**
+	 * Flushes the store to disk and closes the segment files.  Blocks read before the store was closed remain 
+	 * readable.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		try {
+			sync();
+			current.trim();
+			current.release();
+		} catch (IOException e) {
+			LogManager.log(LogSubsystem.CHAIN, Level.WARNING, "Unable to close block store segment, {}", e.getMessage());
+		}
+		closed = true;
+	}
+	
+	private void roll() throws IOException {
+		current.channel.force(false);
+		unsynced = 0;
+		current.trim();
+		current.release();
+		current = openSegment(segments.size());
+		segments.add(current);
+	}
+	
+	private Segment openSegment(int index) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(getSegmentFile(index), "rw");
+		try {
+			return new Segment(raf);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+	
+	private File getSegmentFile(int index) {
+		return new File(dir, String.format("blk%05d.dat", index));
+	}
+	
+	/**
+	 * Adds the records of a segment to the index.  Removed records are skipped.  If the checksums are verified, the segment is truncated at 
+	 * the first record which is incomplete or corrupt.
+	 * 
+	 * @param segment
+	 * @param verify true to verify the checksum of each record
+	 * @throws IOException
+	 */
+	private void scan(Segment segment, boolean verify) throws IOException {
+		int index = segments.size();
+		ByteBuffer map = segment.map.duplicate();
+		long fileSize = segment.allocated;
+		int position = 0;
+		while (position + RECORD_HEADER_SIZE <= fileSize) {
+			int recordMagic = map.getInt(position);
+			if (recordMagic != magic && recordMagic != ~magic) {
+				break;
+			}
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			int length = map.getInt(position + 4);
+			int checksum = map.getInt(position + 8);
+			map.order(ByteOrder.BIG_ENDIAN);
+			int start = position + RECORD_HEADER_SIZE;
+			if (length < BlockHeader.LENGTH || start + (long) length > fileSize) {
+				break;
+			}
+			map.limit(start + length);
+			map.position(start);
+			ByteBuffer block = map.slice();
+			map.clear();
+			if (verify && checksum(block) != checksum) {
+				break;
+			}
+			Hash256 hash = new BlockHeader(0, block).getHash();
+			if (recordMagic == magic && find(hash) == -1) {
+				add(hash, index, start, length);
+			}
+			position = start + length;
+		}
+		segment.size = position;
+		if (position == fileSize) {
+			return;
+		}
+		if (!verify) {
+			LogManager.log(LogSubsystem.CHAIN, Level.WARNING, "Unreadable block record at offset {} of block store segment {}, the rest of the segment is ignored", position, index);
+			return;
+		}
+		if (position + 4 > fileSize || map.getInt(position) != 0) {
+			LogManager.log(LogSubsystem.CHAIN, Level.WARNING, "Discarding incomplete block record at offset {} of block store segment {}", position, index);
+		}
+		segment.truncate(position);
+	}
+	
+	private int checksum(ByteBuffer block) {
+		crc.reset();
+		if (block.hasArray()) {
+			crc.update(block.array(), block.arrayOffset() + block.position(), block.remaining());
+		} else {
+			ByteBuffer buf = block.duplicate();
+			while (buf.hasRemaining()) {
+				int length = Math.min(crcBuffer.length, buf.remaining());
+				buf.get(crcBuffer, 0, length);
+				crc.update(crcBuffer, 0, length);
+			}
+		}
+		return (int) crc.getValue();
+	}
+	
+	private int find(Hash256 hash) {
+		long w0 = hash.getWord(0);
+		int slot = (int) (w0 >>> 32) & mask;
+		int entry;
+		while ((entry = table[slot]) != 0) {
+			int id = entry - 1;
+			int base = id << 2;
+			if (hashes[base] == w0 && 
+					hashes[base + 1] == hash.getWord(1) && 
+					hashes[base + 2] == hash.getWord(2) && 
+					hashes[base + 3] == hash.getWord(3) && 
+					lengths[id] != -1) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+	
+	private void add(Hash256 hash, int segment, int offset, int length) {
+		int id = size++;
+		if (id == lengths.length) {
+			hashes = Arrays.copyOf(hashes, hashes.length * 2);
+			locations = Arrays.copyOf(locations, locations.length * 2);
+			lengths = Arrays.copyOf(lengths, lengths.length * 2);
+		}
+		int base = id << 2;
+		for (int i = 0; i < 4; i++) {
+			hashes[base + i] = hash.getWord(i);
+		}
+		locations[id] = ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+		lengths[id] = length;
+		if (size * 2 > table.length) {
+			table = new int[table.length * 2];
+			mask = table.length - 1;
+			for (int i = 0; i < id; i++) {
+				insert(i);
+			}
+		}
+		insert(id);
+	}
+	
+	private void insert(int id) {
+		int slot = (int) (hashes[id << 2] >>> 32) & mask;
+		while (table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = id + 1;
+	}
+	
+	/**
+	 * Gets the segment index from a segment file name
+	 * 
+	 * @param name
+	 * @return the index, or -1 if the name is not a segment name
+	 */
+	public static int getIndex(String name) {
+		if (!name.startsWith("blk") || !name.endsWith(".dat")) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(name.substring(3, name.length() - 4));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Gets the segment files in a directory
+	 * 
+	 * @param dir
+	 * @return
+	 */
+	public static File[] getSegmentFiles(File dir) {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return getIndex(name) >= 0;
+			}
+		});
+		return files == null ? new File[0] : files;
+	}
+	
+	private static class Segment {
+		
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		private MappedByteBuffer map;
+		private long allocated;
+		private int size;
+		
+		public Segment(RandomAccessFile raf) throws IOException {
+			this.raf = raf;
+			this.channel = raf.getChannel();
+			this.allocated = channel.size();
+			this.map = channel.map(MapMode.READ_ONLY, 0, allocated);
+		}
+		
+		/**
+		 * Extends the file, in chunks, so that it is at least the given length
+		 * 
+		 * @param length
+		 * @throws IOException
+		 */
+		public void ensureAllocated(long length) throws IOException {
+			if (length <= allocated) {
+				return;
+			}
+			allocated = ((length + CHUNK_SIZE - 1) / CHUNK_SIZE) * CHUNK_SIZE;
+			raf.setLength(allocated);
+			map = channel.map(MapMode.READ_ONLY, 0, allocated);
+		}
+		
+		/**
+		 * Truncates the file to the given length
+		 * 
+		 * @param length
+		 * @throws IOException
+		 */
+		public void truncate(long length) throws IOException {
+			channel.truncate(length);
+			channel.force(true);
+			allocated = length;
+			map = channel.map(MapMode.READ_ONLY, 0, allocated);
+		}
+		
+		/**
+		 * Truncates the unused part of the last chunk
+		 * 
+		 * @throws IOException
+		 */
+		public void trim() throws IOException {
+			if (allocated > size) {
+				truncate(size);
+			}
+		}
+		
+		/**
+		 * Closes the file.  The mapping stays valid.
+		 * 
+		 * @throws IOException
+		 */
+		public void release() throws IOException {
+			raf.close();
+		}
+		
+	}
+
+}
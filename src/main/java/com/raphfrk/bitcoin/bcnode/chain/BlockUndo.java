@@ -0,0 +1,101 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.MessageElement;
+import com.raphfrk.bitcoin.bcnode.network.elements.VarInt;
+import com.raphfrk.bitcoin.bcnode.util.StringGenerator;
+
+/**
+ * The coins spent by a block, in the order of the block's inputs, which are restored when the block is 
+ * disconnected<br>
+ * <br>
+ * var int count, coins
+ */
+public final class BlockUndo implements MessageElement<BlockUndo> {
+	
+	private final Coin[] spent;
+	
+	public BlockUndo(Coin[] spent) {
+		this.spent = spent;
+	}
+	
+	public BlockUndo(int version, ByteBuffer buf) throws IOException {
+		long count = VarInt.get(version, buf);
+		if (count > buf.remaining() / 10) {
+			throw new IOException("Spent coin count " + count + " exceeds undo data length");
+		}
+		this.spent = new Coin[(int) count];
+		for (int i = 0; i < spent.length; i++) {
+			spent[i] = new Coin(version, buf);
+		}
+	}
+	
+	/**
+	 * Gets the number of spent coins, which is the number of inputs of the block
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return spent.length;
+	}
+	
+	/**
+	 * Gets a spent coin
+	 * 
+	 * @param i the index of the input in the block, not counting the coinbase
+	 * @return
+	 */
+	public Coin get(int i) {
+		return spent[i];
+	}
+
+	@Override
+	public void put(int version, ByteBuffer buf) {
+		VarInt.put(version, buf, spent.length);
+		for (Coin coin : spent) {
+			coin.put(version, buf);
+		}
+	}
+
+	@Override
+	public int getLength(int version) {
+		int length = VarInt.getLength(version, spent.length);
+		for (Coin coin : spent) {
+			length += coin.getLength(version);
+		}
+		return length;
+	}
+	
+	@Override
+	public String toString() {
+		return new StringGenerator(true)
+			.add("Spent", spent.length)
+			.done();
+	}
+
+}
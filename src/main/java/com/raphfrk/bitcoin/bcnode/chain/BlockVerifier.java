@@ -0,0 +1,252 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.BlockMessage;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+
+/**
+ * Checks the signatures of a block's inputs on a fork-join pool.<br>
+ * <br>
+ * The inputs are split into batches which are checked in parallel.  Verification runs in the background, 
+ * so the thread connecting blocks can look up the spent outputs of the next block while the signatures of 
+ * the current block are checked.  Once any signature fails, the remaining batches are skipped.<br>
+ * <br>
+ * Signatures found in the signature cache, which were checked when their transaction was relayed, are not 
+ * checked again.  Signatures checked for blocks are not added to the cache, since they are unlikely to be 
+ * seen again.
+ */
+public class BlockVerifier {
+	
+	/**
+	 * The number of inputs checked by each task
+	 */
+	public final static int BATCH_SIZE = 16;
+	
+	private final ChainParams params;
+	private final ForkJoinPool pool;
+	private final SignatureCache cache;
+	
+	/**
+	 * Creates a verifier
+	 * 
+	 * @param params
+	 * @param threads the number of verification threads
+	 * @param cache the cache of valid signatures, or null to check every signature
+	 */
+	public BlockVerifier(ChainParams params, int threads, SignatureCache cache) {
+		this.params = params;
+		this.cache = cache;
+		this.pool = new ForkJoinPool(threads);
+	}
+	
+	/**
+	 * Starts checking the signatures of a block
+	 * 
+	 * @param block
+	 * @param height
+	 * @param undo the spent coins, as returned when the block was connected to the UTXO set
+	 * @return
+	 * @throws IOException if the block is malformed
+	 */
+	public Verification verify(BlockMessage block, int height, BlockUndo undo) throws IOException {
+		int count = block.getTransactionCount();
+		int inputs = undo.size();
+		Transaction[] transactions = new Transaction[count];
+		int[] txIndexes = new int[inputs];
+		int[] inputIndexes = new int[inputs];
+		int k = 0;
+		for (int i = 0; i < count; i++) {
+			transactions[i] = block.getTransaction(i);
+			if (i == 0) {
+				continue;
+			}
+			for (int j = 0; j < transactions[i].getInputCount(); j++) {
+				if (k >= inputs) {
+					throw new IllegalArgumentException("Undo data has fewer coins than the block has inputs");
+				}
+				txIndexes[k] = i;
+				inputIndexes[k] = j;
+				k++;
+			}
+		}
+		if (k != inputs) {
+			throw new IllegalArgumentException("Undo data has more coins than the block has inputs");
+		}
+		Verification verification = new Verification(transactions, txIndexes, inputIndexes, undo, height >= params.getSegwitHeight(), cache);
+		verification.task = pool.submit(new BatchTask(verification, 0, inputs));
+		return verification;
+	}
+	
+	/**
+	 * Stops the verification threads, waiting for running checks to finish
+	 */
+	public void shutdown() {
+		pool.shutdown();
+		try {
+			pool.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * The signature checks of a block
+	 */
+	public static class Verification {
+		
+		private final Transaction[] transactions;
+		private final int[] txIndexes;
+		private final int[] inputIndexes;
+		private final BlockUndo undo;
+		private final boolean witness;
+		private final SignatureCache cache;
+		private final AtomicReferenceArray<SignatureHash.Precomputed> precomputed;
+		private final AtomicBoolean failed = new AtomicBoolean();
+		private final AtomicInteger checked = new AtomicInteger();
+		private final AtomicInteger unchecked = new AtomicInteger();
+		private volatile int failedInput = -1;
+		private ForkJoinTask<?> task;
+		
+		private Verification(Transaction[] transactions, int[] txIndexes, int[] inputIndexes, BlockUndo undo, boolean witness, SignatureCache cache) {
+			this.transactions = transactions;
+			this.txIndexes = txIndexes;
+			this.inputIndexes = inputIndexes;
+			this.undo = undo;
+			this.witness = witness;
+			this.cache = cache;
+			this.precomputed = new AtomicReferenceArray<SignatureHash.Precomputed>(transactions.length);
+		}
+		
+		/**
+		 * Waits for the checks to finish
+		 * 
+		 * @return true if no signature failed
+		 */
+		public boolean isValid() {
+			task.join();
+			return !failed.get();
+		}
+		
+		/**
+		 * Checks if the checks have finished
+		 * 
+		 * @return
+		 */
+		public boolean isDone() {
+			return task.isDone();
+		}
+		
+		/**
+		 * Stops the checks.  The block is then reported as invalid.
+		 */
+		public void cancel() {
+			failed.set(true);
+		}
+		
+		/**
+		 * Gets the number of signatures found to be valid
+		 * 
+		 * @return
+		 */
+		public int getCheckedCount() {
+			return checked.get();
+		}
+		
+		/**
+		 * Gets the number of inputs with scripts which could not be checked
+		 * 
+		 * @return
+		 */
+		public int getUncheckedCount() {
+			return unchecked.get();
+		}
+		
+		/**
+		 * Gets the index of the failed input, counting from the first input of the block's second transaction
+		 * 
+		 * @return the index, or -1 if no input failed
+		 */
+		public int getFailedInput() {
+			return failedInput;
+		}
+		
+		private void check(int k) {
+			Transaction tx = transactions[txIndexes[k]];
+			SignatureHash.Precomputed hashes = null;
+			if (witness && tx.hasWitness()) {
+				hashes = precomputed.get(txIndexes[k]);
+				if (hashes == null) {
+					hashes = new SignatureHash.Precomputed(tx);
+					precomputed.compareAndSet(txIndexes[k], null, hashes);
+				}
+			}
+			switch (SignatureChecker.check(tx, inputIndexes[k], undo.get(k), witness, hashes, cache, false)) {
+				case VALID: checked.incrementAndGet(); break;
+				case UNCHECKED: unchecked.incrementAndGet(); break;
+				case INVALID: failedInput = k; failed.set(true); break;
+			}
+		}
+		
+	}
+	
+	@SuppressWarnings("serial")
+	private static class BatchTask extends RecursiveAction {
+		
+		private final Verification verification;
+		private final int from;
+		private final int to;
+		
+		public BatchTask(Verification verification, int from, int to) {
+			this.verification = verification;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (verification.failed.get()) {
+				return;
+			} else if (to - from > BATCH_SIZE) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new BatchTask(verification, from, mid), new BatchTask(verification, mid, to));
+				return;
+			}
+			for (int k = from; k < to && !verification.failed.get(); k++) {
+				verification.check(k);
+			}
+		}
+		
+	}
+
+}
@@ -0,0 +1,147 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import java.math.BigInteger;
+import java.util.logging.Level;
+
+import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.log.LogSubsystem;
+import com.raphfrk.bitcoin.bcnode.network.elements.BlockHeader;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+
+/**
+ * The consensus parameters and network identifiers of a chain
+ */
+public final class ChainParams {
+	
+	private final static Hash256 GENESIS_MERKLE_ROOT = Hash256.fromString("4a5e1e4baab89f3a32518a88c31bc87f618f76673e2cc77ab2127b7afdeda33b");
+	
+	public final static ChainParams MAIN = new ChainParams("main", 0xF9BEB4D9, 8333, 
+			new BlockHeader(1, Hash256.ZERO, GENESIS_MERKLE_ROOT, 1231006505L, 0x1d00ffff, 2083236893), 0x1d00ffff, true, 481824);
+	
+	/**
+	 * A private test chain, where blocks can be mined instantly and the difficulty never changes
+	 */
+	public final static ChainParams REGTEST = new ChainParams("regtest", 0xFABFB5DA, 18444, 
+			new BlockHeader(1, Hash256.ZERO, GENESIS_MERKLE_ROOT, 1296688602L, 0x207fffff, 2), 0x207fffff, false, 0);
+	
+	/**
+	 * The number of blocks between difficulty adjustments
+	 */
+	public final static int RETARGET_INTERVAL = 2016;
+	
+	/**
+	 * The intended time between difficulty adjustments, in seconds
+	 */
+	public final static long TARGET_TIMESPAN = 14 * 24 * 60 * 60;
+	
+	private final String name;
+	private final int magic;
+	private final int port;
+	private final BlockHeader genesis;
+	private final BigInteger powLimit;
+	private final int powLimitBits;
+	private final boolean retarget;
+	private final int segwitHeight;
+	
+	private ChainParams(String name, int magic, int port, BlockHeader genesis, int powLimitBits, boolean retarget, int segwitHeight) {
+		this.name = name;
+		this.magic = magic;
+		this.port = port;
+		this.genesis = genesis;
+		this.powLimit = BlockHeader.decodeTarget(powLimitBits);
+		this.powLimitBits = powLimitBits;
+		this.retarget = retarget;
+		this.segwitHeight = segwitHeight;
+	}
+	
+	/**
+	 * Gets the parameters for a chain by name
+	 * 
+	 * @param name main or regtest
+	 * @return the parameters, or the main chain parameters if the name is unknown
+	 */
+	public static ChainParams get(String name) {
+		if (REGTEST.name.equalsIgnoreCase(name.trim())) {
+			return REGTEST;
+		} else if (!MAIN.name.equalsIgnoreCase(name.trim())) {
+			LogManager.log(LogSubsystem.CHAIN, Level.WARNING, "Unknown network {}, using {}", name, MAIN.name);
+		}
+		return MAIN;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public int getMagicValue() {
+		return magic;
+	}
+	
+	public int getDefaultPort() {
+		return port;
+	}
+	
+	public BlockHeader getGenesis() {
+		return genesis;
+	}
+	
+	/**
+	 * Gets the easiest target allowed
+	 * 
+	 * @return
+	 */
+	public BigInteger getPowLimit() {
+		return powLimit;
+	}
+	
+	public int getPowLimitBits() {
+		return powLimitBits;
+	}
+	
+	/**
+	 * Returns true if the difficulty is adjusted every RETARGET_INTERVAL blocks
+	 * 
+	 * @return
+	 */
+	public boolean isRetargeting() {
+		return retarget;
+	}
+	
+	/**
+	 * Gets the height from which witness programs are enforced (BIP 141)
+	 * 
+	 * @return
+	 */
+	public int getSegwitHeight() {
+		return segwitHeight;
+	}
+	
+	@Override
+	public String toString() {
+		return name;
+	}
+
+}
@@ -0,0 +1,160 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.MessageElement;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+import com.raphfrk.bitcoin.bcnode.network.elements.VarInt;
+import com.raphfrk.bitcoin.bcnode.util.StringGenerator;
+
+/**
+ * An unspent transaction output, with the height of the block which created it<br>
+ * <br>
+ * var int (height * 2 + coinbase), long value, var int script length, script
+ */
+public final class Coin implements MessageElement<Coin> {
+	
+	/**
+	 * The largest script which can be spent
+	 */
+	public final static int MAX_SCRIPT_SIZE = 10000;
+	
+	private final static byte OP_RETURN = 0x6a;
+	
+	private final long value;
+	private final int height;
+	private final boolean coinbase;
+	private final byte[] script;
+	
+	public Coin(long value, int height, boolean coinbase, byte[] script) {
+		this.value = value;
+		this.height = height;
+		this.coinbase = coinbase;
+		this.script = script;
+	}
+	
+	/**
+	 * Creates a coin for an output of a transaction
+	 * 
+	 * @param tx
+	 * @param output
+	 * @param height the height of the block containing the transaction
+	 * @param coinbase true if the transaction is the block's coinbase
+	 */
+	public Coin(Transaction tx, int output, int height, boolean coinbase) {
+		this.value = tx.getOutputValue(output);
+		this.height = height;
+		this.coinbase = coinbase;
+		ByteBuffer buf = tx.getOutputScript(output);
+		this.script = new byte[buf.remaining()];
+		buf.get(script);
+	}
+	
+	public Coin(int version, ByteBuffer buf) throws IOException {
+		long code = VarInt.get(version, buf);
+		this.height = (int) (code >>> 1);
+		this.coinbase = (code & 1) != 0;
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		this.value = buf.getLong();
+		buf.order(ByteOrder.BIG_ENDIAN);
+		long length = VarInt.get(version, buf);
+		if (length > buf.remaining()) {
+			throw new IOException("Script length " + length + " exceeds coin length");
+		}
+		this.script = new byte[(int) length];
+		buf.get(script);
+	}
+	
+	/**
+	 * Checks if an output can never be spent, so does not need to be added to the UTXO set
+	 * 
+	 * @param tx
+	 * @param output
+	 * @return
+	 */
+	public static boolean isUnspendable(Transaction tx, int output) {
+		ByteBuffer script = tx.getOutputScript(output);
+		return script.remaining() > MAX_SCRIPT_SIZE || (script.hasRemaining() && script.get(script.position()) == OP_RETURN);
+	}
+	
+	public long getValue() {
+		return value;
+	}
+	
+	/**
+	 * Gets the height of the block which created the coin
+	 * 
+	 * @return
+	 */
+	public int getHeight() {
+		return height;
+	}
+	
+	public boolean isCoinbase() {
+		return coinbase;
+	}
+	
+	/**
+	 * Gets the public key script.  The array must not be modified.
+	 * 
+	 * @return
+	 */
+	public byte[] getScript() {
+		return script;
+	}
+
+	private long getCode() {
+		return ((height & 0xFFFFFFFFL) << 1) | (coinbase ? 1 : 0);
+	}
+
+	@Override
+	public void put(int version, ByteBuffer buf) {
+		VarInt.put(version, buf, getCode());
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putLong(value);
+		buf.order(ByteOrder.BIG_ENDIAN);
+		VarInt.put(version, buf, script.length);
+		buf.put(script);
+	}
+
+	@Override
+	public int getLength(int version) {
+		return VarInt.getLength(version, getCode()) + 8 + VarInt.getLength(version, script.length) + script.length;
+	}
+	
+	@Override
+	public String toString() {
+		return new StringGenerator(true)
+			.add("Value", value)
+			.add("Height", height)
+			.add("Coinbase", coinbase)
+			.add("Script length", script.length)
+			.done();
+	}
+
+}
@@ -0,0 +1,649 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.log.LogSubsystem;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.OutPoint;
+import com.raphfrk.bitcoin.bcnode.network.elements.VarInt;
+import com.raphfrk.bitcoin.bcnode.util.SipHash;
+
+/**
+ * A log structured store of unspent outputs, held in a single file named coins.dat.<br>
+ * <br>
+ * Changes are appended as batches, each written with one sequential write and flushed to disk, so a batch 
+ * is the unit of commit.  A batch records the best block of the UTXO set, and its height, after its changes 
+ * are applied.<br>
+ * <br>
+ * The location of each live coin is held in memory and rebuilt by replaying the batches when the store is 
+ * opened.  A batch which is incomplete or fails its checksum ends the log, so a crash part way through a 
+ * write rolls the store back to the previous batch.  When most of the file is spent or replaced coins, the 
+ * live coins are copied into a new file, which replaces the old one.<br>
+ * <br>
+ * The locations are held in an open addressing table of longs, with 16 bytes per slot, rather than by 
+ * outpoint.  Each slot holds a salted SipHash of the outpoint and the location of the coin.  Since the 
+ * outpoint is written just before the coin, a matching hash is confirmed by reading the outpoint back from 
+ * the file.<br>
+ * <br>
+ * Batch: int magic, int length (little endian), int CRC32 of the body, body<br>
+ * Body: best block hash, int best height (little endian), var int count, (outpoint, byte 1 and coin, or byte 0 for a spent coin) * count
+ */
+public class CoinStore {
+	
+	public final static int MAGIC = 0x434f494e;
+	public final static int RECORD_HEADER_SIZE = 12;
+	/**
+	 * The size of the file below which it is never compacted
+	 */
+	public final static long COMPACT_MIN_SIZE = 64L * 1024 * 1024;
+	/**
+	 * The largest batch written when a file is compacted
+	 */
+	public final static int COMPACT_BATCH_SIZE = 16 * 1024 * 1024;
+	
+	private final static int LENGTH_BITS = 24;
+	
+	private final File dir;
+	private final File file;
+	private final CRC32 crc = new CRC32();
+	private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+	private final long k0;
+	private final long k1;
+	
+	private Table table = new Table(1024);
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private long size;
+	private long liveBytes;
+	private Hash256 bestBlock = Hash256.ZERO;
+	private int bestHeight = -1;
+	private boolean closed;
+	
+	/**
+	 * Opens the store in the given directory, discarding a partly written final batch if required
+	 * 
+	 * @param dir
+	 * @throws IOException
+	 */
+	public CoinStore(File dir) throws IOException {
+		this.dir = dir;
+		this.file = new File(dir, "coins.dat");
+		SecureRandom random = new SecureRandom();
+		this.k0 = random.nextLong();
+		this.k1 = random.nextLong();
+		dir.mkdirs();
+		open();
+		LogManager.log(LogSubsystem.CHAIN, Level.INFO, "Opened coin store with {} coins, best block {}", table.size, bestBlock);
+	}
+	
+	/**
+	 * Gets the best block of the last committed batch
+	 * 
+	 * @return the hash, or Hash256.ZERO if nothing has been committed
+	 */
+	public synchronized Hash256 getBestBlock() {
+		return bestBlock;
+	}
+	
+	/**
+	 * Gets the height of the best block of the last committed batch
+	 * 
+	 * @return the height, or -1 if nothing has been committed
+	 */
+	public synchronized int getBestHeight() {
+		return bestHeight;
+	}
+	
+	/**
+	 * Gets the number of stored coins
+	 * 
+	 * @return
+	 */
+	public synchronized int size() {
+		return table.size;
+	}
+	
+	/**
+	 * Gets the size of the store's file
+	 * 
+	 * @return
+	 */
+	public synchronized long getFileSize() {
+		return size;
+	}
+	
+	/**
+	 * Checks if an output is stored.  The file is only read if another stored output has the same hash.
+	 * 
+	 * @param outPoint
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized boolean contains(OutPoint outPoint) throws IOException {
+		return find(outPoint, getKey(outPoint)) >= 0;
+	}
+	
+	/**
+	 * Reads a coin from the file
+	 * 
+	 * @param outPoint
+	 * @return the coin, or null if the output is not stored
+	 * @throws IOException
+	 */
+	public synchronized Coin get(OutPoint outPoint) throws IOException {
+		int slot = find(outPoint, getKey(outPoint));
+		if (slot < 0) {
+			return null;
+		}
+		return read(table.locations[slot]);
+	}
+	
+	/**
+	 * Appends a batch of changes and flushes it to disk
+	 * 
+	 * @param bestBlock the best block after the changes
+	 * @param bestHeight the height of the best block
+	 * @param changes the new coins, and null for spent coins
+	 * @throws IOException
+	 */
+	public synchronized void commit(Hash256 bestBlock, int bestHeight, Map<OutPoint, Coin> changes) throws IOException {
+		if (closed) {
+			throw new IOException("Coin store is closed");
+		}
+		int count = changes.size();
+		long[] keys = new long[count];
+		long[] old = new long[count];
+		int i = 0;
+		for (Map.Entry<OutPoint, Coin> entry : changes.entrySet()) {
+			keys[i] = getKey(entry.getKey());
+			int slot = find(entry.getKey(), keys[i]);
+			old[i] = slot < 0 ? 0 : table.locations[slot];
+			i++;
+		}
+		long[] written = new long[count];
+		long end = write(channel, size, bestBlock, bestHeight, changes, written);
+		channel.force(false);
+		// the index is only changed once the batch is on disk, so a failed write leaves it pointing at the 
+		// previous batches, which the next batch doesn't overwrite
+		i = 0;
+		for (Map.Entry<OutPoint, Coin> entry : changes.entrySet()) {
+			if (old[i] != 0) {
+				int slot = table.find(keys[i], old[i]);
+				liveBytes -= getLength(old[i]);
+				if (entry.getValue() == null) {
+					table.remove(slot);
+				} else {
+					table.locations[slot] = written[i];
+				}
+			} else if (entry.getValue() != null) {
+				table.insert(keys[i], written[i]);
+			}
+			if (entry.getValue() != null) {
+				liveBytes += getLength(written[i]);
+			}
+			i++;
+		}
+		size = end;
+		this.bestBlock = bestBlock;
+		this.bestHeight = bestHeight;
+		if (size > COMPACT_MIN_SIZE && size > 2 * liveBytes) {
+			try {
+				compact();
+			} catch (IOException e) {
+				LogManager.log(LogSubsystem.CHAIN, Level.WARNING, "Unable to compact coin store, {}", e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Closes the file.  Changes are committed when they are written, so no data is lost.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			raf.close();
+		} catch (IOException e) {
+			LogManager.log(LogSubsystem.CHAIN, Level.WARNING, "Unable to close coin store, {}", e.getMessage());
+		}
+	}
+	
+	/**
+	 * Writes a batch
+	 * 
+	 * @param channel
+	 * @param position the position of the batch in the file
+	 * @param bestBlock
+	 * @param bestHeight
+	 * @param changes
+	 * @param locations the array to store the locations of the written coins in, in the iteration order of 
+	 * the changes, with 0 for spent coins
+	 * @return the position after the batch
+	 * @throws IOException
+	 */
+	private long write(FileChannel channel, long position, Hash256 bestBlock, int bestHeight, Map<OutPoint, Coin> changes, long[] locations) throws IOException {
+		int length = Hash256.LENGTH + 4 + VarInt.getLength(0, changes.size());
+		for (Coin coin : changes.values()) {
+			length += OutPoint.LENGTH + 1 + (coin == null ? 0 : coin.getLength(0));
+		}
+		ByteBuffer body = ByteBuffer.allocate(length);
+		bestBlock.put(0, body);
+		body.order(ByteOrder.LITTLE_ENDIAN);
+		body.putInt(bestHeight);
+		body.order(ByteOrder.BIG_ENDIAN);
+		VarInt.put(0, body, changes.size());
+		long bodyStart = position + RECORD_HEADER_SIZE;
+		int i = 0;
+		for (Map.Entry<OutPoint, Coin> entry : changes.entrySet()) {
+			entry.getKey().put(0, body);
+			Coin coin = entry.getValue();
+			if (coin == null) {
+				body.put((byte) 0);
+				locations[i++] = 0;
+			} else {
+				body.put((byte) 1);
+				locations[i++] = getLocation(bodyStart + body.position(), coin.getLength(0));
+				coin.put(0, body);
+			}
+		}
+		body.flip();
+		
+		crc.reset();
+		crc.update(body.array(), 0, length);
+		recordHeader.clear();
+		recordHeader.putInt(MAGIC);
+		recordHeader.order(ByteOrder.LITTLE_ENDIAN);
+		recordHeader.putInt(length);
+		recordHeader.putInt((int) crc.getValue());
+		recordHeader.order(ByteOrder.BIG_ENDIAN);
+		recordHeader.flip();
+		
+		ByteBuffer[] record = new ByteBuffer[] {recordHeader, body};
+		channel.position(position);
+		long written = 0;
+		while (written < RECORD_HEADER_SIZE + length) {
+			written += channel.write(record);
+		}
+		return position + written;
+	}
+	
+	private void open() throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		try {
+			replay();
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Rebuilds the coin locations from the batches in the file.  The file is truncated at the first batch 
+	 * which is incomplete or corrupt.
+	 * 
+	 * @throws IOException
+	 */
+	private void replay() throws IOException {
+		long fileSize = channel.size();
+		long position = 0;
+		while (position + RECORD_HEADER_SIZE <= fileSize) {
+			recordHeader.clear();
+			readFully(recordHeader, position);
+			recordHeader.flip();
+			if (recordHeader.getInt() != MAGIC) {
+				break;
+			}
+			recordHeader.order(ByteOrder.LITTLE_ENDIAN);
+			int length = recordHeader.getInt();
+			int checksum = recordHeader.getInt();
+			recordHeader.order(ByteOrder.BIG_ENDIAN);
+			long bodyStart = position + RECORD_HEADER_SIZE;
+			if (length < Hash256.LENGTH + 5 || bodyStart + length > fileSize) {
+				break;
+			}
+			ByteBuffer body = ByteBuffer.allocate(length);
+			readFully(body, bodyStart);
+			crc.reset();
+			crc.update(body.array(), 0, length);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+			body.flip();
+			Hash256 best = new Hash256(body);
+			body.order(ByteOrder.LITTLE_ENDIAN);
+			int height = body.getInt();
+			body.order(ByteOrder.BIG_ENDIAN);
+			long count = VarInt.get(0, body);
+			for (long i = 0; i < count; i++) {
+				OutPoint outPoint = new OutPoint(0, body);
+				long key = getKey(outPoint);
+				if (body.get() == 0) {
+					int slot = findStored(outPoint, key);
+					if (slot >= 0) {
+						table.remove(slot);
+					}
+				} else {
+					int coinStart = body.position();
+					new Coin(0, body);
+					long location = getLocation(bodyStart + coinStart, body.position() - coinStart);
+					int slot = find(outPoint, key);
+					if (slot >= 0) {
+						table.locations[slot] = location;
+					} else {
+						table.insert(key, location);
+					}
+				}
+			}
+			bestBlock = best;
+			bestHeight = height;
+			position = bodyStart + length;
+		}
+		size = position;
+		for (long location : table.locations) {
+			liveBytes += getLength(location);
+		}
+		if (position < fileSize) {
+			LogManager.log(LogSubsystem.CHAIN, Level.WARNING, "Discarding incomplete coin batch at offset {} of coin store", position);
+			channel.truncate(position);
+			channel.force(true);
+		}
+	}
+	
+	/**
+	 * Copies the live coins to a new file, which then replaces the current file.  The current file stays 
+	 * open and in use until the new file has replaced it, so a failure leaves the store unchanged.
+	 * 
+	 * @throws IOException
+	 */
+	private void compact() throws IOException {
+		long oldSize = size;
+		File temp = new File(dir, "coins.tmp");
+		Table newTable = new Table(table.locations.length);
+		long newSize;
+		boolean moved = false;
+		RandomAccessFile tempRaf = new RandomAccessFile(temp, "rw");
+		try {
+			FileChannel tempChannel = tempRaf.getChannel();
+			tempChannel.truncate(0);
+			long position = 0;
+			HashMap<OutPoint, Coin> batch = new HashMap<OutPoint, Coin>();
+			int batchBytes = 0;
+			for (long location : table.locations) {
+				if (location == 0) {
+					continue;
+				}
+				ByteBuffer entry = readEntry(location);
+				OutPoint outPoint = new OutPoint(0, entry);
+				entry.get();
+				batch.put(outPoint, new Coin(0, entry));
+				batchBytes += entry.limit();
+				if (batchBytes >= COMPACT_BATCH_SIZE) {
+					position = write(tempChannel, position, batch, newTable);
+					batch.clear();
+					batchBytes = 0;
+				}
+			}
+			position = write(tempChannel, position, batch, newTable);
+			tempChannel.force(true);
+			newSize = position;
+			tempRaf.close();
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+		} finally {
+			if (!moved) {
+				tempRaf.close();
+				if (temp.exists() && !temp.delete()) {
+					LogManager.log(LogSubsystem.CHAIN, Level.WARNING, "Unable to delete {}", temp);
+				}
+			}
+		}
+		RandomAccessFile oldRaf = raf;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+		} catch (IOException e) {
+			// the old file has been replaced, so later batches can't be appended to it
+			closed = true;
+			oldRaf.close();
+			throw e;
+		}
+		oldRaf.close();
+		channel = raf.getChannel();
+		size = newSize;
+		table = newTable;
+		LogManager.log(LogSubsystem.CHAIN, Level.INFO, "Compacted coin store from {} to {} bytes", oldSize, size);
+	}
+	
+	/**
+	 * Writes a batch of coins to a compacted file and adds them to its table
+	 * 
+	 * @param channel
+	 * @param position
+	 * @param batch
+	 * @param table
+	 * @return the position after the batch
+	 * @throws IOException
+	 */
+	private long write(FileChannel channel, long position, Map<OutPoint, Coin> batch, Table table) throws IOException {
+		long[] written = new long[batch.size()];
+		position = write(channel, position, bestBlock, bestHeight, batch, written);
+		int i = 0;
+		for (OutPoint outPoint : batch.keySet()) {
+			table.insert(getKey(outPoint), written[i++]);
+		}
+		return position;
+	}
+	
+	/**
+	 * Finds the slot of an output, reading the outpoints of slots with a matching hash from the file
+	 * 
+	 * @param outPoint
+	 * @param key the hash of the outpoint
+	 * @return the slot, or -1 if the output is not stored
+	 * @throws IOException
+	 */
+	private int find(OutPoint outPoint, long key) throws IOException {
+		for (int slot = table.getSlot(key); table.locations[slot] != 0; slot = (slot + 1) & table.mask) {
+			if (table.keys[slot] == key && outPoint.equals(readOutPoint(table.locations[slot]))) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Finds the slot of an output which is known to be stored.  The log only records the spending of stored 
+	 * coins, so during replay the file only has to be read if more than one slot has a matching hash.
+	 * 
+	 * @param outPoint
+	 * @param key
+	 * @return the slot, or -1 if the output is not stored
+	 * @throws IOException
+	 */
+	private int findStored(OutPoint outPoint, long key) throws IOException {
+		int match = -1;
+		for (int slot = table.getSlot(key); table.locations[slot] != 0; slot = (slot + 1) & table.mask) {
+			if (table.keys[slot] == key) {
+				if (match >= 0) {
+					return find(outPoint, key);
+				}
+				match = slot;
+			}
+		}
+		return match;
+	}
+	
+	private long getKey(OutPoint outPoint) {
+		return SipHash.hash(k0, k1, outPoint.getHash(), outPoint.getIndex());
+	}
+	
+	private Coin read(long location) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(getLength(location));
+		readFully(buf, location >>> LENGTH_BITS);
+		buf.flip();
+		return new Coin(0, buf);
+	}
+	
+	private OutPoint readOutPoint(long location) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(OutPoint.LENGTH);
+		readFully(buf, (location >>> LENGTH_BITS) - 1 - OutPoint.LENGTH);
+		buf.flip();
+		return new OutPoint(0, buf);
+	}
+	
+	/**
+	 * Reads the outpoint, the flag byte and the coin of a live coin
+	 * 
+	 * @param location
+	 * @return
+	 * @throws IOException
+	 */
+	private ByteBuffer readEntry(long location) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(OutPoint.LENGTH + 1 + getLength(location));
+		readFully(buf, (location >>> LENGTH_BITS) - 1 - OutPoint.LENGTH);
+		buf.flip();
+		return buf;
+	}
+	
+	private void readFully(ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int read = channel.read(buf, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of coin store file");
+			}
+			position += read;
+		}
+	}
+	
+	private static long getLocation(long offset, int length) {
+		return (offset << LENGTH_BITS) | length;
+	}
+	
+	private static int getLength(long location) {
+		return (int) (location & ((1 << LENGTH_BITS) - 1));
+	}
+	
+	/**
+	 * An open addressing table of coin locations, with linear probing.  A slot with a location of 0 is 
+	 * empty, since no coin starts at the start of the file.  When an entry is removed, the later entries of 
+	 * its probe sequence are shifted back, so there are no deleted markers.
+	 */
+	private static class Table {
+		private long[] keys;
+		private long[] locations;
+		private int mask;
+		private int size;
+		
+		public Table(int capacity) {
+			keys = new long[capacity];
+			locations = new long[capacity];
+			mask = capacity - 1;
+		}
+		
+		public int getSlot(long key) {
+			return (int) (key >>> 32) & mask;
+		}
+		
+		/**
+		 * Finds the slot of an entry by its location, which is unique
+		 * 
+		 * @param key
+		 * @param location
+		 * @return
+		 */
+		public int find(long key, long location) {
+			int slot = getSlot(key);
+			while (locations[slot] != location) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+		
+		public void insert(long key, long location) {
+			if ((size + 1) * 4L > locations.length * 3L) {
+				resize(locations.length << 1);
+			}
+			put(key, location);
+			size++;
+		}
+		
+		public void remove(int slot) {
+			int hole = slot;
+			int next = (slot + 1) & mask;
+			while (locations[next] != 0) {
+				// an entry can fill the hole if the hole is not before its home slot in the probe sequence
+				int home = getSlot(keys[next]);
+				if (((next - home) & mask) >= ((next - hole) & mask)) {
+					keys[hole] = keys[next];
+					locations[hole] = locations[next];
+					hole = next;
+				}
+				next = (next + 1) & mask;
+			}
+			keys[hole] = 0;
+			locations[hole] = 0;
+			size--;
+		}
+		
+		private void put(long key, long location) {
+			int slot = getSlot(key);
+			while (locations[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			locations[slot] = location;
+		}
+		
+		private void resize(int capacity) {
+			long[] oldKeys = keys;
+			long[] oldLocations = locations;
+			keys = new long[capacity];
+			locations = new long[capacity];
+			mask = capacity - 1;
+			for (int i = 0; i < oldLocations.length; i++) {
+				if (oldLocations[i] != 0) {
+					put(oldKeys[i], oldLocations[i]);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,382 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.BlockHeader;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+
+/**
+ * A tree of validated block headers, which tracks the chain with the most work.  Headers are only 
+ * accepted if they connect to a known header, meet their target and have the target required by the 
+ * difficulty adjustment rules.  Headers which descend from a block that failed validation are rejected.<br>
+ * <br>
+ * Headers are held in a BlockIndex.  The chain with the most work is held as an array of index ids by 
+ * height, so headers on that chain can be found by height in constant time.
+ */
+public class HeaderChain {
+	
+	/**
+	 * The number of headers used to calculate the median time past
+	 */
+	public final static int MEDIAN_TIME_SPAN = 11;
+	
+	/**
+	 * The maximum time, in seconds, that a header's timestamp may be ahead of the local clock
+	 */
+	public final static long MAX_FUTURE_TIME = 2 * 60 * 60;
+	
+	private final ChainParams params;
+	private final BlockIndex index = new BlockIndex();
+	private int[] active = new int[1024];
+	private int activeSize;
+	
+	public HeaderChain(ChainParams params) {
+		this.params = params;
+		active[0] = index.add(params.getGenesis(), BlockIndex.NONE);
+		index.setStatus(active[0], BlockIndex.STATUS_HEADER_VALID);
+		activeSize = 1;
+	}
+	
+	public ChainParams getParams() {
+		return params;
+	}
+	
+	/**
+	 * Validates a header and connects it to the chain
+	 * 
+	 * @param header
+	 * @return
+	 */
+	public synchronized Result add(BlockHeader header) {
+		if (index.find(header.getHash()) != BlockIndex.NONE) {
+			return Result.DUPLICATE;
+		}
+		int parent = index.find(header.getPrevHash());
+		if (parent == BlockIndex.NONE) {
+			return Result.ORPHAN;
+		}
+		if ((index.getStatus(parent) & BlockIndex.STATUS_FAILED) != 0) {
+			return Result.FAILED_PARENT;
+		}
+		Result result = check(header, parent);
+		if (result != Result.CONNECTED) {
+			return result;
+		}
+		int id = index.add(header, parent);
+		index.setStatus(id, BlockIndex.STATUS_HEADER_VALID);
+		if (index.compareWork(id, active[activeSize - 1]) > 0) {
+			setTip(id);
+		}
+		return Result.CONNECTED;
+	}
+	
+	/**
+	 * Marks a header, and every header which descends from it, as failed.  If the header is on the chain 
+	 * with the most work, the tip is moved back to the valid header with the most work.
+	 * 
+	 * @param header
+	 * @return the headers which were marked as failed
+	 */
+	public synchronized List<StoredHeader> invalidate(StoredHeader header) {
+		int id = header.getId();
+		int height = index.getHeight(id);
+		List<StoredHeader> failed = new ArrayList<StoredHeader>();
+		// descendants are always added after their ancestors
+		for (int i = id; i < index.size(); i++) {
+			if ((index.getStatus(i) & BlockIndex.STATUS_FAILED) == 0 && index.getAncestor(i, height) == id) {
+				index.setStatus(i, BlockIndex.STATUS_FAILED);
+				failed.add(toStored(i));
+			}
+		}
+		if (height > 0 && isActive(id)) {
+			activeSize = height;
+			int best = active[height - 1];
+			for (int i = 0; i < index.size(); i++) {
+				if ((index.getStatus(i) & BlockIndex.STATUS_FAILED) == 0 && index.compareWork(i, best) > 0) {
+					best = i;
+				}
+			}
+			setTip(best);
+		}
+		return failed;
+	}
+	
+	private Result check(BlockHeader header, int parent) {
+		BigInteger target = BlockHeader.decodeTarget(header.getBits());
+		if (target == null || target.compareTo(params.getPowLimit()) > 0) {
+			return Result.BAD_TARGET;
+		}
+		if (header.getBits() != getNextBits(parent)) {
+			return Result.BAD_TARGET;
+		}
+		if (!header.checkProofOfWork()) {
+			return Result.BAD_POW;
+		}
+		if (header.getTime() <= getMedianTimePast(parent)) {
+			return Result.BAD_TIME;
+		}
+		if (header.getTime() > System.currentTimeMillis() / 1000 + MAX_FUTURE_TIME) {
+			return Result.TIME_TOO_NEW;
+		}
+		return Result.CONNECTED;
+	}
+	
+	/**
+	 * Gets the target bits required for the child of a header
+	 * 
+	 * @param parent
+	 * @return
+	 */
+	private int getNextBits(int parent) {
+		int bits = index.getBits(parent);
+		int height = index.getHeight(parent) + 1;
+		if (!params.isRetargeting() || height % ChainParams.RETARGET_INTERVAL != 0) {
+			return bits;
+		}
+		int first = getAncestor(parent, height - ChainParams.RETARGET_INTERVAL);
+		long timespan = index.getTime(parent) - index.getTime(first);
+		timespan = Math.max(ChainParams.TARGET_TIMESPAN / 4, Math.min(ChainParams.TARGET_TIMESPAN * 4, timespan));
+		BigInteger target = BlockHeader.decodeTarget(bits)
+				.multiply(BigInteger.valueOf(timespan))
+				.divide(BigInteger.valueOf(ChainParams.TARGET_TIMESPAN));
+		if (target.compareTo(params.getPowLimit()) > 0) {
+			target = params.getPowLimit();
+		}
+		return BlockHeader.encodeTarget(target);
+	}
+	
+	private long getMedianTimePast(int id) {
+		long[] times = new long[MEDIAN_TIME_SPAN];
+		int count = 0;
+		for (int h = id; h != BlockIndex.NONE && count < times.length; h = index.getParent(h)) {
+			times[count++] = index.getTime(h);
+		}
+		Arrays.sort(times, 0, count);
+		return times[count / 2];
+	}
+	
+	private void setTip(int tip) {
+		int fork = tip;
+		while (!isActive(fork)) {
+			fork = index.getParent(fork);
+		}
+		int height = index.getHeight(tip);
+		if (height >= active.length) {
+			active = Arrays.copyOf(active, Math.max(height + 1, active.length << 1));
+		}
+		for (int h = tip; h != fork; h = index.getParent(h)) {
+			active[index.getHeight(h)] = h;
+		}
+		activeSize = height + 1;
+	}
+	
+	private boolean isActive(int id) {
+		int height = index.getHeight(id);
+		return height < activeSize && active[height] == id;
+	}
+	
+	private int getAncestor(int id, int height) {
+		if (isActive(id)) {
+			return height <= index.getHeight(id) && height >= 0 ? active[height] : BlockIndex.NONE;
+		}
+		return index.getAncestor(id, height);
+	}
+	
+	private StoredHeader toStored(int id) {
+		return new StoredHeader(id, index.getHeight(id), index.getHeader(id), index.getChainWork(id));
+	}
+	
+	/**
+	 * Gets a header by hash
+	 * 
+	 * @param hash
+	 * @return the header, or null if the header is not in the chain
+	 */
+	public synchronized StoredHeader get(Hash256 hash) {
+		int id = index.find(hash);
+		return id == BlockIndex.NONE ? null : toStored(id);
+	}
+	
+	/**
+	 * Returns true if the header has been added to the chain
+	 * 
+	 * @param hash
+	 * @return
+	 */
+	public synchronized boolean contains(Hash256 hash) {
+		return index.find(hash) != BlockIndex.NONE;
+	}
+	
+	/**
+	 * Gets the header at a height on the chain with the most work
+	 * 
+	 * @param height
+	 * @return the header, or null if the height is greater than the chain height
+	 */
+	public synchronized StoredHeader get(int height) {
+		if (height < 0 || height >= activeSize) {
+			return null;
+		}
+		return toStored(active[height]);
+	}
+	
+	/**
+	 * Gets the ancestor of a header
+	 * 
+	 * @param header
+	 * @param height
+	 * @return the ancestor, or null if the height is greater than the header's height
+	 */
+	public synchronized StoredHeader getAncestor(StoredHeader header, int height) {
+		int id = getAncestor(header.getId(), height);
+		return id == BlockIndex.NONE ? null : toStored(id);
+	}
+	
+	/**
+	 * Gets the parent of a header
+	 * 
+	 * @param header
+	 * @return the parent, or null for the genesis header
+	 */
+	public synchronized StoredHeader getParent(StoredHeader header) {
+		int id = index.getParent(header.getId());
+		return id == BlockIndex.NONE ? null : toStored(id);
+	}
+	
+	/**
+	 * Gets the header at the end of the chain with the most work
+	 * 
+	 * @return
+	 */
+	public synchronized StoredHeader getTip() {
+		return toStored(active[activeSize - 1]);
+	}
+	
+	public synchronized int getHeight() {
+		return activeSize - 1;
+	}
+	
+	/**
+	 * Gets the number of headers stored, including headers which are not on the chain with the most work
+	 * 
+	 * @return
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+	
+	/**
+	 * Gets a block locator for the chain with the most work.  The locator contains the 10 most recent 
+	 * hashes, then steps back exponentially and ends with the genesis hash.
+	 * 
+	 * @return
+	 */
+	public synchronized Hash256[] getLocator() {
+		List<Hash256> locator = new ArrayList<Hash256>(32);
+		int step = 1;
+		for (int height = activeSize - 1; height > 0; height -= step) {
+			locator.add(index.getHash(active[height]));
+			if (locator.size() >= 10) {
+				step <<= 1;
+			}
+		}
+		locator.add(index.getHash(active[0]));
+		return locator.toArray(new Hash256[locator.size()]);
+	}
+	
+	/**
+	 * Finds the most recent header on the chain with the most work which is referenced by a locator
+	 * 
+	 * @param locator
+	 * @return the fork point, or the genesis header if no locator hashes are known
+	 */
+	public synchronized StoredHeader findFork(Hash256[] locator) {
+		for (Hash256 hash : locator) {
+			int id = index.find(hash);
+			if (id != BlockIndex.NONE) {
+				while (!isActive(id)) {
+					id = index.getParent(id);
+				}
+				return toStored(id);
+			}
+		}
+		return toStored(active[0]);
+	}
+	
+	/**
+	 * Gets headers which follow a header on the chain with the most work
+	 * 
+	 * @param start the header to start after
+	 * @param stop the hash of the last header to include, or null to return up to max headers
+	 * @param max
+	 * @return
+	 */
+	public synchronized BlockHeader[] getHeadersAfter(StoredHeader start, Hash256 stop, int max) {
+		if (!isActive(start.getId())) {
+			return new BlockHeader[0];
+		}
+		int first = start.getHeight() + 1;
+		int count = Math.max(0, Math.min(max, activeSize - first));
+		BlockHeader[] headers = new BlockHeader[count];
+		for (int i = 0; i < count; i++) {
+			headers[i] = index.getHeader(active[first + i]);
+			if (headers[i].getHash().equals(stop)) {
+				return Arrays.copyOf(headers, i + 1);
+			}
+		}
+		return headers;
+	}
+	
+	public static enum Result {
+		CONNECTED(false),
+		DUPLICATE(false),
+		ORPHAN(false),
+		TIME_TOO_NEW(false),
+		BAD_TARGET(true),
+		BAD_POW(true),
+		BAD_TIME(true),
+		FAILED_PARENT(true);
+		
+		private final boolean invalid;
+		
+		private Result(boolean invalid) {
+			this.invalid = invalid;
+		}
+		
+		/**
+		 * Returns true if the header breaks the consensus rules, rather than just being unconnectable
+		 * 
+		 * @return
+		 */
+		public boolean isInvalid() {
+			return invalid;
+		}
+	}
+
+}
@@ -0,0 +1,702 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.BlockMessage;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.OutPoint;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+import com.raphfrk.bitcoin.bcnode.util.CryptUtils;
+import com.raphfrk.bitcoin.bcnode.util.RollingBloomFilter;
+
+/**
+ * The pool of unconfirmed transactions which spend the UTXO set or each other.<br>
+ * <br>
+ * Transactions are indexed by txid, by the outputs they spend, so that double spends are rejected, and in
+ * two fee rate orders.  The ancestor fee rate of a transaction is the fee rate of the transaction together
+ * with its unconfirmed ancestors, which is the rate a miner earns by including it, and orders block
+ * templates.  The descendant fee rate is the fee rate of the transaction together with its descendants,
+ * and the package with the lowest descendant fee rate is evicted when the pool is over its size limit, so
+ * a parent paid for by its child is not evicted.  The fee rate of the last evicted package sets a minimum
+ * fee rate for new transactions, which decays over time.<br>
+ * <br>
+ * Chains of unconfirmed transactions are limited to MAX_ANCESTORS ancestors and MAX_DESCENDANTS
+ * descendants, so keeping the fee rates up to date costs O(log n) per related transaction.<br>
+ * <br>
+ * Signatures are checked without holding the pool lock, and are added to the signature cache, so that
+ * they are not checked again when the transaction is confirmed.
+ */
+public class Mempool {
+	
+	/**
+	 * The largest transaction accepted, in virtual bytes
+	 */
+	public final static int MAX_TRANSACTION_SIZE = 100000;
+	/**
+	 * The maximum number of transactions in the pool which a transaction can depend on, including itself
+	 */
+	public final static int MAX_ANCESTORS = 25;
+	/**
+	 * The maximum number of transactions in the pool which can depend on a transaction, including itself
+	 */
+	public final static int MAX_DESCENDANTS = 25;
+	/**
+	 * The minimum fee rate for relayed transactions, in satoshis per 1000 virtual bytes
+	 */
+	public final static long MIN_RELAY_FEE_RATE = 1000;
+	/**
+	 * The maximum value of an output, in satoshis
+	 */
+	public final static long MAX_MONEY = 21000000L * 100000000L;
+	
+	/**
+	 * The approximate memory used by an entry and its index nodes, not including the transaction
+	 */
+	private final static int ENTRY_OVERHEAD = 512;
+	/**
+	 * The time for the minimum fee rate set by evictions to halve
+	 */
+	private final static long FEE_HALF_LIFE = 12L * 60L * 60L * 1000L;
+	/**
+	 * The height given to coins created by transactions in the pool
+	 */
+	private final static int MEMPOOL_HEIGHT = Integer.MAX_VALUE;
+	
+	private final static int REJECTED_CAPACITY = 50000;
+	private final static double REJECTED_FALSE_POSITIVE_RATE = 0.000001;
+	
+	private final UtxoSet utxoSet;
+	private final ChainParams params;
+	private final SignatureCache cache;
+	private final long maxBytes;
+	
+	private final HashMap<Hash256, Entry> transactions = new HashMap<Hash256, Entry>();
+	private final HashMap<OutPoint, Entry> spent = new HashMap<OutPoint, Entry>();
+	private final TreeSet<Entry> byAncestorFeeRate = new TreeSet<Entry>(new AncestorComparator());
+	private final TreeSet<Entry> byDescendantFeeRate = new TreeSet<Entry>(new DescendantComparator());
+	private RollingBloomFilter rejected = createRejectedFilter();
+	private long usage;
+	private long sequence;
+	private int height;
+	private long evictionFeeRate;
+	private long evictionTime;
+	
+	/**
+	 * Creates a pool
+	 *
+	 * @param utxoSet
+	 * @param params
+	 * @param cache the cache to add valid signatures to, or null
+	 * @param maxBytes the maximum memory used by the pool
+	 * @param height the height of the UTXO set's best block
+	 */
+	public Mempool(UtxoSet utxoSet, ChainParams params, SignatureCache cache, long maxBytes, int height) {
+		this.utxoSet = utxoSet;
+		this.params = params;
+		this.cache = cache;
+		this.maxBytes = maxBytes;
+		this.height = height;
+	}
+	
+	/**
+	 * Attempts to add a transaction to the pool
+	 *
+	 * @param tx
+	 * @param missing a list to add the outputs spent by the transaction which could not be found to
+	 * @return the result
+	 * @throws IOException if the UTXO set could not be read
+	 */
+	public Result accept(Transaction tx, List<OutPoint> missing) throws IOException {
+		Hash256 hash = tx.getHash();
+		if (tx.getVirtualSize() > MAX_TRANSACTION_SIZE) {
+			return reject(hash, Result.NONSTANDARD);
+		}
+		if (tx.getInputCount() == 1 && tx.getInputHash(0).equals(Hash256.ZERO) && tx.getInputIndex(0) == -1) {
+			return reject(hash, Result.INVALID);
+		}
+		Coin[] coins = new Coin[tx.getInputCount()];
+		int height;
+		synchronized (this) {
+			if (transactions.containsKey(hash)) {
+				return Result.DUPLICATE;
+			}
+			Result result = resolve(tx, coins, missing);
+			if (result != null) {
+				return result;
+			}
+			height = this.height;
+		}
+		long fee = getFee(tx, coins, height + 1);
+		if (fee < 0) {
+			return reject(hash, Result.INVALID);
+		}
+		if (fee * 1000L < getMinFeeRate() * tx.getVirtualSize()) {
+			return reject(hash, Result.INSUFFICIENT_FEE);
+		}
+		boolean witness = height + 1 >= params.getSegwitHeight();
+		if (tx.hasWitness() && !witness) {
+			return reject(hash, Result.NONSTANDARD);
+		}
+		SignatureHash.Precomputed precomputed = tx.hasWitness() ? new SignatureHash.Precomputed(tx) : null;
+		for (int i = 0; i < coins.length; i++) {
+			switch (SignatureChecker.check(tx, i, coins[i], witness, precomputed, cache, true)) {
+				case VALID: break;
+				case INVALID: return reject(hash, Result.INVALID);
+				case UNCHECKED: return reject(hash, Result.NONSTANDARD);
+			}
+		}
+		synchronized (this) {
+			if (transactions.containsKey(hash)) {
+				return Result.DUPLICATE;
+			}
+			Result result = resolve(tx, coins, missing);
+			if (result != null) {
+				return result;
+			}
+			return add(tx, fee);
+		}
+	}
+	
+	/**
+	 * Removes the transactions in a newly connected block, and any transactions which spend the same outputs
+	 *
+	 * @param block
+	 * @param height the height of the block
+	 * @throws IOException if the block is malformed
+	 */
+	public synchronized void removeForBlock(BlockMessage block, int height) throws IOException {
+		this.height = height;
+		for (int i = 1; i < block.getTransactionCount(); i++) {
+			Transaction tx = block.getTransaction(i);
+			Entry entry = transactions.get(tx.getHash());
+			if (entry != null) {
+				remove(Collections.singleton(entry), true);
+			}
+			for (int j = 0; j < tx.getInputCount(); j++) {
+				Entry conflict = spent.get(OutPoint.getInput(tx, j));
+				if (conflict != null) {
+					remove(getDescendants(conflict), false);
+				}
+			}
+		}
+		rejected = createRejectedFilter();
+	}
+	
+	/**
+	 * Removes every transaction after blocks have been disconnected, since transactions in the pool may 
+	 * spend outputs which no longer exist
+	 *
+	 * @param height the height of the UTXO set's new best block
+	 */
+	public synchronized void clear(int height) {
+		this.height = height;
+		transactions.clear();
+		spent.clear();
+		byAncestorFeeRate.clear();
+		byDescendantFeeRate.clear();
+		usage = 0;
+		rejected = createRejectedFilter();
+	}
+	
+	/**
+	 * Checks if a transaction is in the pool or was recently rejected
+	 *
+	 * @param hash
+	 * @return
+	 */
+	public synchronized boolean contains(Hash256 hash) {
+		return transactions.containsKey(hash) || rejected.contains(hash.getWord(0), hash.getWord(1));
+	}
+	
+	/**
+	 * Checks if a transaction was recently rejected.  The check can return false positives.
+	 *
+	 * @param hash
+	 * @return
+	 */
+	public synchronized boolean isRejected(Hash256 hash) {
+		return rejected.contains(hash.getWord(0), hash.getWord(1));
+	}
+	
+	/**
+	 * Gets a transaction from the pool
+	 *
+	 * @param hash
+	 * @return the transaction, or null if it is not in the pool
+	 */
+	public synchronized Transaction get(Hash256 hash) {
+		Entry entry = transactions.get(hash);
+		return entry == null ? null : entry.tx;
+	}
+	
+	/**
+	 * Gets the fee rate of a transaction in the pool, not including its ancestors
+	 * 
+	 * @param hash
+	 * @return the fee rate in satoshis per 1000 virtual bytes, or -1 if the transaction is not in the pool
+	 */
+	public synchronized long getFeeRate(Hash256 hash) {
+		Entry entry = transactions.get(hash);
+		return entry == null ? -1 : entry.fee * 1000L / entry.size;
+	}
+	
+	/**
+	 * Gets the transaction in the pool which spends an output
+	 *
+	 * @param outPoint
+	 * @return the transaction, or null if no transaction in the pool spends the output
+	 */
+	public synchronized Transaction getSpender(OutPoint outPoint) {
+		Entry entry = spent.get(outPoint);
+		return entry == null ? null : entry.tx;
+	}
+	
+	/**
+	 * Gets the number of transactions in the pool
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return transactions.size();
+	}
+	
+	/**
+	 * Gets the approximate memory used by the pool
+	 *
+	 * @return
+	 */
+	public synchronized long getUsage() {
+		return usage;
+	}
+	
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	/**
+	 * Gets the height of the UTXO set's best block, as of the last block removed from the pool
+	 * 
+	 * @return the height, or -1 if no blocks are connected
+	 */
+	public synchronized int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * Gets the minimum fee rate for new transactions.  This is raised above the relay fee rate when
+	 * transactions are evicted, and decays back to it.
+	 *
+	 * @return the fee rate in satoshis per 1000 virtual bytes
+	 */
+	public synchronized long getMinFeeRate() {
+		if (evictionFeeRate == 0) {
+			return MIN_RELAY_FEE_RATE;
+		}
+		long halvings = (System.currentTimeMillis() - evictionTime) / FEE_HALF_LIFE;
+		long rate = halvings >= 63 ? 0 : evictionFeeRate >> halvings;
+		if (rate < MIN_RELAY_FEE_RATE / 2) {
+			evictionFeeRate = 0;
+			return MIN_RELAY_FEE_RATE;
+		}
+		return Math.max(rate, MIN_RELAY_FEE_RATE);
+	}
+	
+	/**
+	 * Selects transactions for a block in order of ancestor fee rate.  A transaction is preceded by its
+	 * ancestors.
+	 *
+	 * @param maxSize the maximum total virtual size of the transactions
+	 * @return the transactions, in an order which can be included in a block
+	 */
+	public synchronized List<Transaction> getBlockTemplate(int maxSize) {
+		List<Transaction> template = new ArrayList<Transaction>();
+		Set<Entry> included = new HashSet<Entry>();
+		int size = 0;
+		for (Entry entry : byAncestorFeeRate.descendingSet()) {
+			if (included.contains(entry)) {
+				continue;
+			}
+			List<Entry> pkg = new ArrayList<Entry>();
+			int pkgSize = 0;
+			for (Entry e : getAncestors(entry)) {
+				if (!included.contains(e)) {
+					pkg.add(e);
+					pkgSize += e.size;
+				}
+			}
+			if (size + pkgSize > maxSize) {
+				continue;
+			}
+			Collections.sort(pkg, new Comparator<Entry>() {
+				@Override
+				public int compare(Entry a, Entry b) {
+					return Integer.compare(a.ancestorCount, b.ancestorCount);
+				}
+			});
+			for (Entry e : pkg) {
+				template.add(e.tx);
+				included.add(e);
+			}
+			size += pkgSize;
+		}
+		return template;
+	}
+	
+	private Result reject(Hash256 hash, Result result) {
+		synchronized (this) {
+			rejected.add(hash.getWord(0), hash.getWord(1));
+		}
+		return result;
+	}
+	
+	/**
+	 * Finds the coins spent by a transaction
+	 *
+	 * @return null if every coin was found, otherwise the reason the transaction can't be added
+	 */
+	private Result resolve(Transaction tx, Coin[] coins, List<OutPoint> missing) throws IOException {
+		Set<OutPoint> inputs = new HashSet<OutPoint>();
+		boolean found = true;
+		for (int i = 0; i < coins.length; i++) {
+			OutPoint outPoint = OutPoint.getInput(tx, i);
+			if (!inputs.add(outPoint)) {
+				return Result.INVALID;
+			}
+			if (spent.containsKey(outPoint)) {
+				return Result.CONFLICT;
+			}
+			Entry parent = transactions.get(outPoint.getHash());
+			if (parent != null) {
+				if (outPoint.getIndex() < 0 || outPoint.getIndex() >= parent.tx.getOutputCount()) {
+					return Result.INVALID;
+				}
+				coins[i] = new Coin(parent.tx, outPoint.getIndex(), MEMPOOL_HEIGHT, false);
+			} else {
+				coins[i] = utxoSet.get(outPoint);
+				if (coins[i] == null) {
+					missing.add(outPoint);
+					found = false;
+				}
+			}
+		}
+		return found ? null : Result.MISSING_INPUTS;
+	}
+	
+	/**
+	 * Gets the fee paid by a transaction
+	 *
+	 * @param height the height of the block which would include the transaction
+	 * @return the fee, or -1 if the output values are out of range, the outputs are worth more than the
+	 *         inputs or an immature coinbase output is spent
+	 */
+	private static long getFee(Transaction tx, Coin[] coins, int height) {
+		long in = 0;
+		for (Coin coin : coins) {
+			if (coin.isCoinbase() && height - coin.getHeight() < UtxoSet.COINBASE_MATURITY) {
+				return -1;
+			}
+			in += coin.getValue();
+			if (coin.getValue() < 0 || in > MAX_MONEY) {
+				return -1;
+			}
+		}
+		long out = 0;
+		for (int i = 0; i < tx.getOutputCount(); i++) {
+			long value = tx.getOutputValue(i);
+			if (value < 0 || value > MAX_MONEY) {
+				return -1;
+			}
+			out += value;
+			if (out > MAX_MONEY) {
+				return -1;
+			}
+		}
+		return in < out ? -1 : in - out;
+	}
+	
+	private Result add(Transaction tx, long fee) {
+		Set<Entry> parents = new HashSet<Entry>();
+		for (int i = 0; i < tx.getInputCount(); i++) {
+			Entry parent = transactions.get(tx.getInputHash(i));
+			if (parent != null) {
+				parents.add(parent);
+			}
+		}
+		Entry entry = new Entry(tx, fee, sequence++);
+		Set<Entry> ancestors = new HashSet<Entry>();
+		for (Entry parent : parents) {
+			ancestors.addAll(getAncestors(parent));
+		}
+		if (ancestors.size() + 1 > MAX_ANCESTORS) {
+			return reject(entry.hash, Result.NONSTANDARD);
+		}
+		for (Entry ancestor : ancestors) {
+			if (ancestor.descendantCount + 1 > MAX_DESCENDANTS) {
+				return reject(entry.hash, Result.NONSTANDARD);
+			}
+		}
+		for (Entry ancestor : ancestors) {
+			entry.ancestorCount++;
+			entry.ancestorSize += ancestor.size;
+			entry.ancestorFee += ancestor.fee;
+			updateDescendantState(ancestor, 1, entry.size, entry.fee);
+		}
+		for (Entry parent : parents) {
+			parent.children.add(entry);
+		}
+		entry.parents.addAll(parents);
+		for (int i = 0; i < tx.getInputCount(); i++) {
+			spent.put(OutPoint.getInput(tx, i), entry);
+		}
+		transactions.put(entry.hash, entry);
+		byAncestorFeeRate.add(entry);
+		byDescendantFeeRate.add(entry);
+		usage += entry.usage;
+		trim();
+		return transactions.containsKey(entry.hash) ? Result.ACCEPTED : Result.INSUFFICIENT_FEE;
+	}
+	
+	/**
+	 * Evicts the packages with the lowest descendant fee rate until the pool is within its size limit
+	 */
+	private void trim() {
+		while (usage > maxBytes && !byDescendantFeeRate.isEmpty()) {
+			Entry worst = byDescendantFeeRate.first();
+			long rate = worst.descendantFee * 1000L / worst.descendantSize + MIN_RELAY_FEE_RATE;
+			if (rate > getMinFeeRate()) {
+				evictionFeeRate = rate;
+				evictionTime = System.currentTimeMillis();
+			}
+			Set<Entry> descendants = getDescendants(worst);
+			for (Entry e : descendants) {
+				rejected.add(e.hash.getWord(0), e.hash.getWord(1));
+			}
+			remove(descendants, false);
+		}
+	}
+	
+	/**
+	 * Removes a set of transactions.  Every descendant of a removed transaction must also be removed,
+	 * unless the transactions were confirmed.
+	 *
+	 * @param removed
+	 * @param confirmed true if the transactions were confirmed, so their descendants stay in the pool
+	 */
+	private void remove(Set<Entry> removed, boolean confirmed) {
+		for (Entry entry : removed) {
+			for (Entry ancestor : getAncestors(entry)) {
+				if (!removed.contains(ancestor)) {
+					updateDescendantState(ancestor, -1, -entry.size, -entry.fee);
+				}
+			}
+			if (confirmed) {
+				for (Entry descendant : getDescendants(entry)) {
+					if (!removed.contains(descendant)) {
+						updateAncestorState(descendant, -1, -entry.size, -entry.fee);
+					}
+				}
+			}
+		}
+		for (Entry entry : removed) {
+			byAncestorFeeRate.remove(entry);
+			byDescendantFeeRate.remove(entry);
+			for (Entry parent : entry.parents) {
+				parent.children.remove(entry);
+			}
+			for (Entry child : entry.children) {
+				child.parents.remove(entry);
+			}
+			for (int i = 0; i < entry.tx.getInputCount(); i++) {
+				spent.remove(OutPoint.getInput(entry.tx, i));
+			}
+			transactions.remove(entry.hash);
+			usage -= entry.usage;
+		}
+	}
+	
+	private void updateAncestorState(Entry entry, int count, int size, long fee) {
+		boolean indexed = byAncestorFeeRate.remove(entry);
+		entry.ancestorCount += count;
+		entry.ancestorSize += size;
+		entry.ancestorFee += fee;
+		if (indexed) {
+			byAncestorFeeRate.add(entry);
+		}
+	}
+	
+	private void updateDescendantState(Entry entry, int count, int size, long fee) {
+		boolean indexed = byDescendantFeeRate.remove(entry);
+		entry.descendantCount += count;
+		entry.descendantSize += size;
+		entry.descendantFee += fee;
+		if (indexed) {
+			byDescendantFeeRate.add(entry);
+		}
+	}
+	
+	/**
+	 * Gets a transaction and its ancestors in the pool
+	 */
+	private static Set<Entry> getAncestors(Entry entry) {
+		Set<Entry> ancestors = new HashSet<Entry>();
+		List<Entry> open = new ArrayList<Entry>();
+		ancestors.add(entry);
+		open.add(entry);
+		while (!open.isEmpty()) {
+			for (Entry parent : open.remove(open.size() - 1).parents) {
+				if (ancestors.add(parent)) {
+					open.add(parent);
+				}
+			}
+		}
+		return ancestors;
+	}
+	
+	/**
+	 * Gets a transaction and its descendants in the pool
+	 */
+	private static Set<Entry> getDescendants(Entry entry) {
+		Set<Entry> descendants = new HashSet<Entry>();
+		List<Entry> open = new ArrayList<Entry>();
+		descendants.add(entry);
+		open.add(entry);
+		while (!open.isEmpty()) {
+			for (Entry child : open.remove(open.size() - 1).children) {
+				if (descendants.add(child)) {
+					open.add(child);
+				}
+			}
+		}
+		return descendants;
+	}
+	
+	private static RollingBloomFilter createRejectedFilter() {
+		return new RollingBloomFilter(REJECTED_CAPACITY, REJECTED_FALSE_POSITIVE_RATE, CryptUtils.getPseudoRandomLong());
+	}
+	
+	public static enum Result {
+		/**
+		 * The transaction was added to the pool
+		 */
+		ACCEPTED,
+		/**
+		 * The transaction is already in the pool
+		 */
+		DUPLICATE,
+		/**
+		 * An output spent by the transaction is not in the UTXO set or the pool
+		 */
+		MISSING_INPUTS,
+		/**
+		 * An output spent by the transaction is spent by another transaction in the pool
+		 */
+		CONFLICT,
+		/**
+		 * The transaction breaks a consensus rule
+		 */
+		INVALID,
+		/**
+		 * The transaction is too large, has scripts which can't be checked or depends on too many
+		 * transactions in the pool
+		 */
+		NONSTANDARD,
+		/**
+		 * The fee rate of the transaction is below the pool's minimum fee rate
+		 */
+		INSUFFICIENT_FEE
+	}
+	
+	private static class Entry {
+		
+		private final Transaction tx;
+		private final Hash256 hash;
+		private final int size;
+		private final long fee;
+		private final long usage;
+		private final long sequence;
+		private final Set<Entry> parents = new HashSet<Entry>(4);
+		private final Set<Entry> children = new HashSet<Entry>(4);
+		private int ancestorCount = 1;
+		private int ancestorSize;
+		private long ancestorFee;
+		private int descendantCount = 1;
+		private int descendantSize;
+		private long descendantFee;
+		
+		public Entry(Transaction tx, long fee, long sequence) {
+			this.tx = tx;
+			this.hash = tx.getHash();
+			this.size = tx.getVirtualSize();
+			this.fee = fee;
+			this.usage = tx.getLength(0) + ENTRY_OVERHEAD;
+			this.sequence = sequence;
+			this.ancestorSize = size;
+			this.ancestorFee = fee;
+			this.descendantSize = size;
+			this.descendantFee = fee;
+		}
+		
+	}
+	
+	/**
+	 * Orders transactions by increasing fee rate, given as a fee and size, with older transactions first
+	 * for equal fee rates
+	 */
+	private static int compareFeeRate(long feeA, int sizeA, long sequenceA, long feeB, int sizeB, long sequenceB) {
+		int c = Double.compare((double) feeA * sizeB, (double) feeB * sizeA);
+		return c != 0 ? c : Long.compare(sequenceB, sequenceA);
+	}
+	
+	private static class AncestorComparator implements Comparator<Entry> {
+		@Override
+		public int compare(Entry a, Entry b) {
+			return compareFeeRate(a.ancestorFee, a.ancestorSize, a.sequence, b.ancestorFee, b.ancestorSize, b.sequence);
+		}
+	}
+	
+	/**
+	 * Orders by the higher of the transaction's own fee rate and its descendant fee rate, so a high fee
+	 * transaction is not evicted because of low fee children
+	 */
+	private static class DescendantComparator implements Comparator<Entry> {
+		@Override
+		public int compare(Entry a, Entry b) {
+			boolean ownA = (double) a.fee * a.descendantSize > (double) a.descendantFee * a.size;
+			boolean ownB = (double) b.fee * b.descendantSize > (double) b.descendantFee * b.size;
+			return compareFeeRate(ownA ? a.fee : a.descendantFee, ownA ? a.size : a.descendantSize, a.sequence,
+					ownB ? b.fee : b.descendantFee, ownB ? b.size : b.descendantSize, b.sequence);
+		}
+	}
+	
+}
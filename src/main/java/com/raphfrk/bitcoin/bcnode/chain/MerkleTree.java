@@ -0,0 +1,456 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.PartialMerkleTree;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+import com.raphfrk.bitcoin.bcnode.util.DigestUtils;
+
+/**
+ * A merkle tree of transaction hashes.<br>
+ * <br>
+ * Each level of the tree is a flat byte array with a 32 byte slot per node, and pairs of nodes are hashed 
+ * straight from one level's array into the next, so no array is allocated per node.  Computing only the 
+ * root keeps two levels, in scratch arrays which are reused by the calling thread.  For large trees, the 
+ * leaves and the wide levels are split into ranges which are hashed in parallel on a shared fork-join 
+ * pool.<br>
+ * <br>
+ * A level with an odd number of nodes pairs its last node with itself.  As in the reference client, a tree 
+ * where two distinct nodes of a pair are equal is reported as mutated, since a different list of 
+ * transactions then has the same root.
+ */
+public class MerkleTree {
+	
+	/**
+	 * The number of node pairs per task when a level is hashed in parallel
+	 */
+	public final static int PARALLEL_PAIRS = 1024;
+	/**
+	 * The number of transactions per task when transactions are hashed in parallel
+	 */
+	public final static int PARALLEL_LEAVES = 64;
+	
+	private final static ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	
+	private final static ThreadLocal<byte[][]> scratch = new ThreadLocal<byte[][]>() {
+		@Override
+		protected byte[][] initialValue() {
+			return new byte[2][0];
+		}
+	};
+	
+	private final int leafCount;
+	private final byte[][] levels;
+	private final boolean mutated;
+	
+	private MerkleTree(int leafCount, byte[][] levels, boolean mutated) {
+		this.leafCount = leafCount;
+		this.levels = levels;
+		this.mutated = mutated;
+	}
+	
+	/**
+	 * Builds a tree, keeping every level so that branches can be extracted
+	 * 
+	 * @param leaves
+	 * @param parallel true to hash wide levels in parallel
+	 * @return
+	 */
+	public static MerkleTree build(Hash256[] leaves, boolean parallel) {
+		int depth = getDepth(leaves.length);
+		byte[][] levels = new byte[depth + 1][];
+		levels[0] = new byte[getCapacity(leaves.length)];
+		putLeaves(leaves, levels[0]);
+		boolean mutated = false;
+		for (int height = 0; height < depth; height++) {
+			int width = getWidth(leaves.length, height);
+			levels[height + 1] = new byte[getCapacity((width + 1) >> 1)];
+			mutated |= hashLevel(levels[height], width, levels[height + 1], parallel);
+		}
+		return new MerkleTree(leaves.length, levels, mutated);
+	}
+	
+	/**
+	 * Computes the root of a tree without keeping the tree
+	 * 
+	 * @param leaves
+	 * @param parallel true to hash wide levels in parallel
+	 * @return the root, or Hash256.ZERO if there are no leaves
+	 */
+	public static Hash256 computeRoot(Hash256[] leaves, boolean parallel) {
+		return computeRoot(leaves, parallel, null);
+	}
+	
+	/**
+	 * Checks that a list of leaves has the expected root and that the tree is not mutated
+	 * 
+	 * @param leaves
+	 * @param expected
+	 * @param parallel true to hash wide levels in parallel
+	 * @return
+	 */
+	public static boolean checkRoot(Hash256[] leaves, Hash256 expected, boolean parallel) {
+		boolean[] mutated = new boolean[1];
+		Hash256 root = computeRoot(leaves, parallel, mutated);
+		return !mutated[0] && root.equals(expected);
+	}
+	
+	private static Hash256 computeRoot(Hash256[] leaves, boolean parallel, boolean[] mutated) {
+		if (leaves.length == 0) {
+			return Hash256.ZERO;
+		}
+		byte[][] buffers = scratch.get();
+		int capacity = getCapacity(leaves.length);
+		if (buffers[0].length < capacity) {
+			buffers[0] = new byte[capacity];
+			buffers[1] = new byte[capacity];
+		}
+		byte[] in = buffers[0];
+		byte[] out = buffers[1];
+		putLeaves(leaves, in);
+		boolean isMutated = false;
+		for (int width = leaves.length; width > 1; width = (width + 1) >> 1) {
+			isMutated |= hashLevel(in, width, out, parallel);
+			byte[] t = in;
+			in = out;
+			out = t;
+		}
+		if (mutated != null) {
+			mutated[0] = isMutated;
+		}
+		return Hash256.get(ByteBuffer.wrap(in), 0);
+	}
+	
+	/**
+	 * Gets the hashes of a list of transactions, which are the leaves of the block's merkle tree
+	 * 
+	 * @param transactions
+	 * @param parallel true to hash large lists in parallel
+	 * @return
+	 */
+	public static Hash256[] getLeaves(Transaction[] transactions, boolean parallel) {
+		Hash256[] leaves = new Hash256[transactions.length];
+		if (parallel && transactions.length > PARALLEL_LEAVES) {
+			pool.invoke(new LeafTask(transactions, leaves, 0, transactions.length));
+		} else {
+			hashLeaves(transactions, leaves, 0, transactions.length);
+		}
+		return leaves;
+	}
+	
+	/**
+	 * Checks a merkle branch
+	 * 
+	 * @param leaf
+	 * @param branch the sibling of the leaf and of each of its ancestors, see getBranch
+	 * @param index the position of the leaf
+	 * @return the root implied by the branch
+	 */
+	public static Hash256 getBranchRoot(Hash256 leaf, Hash256[] branch, int index) {
+		byte[] pair = new byte[64];
+		ByteBuffer buf = ByteBuffer.wrap(pair);
+		Hash256 hash = leaf;
+		for (Hash256 sibling : branch) {
+			buf.clear();
+			if ((index & 1) != 0) {
+				sibling.put(0, buf);
+				hash.put(0, buf);
+			} else {
+				hash.put(0, buf);
+				sibling.put(0, buf);
+			}
+			DigestUtils.doubleSHA256(pair, 0, 64, pair, 0);
+			hash = Hash256.get(buf, 0);
+			index >>= 1;
+		}
+		return hash;
+	}
+	
+	public int getLeafCount() {
+		return leafCount;
+	}
+	
+	/**
+	 * Gets the number of levels above the leaves
+	 * 
+	 * @return
+	 */
+	public int getDepth() {
+		return levels.length - 1;
+	}
+	
+	public Hash256 getRoot() {
+		return leafCount == 0 ? Hash256.ZERO : getNode(getDepth(), 0);
+	}
+	
+	/**
+	 * Checks if two distinct nodes of a pair are equal
+	 * 
+	 * @return
+	 */
+	public boolean isMutated() {
+		return mutated;
+	}
+	
+	/**
+	 * Gets a node of the tree
+	 * 
+	 * @param height the level, where 0 is the leaves
+	 * @param position the position of the node in the level
+	 * @return
+	 */
+	public Hash256 getNode(int height, int position) {
+		if (position < 0 || position >= getWidth(leafCount, height)) {
+			throw new IndexOutOfBoundsException("Position " + position + " is outside level " + height);
+		}
+		return Hash256.get(ByteBuffer.wrap(levels[height]), position << 5);
+	}
+	
+	/**
+	 * Gets the merkle branch for a leaf, which is the sibling of the leaf and of each of its ancestors
+	 * 
+	 * @param index the position of the leaf
+	 * @return
+	 */
+	public Hash256[] getBranch(int index) {
+		Hash256[] branch = new Hash256[getDepth()];
+		for (int height = 0; height < branch.length; height++) {
+			int sibling = index ^ 1;
+			if (sibling >= getWidth(leafCount, height)) {
+				sibling = index;
+			}
+			branch[height] = getNode(height, sibling);
+			index >>= 1;
+		}
+		return branch;
+	}
+	
+	/**
+	 * Prunes the tree down to the branches of a set of matched transactions, for a merkleblock message
+	 * 
+	 * @param matches true for each leaf which matches
+	 * @return
+	 */
+	public PartialMerkleTree getPartialTree(boolean[] matches) {
+		if (matches.length != leafCount) {
+			throw new IllegalArgumentException("Expected " + leafCount + " matches, got " + matches.length);
+		}
+		List<Hash256> hashes = new ArrayList<Hash256>();
+		byte[] flags = new byte[(getNodeCount() + 7) >> 3];
+		int bits = addPartialNode(getDepth(), 0, matches, hashes, flags, 0);
+		byte[] trimmed = new byte[(bits + 7) >> 3];
+		System.arraycopy(flags, 0, trimmed, 0, trimmed.length);
+		return new PartialMerkleTree(leafCount, hashes.toArray(new Hash256[hashes.size()]), trimmed);
+	}
+	
+	private int addPartialNode(int height, int position, boolean[] matches, List<Hash256> hashes, byte[] flags, int bit) {
+		boolean parentOfMatch = false;
+		for (int i = position << height; i < (position + 1) << height && i < leafCount; i++) {
+			if (matches[i]) {
+				parentOfMatch = true;
+				break;
+			}
+		}
+		if (parentOfMatch) {
+			flags[bit >> 3] |= 1 << (bit & 7);
+		}
+		bit++;
+		if (height == 0 || !parentOfMatch) {
+			hashes.add(getNode(height, position));
+			return bit;
+		}
+		bit = addPartialNode(height - 1, position << 1, matches, hashes, flags, bit);
+		if ((position << 1) + 1 < getWidth(leafCount, height - 1)) {
+			bit = addPartialNode(height - 1, (position << 1) + 1, matches, hashes, flags, bit);
+		}
+		return bit;
+	}
+	
+	private int getNodeCount() {
+		int count = 0;
+		for (int height = 0; height <= getDepth(); height++) {
+			count += getWidth(leafCount, height);
+		}
+		return count;
+	}
+	
+	/**
+	 * Gets the number of nodes at a level of a tree
+	 * 
+	 * @param leafCount
+	 * @param height
+	 * @return
+	 */
+	public static int getWidth(int leafCount, int height) {
+		return (int) ((leafCount + (1L << height) - 1) >> height);
+	}
+	
+	/**
+	 * Gets the number of levels above the leaves of a tree
+	 * 
+	 * @param leafCount
+	 * @return
+	 */
+	public static int getDepth(int leafCount) {
+		int depth = 0;
+		while (getWidth(leafCount, depth) > 1) {
+			depth++;
+		}
+		return depth;
+	}
+	
+	/**
+	 * Gets the size of a level array.  There is room for an extra node, so the last node of an odd level can 
+	 * be copied to make a pair.
+	 * 
+	 * @param width
+	 * @return
+	 */
+	private static int getCapacity(int width) {
+		return (width + 1) << 5;
+	}
+	
+	private static void putLeaves(Hash256[] leaves, byte[] level) {
+		ByteBuffer buf = ByteBuffer.wrap(level);
+		for (Hash256 leaf : leaves) {
+			leaf.put(0, buf);
+		}
+	}
+	
+	private static void hashLeaves(Transaction[] transactions, Hash256[] leaves, int from, int to) {
+		for (int i = from; i < to; i++) {
+			leaves[i] = transactions[i].getHash();
+		}
+	}
+	
+	/**
+	 * Hashes the pairs of nodes of one level into the next level
+	 * 
+	 * @param in the level
+	 * @param width the number of nodes in the level
+	 * @param out the next level
+	 * @param parallel
+	 * @return true if the level is mutated
+	 */
+	private static boolean hashLevel(byte[] in, int width, byte[] out, boolean parallel) {
+		if ((width & 1) != 0) {
+			System.arraycopy(in, (width - 1) << 5, in, width << 5, 32);
+		}
+		int pairs = (width + 1) >> 1;
+		if (parallel && pairs > PARALLEL_PAIRS) {
+			return pool.invoke(new LevelTask(in, width, out, 0, pairs));
+		} else {
+			return hashPairs(in, width, out, 0, pairs);
+		}
+	}
+	
+	private static boolean hashPairs(byte[] in, int width, byte[] out, int from, int to) {
+		boolean mutated = false;
+		for (int i = from; i < to; i++) {
+			int left = i << 6;
+			if ((i << 1) + 1 < width) {
+				mutated |= isEqual(in, left, left + 32);
+			}
+			DigestUtils.doubleSHA256(in, left, 64, out, i << 5);
+		}
+		return mutated;
+	}
+	
+	private static boolean isEqual(byte[] buf, int a, int b) {
+		for (int i = 0; i < 32; i++) {
+			if (buf[a + i] != buf[b + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	@SuppressWarnings("serial")
+	private static class LevelTask extends RecursiveTask<Boolean> {
+		
+		private final byte[] in;
+		private final int width;
+		private final byte[] out;
+		private final int from;
+		private final int to;
+		
+		public LevelTask(byte[] in, int width, byte[] out, int from, int to) {
+			this.in = in;
+			this.width = width;
+			this.out = out;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Boolean compute() {
+			if (to - from <= PARALLEL_PAIRS) {
+				return hashPairs(in, width, out, from, to);
+			}
+			int mid = (from + to) >>> 1;
+			LevelTask left = new LevelTask(in, width, out, from, mid);
+			LevelTask right = new LevelTask(in, width, out, mid, to);
+			left.fork();
+			boolean mutated = right.compute();
+			return left.join() | mutated;
+		}
+		
+	}
+	
+	@SuppressWarnings("serial")
+	private static class LeafTask extends RecursiveAction {
+		
+		private final Transaction[] transactions;
+		private final Hash256[] leaves;
+		private final int from;
+		private final int to;
+		
+		public LeafTask(Transaction[] transactions, Hash256[] leaves, int from, int to) {
+			this.transactions = transactions;
+			this.leaves = leaves;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= PARALLEL_LEAVES) {
+				hashLeaves(transactions, leaves, from, to);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new LeafTask(transactions, leaves, from, mid), new LeafTask(transactions, leaves, mid, to));
+		}
+		
+	}
+
+}
@@ -0,0 +1,214 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
+/**
+ * A bounded cache of signatures which have been found to be valid, so that transactions checked when they 
+ * were relayed are not checked again when they appear in a block.<br>
+ * <br>
+ * An entry is the SHA-256 hash of a random salt, the signed hash, the public key and the signature.  The 
+ * salt stops peers from choosing signatures which collide in the cache.<br>
+ * <br>
+ * Entries are held in a flat array, split into buckets of WAYS slots, so the cache has no per entry 
+ * objects and its memory use is fixed when it is created.  When a bucket is full, an entry is evicted 
+ * with the CLOCK algorithm: each hit marks its entry as referenced, and the bucket's hand skips, and 
+ * clears, referenced entries until it finds one which has not been used since the hand last passed.  Each 
+ * group of buckets has its own lock.
+ */
+public class SignatureCache {
+	
+	/**
+	 * The number of slots per bucket
+	 */
+	public final static int WAYS = 8;
+	/**
+	 * The memory used by each slot, 32 bytes for the entry and 1 for its flags
+	 */
+	public final static int SLOT_BYTES = 33;
+	
+	private final static int STRIPES = 64;
+	
+	private final static byte OCCUPIED = 1;
+	private final static byte REFERENCED = 2;
+	
+	private final static ThreadLocal<SHA256Digest> localDigest = new ThreadLocal<SHA256Digest>() {
+		@Override
+		protected SHA256Digest initialValue() {
+			return new SHA256Digest();
+		}
+	};
+	
+	private final byte[] salt = new byte[32];
+	private final long[] entries;
+	private final byte[] flags;
+	private final byte[] hands;
+	private final int bucketMask;
+	private final Object[] locks = new Object[STRIPES];
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * Creates a cache
+	 * 
+	 * @param maxBytes the memory to use.  The number of buckets is rounded down to a power of two.
+	 */
+	public SignatureCache(long maxBytes) {
+		long buckets = Math.max(1, maxBytes / (SLOT_BYTES * WAYS));
+		int bucketCount = Integer.highestOneBit((int) Math.min(buckets, 1 << 24));
+		this.bucketMask = bucketCount - 1;
+		this.entries = new long[bucketCount * WAYS * 4];
+		this.flags = new byte[bucketCount * WAYS];
+		this.hands = new byte[bucketCount];
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new Object();
+		}
+		new SecureRandom().nextBytes(salt);
+	}
+	
+	/**
+	 * Gets the number of entries the cache can hold
+	 * 
+	 * @return
+	 */
+	public int getCapacity() {
+		return flags.length;
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * Checks if a signature is in the cache, and marks it as referenced if it is
+	 * 
+	 * @param hash the signed hash
+	 * @param sig
+	 * @param sigOff
+	 * @param sigLength
+	 * @param key
+	 * @param keyOff
+	 * @param keyLength
+	 * @return
+	 */
+	public boolean contains(byte[] hash, byte[] sig, int sigOff, int sigLength, byte[] key, int keyOff, int keyLength) {
+		long[] entry = getEntry(hash, sig, sigOff, sigLength, key, keyOff, keyLength);
+		int bucket = (int) entry[0] & bucketMask;
+		synchronized (getLock(bucket)) {
+			int slot = find(bucket, entry);
+			if (slot == -1) {
+				misses.incrementAndGet();
+				return false;
+			}
+			flags[slot] |= REFERENCED;
+		}
+		hits.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Adds a valid signature to the cache, evicting another entry if its bucket is full
+	 * 
+	 * @param hash the signed hash
+	 * @param sig
+	 * @param sigOff
+	 * @param sigLength
+	 * @param key
+	 * @param keyOff
+	 * @param keyLength
+	 */
+	public void add(byte[] hash, byte[] sig, int sigOff, int sigLength, byte[] key, int keyOff, int keyLength) {
+		long[] entry = getEntry(hash, sig, sigOff, sigLength, key, keyOff, keyLength);
+		int bucket = (int) entry[0] & bucketMask;
+		synchronized (getLock(bucket)) {
+			if (find(bucket, entry) != -1) {
+				return;
+			}
+			int slot = evict(bucket);
+			System.arraycopy(entry, 0, entries, slot * 4, 4);
+			flags[slot] = OCCUPIED;
+		}
+	}
+	
+	private Object getLock(int bucket) {
+		return locks[bucket & (STRIPES - 1)];
+	}
+	
+	private int find(int bucket, long[] entry) {
+		int first = bucket * WAYS;
+		for (int slot = first; slot < first + WAYS; slot++) {
+			int i = slot * 4;
+			if ((flags[slot] & OCCUPIED) != 0 && entries[i] == entry[0] && entries[i + 1] == entry[1] && 
+					entries[i + 2] == entry[2] && entries[i + 3] == entry[3]) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Finds a free slot in a bucket, advancing the bucket's hand past referenced entries
+	 * 
+	 * @param bucket
+	 * @return
+	 */
+	private int evict(int bucket) {
+		int first = bucket * WAYS;
+		int hand = hands[bucket];
+		while (true) {
+			int slot = first + hand;
+			hand = (hand + 1) % WAYS;
+			if ((flags[slot] & REFERENCED) == 0) {
+				hands[bucket] = (byte) hand;
+				return slot;
+			}
+			flags[slot] &= ~REFERENCED;
+		}
+	}
+	
+	private long[] getEntry(byte[] hash, byte[] sig, int sigOff, int sigLength, byte[] key, int keyOff, int keyLength) {
+		SHA256Digest digest = localDigest.get();
+		digest.reset();
+		digest.update(salt, 0, salt.length);
+		digest.update(hash, 0, hash.length);
+		digest.update((byte) keyLength);
+		digest.update(key, keyOff, keyLength);
+		digest.update(sig, sigOff, sigLength);
+		byte[] out = new byte[32];
+		digest.doFinal(out, 0);
+		ByteBuffer buf = ByteBuffer.wrap(out);
+		return new long[] {buf.getLong(), buf.getLong(), buf.getLong(), buf.getLong()};
+	}
+
+}
@@ -0,0 +1,201 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.bouncycastle.math.ec.ECPoint;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+import com.raphfrk.bitcoin.bcnode.util.DigestUtils;
+import com.raphfrk.bitcoin.bcnode.util.ECDSAUtils;
+
+/**
+ * Checks the signatures of inputs which spend the standard single key output types: pay to public key, 
+ * pay to public key hash and pay to witness public key hash.<br>
+ * <br>
+ * There is no script interpreter, so inputs which spend other output types, or which use scripts or 
+ * encodings other than the standard ones, are reported as unchecked rather than invalid.
+ */
+public final class SignatureChecker {
+	
+	private final static byte OP_DUP = 0x76;
+	private final static byte OP_HASH160 = (byte) 0xa9;
+	private final static byte OP_EQUALVERIFY = (byte) 0x88;
+	private final static byte OP_CHECKSIG = (byte) 0xac;
+	private final static int OP_PUSHDATA1 = 0x4c;
+	private final static int OP_PUSHDATA2 = 0x4d;
+	
+	public static enum Result {
+		VALID,
+		INVALID,
+		UNCHECKED
+	}
+	
+	private SignatureChecker() {
+	}
+	
+	/**
+	 * Checks the signature of an input
+	 * 
+	 * @param tx
+	 * @param input
+	 * @param coin the spent output
+	 * @param witness true if witness programs are enforced
+	 * @param precomputed the shared witness hashes of the transaction, required if the transaction has witnesses
+	 * @param cache the cache of valid signatures, or null to always check signatures
+	 * @param store true to add valid signatures to the cache
+	 * @return
+	 */
+	public static Result check(Transaction tx, int input, Coin coin, boolean witness, SignatureHash.Precomputed precomputed, 
+			SignatureCache cache, boolean store) {
+		byte[] script = coin.getScript();
+		if (isPayToPublicKeyHash(script)) {
+			byte[] sigScript = toArray(tx.getInputScript(input));
+			int[] pushes = getPushes(sigScript, 2);
+			if (pushes == null) {
+				return Result.UNCHECKED;
+			}
+			if (!Arrays.equals(DigestUtils.hash160(sigScript, pushes[2], pushes[3]), Arrays.copyOfRange(script, 3, 23))) {
+				return Result.INVALID;
+			}
+			return checkSignature(tx, input, sigScript, pushes[0], pushes[1], sigScript, pushes[2], pushes[3], script, -1, null, cache, store);
+		} else if (isPayToPublicKey(script)) {
+			byte[] sigScript = toArray(tx.getInputScript(input));
+			int[] pushes = getPushes(sigScript, 1);
+			if (pushes == null) {
+				return Result.UNCHECKED;
+			}
+			return checkSignature(tx, input, sigScript, pushes[0], pushes[1], script, 1, script.length - 2, script, -1, null, cache, store);
+		} else if (witness && script.length == 22 && script[0] == 0 && script[1] == 20) {
+			if (tx.getInputScript(input).hasRemaining() || !tx.hasWitness() || tx.getWitnessCount(input) != 2) {
+				return Result.INVALID;
+			}
+			byte[] sig = toArray(tx.getWitness(input, 0));
+			byte[] key = toArray(tx.getWitness(input, 1));
+			byte[] hash = Arrays.copyOfRange(script, 2, 22);
+			if (!Arrays.equals(DigestUtils.hash160(key, 0, key.length), hash)) {
+				return Result.INVALID;
+			}
+			byte[] scriptCode = new byte[25];
+			scriptCode[0] = OP_DUP;
+			scriptCode[1] = OP_HASH160;
+			scriptCode[2] = 20;
+			System.arraycopy(hash, 0, scriptCode, 3, 20);
+			scriptCode[23] = OP_EQUALVERIFY;
+			scriptCode[24] = OP_CHECKSIG;
+			return checkSignature(tx, input, sig, 0, sig.length, key, 0, key.length, scriptCode, coin.getValue(), precomputed, cache, store);
+		}
+		return Result.UNCHECKED;
+	}
+	
+	/**
+	 * Checks a signature, including its trailing hash type byte.  Signatures in the cache are not checked again.
+	 * 
+	 * @param value the value of the spent output for witness signatures, or -1 for original signatures
+	 * @return
+	 */
+	private static Result checkSignature(Transaction tx, int input, byte[] sig, int sigOff, int sigLength, byte[] key, int keyOff, int keyLength, 
+			byte[] scriptCode, long value, SignatureHash.Precomputed precomputed, SignatureCache cache, boolean store) {
+		if (sigLength == 0) {
+			return Result.INVALID;
+		}
+		int hashType = sig[sigOff + sigLength - 1] & 0xFF;
+		byte[] hash;
+		if (value < 0) {
+			hash = SignatureHash.getLegacyHash(tx, input, scriptCode, hashType);
+		} else {
+			hash = SignatureHash.getWitnessHash(tx, input, scriptCode, value, hashType, precomputed);
+		}
+		if (cache != null && cache.contains(hash, sig, sigOff, sigLength - 1, key, keyOff, keyLength)) {
+			return Result.VALID;
+		}
+		BigInteger[] signature = ECDSAUtils.decodeSignature(sig, sigOff, sigLength - 1);
+		ECPoint point = ECDSAUtils.decodePublicKey(key, keyOff, keyLength);
+		if (signature == null || point == null) {
+			return Result.UNCHECKED;
+		}
+		if (!ECDSAUtils.verify(hash, signature, point)) {
+			return Result.INVALID;
+		}
+		if (cache != null && store) {
+			cache.add(hash, sig, sigOff, sigLength - 1, key, keyOff, keyLength);
+		}
+		return Result.VALID;
+	}
+	
+	private static boolean isPayToPublicKeyHash(byte[] script) {
+		return script.length == 25 && script[0] == OP_DUP && script[1] == OP_HASH160 && script[2] == 20 && 
+				script[23] == OP_EQUALVERIFY && script[24] == OP_CHECKSIG;
+	}
+	
+	private static boolean isPayToPublicKey(byte[] script) {
+		return (script.length == 35 || script.length == 67) && script[0] == script.length - 2 && script[script.length - 1] == OP_CHECKSIG;
+	}
+	
+	/**
+	 * Finds the data pushed by a script which only contains pushes
+	 * 
+	 * @param script
+	 * @param count the expected number of pushes
+	 * @return the offset and length of each push, or null if the script is not exactly count pushes
+	 */
+	private static int[] getPushes(byte[] script, int count) {
+		int[] pushes = new int[count * 2];
+		int position = 0;
+		for (int i = 0; i < count; i++) {
+			if (position >= script.length) {
+				return null;
+			}
+			int op = script[position++] & 0xFF;
+			int length;
+			if (op < OP_PUSHDATA1) {
+				length = op;
+			} else if (op == OP_PUSHDATA1 && position + 1 <= script.length) {
+				length = script[position++] & 0xFF;
+			} else if (op == OP_PUSHDATA2 && position + 2 <= script.length) {
+				length = (script[position] & 0xFF) | ((script[position + 1] & 0xFF) << 8);
+				position += 2;
+			} else {
+				return null;
+			}
+			if (position + length > script.length) {
+				return null;
+			}
+			pushes[i * 2] = position;
+			pushes[i * 2 + 1] = length;
+			position += length;
+		}
+		return position == script.length ? pushes : null;
+	}
+	
+	private static byte[] toArray(ByteBuffer buf) {
+		byte[] array = new byte[buf.remaining()];
+		buf.duplicate().get(array);
+		return array;
+	}
+
+}
@@ -0,0 +1,222 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+import com.raphfrk.bitcoin.bcnode.network.elements.VarInt;
+import com.raphfrk.bitcoin.bcnode.util.DigestUtils;
+
+/**
+ * Computes the hashes signed by transaction signatures, in the original format and the witness format 
+ * (BIP 143)
+ */
+public final class SignatureHash {
+	
+	public final static int SIGHASH_ALL = 1;
+	public final static int SIGHASH_NONE = 2;
+	public final static int SIGHASH_SINGLE = 3;
+	public final static int SIGHASH_ANYONECANPAY = 0x80;
+	
+	private final static byte[] ZERO = new byte[32];
+	private final static byte[] ONE = new byte[32];
+	
+	static {
+		ONE[0] = 1;
+	}
+	
+	private SignatureHash() {
+	}
+	
+	/**
+	 * Gets the hash signed by a signature in the original format.  The input's script is replaced by the 
+	 * script code, and the other inputs' scripts are removed.
+	 * 
+	 * @param tx
+	 * @param input
+	 * @param scriptCode the public key script of the spent output
+	 * @param hashType
+	 * @return
+	 */
+	public static byte[] getLegacyHash(Transaction tx, int input, byte[] scriptCode, int hashType) {
+		int base = hashType & 0x1f;
+		boolean anyoneCanPay = (hashType & SIGHASH_ANYONECANPAY) != 0;
+		if (base == SIGHASH_SINGLE && input >= tx.getOutputCount()) {
+			return ONE.clone();
+		}
+		int inputCount = anyoneCanPay ? 1 : tx.getInputCount();
+		int outputCount = base == SIGHASH_NONE ? 0 : base == SIGHASH_SINGLE ? input + 1 : tx.getOutputCount();
+		
+		int length = 4 + VarInt.getLength(0, inputCount) + inputCount * 41 - 1 + VarInt.getLength(0, scriptCode.length) + scriptCode.length;
+		length += VarInt.getLength(0, outputCount);
+		for (int i = 0; i < outputCount; i++) {
+			length += getOutputLength(tx, i);
+		}
+		length += 8;
+		
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(tx.getVersion());
+		VarInt.put(0, buf, inputCount);
+		for (int i = 0; i < tx.getInputCount(); i++) {
+			if (anyoneCanPay && i != input) {
+				continue;
+			}
+			putOutPoint(tx, i, buf);
+			if (i == input) {
+				VarInt.put(0, buf, scriptCode.length);
+				buf.put(scriptCode);
+			} else {
+				buf.put((byte) 0);
+			}
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(i != input && (base == SIGHASH_NONE || base == SIGHASH_SINGLE) ? 0 : tx.getInputSequence(i));
+		}
+		VarInt.put(0, buf, outputCount);
+		for (int i = 0; i < outputCount; i++) {
+			if (base == SIGHASH_SINGLE && i != input) {
+				buf.order(ByteOrder.LITTLE_ENDIAN);
+				buf.putLong(-1L);
+				buf.put((byte) 0);
+			} else {
+				putOutput(tx, i, buf);
+			}
+		}
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(tx.getLockTime());
+		buf.putInt(hashType);
+		buf.order(ByteOrder.BIG_ENDIAN);
+		byte[] data = buf.array();
+		DigestUtils.doubleSHA256(data, 0, length, data, 0);
+		byte[] hash = new byte[32];
+		System.arraycopy(data, 0, hash, 0, 32);
+		return hash;
+	}
+	
+	/**
+	 * Gets the hash signed by a signature in the witness format (BIP 143)
+	 * 
+	 * @param tx
+	 * @param input
+	 * @param scriptCode
+	 * @param value the value of the spent output
+	 * @param hashType
+	 * @param precomputed the hashes shared by the inputs of the transaction
+	 * @return
+	 */
+	public static byte[] getWitnessHash(Transaction tx, int input, byte[] scriptCode, long value, int hashType, Precomputed precomputed) {
+		int base = hashType & 0x1f;
+		boolean anyoneCanPay = (hashType & SIGHASH_ANYONECANPAY) != 0;
+		byte[] hashPrevouts = anyoneCanPay ? ZERO : precomputed.hashPrevouts;
+		byte[] hashSequence = anyoneCanPay || base == SIGHASH_SINGLE || base == SIGHASH_NONE ? ZERO : precomputed.hashSequence;
+		byte[] hashOutputs;
+		if (base != SIGHASH_SINGLE && base != SIGHASH_NONE) {
+			hashOutputs = precomputed.hashOutputs;
+		} else if (base == SIGHASH_SINGLE && input < tx.getOutputCount()) {
+			ByteBuffer output = ByteBuffer.allocate(getOutputLength(tx, input));
+			putOutput(tx, input, output);
+			hashOutputs = DigestUtils.doubleSHA256(output, 0, output.capacity());
+		} else {
+			hashOutputs = ZERO;
+		}
+		
+		int length = 4 + 32 + 32 + 36 + VarInt.getLength(0, scriptCode.length) + scriptCode.length + 8 + 4 + 32 + 4 + 4;
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(tx.getVersion());
+		buf.put(hashPrevouts);
+		buf.put(hashSequence);
+		putOutPoint(tx, input, buf);
+		VarInt.put(0, buf, scriptCode.length);
+		buf.put(scriptCode);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putLong(value);
+		buf.putInt(tx.getInputSequence(input));
+		buf.put(hashOutputs);
+		buf.putInt(tx.getLockTime());
+		buf.putInt(hashType);
+		buf.order(ByteOrder.BIG_ENDIAN);
+		return DigestUtils.doubleSHA256(buf, 0, length);
+	}
+	
+	private static int getOutputLength(Transaction tx, int output) {
+		int scriptLength = tx.getOutputScript(output).remaining();
+		return 8 + VarInt.getLength(0, scriptLength) + scriptLength;
+	}
+	
+	private static void putOutput(Transaction tx, int output, ByteBuffer buf) {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putLong(tx.getOutputValue(output));
+		ByteBuffer script = tx.getOutputScript(output);
+		VarInt.put(0, buf, script.remaining());
+		buf.put(script);
+	}
+	
+	private static void putOutPoint(Transaction tx, int input, ByteBuffer buf) {
+		Hash256 hash = tx.getInputHash(input);
+		buf.order(ByteOrder.BIG_ENDIAN);
+		hash.put(0, buf);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(tx.getInputIndex(input));
+	}
+	
+	/**
+	 * The hashes of a transaction's outpoints, sequences and outputs, which are shared by the witness format 
+	 * hashes of all its inputs
+	 */
+	public static final class Precomputed {
+		
+		private final byte[] hashPrevouts;
+		private final byte[] hashSequence;
+		private final byte[] hashOutputs;
+		
+		public Precomputed(Transaction tx) {
+			int inputs = tx.getInputCount();
+			ByteBuffer buf = ByteBuffer.allocate(inputs * 36);
+			for (int i = 0; i < inputs; i++) {
+				putOutPoint(tx, i, buf);
+			}
+			hashPrevouts = DigestUtils.doubleSHA256(buf, 0, buf.capacity());
+			buf = ByteBuffer.allocate(inputs * 4).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < inputs; i++) {
+				buf.putInt(tx.getInputSequence(i));
+			}
+			hashSequence = DigestUtils.doubleSHA256(buf, 0, buf.capacity());
+			int length = 0;
+			for (int i = 0; i < tx.getOutputCount(); i++) {
+				length += getOutputLength(tx, i);
+			}
+			buf = ByteBuffer.allocate(length);
+			for (int i = 0; i < tx.getOutputCount(); i++) {
+				putOutput(tx, i, buf);
+			}
+			hashOutputs = DigestUtils.doubleSHA256(buf, 0, length);
+		}
+		
+	}
+
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import java.math.BigInteger;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.BlockHeader;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+
+/**
+ * A snapshot of an entry in the header chain's index
+ */
+public final class StoredHeader {
+	
+	private final int id;
+	private final int height;
+	private final BlockHeader header;
+	private final BigInteger chainWork;
+	
+	protected StoredHeader(int id, int height, BlockHeader header, BigInteger chainWork) {
+		this.id = id;
+		this.height = height;
+		this.header = header;
+		this.chainWork = chainWork;
+	}
+	
+	/**
+	 * Gets the id of the entry in the block index
+	 * 
+	 * @return
+	 */
+	public int getId() {
+		return id;
+	}
+	
+	public BlockHeader getHeader() {
+		return header;
+	}
+	
+	public Hash256 getHash() {
+		return header.getHash();
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * Gets the total work of the chain ending at this header
+	 * 
+	 * @return
+	 */
+	public BigInteger getChainWork() {
+		return chainWork;
+	}
+	
+	@Override
+	public int hashCode() {
+		return id;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof StoredHeader && ((StoredHeader) o).id == id;
+	}
+	
+	@Override
+	public String toString() {
+		return height + ":" + header.getHash();
+	}
+
+}
@@ -0,0 +1,381 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.log.LogSubsystem;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.BlockMessage;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.OutPoint;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+
+/**
+ * The set of unspent transaction outputs at the tip of the connected chain.<br>
+ * <br>
+ * Coins are held in a CoinStore, fronted by a write-back cache.  Blocks are connected and disconnected 
+ * against the cache only.  Once the cache grows past its size limit, the owner flushes it, which writes 
+ * every changed coin to the store as one batch, with the block the set has reached, and empties the cache.  
+ * The owner chooses when to flush, so that blocks which are still being verified are not committed.<br>
+ * <br>
+ * A coin which was created after the last flush is marked fresh.  When a fresh coin is spent it is simply 
+ * dropped from the cache, so the many outputs which are spent soon after they are created never reach 
+ * the store.
+ */
+public class UtxoSet {
+	
+	/**
+	 * The number of blocks before the outputs of a coinbase can be spent
+	 */
+	public final static int COINBASE_MATURITY = 100;
+	
+	/**
+	 * The approximate memory used by a cache entry, not including the script
+	 */
+	private final static int ENTRY_OVERHEAD = 192;
+	
+	private final CoinStore store;
+	private final long maxCacheBytes;
+	private final HashMap<OutPoint, Entry> cache = new HashMap<OutPoint, Entry>();
+	private long cacheBytes;
+	private Hash256 bestBlock;
+	private int bestHeight;
+	private boolean closed;
+	
+	/**
+	 * Opens the UTXO set in the given directory
+	 * 
+	 * @param dir
+	 * @param maxCacheBytes the cache size at which the cache should be flushed
+	 * @throws IOException
+	 */
+	public UtxoSet(File dir, long maxCacheBytes) throws IOException {
+		this.store = new CoinStore(dir);
+		this.maxCacheBytes = maxCacheBytes;
+		this.bestBlock = store.getBestBlock();
+		this.bestHeight = store.getBestHeight();
+	}
+	
+	/**
+	 * Gets the hash of the last connected block
+	 * 
+	 * @return the hash, or Hash256.ZERO if no blocks are connected
+	 */
+	public synchronized Hash256 getBestBlock() {
+		return bestBlock;
+	}
+	
+	/**
+	 * Gets the height of the last connected block
+	 * 
+	 * @return the height, or -1 if no blocks are connected
+	 */
+	public synchronized int getBestHeight() {
+		return bestHeight;
+	}
+	
+	/**
+	 * Gets the approximate memory used by the cache
+	 * 
+	 * @return
+	 */
+	public synchronized long getCacheBytes() {
+		return cacheBytes;
+	}
+	
+	/**
+	 * Checks if the cache has grown past its size limit and should be flushed
+	 * 
+	 * @return
+	 */
+	public synchronized boolean isCacheFull() {
+		return cacheBytes > maxCacheBytes;
+	}
+	
+	/**
+	 * Gets the number of coins in the cache, including spent coins which are not yet flushed
+	 * 
+	 * @return
+	 */
+	public synchronized int getCacheSize() {
+		return cache.size();
+	}
+	
+	/**
+	 * Gets an unspent output
+	 * 
+	 * @param outPoint
+	 * @return the coin, or null if the output does not exist or is spent
+	 * @throws IOException
+	 */
+	public synchronized Coin get(OutPoint outPoint) throws IOException {
+		Entry entry = fetch(outPoint);
+		return entry == null ? null : entry.coin;
+	}
+	
+	/**
+	 * Connects a block to the tip.  The inputs must spend unspent outputs and coinbase outputs must be 
+	 * mature.  Scripts are not checked.  If the block fails, the set is left unchanged.<br>
+	 * <br>
+	 * The outputs of the genesis block are not added, since the reference client never adds them.
+	 * 
+	 * @param block
+	 * @param height the height of the block
+	 * @return the spent coins, or null if the block spends a missing or immature output
+	 * @throws IOException if the block is malformed or the store cannot be read or written
+	 */
+	public synchronized BlockUndo connect(BlockMessage block, int height) throws IOException {
+		checkOpen();
+		if (!block.getHeader().getPrevHash().equals(bestBlock)) {
+			throw new IllegalStateException("Block " + block.getHeader().getHash() + " does not connect to " + bestBlock);
+		}
+		List<Coin> spent = new ArrayList<Coin>();
+		int count = block.getTransactionCount();
+		for (int i = 0; i < count; i++) {
+			Transaction tx = block.getTransaction(i);
+			if (i > 0) {
+				for (int j = 0; j < tx.getInputCount(); j++) {
+					OutPoint outPoint = OutPoint.getInput(tx, j);
+					Coin coin = spend(outPoint);
+					if (coin != null && coin.isCoinbase() && height - coin.getHeight() < COINBASE_MATURITY) {
+						restore(outPoint, coin);
+						coin = null;
+					}
+					if (coin == null) {
+						LogManager.log(LogSubsystem.CHAIN, Level.INFO, "Block {} spends missing or immature output {}", block.getHeader().getHash(), outPoint);
+						revert(block, i, spent);
+						return null;
+					}
+					spent.add(coin);
+				}
+			}
+			if (height != 0) {
+				addOutputs(tx, height, i == 0);
+			}
+		}
+		bestBlock = block.getHeader().getHash();
+		bestHeight = height;
+		return new BlockUndo(spent.toArray(new Coin[spent.size()]));
+	}
+	
+	/**
+	 * Disconnects the block at the tip, restoring the coins it spent
+	 * 
+	 * @param block
+	 * @param undo the spent coins returned when the block was connected
+	 * @throws IOException if the block is malformed or the store cannot be read or written
+	 */
+	public synchronized void disconnect(BlockMessage block, BlockUndo undo) throws IOException {
+		checkOpen();
+		if (!block.getHeader().getHash().equals(bestBlock)) {
+			throw new IllegalStateException("Block " + block.getHeader().getHash() + " is not the tip " + bestBlock);
+		}
+		List<Coin> spent = new ArrayList<Coin>(undo.size());
+		for (int i = 0; i < undo.size(); i++) {
+			spent.add(undo.get(i));
+		}
+		revert(block, block.getTransactionCount(), spent);
+		bestBlock = block.getHeader().getPrevHash();
+		bestHeight--;
+	}
+	
+	/**
+	 * Writes all changed coins to the store as a single batch, and empties the cache
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		checkOpen();
+		long start = System.nanoTime();
+		Map<OutPoint, Coin> changes = new HashMap<OutPoint, Coin>();
+		for (Map.Entry<OutPoint, Entry> e : cache.entrySet()) {
+			Entry entry = e.getValue();
+			if (entry.dirty) {
+				changes.put(e.getKey(), entry.coin);
+			}
+		}
+		store.commit(bestBlock, bestHeight, changes);
+		cache.clear();
+		cacheBytes = 0;
+		LogManager.log(LogSubsystem.CHAIN, Level.FINE, "Flushed {} coin changes in {}ms, {} coins stored", changes.size(), (System.nanoTime() - start) / 1000000L, store.size());
+	}
+	
+	/**
+	 * Flushes the cache and closes the store
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		try {
+			flush();
+		} catch (IOException e) {
+			LogManager.log(LogSubsystem.CHAIN, Level.SEVERE, "Unable to flush coin cache, {}", e.getMessage());
+		}
+		closed = true;
+		store.close();
+	}
+	
+	/**
+	 * Reverts the first transactions of a block, in reverse order
+	 * 
+	 * @param block
+	 * @param connected the number of transactions which were connected.  The inputs of the next transaction 
+	 * may also have been partly spent.
+	 * @param spent the spent coins
+	 * @throws IOException
+	 */
+	private void revert(BlockMessage block, int connected, List<Coin> spent) throws IOException {
+		int remaining = spent.size();
+		int count = block.getTransactionCount();
+		for (int i = Math.min(connected, count - 1); i >= 0; i--) {
+			Transaction tx = block.getTransaction(i);
+			if (i < connected) {
+				for (int j = tx.getOutputCount() - 1; j >= 0; j--) {
+					spend(new OutPoint(tx.getHash(), j));
+				}
+			}
+			if (i == 0) {
+				continue;
+			}
+			int inputs = tx.getInputCount();
+			if (i == connected) {
+				inputs = remaining;
+				for (int k = 1; k < i; k++) {
+					inputs -= block.getTransaction(k).getInputCount();
+				}
+			}
+			for (int j = inputs - 1; j >= 0; j--) {
+				restore(OutPoint.getInput(tx, j), spent.get(--remaining));
+			}
+		}
+	}
+	
+	private void addOutputs(Transaction tx, int height, boolean coinbase) throws IOException {
+		Hash256 hash = tx.getHash();
+		for (int i = 0; i < tx.getOutputCount(); i++) {
+			if (!Coin.isUnspendable(tx, i)) {
+				restore(new OutPoint(hash, i), new Coin(tx, i, height, coinbase));
+			}
+		}
+	}
+	
+	/**
+	 * Adds a coin to the cache
+	 * 
+	 * @param outPoint
+	 * @param coin
+	 * @throws IOException
+	 */
+	private void restore(OutPoint outPoint, Coin coin) throws IOException {
+		Entry entry = cache.get(outPoint);
+		if (entry == null) {
+			entry = new Entry(null, false, !store.contains(outPoint));
+			cache.put(outPoint, entry);
+			cacheBytes += ENTRY_OVERHEAD;
+		} else if (entry.coin != null) {
+			cacheBytes -= entry.coin.getScript().length;
+		}
+		entry.coin = coin;
+		entry.dirty = true;
+		cacheBytes += coin.getScript().length;
+	}
+	
+	/**
+	 * Spends a coin
+	 * 
+	 * @param outPoint
+	 * @return the coin, or null if the output does not exist or is spent
+	 * @throws IOException
+	 */
+	private Coin spend(OutPoint outPoint) throws IOException {
+		Entry entry = fetch(outPoint);
+		if (entry == null || entry.coin == null) {
+			return null;
+		}
+		Coin coin = entry.coin;
+		cacheBytes -= coin.getScript().length;
+		if (entry.fresh) {
+			cache.remove(outPoint);
+			cacheBytes -= ENTRY_OVERHEAD;
+		} else {
+			entry.coin = null;
+			entry.dirty = true;
+		}
+		return coin;
+	}
+	
+	/**
+	 * Gets the cache entry for an output, reading it from the store if required
+	 * 
+	 * @param outPoint
+	 * @return the entry, or null if the output is not in the cache or the store
+	 * @throws IOException
+	 */
+	private Entry fetch(OutPoint outPoint) throws IOException {
+		Entry entry = cache.get(outPoint);
+		if (entry != null) {
+			return entry;
+		}
+		Coin coin = store.get(outPoint);
+		if (coin == null) {
+			return null;
+		}
+		entry = new Entry(coin, false, false);
+		cache.put(outPoint, entry);
+		cacheBytes += ENTRY_OVERHEAD + coin.getScript().length;
+		return entry;
+	}
+	
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("UTXO set is closed");
+		}
+	}
+	
+	private static class Entry {
+		
+		private Coin coin;
+		private boolean dirty;
+		/**
+		 * True if the store does not have the coin, so the entry can be dropped when the coin is spent
+		 */
+		private final boolean fresh;
+		
+		public Entry(Coin coin, boolean dirty, boolean fresh) {
+			this.coin = coin;
+			this.dirty = dirty;
+			this.fresh = fresh;
+		}
+		
+	}
+
+}
@@ -25,38 +25,17 @@ package com.raphfrk.bitcoin.bcnode.config;
 
 public class BooleanConfigSetup extends ConfigSetup<Boolean> {
 
-	private Boolean value;
-	
 	public BooleanConfigSetup(String key, Boolean value, String description) {
 		super(key, value, description);
-		this.value = null;
 	}
 	
 	@Override
-	public synchronized Boolean get() {
-		if (value == null) {
-			try {
-				value = Boolean.parseBoolean(super.getString());
-			} catch (NumberFormatException e) {
-				e.printStackTrace();
-				value = getDefaultValue();
-			}
-		}
-		return value;
-	}
-
-	@Override
-	public synchronized void set(Boolean value) {
-		System.out.println("Setting value: " + value);
-		this.value = value;
-		super.setString(asString(value));
+	protected Boolean parse(String value) {
+		return Boolean.parseBoolean(value.trim());
 	}
 
 	@Override
 	protected String asString(Boolean value) {
 		return Boolean.toString(value);
 	}
-	
-	
-	
 }
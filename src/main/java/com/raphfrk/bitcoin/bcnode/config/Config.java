@@ -50,16 +50,78 @@ public class Config {
 	public static final ConfigSetup<Integer> PEER_BUFFER_SIZE = new IntConfigSetup("peer_buffer_size", 8192, "The size of the standard read/write buffers in bytes");
 	public static final ConfigSetup<Integer> FAIL_RETRY_TIMEOUT = new IntConfigSetup("fail_retry_timeout", 60 * 15, "The time in seconds to wait before attempting to reconnect to a node");
 	public static final ConfigSetup<Integer> CONNECT_TIMEOUT = new IntConfigSetup("connect_timeout", 15, "The time in seconds before connect attempts are considered to have timed out");
+	public static final ConfigSetup<Integer> MAX_OUTBOUND = new IntConfigSetup("max_outbound", 8, "The number of outbound connections to maintain");
+	public static final ConfigSetup<Integer> MAX_INBOUND = new IntConfigSetup("max_inbound", 117, "The maximum number of inbound connections");
+	public static final ConfigSetup<Integer> MAX_CONNECTIONS_PER_GROUP = new IntConfigSetup("max_connections_per_group", 4, "The maximum number of connections to a single /16 subnet, not including local addresses");
+	public static final ConfigSetup<Boolean> LISTEN = new BooleanConfigSetup("listen", false, "accept inbound connections");
+	public static final ConfigSetup<Integer> LISTEN_PORT = new IntConfigSetup("listen_port", 8333, "The port to listen on for inbound connections");
+	public static final ConfigSetup<Integer> CONNECT_FAN_OUT = new IntConfigSetup("connect_fan_out", 4, "The maximum number of parallel connect attempts per free connection slot");
 	public static final ConfigSetup<Integer> NETWORK_NOTIFY_PENALTY = new IntConfigSetup("network_notify_penalty", 2 * 60 * 60, "The time to adjust the timestamp for forwarding addresses");
 	
 	private static final DummyConfigSetup LINE3 = new DummyConfigSetup("");
+	private static final DummyConfigSetup BOOTSTRAP_SETTINGS = new DummyConfigSetup("Bootstrap Settings");
+	public static final ConfigSetup<String> DNS_SEEDS = new StringConfigSetup("dns_seeds", "default", "Comma separated list of DNS seeds, or default for the built-in list");
+	public static final ConfigSetup<Integer> SEED_CACHE_TTL = new IntConfigSetup("seed_cache_ttl", 60 * 60 * 6, "The time in seconds before a DNS seed is queried again");
+	public static final ConfigSetup<Integer> SEED_RESOLVE_THREADS = new IntConfigSetup("seed_resolve_threads", 8, "The maximum number of DNS seeds to resolve in parallel");
+	
+	private static final DummyConfigSetup LINE4 = new DummyConfigSetup("");
+	private static final DummyConfigSetup CHAIN_SETTINGS = new DummyConfigSetup("Chain Settings");
+	public static final ConfigSetup<String> NETWORK = new StringConfigSetup("network", "main", "The chain to follow (main, regtest)");
+	public static final ConfigSetup<Integer> HEADER_SYNC_TIMEOUT = new IntConfigSetup("header_sync_timeout", 60, "The time in seconds to wait for headers before switching to another peer");
+	public static final ConfigSetup<Integer> BLOCK_DOWNLOAD_WINDOW = new IntConfigSetup("block_download_window", 1024, "The maximum number of blocks ahead of the last processed block to download");
+	public static final ConfigSetup<Integer> MAX_BLOCKS_IN_FLIGHT = new IntConfigSetup("max_blocks_in_flight", 16, "The maximum number of blocks requested from a single peer at once");
+	public static final ConfigSetup<Integer> BLOCK_STALL_TIMEOUT = new IntConfigSetup("block_stall_timeout", 2000, "The time in milliseconds before a block holding up the download window is requested from another peer");
+	public static final ConfigSetup<Integer> BLOCK_DOWNLOAD_TIMEOUT = new IntConfigSetup("block_download_timeout", 60, "The time in seconds to wait for a requested block before disconnecting the peer");
+	public static final ConfigSetup<Integer> COIN_CACHE_SIZE = new IntConfigSetup("coin_cache_size", 256, "The size in megabytes of the UTXO cache, which is written to disk when full");
+	public static final ConfigSetup<Integer> UNDO_DEPTH = new IntConfigSetup("undo_depth", 100, "The number of recent blocks whose spent coins are kept in memory, so that they can be disconnected when the header chain reorganizes");
+	public static final ConfigSetup<Integer> SIGNATURE_CACHE_SIZE = new IntConfigSetup("signature_cache_size", 32, "The size in megabytes of the cache of verified signatures");
+	public static final ConfigSetup<Integer> MEMPOOL_SIZE = new IntConfigSetup("mempool_size", 300, "The size in megabytes of the pool of unconfirmed transactions");
+	public static final ConfigSetup<Integer> ORPHAN_POOL_SIZE = new IntConfigSetup("orphan_pool_size", 10, "The size in megabytes of the pool of transactions waiting for their parents");
+	public static final ConfigSetup<Integer> MAX_ORPHANS_PER_PEER = new IntConfigSetup("max_orphans_per_peer", 100, "The maximum number of transactions waiting for their parents which a single peer can supply");
+	public static final ConfigSetup<Integer> TX_RELAY_INTERVAL = new IntConfigSetup("tx_relay_interval", 5000, "The average time in milliseconds between transaction announcements to inbound peers, outbound peers use half");
+	
+	private static final DummyConfigSetup LINE5 = new DummyConfigSetup("");
 	private static final DummyConfigSetup LOG_SETTINGS = new DummyConfigSetup("Log Settings");
 	public static final ConfigSetup<Boolean> LOG_TO_FILE = new BooleanConfigSetup("log_to_file", true, "log all console outputs to the /log directory");
+	public static final ConfigSetup<Integer> LOG_QUEUE_SIZE = new IntConfigSetup("log_queue_size", 8192, "The number of log messages which can be queued before messages are dropped");
+	public static final ConfigSetup<String> LOG_LEVEL_NETWORK = new StringConfigSetup("log_level_network", "info", "The log level for peer connections (severe, warning, info, fine, finest)");
+	public static final ConfigSetup<String> LOG_LEVEL_ADDRESS = new StringConfigSetup("log_level_address", "info", "The log level for the address store");
+	public static final ConfigSetup<String> LOG_LEVEL_BOOTSTRAP = new StringConfigSetup("log_level_bootstrap", "info", "The log level for DNS seed bootstrapping");
+	public static final ConfigSetup<String> LOG_LEVEL_PROTOCOL = new StringConfigSetup("log_level_protocol", "info", "The log level for protocol message handlers");
+	public static final ConfigSetup<String> LOG_LEVEL_CHAIN = new StringConfigSetup("log_level_chain", "info", "The log level for header and block validation");
+	public static final ConfigSetup<Boolean> EVENT_JOURNAL = new BooleanConfigSetup("event_journal", false, "record peer activity to a binary event journal in the data directory");
+	public static final ConfigSetup<Integer> EVENT_JOURNAL_SEGMENT_SIZE = new IntConfigSetup("event_journal_segment_size", 16, "The size of each event journal segment in MB");
+	public static final ConfigSetup<Integer> EVENT_JOURNAL_SEGMENTS = new IntConfigSetup("event_journal_segments", 8, "The number of event journal segments to keep");
 	
 	protected static Config getInstance() {
 		return instance;
 	}
 	
+	/**
+	 * Gets the current config snapshot
+	 * 
+	 * @return
+	 */
+	public static ConfigSnapshot getSnapshot() {
+		return instance.snapshot;
+	}
+	
+	/**
+	 * Starts a thread which reloads the config file when it is changed
+	 * 
+	 * @return the watcher thread, or null if the file system doesn't support watching
+	 */
+	public static ConfigWatcher startWatcher() {
+		try {
+			ConfigWatcher watcher = new ConfigWatcher(instance);
+			watcher.start();
+			return watcher;
+		} catch (IOException e) {
+			System.err.println("Unable to watch config file for changes, " + e.getMessage());
+			return null;
+		}
+	}
+	
 	public final ConfigSetup<?>[] configs = getConfigs();
 
 	private final HashMap<String, ConfigEntry> map = new HashMap<String, ConfigEntry>();
@@ -67,12 +129,34 @@ public class Config {
 	private final File file;
 	private boolean fileValid;
 	private boolean dirty;
+	private long lastModified;
+	private long lastLength;
+	private volatile ConfigSnapshot snapshot;
 
 	private static final Config instance = new Config("bcnode.conf");
 	
 	public Config(String name) {
 		file = new File(name);
 		load();
+		publish();
+	}
+	
+	protected File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Reloads the config file if it has changed since it was last read or written, publishes a new 
+	 * snapshot and notifies the listeners of any settings which changed
+	 */
+	public void reload() {
+		synchronized (this) {
+			if (file.lastModified() == lastModified && file.length() == lastLength) {
+				return;
+			}
+			load();
+		}
+		publish();
 	}
 	
 	protected synchronized String getString(String key) {
@@ -91,6 +175,51 @@ public class Config {
 		entry.setValueString(value);
 		dirty = true;
 		save();
+		publish();
+	}
+	
+	private void publish() {
+		ConfigSnapshot old;
+		ConfigSnapshot current;
+		synchronized (this) {
+			old = snapshot;
+			current = buildSnapshot(old == null ? 0 : old.getVersion() + 1);
+			snapshot = current;
+		}
+		if (old != null) {
+			for (ConfigSetup<?> setup : configs) {
+				if (setup instanceof DummyConfigSetup) {
+					continue;
+				}
+				Object oldValue = old.get(setup);
+				Object newValue = current.get(setup);
+				if (oldValue == null ? newValue != null : !oldValue.equals(newValue)) {
+					setup.notifyListeners(oldValue, newValue);
+				}
+			}
+		}
+	}
+	
+	private synchronized ConfigSnapshot buildSnapshot(long version) {
+		Object[] values = new Object[configs.length];
+		for (int i = 0; i < configs.length; i++) {
+			ConfigSetup<?> setup = configs[i];
+			if (setup instanceof DummyConfigSetup) {
+				continue;
+			}
+			String value = getString(setup.getKey());
+			if (value != null) {
+				try {
+					values[i] = setup.parse(value);
+				} catch (IllegalArgumentException e) {
+					System.err.println("Invalid value " + value + " for " + setup.getKey() + ", using default");
+				}
+			}
+			if (values[i] == null) {
+				values[i] = setup.getDefaultValue();
+			}
+		}
+		return new ConfigSnapshot(values, version);
 	}
 	
 	private synchronized void load() {
@@ -135,6 +264,8 @@ public class Config {
 		} catch (FileNotFoundException e) {
 			newFile = true;
 		}
+		lastModified = file.lastModified();
+		lastLength = file.length();
 		for (ConfigSetup<?> setup : configs) {
 			if (!newFile && setup instanceof DummyConfigSetup) {
 				continue;
@@ -182,6 +313,8 @@ public class Config {
 			writer.close();
 		} catch (IOException e) {
 		}
+		lastModified = file.lastModified();
+		lastLength = file.length();
 	}
 	
 	private ConfigSetup<?>[] getConfigs() {
@@ -203,6 +336,9 @@ public class Config {
 				
 			}
 		}
+		for (int i = 0; i < configs.size(); i++) {
+			configs.get(i).setIndex(i);
+		}
 		return configs.toArray(new ConfigSetup<?>[0]);
 	}
 	
@@ -23,11 +23,16 @@
  */
 package com.raphfrk.bitcoin.bcnode.config;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 public abstract class ConfigSetup<T> {
 	
 	private final String description;
 	private final String key;
 	private final T value;
+	private final List<ConfigListener<T>> listeners = new CopyOnWriteArrayList<ConfigListener<T>>();
+	private int index = -1;
 	
 	protected ConfigSetup(String key, T value, String description) {
 		this.description = description;
@@ -35,9 +40,43 @@ public abstract class ConfigSetup<T> {
 		this.value = value;
 	}
 	
-	public abstract T get();
+	/**
+	 * Gets the current value.  This reads the current config snapshot and doesn't lock.
+	 * 
+	 * @return
+	 */
+	public T get() {
+		return Config.getSnapshot().get(this);
+	}
+	
+	/**
+	 * Sets the value, saves the config file and publishes a new snapshot
+	 * 
+	 * @param value
+	 */
+	public void set(T value) {
+		Config.getInstance().setString(getKey(), asString(value));
+	}
 	
-	public abstract void set(T value);
+	/**
+	 * Adds a listener which is called when this setting changes
+	 * 
+	 * @param listener
+	 */
+	public void addListener(ConfigListener<T> listener) {
+		listeners.add(listener);
+	}
+	
+	public void removeListener(ConfigListener<T> listener) {
+		listeners.remove(listener);
+	}
+	
+	@SuppressWarnings("unchecked")
+	protected void notifyListeners(Object oldValue, Object newValue) {
+		for (ConfigListener<T> listener : listeners) {
+			listener.onChange(this, (T) oldValue, (T) newValue);
+		}
+	}
 	
 	@SuppressWarnings("unchecked")
 	protected String rawAsString(Object value) {
@@ -46,6 +85,15 @@ public abstract class ConfigSetup<T> {
 	
 	protected abstract String asString(T value);
 	
+	/**
+	 * Parses a value from the config file
+	 * 
+	 * @param value
+	 * @return
+	 * @throws IllegalArgumentException if the value is not valid
+	 */
+	protected abstract T parse(String value);
+	
 	public String getDescription() {
 		return description;
 	}
@@ -58,11 +106,11 @@ public abstract class ConfigSetup<T> {
 		return value;
 	}
 	
-	protected synchronized String getString() {
-		return Config.getInstance().getString(getKey());
+	protected int getIndex() {
+		return index;
 	}
 	
-	protected synchronized void setString(String value) {
-		Config.getInstance().setString(getKey(), value);
+	protected void setIndex(int index) {
+		this.index = index;
 	}
 }
@@ -0,0 +1,60 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.config;
+
+/**
+ * An immutable set of parsed config values.  A new snapshot is published each time the config changes, 
+ * so readers never lock and values read from one snapshot are always consistent with each other.
+ */
+public final class ConfigSnapshot {
+	
+	private final Object[] values;
+	private final long version;
+	
+	protected ConfigSnapshot(Object[] values, long version) {
+		this.values = values;
+		this.version = version;
+	}
+	
+	/**
+	 * Gets the value of a setting in this snapshot
+	 * 
+	 * @param setup
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(ConfigSetup<T> setup) {
+		return (T) values[setup.getIndex()];
+	}
+	
+	/**
+	 * Gets the version of this snapshot, which is incremented each time the config changes
+	 * 
+	 * @return
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+}
@@ -0,0 +1,102 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.config;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Watches the config file's directory and reloads the config when the file changes
+ */
+public class ConfigWatcher extends Thread {
+	
+	private final static long DEBOUNCE_DELAY = 200;
+	
+	private final Config config;
+	private final Path name;
+	private final WatchService watchService;
+	
+	public ConfigWatcher(Config config) throws IOException {
+		super("Config watcher");
+		setDaemon(true);
+		this.config = config;
+		Path path = config.getFile().getAbsoluteFile().toPath();
+		this.name = path.getFileName();
+		Path dir = path.getParent();
+		this.watchService = dir.getFileSystem().newWatchService();
+		dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+	}
+	
+	@Override
+	public void run() {
+		try {
+			while (!isInterrupted()) {
+				WatchKey key = watchService.take();
+				boolean changed = pollEvents(key);
+				if (changed) {
+					// Editors often write a file in several steps
+					Thread.sleep(DEBOUNCE_DELAY);
+					while ((key = watchService.poll()) != null) {
+						pollEvents(key);
+					}
+					config.reload();
+				}
+			}
+		} catch (InterruptedException e) {
+		} catch (ClosedWatchServiceException e) {
+		} finally {
+			try {
+				watchService.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+	
+	private boolean pollEvents(WatchKey key) {
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (name.equals(event.context())) {
+				changed = true;
+			}
+		}
+		key.reset();
+		return changed;
+	}
+	
+	public void shutdown() {
+		interrupt();
+		try {
+			watchService.close();
+		} catch (IOException e) {
+		}
+	}
+
+}
@@ -54,6 +54,11 @@ public class DummyConfigSetup extends ConfigSetup {
 		throw new UnsupportedOperationException("Dummy config setups have no values to set");
 	}
 
+	@Override
+	protected Object parse(String value) {
+		return null;
+	}
+
 	@Override
 	protected String asString(Object value) {
 		return message;
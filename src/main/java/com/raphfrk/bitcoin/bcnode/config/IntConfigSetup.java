@@ -25,29 +25,13 @@ package com.raphfrk.bitcoin.bcnode.config;
 
 public class IntConfigSetup extends ConfigSetup<Integer> {
 
-	private Integer value;
-	
 	public IntConfigSetup(String key, Integer value, String description) {
 		super(key, value, description);
-		this.value = value;
 	}
 	
 	@Override
-	public synchronized Integer get() {
-		if (value == null) {
-			try {
-				value = Integer.parseInt(super.getString());
-			} catch (NumberFormatException e) {
-				value = getDefaultValue();
-			}
-		}
-		return value;
-	}
-
-	@Override
-	public synchronized void set(Integer value) {
-		this.value = value;
-		super.setString(asString(value));
+	protected Integer parse(String value) {
+		return Integer.parseInt(value.trim());
 	}
 
 	@Override
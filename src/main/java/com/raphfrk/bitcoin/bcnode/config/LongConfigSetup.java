@@ -23,33 +23,15 @@
  */
 package com.raphfrk.bitcoin.bcnode.config;
 
-import java.nio.ByteBuffer;
-
 public class LongConfigSetup extends ConfigSetup<Long> {
 
-	private Long value;
-	
 	public LongConfigSetup(String key, Long value, String description) {
 		super(key, value, description);
-		this.value = value;
 	}
 	
 	@Override
-	public synchronized Long get() {
-		if (value == null) {
-			try {
-				value = Long.parseLong(super.getString());
-			} catch (NumberFormatException e) {
-				value = getDefaultValue();
-			}
-		}
-		return value;
-	}
-
-	@Override
-	public synchronized void set(Long value) {
-		this.value = value;
-		super.setString(asString(value));
+	protected Long parse(String value) {
+		return Long.parseLong(value.trim());
 	}
 
 	@Override
@@ -0,0 +1,363 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.raphfrk.bitcoin.bcnode.util.MathUtils;
+
+/**
+ * Writes log output to the console and a daily log file from a single background thread.<br>
+ * <br>
+ * Producers claim a slot in a fixed size ring of preallocated entries with a single CAS, fill it 
+ * in and publish it, so logging never takes a lock or waits for IO.  If the ring is full, the entry 
+ * is dropped and counted.  The writer thread formats entries into a buffer and writes each batch 
+ * to the console and the log file in one call.  The log file name is only recalculated at midnight.
+ */
+public class AsyncLogWriter extends Thread {
+	
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+	private final static long IDLE_PARK_NANOS = 10000000L;
+	
+	private final int mask;
+	private final Entry[] entries;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private long head = 0;
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean parked = false;
+	private volatile boolean running = true;
+	
+	private final PrintStream console;
+	private final String logFile;
+	private final SimpleDateFormat fileDate = new SimpleDateFormat("yyyy-MM-dd");
+	private final SimpleDateFormat lineDate = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+	private final ByteBuffer batch = ByteBuffer.allocate(65536);
+	private FileChannel channel;
+	private long nextRollover;
+	private long cachedSecond = -1;
+	private byte[] cachedTimestamp;
+	
+	/**
+	 * Creates a log writer
+	 * 
+	 * @param console the console stream, or null for none
+	 * @param logFile the log file name, with %D replaced by the date, or null for none
+	 * @param capacity the number of entries in the ring
+	 */
+	public AsyncLogWriter(PrintStream console, String logFile, int capacity) {
+		super("Log writer");
+		setDaemon(true);
+		int size = MathUtils.increaseToPow2(Math.max(2, capacity));
+		this.mask = size - 1;
+		this.entries = new Entry[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			entries[i] = new Entry();
+			sequences.set(i, i);
+		}
+		this.console = console;
+		this.logFile = logFile;
+	}
+	
+	/**
+	 * Queues a log message.  The timestamp and level are added by the writer thread.
+	 * 
+	 * @param level the level name
+	 * @param message
+	 * @return false if the ring was full and the message was dropped
+	 */
+	public boolean log(String level, String message) {
+		long pos = claim();
+		if (pos < 0) {
+			return false;
+		}
+		Entry entry = entries[(int) pos & mask];
+		entry.time = System.currentTimeMillis();
+		entry.level = level;
+		entry.message = message;
+		entry.data = null;
+		publish(pos);
+		return true;
+	}
+	
+	/**
+	 * Queues raw bytes, which are written without a timestamp.  The bytes are copied.
+	 * 
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @return false if the ring was full and the bytes were dropped
+	 */
+	public boolean write(byte[] b, int off, int len) {
+		long pos = claim();
+		if (pos < 0) {
+			return false;
+		}
+		byte[] data = new byte[len];
+		System.arraycopy(b, off, data, 0, len);
+		Entry entry = entries[(int) pos & mask];
+		entry.level = null;
+		entry.message = null;
+		entry.data = data;
+		publish(pos);
+		return true;
+	}
+	
+	/**
+	 * Gets the number of entries dropped because the ring was full
+	 * 
+	 * @return
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	private long claim() {
+		while (true) {
+			long pos = tail.get();
+			long seq = sequences.get((int) pos & mask);
+			if (seq == pos) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					return pos;
+				}
+			} else if (seq < pos) {
+				dropped.incrementAndGet();
+				return -1;
+			}
+		}
+	}
+	
+	private void publish(long pos) {
+		sequences.lazySet((int) pos & mask, pos + 1);
+		if (parked) {
+			LockSupport.unpark(this);
+		}
+	}
+	
+	/**
+	 * Stops the writer thread, after writing all queued entries
+	 */
+	public void shutdown() {
+		running = false;
+		LockSupport.unpark(this);
+		try {
+			join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	@Override
+	public void run() {
+		openFile(System.currentTimeMillis());
+		long reportedDropped = 0;
+		while (true) {
+			boolean stopping = !running;
+			int drained = drain();
+			long droppedNow = dropped.get();
+			if (droppedNow != reportedDropped) {
+				append(System.currentTimeMillis(), "WARNING", (droppedNow - reportedDropped) + " log messages dropped, log queue full");
+				reportedDropped = droppedNow;
+			}
+			flush();
+			if (stopping) {
+				break;
+			}
+			if (drained == 0) {
+				parked = true;
+				if (sequences.get((int) head & mask) != head + 1) {
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+				}
+				parked = false;
+			}
+		}
+		closeFile();
+	}
+	
+	private int drain() {
+		int drained = 0;
+		while (true) {
+			int index = (int) head & mask;
+			if (sequences.get(index) != head + 1) {
+				return drained;
+			}
+			Entry entry = entries[index];
+			if (entry.data != null) {
+				append(entry.data);
+			} else {
+				append(entry.time, entry.level, entry.message);
+			}
+			entry.message = null;
+			entry.data = null;
+			sequences.lazySet(index, head + mask + 1);
+			head++;
+			drained++;
+		}
+	}
+	
+	private void append(long time, String level, String message) {
+		if (batch.remaining() < 32 + level.length() + message.length() * 3) {
+			flush();
+			if (batch.remaining() < 32 + level.length() + message.length() * 3) {
+				append((formatTimestamp(time) + " [" + level + "] " + message + "\n").getBytes(UTF8));
+				return;
+			}
+		}
+		batch.put(formatTimestamp(time));
+		batch.put((byte) ' ');
+		batch.put((byte) '[');
+		putString(level);
+		batch.put((byte) ']');
+		batch.put((byte) ' ');
+		putString(message);
+		batch.put((byte) '\n');
+	}
+	
+	private void putString(String s) {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80) {
+				batch.put(s.substring(i).getBytes(UTF8));
+				return;
+			}
+			batch.put((byte) c);
+		}
+	}
+	
+	private void append(byte[] data) {
+		if (batch.remaining() < data.length) {
+			flush();
+			if (batch.remaining() < data.length) {
+				write(ByteBuffer.wrap(data));
+				return;
+			}
+		}
+		batch.put(data);
+	}
+	
+	private byte[] formatTimestamp(long time) {
+		long second = time / 1000L;
+		if (second != cachedSecond) {
+			cachedSecond = second;
+			cachedTimestamp = lineDate.format(new Date(time)).getBytes(UTF8);
+		}
+		return cachedTimestamp;
+	}
+	
+	private void flush() {
+		if (batch.position() == 0) {
+			return;
+		}
+		batch.flip();
+		write(batch);
+		batch.clear();
+	}
+	
+	private void write(ByteBuffer buf) {
+		long now = System.currentTimeMillis();
+		if (now >= nextRollover) {
+			closeFile();
+			openFile(now);
+		}
+		if (console != null) {
+			console.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			console.flush();
+		}
+		if (channel != null) {
+			try {
+				while (buf.hasRemaining()) {
+					channel.write(buf);
+				}
+			} catch (IOException e) {
+				if (console != null) {
+					console.println("Unable to write to log file, " + e.getMessage());
+				}
+				closeFile();
+			}
+		}
+	}
+	
+	private void openFile(long now) {
+		nextRollover = getNextMidnight(now);
+		if (logFile == null) {
+			return;
+		}
+		String filename = logFile.replace("%D", fileDate.format(new Date(now)));
+		File parent = new File(filename).getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		try {
+			channel = new FileOutputStream(filename, true).getChannel();
+		} catch (IOException e) {
+			if (console != null) {
+				console.println("Unable to open " + filename + " for writing: " + e.getMessage());
+			}
+			channel = null;
+		}
+	}
+	
+	private void closeFile() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+			channel = null;
+		}
+	}
+	
+	private static long getNextMidnight(long now) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(now);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		calendar.add(Calendar.DAY_OF_MONTH, 1);
+		return calendar.getTimeInMillis();
+	}
+	
+	private static class Entry {
+		private long time;
+		private String level;
+		private String message;
+		private byte[] data;
+	}
+
+}
@@ -0,0 +1,253 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.log;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.raphfrk.bitcoin.bcnode.network.address.AddressKey;
+import com.raphfrk.bitcoin.bcnode.network.p2p.Peer.CloseReason;
+
+/**
+ * A binary journal of peer activity, written to rolling memory mapped segment files.<br>
+ * <br>
+ * Each event is a fixed size record.  Writers reserve space in the current segment with a single 
+ * atomic add and write the record with absolute puts, so recording an event doesn't lock or allocate.  
+ * The type byte is written last, so a record with a zero type was never completed.  Segments are 
+ * named events-N.bin and only the most recent segments are kept.  Use EventJournalReader to convert 
+ * segments to CSV.<br>
+ * <br>
+ * Segment header: int magic, int version, int record size, int reserved, long creation time<br>
+ * Record: long time, long address high, long address low, short port, byte type, byte reason, 
+ * int size, int latency (us), 12 byte command
+ */
+public class EventJournal {
+	
+	public final static int MAGIC = 0x42434a4c;
+	public final static int VERSION = 1;
+	public final static int HEADER_SIZE = 24;
+	public final static int RECORD_SIZE = 48;
+	public final static int COMMAND_LENGTH = 12;
+	
+	public final static byte CONNECT = 1;
+	public final static byte DISCONNECT = 2;
+	public final static byte RECEIVED = 3;
+	public final static byte HANDLED = 4;
+	public final static byte SENT = 5;
+	
+	/**
+	 * A journal which discards all events
+	 */
+	public final static EventJournal DISABLED = new EventJournal();
+	
+	private final File dir;
+	private final int segmentSize;
+	private final int segmentsKept;
+	private volatile Segment current;
+	private int nextIndex;
+	
+	private EventJournal() {
+		this.dir = null;
+		this.segmentSize = 0;
+		this.segmentsKept = 0;
+		this.current = null;
+	}
+	
+	/**
+	 * Creates a journal in the given directory
+	 * 
+	 * @param dir
+	 * @param segmentSize the size of each segment in bytes
+	 * @param segmentsKept the number of segments to keep
+	 * @throws IOException
+	 */
+	public EventJournal(File dir, int segmentSize, int segmentsKept) throws IOException {
+		this.dir = dir;
+		this.segmentSize = Math.max(HEADER_SIZE + RECORD_SIZE, segmentSize);
+		this.segmentsKept = Math.max(1, segmentsKept);
+		dir.mkdirs();
+		this.nextIndex = getLastIndex(dir) + 1;
+		this.current = openSegment();
+	}
+	
+	public boolean isEnabled() {
+		return current != null;
+	}
+	
+	public void onConnect(AddressKey peer) {
+		record(CONNECT, peer, null, 0, 0, 0);
+	}
+	
+	public void onDisconnect(AddressKey peer, CloseReason reason) {
+		record(DISCONNECT, peer, null, reason.ordinal() + 1, 0, 0);
+	}
+	
+	public void onReceived(AddressKey peer, String command, int size, long decodeNanos) {
+		record(RECEIVED, peer, command, 0, size, decodeNanos);
+	}
+	
+	public void onHandled(AddressKey peer, String command, long handlerNanos) {
+		record(HANDLED, peer, command, 0, 0, handlerNanos);
+	}
+	
+	public void onSent(AddressKey peer, String command, int size, long encodeNanos) {
+		record(SENT, peer, command, 0, size, encodeNanos);
+	}
+	
+	private void record(byte type, AddressKey peer, String command, int reason, int size, long nanos) {
+		Segment segment = current;
+		while (segment != null) {
+			int position = segment.position.getAndAdd(RECORD_SIZE);
+			if (position + RECORD_SIZE > segment.limit) {
+				segment = roll(segment);
+				continue;
+			}
+			MappedByteBuffer buf = segment.buffer;
+			buf.putLong(position, System.currentTimeMillis());
+			buf.putLong(position + 8, peer.getHigh());
+			buf.putLong(position + 16, peer.getLow());
+			buf.putShort(position + 24, (short) peer.getPort());
+			buf.put(position + 27, (byte) reason);
+			buf.putInt(position + 28, size);
+			buf.putInt(position + 32, (int) Math.min(Integer.MAX_VALUE, nanos / 1000L));
+			if (command != null) {
+				int length = Math.min(COMMAND_LENGTH, command.length());
+				for (int i = 0; i < length; i++) {
+					buf.put(position + 36 + i, (byte) command.charAt(i));
+				}
+			}
+			buf.put(position + 26, type);
+			return;
+		}
+	}
+	
+	private synchronized Segment roll(Segment full) {
+		if (current != full) {
+			return current;
+		}
+		full.buffer.force();
+		try {
+			current = openSegment();
+		} catch (IOException e) {
+			LogManager.log("Unable to open event journal segment, event journal disabled, " + e.getMessage());
+			current = null;
+		}
+		return current;
+	}
+	
+	/**
+	 * Flushes the current segment to disk and stops recording events
+	 */
+	public synchronized void close() {
+		Segment segment = current;
+		current = null;
+		if (segment != null) {
+			segment.buffer.force();
+		}
+	}
+	
+	private Segment openSegment() throws IOException {
+		int index = nextIndex++;
+		File file = getSegmentFile(dir, index);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		MappedByteBuffer buffer;
+		try {
+			raf.setLength(0);
+			buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, segmentSize);
+		} finally {
+			raf.close();
+		}
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, RECORD_SIZE);
+		buffer.putLong(16, System.currentTimeMillis());
+		File old = getSegmentFile(dir, index - segmentsKept);
+		if (old.exists() && !old.delete()) {
+			LogManager.log("Unable to delete old event journal segment " + old);
+		}
+		return new Segment(buffer, HEADER_SIZE + ((segmentSize - HEADER_SIZE) / RECORD_SIZE) * RECORD_SIZE);
+	}
+	
+	private static File getSegmentFile(File dir, int index) {
+		return new File(dir, "events-" + index + ".bin");
+	}
+	
+	/**
+	 * Gets the segment index from a segment file name
+	 * 
+	 * @param name
+	 * @return the index, or -1 if the name is not a segment name
+	 */
+	public static int getIndex(String name) {
+		if (!name.startsWith("events-") || !name.endsWith(".bin")) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(name.substring(7, name.length() - 4));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Gets the segment files in a directory
+	 * 
+	 * @param dir
+	 * @return
+	 */
+	public static File[] getSegmentFiles(File dir) {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return getIndex(name) >= 0;
+			}
+		});
+		return files == null ? new File[0] : files;
+	}
+	
+	private static int getLastIndex(File dir) {
+		int last = -1;
+		for (File file : getSegmentFiles(dir)) {
+			last = Math.max(last, getIndex(file.getName()));
+		}
+		return last;
+	}
+	
+	private static class Segment {
+		private final MappedByteBuffer buffer;
+		private final AtomicInteger position = new AtomicInteger(HEADER_SIZE);
+		private final int limit;
+		
+		public Segment(MappedByteBuffer buffer, int limit) {
+			this.buffer = buffer;
+			this.limit = limit;
+		}
+	}
+
+}
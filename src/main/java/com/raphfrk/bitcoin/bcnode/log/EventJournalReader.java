@@ -0,0 +1,138 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import com.raphfrk.bitcoin.bcnode.network.address.AddressKey;
+import com.raphfrk.bitcoin.bcnode.network.p2p.Peer.CloseReason;
+
+/**
+ * Converts event journal segments to CSV.<br>
+ * <br>
+ * Usage: EventJournalReader &lt;segment file or journal directory&gt;...
+ */
+public class EventJournalReader {
+	
+	public final static String CSV_HEADER = "time,address,port,event,reason,command,size,latency_us";
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: EventJournalReader <segment file or journal directory>...");
+			System.exit(1);
+		}
+		PrintStream out = System.out;
+		out.println(CSV_HEADER);
+		for (String arg : args) {
+			File file = new File(arg);
+			File[] files = file.isDirectory() ? EventJournal.getSegmentFiles(file) : new File[] {file};
+			Arrays.sort(files, new Comparator<File>() {
+				@Override
+				public int compare(File a, File b) {
+					return EventJournal.getIndex(a.getName()) - EventJournal.getIndex(b.getName());
+				}
+			});
+			for (File segment : files) {
+				writeCsv(segment, out);
+			}
+		}
+		out.flush();
+	}
+	
+	/**
+	 * Writes the completed records in a segment as CSV lines, without a header line
+	 * 
+	 * @param segment
+	 * @param out
+	 * @return the number of records written
+	 * @throws IOException if the segment can't be read or is not a journal segment
+	 */
+	public static int writeCsv(File segment, PrintStream out) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(segment, "r");
+		ByteBuffer buf;
+		try {
+			buf = raf.getChannel().map(MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		if (buf.limit() < EventJournal.HEADER_SIZE || buf.getInt(0) != EventJournal.MAGIC) {
+			throw new IOException(segment + " is not an event journal segment");
+		}
+		int recordSize = buf.getInt(8);
+		if (buf.getInt(4) != EventJournal.VERSION || recordSize < EventJournal.RECORD_SIZE) {
+			throw new IOException(segment + " has an unsupported journal version");
+		}
+		CloseReason[] reasons = CloseReason.values();
+		StringBuilder sb = new StringBuilder();
+		int count = 0;
+		for (int pos = EventJournal.HEADER_SIZE; pos + recordSize <= buf.limit(); pos += recordSize) {
+			byte type = buf.get(pos + 26);
+			if (type == 0) {
+				continue;
+			}
+			AddressKey key = new AddressKey(buf.getLong(pos + 8), buf.getLong(pos + 16), buf.getShort(pos + 24) & 0xFFFF);
+			int reason = buf.get(pos + 27) & 0xFF;
+			sb.setLength(0);
+			sb.append(buf.getLong(pos)).append(',');
+			sb.append(key.getAddressString()).append(',');
+			sb.append(key.getPort()).append(',');
+			sb.append(getTypeName(type)).append(',');
+			if (reason > 0 && reason <= reasons.length) {
+				sb.append(reasons[reason - 1].name());
+			}
+			sb.append(',');
+			for (int i = 0; i < EventJournal.COMMAND_LENGTH; i++) {
+				byte b = buf.get(pos + 36 + i);
+				if (b == 0) {
+					break;
+				}
+				sb.append((char) b);
+			}
+			sb.append(',').append(buf.getInt(pos + 28));
+			sb.append(',').append(buf.getInt(pos + 32));
+			out.println(sb);
+			count++;
+		}
+		return count;
+	}
+	
+	private static String getTypeName(byte type) {
+		switch (type) {
+			case EventJournal.CONNECT: return "connect";
+			case EventJournal.DISCONNECT: return "disconnect";
+			case EventJournal.RECEIVED: return "received";
+			case EventJournal.HANDLED: return "handled";
+			case EventJournal.SENT: return "sent";
+			default: return "unknown(" + type + ")";
+		}
+	}
+
+}
@@ -41,15 +41,11 @@
 package com.raphfrk.bitcoin.bcnode.log;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.logging.Formatter;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
@@ -61,86 +57,177 @@ public class LogManager {
 
 	private static Logger logger = Logger.getLogger("BCNode");
 	private static String logFile = "logs" + File.separator + "log-%D.txt";
+	private static volatile AsyncLogWriter writer;
 
 	public static void init() {
+		PrintStream console = System.out;
+		AsyncLogWriter asyncWriter = new AsyncLogWriter(console, Config.LOG_TO_FILE.get() ? logFile : null, Config.LOG_QUEUE_SIZE.get());
+		asyncWriter.start();
 		if (Config.LOG_TO_FILE.get()) {
-			if (new File(logFile).getParentFile() != null) {
-				new File(logFile).getParentFile().mkdirs();
-			}
-			RotatingFileOutputStream fileOutputStream = new RotatingFileOutputStream(System.out, logFile);
-			PrintStream stream = new PrintStream(fileOutputStream, true);
+			PrintStream stream = new PrintStream(new AsyncOutputStream(asyncWriter), true);
 			System.setOut(stream);
 			System.setErr(stream);
 		}
 		Formatter formatter = new DateOutputFormatter(new SimpleDateFormat("yyyy/MM/dd HH:mm:ss"));
 		logger.getParent().getHandlers()[0].setFormatter(formatter);
+		writer = asyncWriter;
+		LogSubsystem.loadLevels();
+		Runtime.getRuntime().addShutdownHook(new Thread("Log shutdown") {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		});
+	}
+	
+	/**
+	 * Stops the log writer, after writing any queued messages
+	 */
+	public static void shutdown() {
+		AsyncLogWriter asyncWriter = writer;
+		if (asyncWriter != null) {
+			asyncWriter.shutdown();
+		}
 	}
 
 	public static void log(String message) {
-		if (logger != null) {
-			logger.info(message);
+		if (logger != null && logger.isLoggable(Level.INFO)) {
+			AsyncLogWriter asyncWriter = writer;
+			if (asyncWriter != null) {
+				asyncWriter.log("INFO", message);
+			} else {
+				logger.info(message);
+			}
 		}
 	}
 
-	public static Logger getLogger() {
-		return logger;
+	/**
+	 * Returns true if messages at the given level are enabled for the subsystem.  Messages are also 
+	 * disabled if they are below the level set on the BCNode logger.
+	 * 
+	 * @param subsystem
+	 * @param level
+	 * @return
+	 */
+	public static boolean isLoggable(LogSubsystem subsystem, Level level) {
+		if (!subsystem.isEnabled(level)) {
+			return false;
+		}
+		Level loggerLevel = logger.getLevel();
+		return loggerLevel == null || level.intValue() >= loggerLevel.intValue();
 	}
 	
-	private static class RotatingFileOutputStream extends OutputStream {
-		private final SimpleDateFormat date;
-		private final String logFile;
-		private String filename;
-		private FileOutputStream outputStream;
-		private final PrintStream console;
-
-		public RotatingFileOutputStream(PrintStream console, String logFile) {
-			this.logFile = logFile;
-			this.console = console;
-			date = new SimpleDateFormat("yyyy-MM-dd");
-			filename = calculateFilename();
-			try {
-				outputStream = new FileOutputStream(filename, true);
-			} catch (FileNotFoundException ex) {
-				getLogger().log(Level.SEVERE, "Unable to open {0} for writing: {1}", new Object[] {filename, ex.getMessage()});
-				ex.printStackTrace();
-			}
+	public static void log(LogSubsystem subsystem, Level level, String message) {
+		if (isLoggable(subsystem, level)) {
+			write(level, message);
 		}
-
-		private String calculateFilename() {
-			return logFile.replace("%D", date.format(new Date()));
+	}
+	
+	/**
+	 * Logs a message, replacing each {} in the format with the next argument.  The arguments are only 
+	 * converted to strings if the level is enabled.
+	 * 
+	 * @param subsystem
+	 * @param level
+	 * @param format
+	 * @param arg
+	 */
+	public static void log(LogSubsystem subsystem, Level level, String format, Object arg) {
+		if (isLoggable(subsystem, level)) {
+			write(level, format(format, arg, null, null));
 		}
-
-		@Override
-		public synchronized void write(int b) throws IOException {
-			console.write(b);
-			outputStream.write(b);
+	}
+	
+	public static void log(LogSubsystem subsystem, Level level, String format, Object arg1, Object arg2) {
+		if (isLoggable(subsystem, level)) {
+			write(level, format(format, arg1, arg2, null));
 		}
-		
-		@Override
-		public synchronized void write(byte[] b) throws IOException {
-			console.write(b);
-			outputStream.write(b);
+	}
+	
+	public static void log(LogSubsystem subsystem, Level level, String format, Object arg1, Object arg2, Object arg3) {
+		if (isLoggable(subsystem, level)) {
+			write(level, format(format, arg1, arg2, arg3));
 		}
+	}
+	
+	/**
+	 * Logs a message followed by the stack trace of a throwable
+	 * 
+	 * @param subsystem
+	 * @param level
+	 * @param message
+	 * @param thrown
+	 */
+	public static void log(LogSubsystem subsystem, Level level, String message, Throwable thrown) {
+		if (isLoggable(subsystem, level)) {
+			StringWriter sw = new StringWriter();
+			PrintWriter pw = new PrintWriter(sw);
+			pw.println(message);
+			thrown.printStackTrace(pw);
+			pw.flush();
+			write(level, sw.toString().trim());
+		}
+	}
+	
+	/**
+	 * Logs a message which is only built if the level is enabled
+	 * 
+	 * @param subsystem
+	 * @param level
+	 * @param message
+	 */
+	public static void log(LogSubsystem subsystem, Level level, LogMessage message) {
+		if (isLoggable(subsystem, level)) {
+			write(level, message.get());
+		}
+	}
+	
+	private static void write(Level level, String message) {
+		AsyncLogWriter asyncWriter = writer;
+		if (asyncWriter != null) {
+			asyncWriter.log(level.getName(), message);
+		} else {
+			logger.log(level, message);
+		}
+	}
+	
+	private static String format(String format, Object arg1, Object arg2, Object arg3) {
+		StringBuilder sb = new StringBuilder(format.length() + 32);
+		int argIndex = 0;
+		int start = 0;
+		int pos;
+		while ((pos = format.indexOf("{}", start)) >= 0 && argIndex < 3) {
+			sb.append(format, start, pos);
+			Object arg = argIndex == 0 ? arg1 : argIndex == 1 ? arg2 : arg3;
+			sb.append(arg);
+			argIndex++;
+			start = pos + 2;
+		}
+		sb.append(format, start, format.length());
+		return sb.toString();
+	}
+
+	public static Logger getLogger() {
+		return logger;
+	}
+	
+	private static class AsyncOutputStream extends OutputStream {
+		private final AsyncLogWriter writer;
 		
-		public synchronized void write(byte[] b, int off, int len) throws IOException {
-			console.write(b, off, len);
-			outputStream.write(b, off, len);
+		public AsyncOutputStream(AsyncLogWriter writer) {
+			this.writer = writer;
+		}
+
+		@Override
+		public void write(int b) {
+			writer.write(new byte[] {(byte) b}, 0, 1);
 		}
 		
 		@Override
-		public synchronized void flush() throws IOException {
-			console.flush();
-			if (!filename.equals(calculateFilename())) {
-				filename = calculateFilename();
-				getLogger().log(Level.INFO, "Log rotating to {0}...", filename);
-				try {
-					outputStream = new FileOutputStream(filename, true);
-				} catch (FileNotFoundException ex) {
-					getLogger().log(Level.SEVERE, "Unable to open {0} for writing: {1}", new Object[] {filename, ex.getMessage()});
-					ex.printStackTrace();
-				}
+		public void write(byte[] b, int off, int len) {
+			if (len > 0) {
+				writer.write(b, off, len);
 			}
-			outputStream.flush();
 		}
 	}
 	
@@ -0,0 +1,87 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.log;
+
+import java.util.logging.Level;
+
+import com.raphfrk.bitcoin.bcnode.config.Config;
+import com.raphfrk.bitcoin.bcnode.config.ConfigListener;
+import com.raphfrk.bitcoin.bcnode.config.ConfigSetup;
+
+/**
+ * The subsystems which have separately configurable log levels
+ */
+public enum LogSubsystem {
+	
+	NETWORK(Config.LOG_LEVEL_NETWORK),
+	ADDRESS(Config.LOG_LEVEL_ADDRESS),
+	BOOTSTRAP(Config.LOG_LEVEL_BOOTSTRAP),
+	PROTOCOL(Config.LOG_LEVEL_PROTOCOL),
+	CHAIN(Config.LOG_LEVEL_CHAIN);
+	
+	private final ConfigSetup<String> config;
+	private volatile int threshold = Level.INFO.intValue();
+	
+	private LogSubsystem(ConfigSetup<String> config) {
+		this.config = config;
+		config.addListener(new ConfigListener<String>() {
+			@Override
+			public void onChange(ConfigSetup<String> setup, String oldValue, String newValue) {
+				setLevel(newValue);
+			}
+		});
+	}
+	
+	/**
+	 * Returns true if messages at the given level are enabled for this subsystem
+	 * 
+	 * @param level
+	 * @return
+	 */
+	public boolean isEnabled(Level level) {
+		return level.intValue() >= threshold;
+	}
+	
+	public void setLevel(Level level) {
+		threshold = level.intValue();
+	}
+	
+	/**
+	 * Sets the level of each subsystem to the level in the config file
+	 */
+	public static void loadLevels() {
+		for (LogSubsystem subsystem : values()) {
+			subsystem.setLevel(subsystem.config.get());
+		}
+	}
+	
+	private void setLevel(String name) {
+		try {
+			setLevel(Level.parse(name.trim().toUpperCase()));
+		} catch (IllegalArgumentException e) {
+			LogManager.log("Unknown log level " + name + " for " + config.getKey());
+		}
+	}
+
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.metrics;
+
+import java.util.Map;
+
+/**
+ * Counters and timings for a single message command
+ */
+public class CommandMetrics {
+	
+	private final String command;
+	private final StripedCounter messagesIn = new StripedCounter();
+	private final StripedCounter messagesOut = new StripedCounter();
+	private final StripedCounter bytesIn = new StripedCounter();
+	private final StripedCounter bytesOut = new StripedCounter();
+	private final LatencyHistogram handlerNanos = new LatencyHistogram();
+	
+	public CommandMetrics(String command) {
+		this.command = command;
+	}
+	
+	public String getCommand() {
+		return command;
+	}
+	
+	protected void onReceived(int bytes) {
+		messagesIn.increment();
+		bytesIn.add(bytes);
+	}
+	
+	protected void onSent(int bytes) {
+		messagesOut.increment();
+		bytesOut.add(bytes);
+	}
+	
+	protected void onHandled(long nanos) {
+		handlerNanos.record(nanos);
+	}
+	
+	public long getMessagesIn() {
+		return messagesIn.get();
+	}
+	
+	public long getMessagesOut() {
+		return messagesOut.get();
+	}
+	
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+	
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+	
+	public LatencyHistogram getHandlerTime() {
+		return handlerNanos;
+	}
+	
+	protected void snapshot(String prefix, Map<String, Long> map) {
+		map.put(prefix + ".messages.in", getMessagesIn());
+		map.put(prefix + ".messages.out", getMessagesOut());
+		map.put(prefix + ".bytes.in", getBytesIn());
+		map.put(prefix + ".bytes.out", getBytesOut());
+		handlerNanos.snapshot(prefix + ".handler.nanos", map);
+	}
+
+}
@@ -0,0 +1,265 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.log.LogSubsystem;
+import com.raphfrk.bitcoin.bcnode.network.p2p.Peer.CloseReason;
+
+/**
+ * The metrics registry for the networking layer of a P2PManager.  Updates go to striped counters and 
+ * log-linear histograms, so recording is cheap and doesn't contend between worker threads.  Values 
+ * can be pulled with snapshot() or read over JMX.<br>
+ * <br>
+ * Commands have to be registered up front.  Any other command is counted under "unknown", since the 
+ * command comes from the peer and each entry holds a histogram.
+ */
+public class NetworkMetrics implements NetworkMetricsMXBean {
+	
+	public final static String UNKNOWN_COMMAND = "unknown";
+	
+	private final static AtomicInteger idCounter = new AtomicInteger();
+	
+	private final StripedCounter bytesIn = new StripedCounter();
+	private final StripedCounter bytesOut = new StripedCounter();
+	private final StripedCounter messagesIn = new StripedCounter();
+	private final StripedCounter messagesOut = new StripedCounter();
+	private final StripedCounter readBufferExpansions = new StripedCounter();
+	private final StripedCounter writeBufferExpansions = new StripedCounter();
+	private final LatencyHistogram decodeNanos = new LatencyHistogram();
+	private final LatencyHistogram encodeNanos = new LatencyHistogram();
+	private final LatencyHistogram sendQueueDepth = new LatencyHistogram();
+	private final StripedCounter[] closeReasons;
+	private final ConcurrentHashMap<String, CommandMetrics> commands = new ConcurrentHashMap<String, CommandMetrics>();
+	
+	private final CommandMetrics unknownCommand = new CommandMetrics(UNKNOWN_COMMAND);
+	
+	private ObjectName objectName;
+	
+	public NetworkMetrics() {
+		closeReasons = new StripedCounter[CloseReason.values().length];
+		for (int i = 0; i < closeReasons.length; i++) {
+			closeReasons[i] = new StripedCounter();
+		}
+		commands.put(UNKNOWN_COMMAND, unknownCommand);
+	}
+	
+	/**
+	 * Registers the commands which are counted separately
+	 * 
+	 * @param commands
+	 */
+	public void registerCommands(Collection<String> commands) {
+		for (String command : commands) {
+			this.commands.putIfAbsent(command, new CommandMetrics(command));
+		}
+	}
+	
+	/**
+	 * Gets the metrics for a command
+	 * 
+	 * @param command
+	 * @return the command's metrics, or the shared unknown metrics if the command isn't registered
+	 */
+	public CommandMetrics getCommand(String command) {
+		CommandMetrics metrics = commands.get(command);
+		return metrics == null ? unknownCommand : metrics;
+	}
+	
+	public void onBytesRead(PeerMetrics peer, long bytes) {
+		bytesIn.add(bytes);
+		peer.addBytesIn(bytes);
+	}
+	
+	public void onBytesWritten(PeerMetrics peer, long bytes) {
+		bytesOut.add(bytes);
+		peer.addBytesOut(bytes);
+	}
+	
+	/**
+	 * Records a received message
+	 * 
+	 * @param peer the peer's metrics
+	 * @param command the message command
+	 * @param bytes the number of bytes consumed, including the header
+	 * @param nanos the time taken to decode the message
+	 */
+	public void onMessageReceived(PeerMetrics peer, String command, int bytes, long nanos) {
+		messagesIn.increment();
+		peer.incrementMessagesIn();
+		decodeNanos.record(nanos);
+		getCommand(command).onReceived(bytes);
+	}
+	
+	public void onMessageHandled(String command, long nanos) {
+		getCommand(command).onHandled(nanos);
+	}
+	
+	/**
+	 * Records a message written to a peer's write buffer
+	 * 
+	 * @param peer the peer's metrics
+	 * @param command the message command
+	 * @param bytes the encoded size, including the header
+	 * @param nanos the time taken to encode the message
+	 */
+	public void onMessageSent(PeerMetrics peer, String command, int bytes, long nanos) {
+		messagesOut.increment();
+		peer.incrementMessagesOut();
+		encodeNanos.record(nanos);
+		getCommand(command).onSent(bytes);
+	}
+	
+	public void onSendQueued(int depth) {
+		sendQueueDepth.record(depth);
+	}
+	
+	public void onBufferExpanded(boolean read) {
+		if (read) {
+			readBufferExpansions.increment();
+		} else {
+			writeBufferExpansions.increment();
+		}
+	}
+	
+	public void onClosed(CloseReason reason) {
+		closeReasons[reason.ordinal()].increment();
+	}
+	
+	public long getClosed(CloseReason reason) {
+		return closeReasons[reason.ordinal()].get();
+	}
+	
+	public LatencyHistogram getDecodeTime() {
+		return decodeNanos;
+	}
+	
+	public LatencyHistogram getEncodeTime() {
+		return encodeNanos;
+	}
+	
+	public LatencyHistogram getSendQueueDepth() {
+		return sendQueueDepth;
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	@Override
+	public long getMessagesIn() {
+		return messagesIn.get();
+	}
+
+	@Override
+	public long getMessagesOut() {
+		return messagesOut.get();
+	}
+
+	@Override
+	public long getBufferExpansions() {
+		return readBufferExpansions.get() + writeBufferExpansions.get();
+	}
+
+	@Override
+	public Map<String, Long> getSnapshot() {
+		return snapshot();
+	}
+	
+	/**
+	 * Gets a point in time copy of all metrics, keyed by dotted metric name
+	 * 
+	 * @return
+	 */
+	public SortedMap<String, Long> snapshot() {
+		SortedMap<String, Long> map = new TreeMap<String, Long>();
+		map.put("bytes.in", getBytesIn());
+		map.put("bytes.out", getBytesOut());
+		map.put("messages.in", getMessagesIn());
+		map.put("messages.out", getMessagesOut());
+		map.put("buffer.expansions.read", readBufferExpansions.get());
+		map.put("buffer.expansions.write", writeBufferExpansions.get());
+		decodeNanos.snapshot("decode.nanos", map);
+		encodeNanos.snapshot("encode.nanos", map);
+		sendQueueDepth.snapshot("queue.send.depth", map);
+		for (CloseReason reason : CloseReason.values()) {
+			map.put("close." + reason.name().toLowerCase(), getClosed(reason));
+		}
+		for (CommandMetrics command : commands.values()) {
+			command.snapshot("command." + command.getCommand(), map);
+		}
+		return map;
+	}
+	
+	/**
+	 * Registers this registry with the platform MBean server
+	 * 
+	 * @param name the name used to identify the registry
+	 */
+	public synchronized void register(String name) {
+		if (objectName != null) {
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName("com.raphfrk.bitcoin.bcnode:type=NetworkMetrics,name=" + ObjectName.quote(name) + ",id=" + idCounter.getAndIncrement());
+			server.registerMBean(this, objectName);
+			this.objectName = objectName;
+		} catch (JMException e) {
+			LogManager.log(LogSubsystem.NETWORK, Level.WARNING, "Unable to register network metrics with JMX, {}", e.getMessage());
+		}
+	}
+	
+	public synchronized void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			LogManager.log(LogSubsystem.NETWORK, Level.WARNING, "Unable to unregister network metrics from JMX, {}", e.getMessage());
+		}
+		objectName = null;
+	}
+
+}
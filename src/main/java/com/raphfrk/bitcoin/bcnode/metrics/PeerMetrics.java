@@ -0,0 +1,80 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traffic counters for a single peer
+ */
+public class PeerMetrics {
+	
+	private final long created = System.currentTimeMillis();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLong messagesIn = new AtomicLong();
+	private final AtomicLong messagesOut = new AtomicLong();
+	
+	protected void addBytesIn(long bytes) {
+		bytesIn.addAndGet(bytes);
+	}
+	
+	protected void addBytesOut(long bytes) {
+		bytesOut.addAndGet(bytes);
+	}
+	
+	protected void incrementMessagesIn() {
+		messagesIn.incrementAndGet();
+	}
+	
+	protected void incrementMessagesOut() {
+		messagesOut.incrementAndGet();
+	}
+	
+	/**
+	 * Gets the time the peer was created, in milliseconds
+	 * 
+	 * @return
+	 */
+	public long getCreated() {
+		return created;
+	}
+	
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+	
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+	
+	public long getMessagesIn() {
+		return messagesIn.get();
+	}
+	
+	public long getMessagesOut() {
+		return messagesOut.get();
+	}
+
+}
@@ -0,0 +1,72 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.raphfrk.bitcoin.bcnode.util.MathUtils;
+
+/**
+ * A counter which spreads updates over a number of padded cells, selected by thread, so that 
+ * threads updating the counter concurrently don't contend on a single cache line.  Reads sum the cells.
+ */
+public class StripedCounter {
+	
+	private final static int STRIPES = MathUtils.increaseToPow2(Runtime.getRuntime().availableProcessors() * 2);
+	private final static int MASK = STRIPES - 1;
+	/**
+	 * Cells are spaced a cache line apart
+	 */
+	private final static int PADDING = 8;
+	
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+	
+	public void increment() {
+		add(1);
+	}
+	
+	public void add(long x) {
+		cells.getAndAdd(index(), x);
+	}
+	
+	/**
+	 * Gets the sum of all cells.  The result is not an atomic snapshot if updates are concurrent.
+	 * 
+	 * @return
+	 */
+	public long get() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+	
+	private static int index() {
+		long id = Thread.currentThread().getId();
+		int h = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+		return (h & MASK) * PADDING;
+	}
+
+}
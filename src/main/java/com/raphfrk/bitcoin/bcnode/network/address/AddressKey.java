@@ -0,0 +1,305 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.address;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.raphfrk.bitcoin.bcnode.util.ParseUtils;
+
+/**
+ * A compact, immutable key for a network address.  The 16 address bytes are packed into two longs 
+ * and the port into a short, so the key can be hashed and compared without touching the JDK 
+ * address classes.  The equivalent InetAddress and InetSocketAddress are created on first use and cached.
+ */
+public final class AddressKey implements Comparable<AddressKey> {
+	
+	private final static long IP4_PREFIX = 0xFFFFL;
+	
+	private final long high;
+	private final long low;
+	private final short port;
+	private final int hash;
+	
+	private volatile InetSocketAddress socketAddress;
+	
+	public AddressKey(long high, long low, int port) {
+		this.high = high;
+		this.low = low;
+		this.port = (short) port;
+		this.hash = hashCodeRaw();
+	}
+	
+	public AddressKey(byte[] addr, int port) {
+		this(getLong(addr, 0), getLong(addr, 8), port);
+	}
+	
+	private AddressKey(InetSocketAddress socketAddress) {
+		this(addrToBytes(socketAddress.getAddress()), socketAddress.getPort());
+		if (!socketAddress.isUnresolved()) {
+			this.socketAddress = socketAddress;
+		}
+	}
+	
+	/**
+	 * Reads a key from the buffer, as 16 address bytes followed by a 2 byte port, both big endian
+	 * 
+	 * @param buf
+	 * @return the key
+	 */
+	public static AddressKey get(ByteBuffer buf) {
+		buf.order(ByteOrder.BIG_ENDIAN);
+		long high = buf.getLong();
+		long low = buf.getLong();
+		int port = buf.getShort() & 0xFFFF;
+		return new AddressKey(high, low, port);
+	}
+	
+	/**
+	 * Gets the key for a socket address.  The socket address is retained as the cached socket address, if it is resolved.
+	 * 
+	 * @param socketAddress
+	 * @return the key, or null if socketAddress is null
+	 */
+	public static AddressKey get(InetSocketAddress socketAddress) {
+		if (socketAddress == null) {
+			return null;
+		}
+		return new AddressKey(socketAddress);
+	}
+	
+	/**
+	 * Writes the 16 address bytes to the buffer, in network byte order
+	 * 
+	 * @param buf
+	 */
+	public void putAddress(ByteBuffer buf) {
+		buf.order(ByteOrder.BIG_ENDIAN);
+		buf.putLong(high);
+		buf.putLong(low);
+	}
+	
+	/**
+	 * Writes the 16 address bytes followed by the port to the buffer, in network byte order
+	 * 
+	 * @param buf
+	 */
+	public void put(ByteBuffer buf) {
+		putAddress(buf);
+		buf.putShort(port);
+	}
+	
+	public long getHigh() {
+		return high;
+	}
+	
+	public long getLow() {
+		return low;
+	}
+	
+	public int getPort() {
+		return port & 0xFFFF;
+	}
+	
+	/**
+	 * Gets a copy of the 16 address bytes
+	 * 
+	 * @return
+	 */
+	public byte[] getAddressBytes() {
+		byte[] addr = new byte[16];
+		for (int i = 0; i < 8; i++) {
+			addr[i] = (byte) (high >> (56 - (i << 3)));
+			addr[i + 8] = (byte) (low >> (56 - (i << 3)));
+		}
+		return addr;
+	}
+	
+	/**
+	 * Returns true if this address is an IPv4 address mapped into the IPv6 address space
+	 * 
+	 * @return
+	 */
+	public boolean isIP4Address() {
+		return high == 0 && (low >>> 32) == IP4_PREFIX;
+	}
+	
+	/**
+	 * Gets the network group of this address, which is the /16 subnet for IPv4 addresses and the /32 
+	 * subnet for IPv6 addresses
+	 * 
+	 * @return
+	 */
+	public long getGroup() {
+		if (isIP4Address()) {
+			return (1L << 32) | ((low >>> 16) & 0xFFFFL);
+		} else {
+			return (2L << 32) | (high >>> 32);
+		}
+	}
+	
+	/**
+	 * Returns true if this is a loopback, private or link local address
+	 * 
+	 * @return
+	 */
+	public boolean isLocal() {
+		if (isIP4Address()) {
+			int a = (int) (low >>> 24) & 0xFF;
+			int b = (int) (low >>> 16) & 0xFF;
+			return a == 0 || a == 10 || a == 127 || (a == 172 && (b & 0xF0) == 16) || (a == 192 && b == 168) || (a == 169 && b == 254);
+		} else {
+			return (high == 0 && low == 1) || (high >>> 57) == 0x7E || (high >>> 54) == 0x3FA;
+		}
+	}
+	
+	/**
+	 * Gets the InetAddress associated with this key.  The address is created on first use.
+	 * 
+	 * @return
+	 */
+	public InetAddress getInetAddress() {
+		return getInetSocketAddress().getAddress();
+	}
+	
+	/**
+	 * Gets the InetSocketAddress associated with this key.  The address is created on first use.
+	 * 
+	 * @return
+	 */
+	public InetSocketAddress getInetSocketAddress() {
+		InetSocketAddress socketAddress = this.socketAddress;
+		if (socketAddress == null) {
+			try {
+				socketAddress = new InetSocketAddress(InetAddress.getByAddress(getAddressBytes()), getPort());
+			} catch (UnknownHostException e) {
+				throw new IllegalStateException("The address must always be 16 bytes long");
+			}
+			this.socketAddress = socketAddress;
+		}
+		return socketAddress;
+	}
+	
+	/**
+	 * Gets the address as a dot decimal string for IPv4 addresses, or a hex string otherwise
+	 * 
+	 * @return
+	 */
+	public String getAddressString() {
+		if (!isIP4Address()) {
+			return ParseUtils.bytesToHexString(getAddressBytes());
+		}
+		byte[] arr = new byte[4];
+		for (int i = 0; i < 4; i++) {
+			arr[i] = (byte) (low >> (24 - (i << 3)));
+		}
+		return ParseUtils.bytesToDotDecimal(arr);
+	}
+	
+	/**
+	 * Converts an InetAddress to its 16 byte form, mapping IPv4 addresses into the IPv6 address space
+	 * 
+	 * @param inetAddr the address, or null for the unspecified IPv4 address
+	 * @return
+	 */
+	public static byte[] addrToBytes(InetAddress inetAddr) {
+		byte[] bytes = new byte[16];
+		bytes[10] = (byte) 0xFF;
+		bytes[11] = (byte) 0xFF;
+		
+		if (inetAddr == null) {
+			return bytes;
+		}
+		byte[] inetBytes = inetAddr.getAddress();
+		if (inetBytes.length == 4) {
+			bytes[12] = inetBytes[0];
+			bytes[13] = inetBytes[1];
+			bytes[14] = inetBytes[2];
+			bytes[15] = inetBytes[3];
+		} else if (inetBytes.length == 16) {
+			return inetBytes;
+		}
+		return bytes;
+	}
+	
+	private static long getLong(byte[] arr, int off) {
+		long value = 0;
+		for (int i = off; i < off + 8; i++) {
+			value = (value << 8) | (arr[i] & 0xFFL);
+		}
+		return value;
+	}
+	
+	private int hashCodeRaw() {
+		long h = high * 0x9E3779B97F4A7C15L + low;
+		h = h * 0x9E3779B97F4A7C15L + port;
+		return (int) (h ^ (h >>> 32));
+	}
+	
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		} else if (!(o instanceof AddressKey)) {
+			return false;
+		} else {
+			AddressKey other = (AddressKey) o;
+			return hash == other.hash && low == other.low && high == other.high && port == other.port;
+		}
+	}
+
+	@Override
+	public int compareTo(AddressKey o) {
+		if (hash != o.hash) {
+			return hash < o.hash ? -1 : 1;
+		}
+		int diff = Long.compare(high, o.high);
+		if (diff != 0) {
+			return diff;
+		}
+		diff = Long.compare(low, o.low);
+		if (diff != 0) {
+			return diff;
+		}
+		return getPort() - o.getPort();
+	}
+	
+	@Override
+	public String toString() {
+		if (isIP4Address()) {
+			return getAddressString() + ":" + getPort();
+		} else {
+			return "[" + getAddressString() + "]:" + getPort();
+		}
+	}
+
+}
@@ -35,8 +35,6 @@ public class AddressStatus implements Comparable<AddressStatus> {
 	public final static int CONNECT_FAIL = 3;
 	public final static int CONNECT_ATTEMPT = 4;
 	
-	public final static int NETWORK_PENALTY = Config.NETWORK_NOTIFY_PENALTY.get();
-	public static int FAIL_TIMEOUT = Config.FAIL_RETRY_TIMEOUT.get();
 	public static int ATTEMPT_TIMEOUT = 60;
 	
 	private final int lastSuccess;
@@ -80,7 +78,7 @@ public class AddressStatus implements Comparable<AddressStatus> {
 	}
 	
 	private AddressStatus stampNetworkTime(int lastNetwork) {
-		int effectiveCurrentTime = getCurrentTime() - NETWORK_PENALTY;
+		int effectiveCurrentTime = getCurrentTime() - Config.NETWORK_NOTIFY_PENALTY.get();
 		if (lastNetwork > effectiveCurrentTime) {
 			lastNetwork = effectiveCurrentTime;
 		}
@@ -157,7 +155,7 @@ public class AddressStatus implements Comparable<AddressStatus> {
 	
 	private int getCompareKey() {
 		int lastGood = Math.max(getLastNetwork(), getLastSuccess());
-		return Math.min(lastGood, getLastFail() + FAIL_TIMEOUT);
+		return Math.min(lastGood, getLastFail() + Config.FAIL_RETRY_TIMEOUT.get());
 	}
 
 	@Override
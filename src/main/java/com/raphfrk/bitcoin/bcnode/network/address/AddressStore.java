@@ -27,7 +27,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Iterator;
@@ -36,8 +35,11 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 
+import com.raphfrk.bitcoin.bcnode.config.Config;
 import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.log.LogSubsystem;
 import com.raphfrk.bitcoin.bcnode.network.elements.NetworkAddress;
 import com.raphfrk.bitcoin.bcnode.network.p2p.P2PManager;
 
@@ -47,7 +49,7 @@ public class AddressStore {
 	
 	private final File file;
 	
-	private final ConcurrentHashMap<InetSocketAddress, AddressStatus> knownAddresses = new ConcurrentHashMap<InetSocketAddress, AddressStatus>();
+	private final ConcurrentHashMap<AddressKey, AddressStatus> knownAddresses = new ConcurrentHashMap<AddressKey, AddressStatus>();
 	
 	private final P2PManager manager;
 	
@@ -59,12 +61,12 @@ public class AddressStore {
 		load();
 	}
 	
-	public boolean notify(InetSocketAddress addr, int cause) {
+	public boolean notify(AddressKey addr, int cause) {
 		return notify(new NetworkAddress(true, 0L, addr), cause);
 	}
 	
 	public boolean notify(NetworkAddress addr, int cause) {
-		InetSocketAddress socketAddr = addr.getInetSocketAddress();
+		AddressKey socketAddr = addr.getKey();
 		boolean success = false;
 		boolean newAddress = false;
 		while (!success) {
@@ -87,15 +89,15 @@ public class AddressStore {
 	}
 	
 	public boolean remove(NetworkAddress addr) {
-		return knownAddresses.remove(addr.getInetSocketAddress()) != null;
+		return knownAddresses.remove(addr.getKey()) != null;
 	}
 	
 	public boolean contains(NetworkAddress addr) {
-		return knownAddresses.containsKey(addr.getInetSocketAddress());
+		return knownAddresses.containsKey(addr.getKey());
 	}
 	
 	public AddressStatus getStatus(NetworkAddress addr) {
-		return knownAddresses.get(addr.getInetSocketAddress());
+		return knownAddresses.get(addr.getKey());
 	}
 	
 	public int addressCount() {
@@ -104,38 +106,38 @@ public class AddressStore {
 	
 	private final Object addressSync = new Object();
 	
-	public InetSocketAddress[] getAddress(Set<InetSocketAddress> connected, int limit) {
+	public AddressKey[] getAddress(Set<AddressKey> connected, int limit) {
 		synchronized (addressSync) {
 			if (limit < 0) {
-				return new InetSocketAddress[0];
+				return new AddressKey[0];
 			}
-			InetSocketAddress[] addrs = new InetSocketAddress[limit];
+			AddressKey[] addrs = new AddressKey[limit];
 			int[] bestTimestamp = new int[limit];
 
-			Iterator<Entry<InetSocketAddress, AddressStatus>> itr = knownAddresses.entrySet().iterator();
+			Iterator<Entry<AddressKey, AddressStatus>> itr = knownAddresses.entrySet().iterator();
 
 			long currentTime = AddressStatus.getCurrentTime();
 
 			int i = 0;
 			int maxLoops = 5;
 			while (itr.hasNext() && maxLoops > 0) {
-				Entry<InetSocketAddress, AddressStatus> entry = itr.next();
+				Entry<AddressKey, AddressStatus> entry = itr.next();
 				if (connected.contains(entry.getKey())) {
 					continue;
 				}
 				AddressStatus status = entry.getValue();
-				if (status.getLastFail() + AddressStatus.FAIL_TIMEOUT > currentTime) {
+				if (status.getLastFail() + Config.FAIL_RETRY_TIMEOUT.get() > currentTime) {
 					continue;
 				}
 				if (status.getLastAttempt() + AddressStatus.ATTEMPT_TIMEOUT > currentTime) {
 					continue;
 				}
 				if (status.getLastSuccess() > bestTimestamp[i]) {
-					addrs[i] = entry.getValue().getAddress().getInetSocketAddress();
+					addrs[i] = entry.getKey();
 					bestTimestamp[i] = status.getLastSuccess();
 				}
 				if (status.getLastNetwork() > bestTimestamp[i]) {
-					addrs[i] = entry.getValue().getAddress().getInetSocketAddress();
+					addrs[i] = entry.getKey();
 					bestTimestamp[i] = status.getLastNetwork();
 				}
 				i++;
@@ -189,13 +191,13 @@ public class AddressStore {
 					int network = buffer.getInt();
 					int attempt = buffer.getInt();
 					AddressStatus status = new AddressStatus(addr, success, attempt, fail, network);
-					knownAddresses.put(addr.getInetSocketAddress(), status);
-					LogManager.log("Loaded: " + addr.getInetSocketAddress() + " " + status);
+					knownAddresses.put(addr.getKey(), status);
+					LogManager.log(LogSubsystem.ADDRESS, Level.FINE, "Loaded: {} {}", addr.getKey(), status);
 				}
 				buffer.compact();
 			}
 		} catch (IOException ioe) {
-			LogManager.log("Read error when reading from peer.dat");
+			LogManager.log(LogSubsystem.ADDRESS, Level.WARNING, "Read error when reading from peer.dat");
 		}
 	}
 
@@ -204,7 +206,7 @@ public class AddressStore {
 			try {
 				File dir = new File("peers");	
 				if (!dir.exists() && !dir.mkdirs()) {
-					LogManager.log("Unable to create peer directory");
+					LogManager.log(LogSubsystem.ADDRESS, Level.WARNING, "Unable to create peer directory");
 					return;
 				}
 				
@@ -245,7 +247,7 @@ public class AddressStore {
 				channel.write(buffer);
 				channel.close();
 			} catch (IOException e) {
-				LogManager.log("Unable to save peer.dat file");
+				LogManager.log(LogSubsystem.ADDRESS, Level.WARNING, "Unable to save peer.dat file");
 			} finally {
 				queueSave.compareAndSet(true, false);
 			}
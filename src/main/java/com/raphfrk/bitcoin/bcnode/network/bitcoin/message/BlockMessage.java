@@ -0,0 +1,295 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.raphfrk.bitcoin.bcnode.chain.MerkleTree;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p.BitcoinPeer;
+import com.raphfrk.bitcoin.bcnode.network.elements.BlockHeader;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+import com.raphfrk.bitcoin.bcnode.network.elements.VarInt;
+import com.raphfrk.bitcoin.bcnode.network.protocol.Protocol;
+import com.raphfrk.bitcoin.bcnode.util.DigestUtils;
+import com.raphfrk.bitcoin.bcnode.util.StringGenerator;
+
+/**
+ * A block.  The header is decoded and the rest of the block is kept as raw bytes.  The bytes may be held 
+ * in a slice of a memory mapped file, so stored blocks can be sent without being copied onto the heap.<br>
+ * <br>
+ * The transactions are found when they are first accessed.  Each transaction is a slice of the block, see 
+ * Transaction.
+ */
+public class BlockMessage extends BitcoinMessage<BlockMessage> {
+	
+	/**
+	 * The start of a coinbase output script which holds a witness commitment: OP_RETURN, a 36 byte push 
+	 * and the commitment header
+	 */
+	private final static byte[] WITNESS_COMMITMENT_HEADER = new byte[] {0x6a, 0x24, (byte) 0xaa, 0x21, (byte) 0xa9, (byte) 0xed};
+	
+	private final BlockHeader header;
+	private final ByteBuffer data;
+	private Transaction[] transactions;
+
+	/**
+	 * Creates a block message from a serialized block
+	 * 
+	 * @param protocol
+	 * @param data the block, including the header
+	 */
+	public BlockMessage(Protocol<BitcoinPeer> protocol, byte[] data) {
+		this(protocol, ByteBuffer.wrap(data));
+	}
+	
+	/**
+	 * Creates a block message from a serialized block
+	 * 
+	 * @param protocol
+	 * @param data the block, including the header, from its position to its limit
+	 */
+	public BlockMessage(Protocol<BitcoinPeer> protocol, ByteBuffer data) {
+		super(protocol);
+		if (data.remaining() < BlockHeader.LENGTH) {
+			throw new IllegalArgumentException("Blocks must include a header");
+		}
+		this.data = data.slice();
+		this.header = new BlockHeader(0, data.duplicate());
+	}
+	
+	public BlockMessage(int version, Protocol<BitcoinPeer> protocol, int magic, int length, ByteBuffer buf) throws IOException {
+		super(protocol);
+		if (length < BlockHeader.LENGTH) {
+			throw new IOException("Block message is too short to contain a header");
+		}
+		byte[] data = new byte[length];
+		buf.get(data);
+		this.data = ByteBuffer.wrap(data);
+		this.header = new BlockHeader(version, ByteBuffer.wrap(data));
+	}
+	
+	public BlockHeader getHeader() {
+		return header;
+	}
+	
+	/**
+	 * Gets the serialized block, including the header.  The contents of the buffer must not be modified.
+	 * 
+	 * @return a buffer positioned at the start of the block
+	 */
+	public ByteBuffer getData() {
+		return data.duplicate();
+	}
+
+	/**
+	 * Gets the number of transactions in the block
+	 * 
+	 * @return
+	 * @throws IOException if the transactions are malformed
+	 */
+	public int getTransactionCount() throws IOException {
+		return getTransactions().length;
+	}
+	
+	/**
+	 * Gets a transaction from the block
+	 * 
+	 * @param i
+	 * @return
+	 * @throws IOException if the transactions are malformed
+	 */
+	public Transaction getTransaction(int i) throws IOException {
+		return getTransactions()[i];
+	}
+	
+	/**
+	 * Builds the merkle tree of the block's transactions
+	 * 
+	 * @return
+	 * @throws IOException if the transactions are malformed
+	 */
+	public MerkleTree getMerkleTree() throws IOException {
+		return MerkleTree.build(MerkleTree.getLeaves(getTransactions(), true), true);
+	}
+	
+	/**
+	 * Checks that the transactions match the merkle root in the header, and that the merkle tree is not 
+	 * mutated
+	 * 
+	 * @return
+	 * @throws IOException if the transactions are malformed
+	 */
+	public boolean checkMerkleRoot() throws IOException {
+		return MerkleTree.checkRoot(MerkleTree.getLeaves(getTransactions(), true), header.getMerkleRoot(), true);
+	}
+	
+	/**
+	 * Checks the witness commitment in the coinbase (BIP 141).  If there is no commitment, or segwit is not 
+	 * active, no transaction may have witness data.<br>
+	 * <br>
+	 * The witness data is not covered by the merkle root in the header, so a failure means that the block 
+	 * was altered in transit, not that the block is invalid.
+	 * 
+	 * @param segwit true if segwit is active at the block's height
+	 * @return
+	 * @throws IOException if the transactions are malformed
+	 */
+	public boolean checkWitnessCommitment(boolean segwit) throws IOException {
+		Transaction[] transactions = getTransactions();
+		Transaction coinbase = transactions[0];
+		int commitment = segwit ? getWitnessCommitmentOutput(coinbase) : -1;
+		if (commitment < 0) {
+			for (Transaction tx : transactions) {
+				if (tx.hasWitness()) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (coinbase.getInputCount() != 1 || coinbase.getWitnessCount(0) != 1) {
+			return false;
+		}
+		ByteBuffer reserved = coinbase.getWitness(0, 0);
+		if (reserved.remaining() != Hash256.LENGTH) {
+			return false;
+		}
+		Hash256[] leaves = new Hash256[transactions.length];
+		leaves[0] = Hash256.ZERO;
+		for (int i = 1; i < transactions.length; i++) {
+			leaves[i] = transactions[i].getWitnessHash();
+		}
+		Hash256 root = MerkleTree.computeRoot(leaves, true);
+		byte[] expected = DigestUtils.doubleSHA256(new ByteBuffer[] {ByteBuffer.wrap(root.getBytes()), reserved});
+		ByteBuffer script = coinbase.getOutputScript(commitment);
+		int start = script.position() + WITNESS_COMMITMENT_HEADER.length;
+		for (int i = 0; i < expected.length; i++) {
+			if (script.get(start + i) != expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Finds the last coinbase output which holds a witness commitment
+	 * 
+	 * @param coinbase
+	 * @return the output index, or -1 if there is no commitment
+	 */
+	private static int getWitnessCommitmentOutput(Transaction coinbase) {
+		for (int i = coinbase.getOutputCount() - 1; i >= 0; i--) {
+			ByteBuffer script = coinbase.getOutputScript(i);
+			if (script.remaining() < WITNESS_COMMITMENT_HEADER.length + Hash256.LENGTH) {
+				continue;
+			}
+			int j = 0;
+			while (j < WITNESS_COMMITMENT_HEADER.length && script.get(script.position() + j) == WITNESS_COMMITMENT_HEADER[j]) {
+				j++;
+			}
+			if (j == WITNESS_COMMITMENT_HEADER.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Gets the block without witness data, for peers which did not request it.  Blocks with witnesses are 
+	 * copied onto the heap.
+	 * 
+	 * @return the block, or a copy without witness data if any transaction has witnesses
+	 * @throws IOException if the transactions are malformed
+	 */
+	public BlockMessage withoutWitness() throws IOException {
+		Transaction[] transactions = getTransactions();
+		int length = BlockHeader.LENGTH + VarInt.getLength(0, transactions.length);
+		boolean witness = false;
+		for (Transaction tx : transactions) {
+			witness |= tx.hasWitness();
+			length += tx.getLengthWithoutWitness();
+		}
+		if (!witness) {
+			return this;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		header.put(0, buf);
+		VarInt.put(0, buf, transactions.length);
+		for (Transaction tx : transactions) {
+			tx.putWithoutWitness(buf);
+		}
+		buf.flip();
+		@SuppressWarnings("unchecked")
+		Protocol<BitcoinPeer> protocol = (Protocol<BitcoinPeer>) getProtocol();
+		return new BlockMessage(protocol, buf);
+	}
+	
+	private synchronized Transaction[] getTransactions() throws IOException {
+		if (transactions == null) {
+			ByteBuffer buf = data.duplicate();
+			buf.position(BlockHeader.LENGTH);
+			if (!buf.hasRemaining()) {
+				throw new IOException("Block has no transaction count");
+			}
+			long count = VarInt.get(0, buf);
+			if (count <= 0 || count > buf.remaining() / Transaction.MIN_LENGTH) {
+				throw new IOException("Block transaction count " + count + " is not valid for a block of " + data.remaining() + " bytes");
+			}
+			Transaction[] transactions = new Transaction[(int) count];
+			for (int i = 0; i < count; i++) {
+				transactions[i] = new Transaction(0, buf);
+			}
+			if (buf.hasRemaining()) {
+				throw new IOException("Block has " + buf.remaining() + " bytes after the last transaction");
+			}
+			this.transactions = transactions;
+		}
+		return transactions;
+	}
+
+	@Override
+	public String getCommand() {
+		return "block";
+	}
+
+	@Override
+	public void put(int version, ByteBuffer buf) {
+		buf.put(data.duplicate());
+	}
+
+	@Override
+	public int getLength(int version) {
+		return data.remaining();
+	}
+
+	@Override
+	protected String getPayloadString() {
+		return new StringGenerator()
+			.add("Hash", header.getHash().toString())
+			.add("Size", data.remaining())
+			.done();
+	}
+
+}
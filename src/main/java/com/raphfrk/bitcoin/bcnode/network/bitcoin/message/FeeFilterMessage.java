@@ -0,0 +1,91 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p.BitcoinPeer;
+import com.raphfrk.bitcoin.bcnode.network.protocol.Protocol;
+import com.raphfrk.bitcoin.bcnode.util.StringGenerator;
+
+/**
+ * Asks the receiving peer not to announce transactions with a fee rate below the given rate (BIP 133)
+ */
+public class FeeFilterMessage extends BitcoinMessage<FeeFilterMessage> {
+	
+	/**
+	 * The first protocol version which supports feefilter messages
+	 */
+	public static final int FEE_FILTER_VERSION = 70013;
+	
+	private final long feeRate;
+	
+	public FeeFilterMessage(Protocol<BitcoinPeer> protocol, long feeRate) {
+		super(protocol);
+		this.feeRate = feeRate;
+	}
+	
+	public FeeFilterMessage(int version, Protocol<BitcoinPeer> protocol, int magic, ByteBuffer buf) throws IOException {
+		super(protocol);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		this.feeRate = buf.getLong();
+		buf.order(ByteOrder.BIG_ENDIAN);
+	}
+	
+	/**
+	 * Gets the minimum fee rate
+	 * 
+	 * @return the fee rate in satoshis per 1000 virtual bytes
+	 */
+	public long getFeeRate() {
+		return feeRate;
+	}
+	
+	@Override
+	public String getCommand() {
+		return "feefilter";
+	}
+
+	@Override
+	public void put(int version, ByteBuffer buf) {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putLong(feeRate);
+		buf.order(ByteOrder.BIG_ENDIAN);
+	}
+
+	@Override
+	public int getLength(int version) {
+		return 8;
+	}
+
+	@Override
+	protected String getPayloadString() {
+		return new StringGenerator()
+			.add("FeeRate", feeRate)
+			.done();
+	}
+
+}
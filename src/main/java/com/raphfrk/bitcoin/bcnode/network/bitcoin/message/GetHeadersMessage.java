@@ -0,0 +1,119 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p.BitcoinPeer;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.VarInt;
+import com.raphfrk.bitcoin.bcnode.network.protocol.Protocol;
+import com.raphfrk.bitcoin.bcnode.util.StringGenerator;
+
+/**
+ * Requests the headers which follow the most recent locator hash known to the receiving peer
+ */
+public class GetHeadersMessage extends BitcoinMessage<GetHeadersMessage> {
+	
+	public final static int MAX_LOCATOR = 101;
+	
+	private final int version;
+	private final Hash256[] locator;
+	private final Hash256 stop;
+
+	/**
+	 * Creates a getheaders message
+	 * 
+	 * @param protocol
+	 * @param locator
+	 * @param stop the hash of the last header to return, or Hash256.ZERO for as many as possible
+	 */
+	public GetHeadersMessage(Protocol<BitcoinPeer> protocol, Hash256[] locator, Hash256 stop) {
+		super(protocol);
+		if (locator.length > MAX_LOCATOR) {
+			throw new IllegalArgumentException("Locator length exceeded maximum value");
+		}
+		this.version = protocol.getVersion();
+		this.locator = locator;
+		this.stop = stop;
+	}
+	
+	public GetHeadersMessage(int version, Protocol<BitcoinPeer> protocol, int magic, ByteBuffer buf) throws IOException {
+		super(protocol);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		this.version = buf.getInt();
+		buf.order(ByteOrder.BIG_ENDIAN);
+		long count = VarInt.get(version, buf);
+		if (count > MAX_LOCATOR || count < 0) {
+			throw new IOException("Locator length exceeded maximum value");
+		}
+		this.locator = new Hash256[(int) count];
+		for (int i = 0; i < count; i++) {
+			locator[i] = new Hash256(buf);
+		}
+		this.stop = new Hash256(buf);
+	}
+	
+	public Hash256[] getLocator() {
+		return locator;
+	}
+	
+	public Hash256 getStop() {
+		return stop;
+	}
+
+	@Override
+	public String getCommand() {
+		return "getheaders";
+	}
+
+	@Override
+	public void put(int version, ByteBuffer buf) {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(this.version);
+		buf.order(ByteOrder.BIG_ENDIAN);
+		VarInt.put(version, buf, locator.length);
+		for (int i = 0; i < locator.length; i++) {
+			locator[i].put(version, buf);
+		}
+		stop.put(version, buf);
+	}
+
+	@Override
+	public int getLength(int version) {
+		return 4 + VarInt.getLength(version, locator.length) + (locator.length + 1) * Hash256.LENGTH;
+	}
+
+	@Override
+	protected String getPayloadString() {
+		return new StringGenerator()
+			.add("Locator", locator.length == 0 ? "" : locator[0].toString())
+			.add("Locator Length", locator.length)
+			.add("Stop", stop.toString())
+			.done();
+	}
+
+}
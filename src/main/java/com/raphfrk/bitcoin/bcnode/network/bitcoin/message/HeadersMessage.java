@@ -0,0 +1,107 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p.BitcoinPeer;
+import com.raphfrk.bitcoin.bcnode.network.elements.BlockHeader;
+import com.raphfrk.bitcoin.bcnode.network.elements.VarInt;
+import com.raphfrk.bitcoin.bcnode.network.protocol.Protocol;
+import com.raphfrk.bitcoin.bcnode.util.StringGenerator;
+
+/**
+ * A list of block headers.  Each header is followed by a transaction count, which is always zero.
+ */
+public class HeadersMessage extends BitcoinMessage<HeadersMessage> {
+	
+	public final static int MAX_HEADERS = 2000;
+	
+	private final BlockHeader[] headers;
+
+	public HeadersMessage(Protocol<BitcoinPeer> protocol, BlockHeader[] headers) {
+		super(protocol);
+		if (headers.length > MAX_HEADERS) {
+			throw new IllegalArgumentException("Header count exceeded maximum value");
+		}
+		this.headers = headers;
+	}
+	
+	public HeadersMessage(int version, Protocol<BitcoinPeer> protocol, int magic, ByteBuffer buf) throws IOException {
+		super(protocol);
+		long count = VarInt.get(version, buf);
+		if (count > MAX_HEADERS || count < 0) {
+			throw new IOException("Header count exceeded maximum value");
+		}
+		this.headers = new BlockHeader[(int) count];
+		for (int i = 0; i < count; i++) {
+			headers[i] = new BlockHeader(version, buf);
+			if (VarInt.get(version, buf) != 0) {
+				throw new IOException("Headers message contained transactions");
+			}
+		}
+	}
+	
+	public int getHeaderCount() {
+		return headers.length;
+	}
+	
+	public BlockHeader getHeader(int i) {
+		return headers[i];
+	}
+
+	@Override
+	public String getCommand() {
+		return "headers";
+	}
+
+	@Override
+	public void put(int version, ByteBuffer buf) {
+		VarInt.put(version, buf, headers.length);
+		for (int i = 0; i < headers.length; i++) {
+			headers[i].put(version, buf);
+			VarInt.put(version, buf, 0);
+		}
+	}
+
+	@Override
+	public int getLength(int version) {
+		return VarInt.getLength(version, headers.length) + headers.length * (BlockHeader.LENGTH + 1);
+	}
+
+	@Override
+	protected String getPayloadString() {
+		if (headers.length == 1) {
+			return new StringGenerator()
+			.add("Header", headers[0].toString())
+			.done();
+		} else {
+			return new StringGenerator()
+			.add("Header Count", headers.length)
+			.done();
+		}
+	}
+
+}
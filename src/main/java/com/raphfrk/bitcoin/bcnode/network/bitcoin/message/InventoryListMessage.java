@@ -0,0 +1,98 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p.BitcoinPeer;
+import com.raphfrk.bitcoin.bcnode.network.elements.InventoryVector;
+import com.raphfrk.bitcoin.bcnode.network.elements.VarInt;
+import com.raphfrk.bitcoin.bcnode.network.protocol.Protocol;
+import com.raphfrk.bitcoin.bcnode.util.StringGenerator;
+
+/**
+ * The common payload of the inv, getdata and notfound messages, which is a list of inventory vectors
+ */
+public abstract class InventoryListMessage<T extends InventoryListMessage<?>> extends BitcoinMessage<T> {
+	
+	public final static int MAX_INVENTORY = 50000;
+	
+	private final InventoryVector[] inventory;
+	
+	protected InventoryListMessage(Protocol<BitcoinPeer> protocol, InventoryVector[] inventory) {
+		super(protocol);
+		if (inventory.length > MAX_INVENTORY) {
+			throw new IllegalArgumentException("Inventory count exceeded maximum value");
+		}
+		this.inventory = inventory;
+	}
+	
+	protected InventoryListMessage(int version, Protocol<BitcoinPeer> protocol, ByteBuffer buf) throws IOException {
+		super(protocol);
+		long count = VarInt.get(version, buf);
+		if (count > MAX_INVENTORY || count < 0) {
+			throw new IOException("Inventory count exceeded maximum value");
+		}
+		this.inventory = new InventoryVector[(int) count];
+		for (int i = 0; i < count; i++) {
+			inventory[i] = new InventoryVector(version, buf);
+		}
+	}
+	
+	public int getInventoryCount() {
+		return inventory.length;
+	}
+	
+	public InventoryVector getInventory(int i) {
+		return inventory[i];
+	}
+
+	@Override
+	public void put(int version, ByteBuffer buf) {
+		VarInt.put(version, buf, inventory.length);
+		for (int i = 0; i < inventory.length; i++) {
+			inventory[i].put(version, buf);
+		}
+	}
+
+	@Override
+	public int getLength(int version) {
+		return VarInt.getLength(version, inventory.length) + inventory.length * InventoryVector.LENGTH;
+	}
+
+	@Override
+	protected String getPayloadString() {
+		if (inventory.length == 1) {
+			return new StringGenerator()
+			.add("Inventory", inventory[0].toString())
+			.done();
+		} else {
+			return new StringGenerator()
+			.add("Inventory Count", inventory.length)
+			.done();
+		}
+	}
+
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p.BitcoinPeer;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+import com.raphfrk.bitcoin.bcnode.network.protocol.Protocol;
+import com.raphfrk.bitcoin.bcnode.util.StringGenerator;
+
+/**
+ * A transaction.  Decoding only checks the structure of the transaction, the fields are read when they are 
+ * first accessed.
+ */
+public class TransactionMessage extends BitcoinMessage<TransactionMessage> {
+	
+	private final Transaction transaction;
+	
+	public TransactionMessage(Protocol<BitcoinPeer> protocol, Transaction transaction) {
+		super(protocol);
+		this.transaction = transaction;
+	}
+	
+	public TransactionMessage(int version, Protocol<BitcoinPeer> protocol, int magic, int length, ByteBuffer buf) throws IOException {
+		super(protocol);
+		byte[] data = new byte[length];
+		buf.get(data);
+		ByteBuffer in = ByteBuffer.wrap(data);
+		this.transaction = new Transaction(version, in);
+		if (in.hasRemaining()) {
+			throw new IOException("Transaction message has " + in.remaining() + " bytes after the transaction");
+		}
+	}
+	
+	public Transaction getTransaction() {
+		return transaction;
+	}
+
+	@Override
+	public String getCommand() {
+		return "tx";
+	}
+
+	@Override
+	public void put(int version, ByteBuffer buf) {
+		transaction.put(version, buf);
+	}
+
+	@Override
+	public int getLength(int version) {
+		return transaction.getLength(version);
+	}
+
+	@Override
+	protected String getPayloadString() {
+		return new StringGenerator()
+			.add("Hash", transaction.getHash().toString())
+			.add("Size", transaction.getLength(0))
+			.done();
+	}
+
+}
@@ -37,6 +37,10 @@ import com.raphfrk.bitcoin.bcnode.util.StringGenerator;
 public class VersionMessage extends BitcoinMessage<VersionMessage> {
 	
 	public static final long NODE_NETWORK = 1;
+	/**
+	 * The first protocol version where version messages carry the relay flag
+	 */
+	public static final int RELAY_VERSION = 70001;
 	
 	private final int version;
 	private final long services;
@@ -46,6 +50,7 @@ public class VersionMessage extends BitcoinMessage<VersionMessage> {
 	private final long nonce;
 	private final VarString userAgent;
 	private final int startHeight;
+	private final boolean relay;
 
 	public VersionMessage(Protocol<BitcoinPeer> protocol, long services, long timestamp, InetSocketAddress remoteAddress, InetSocketAddress localAddress, long nonce, String userAgent, int startHeight) {
 		super(protocol);
@@ -57,10 +62,12 @@ public class VersionMessage extends BitcoinMessage<VersionMessage> {
 		this.nonce = nonce;
 		this.userAgent = new VarString(userAgent);
 		this.startHeight = startHeight;
+		this.relay = true;
 	}
 	
-	public VersionMessage(Protocol<BitcoinPeer> protocol, int magic, ByteBuffer buf) throws IOException {
+	public VersionMessage(Protocol<BitcoinPeer> protocol, int magic, int length, ByteBuffer buf) throws IOException {
 		super(protocol);
+		int start = buf.position();
 		buf.order(ByteOrder.LITTLE_ENDIAN);
 		this.version = buf.getInt();
 		this.services = buf.getLong();
@@ -74,11 +81,13 @@ public class VersionMessage extends BitcoinMessage<VersionMessage> {
 			buf.order(ByteOrder.LITTLE_ENDIAN);
 			startHeight = buf.getInt();
 			buf.order(ByteOrder.BIG_ENDIAN);
+			relay = version < RELAY_VERSION || buf.position() - start >= length || buf.get() != 0;
 		} else {
-			localAddress = new NetworkAddress(true, 0, null);
+			localAddress = new NetworkAddress(true, 0, (InetSocketAddress) null);
 			nonce = 0;
 			userAgent = new VarString("");
 			startHeight = 0;
+			relay = true;
 		}
 	}
 
@@ -109,6 +118,15 @@ public class VersionMessage extends BitcoinMessage<VersionMessage> {
 	public int getStartHeight() {
 		return startHeight;
 	}
+	
+	/**
+	 * Checks if the sender wants transactions to be announced to it
+	 * 
+	 * @return
+	 */
+	public boolean isRelay() {
+		return relay;
+	}
 
 	@Override
 	public String getCommand() {
@@ -130,6 +148,9 @@ public class VersionMessage extends BitcoinMessage<VersionMessage> {
 			buf.order(ByteOrder.LITTLE_ENDIAN);
 			buf.putInt(startHeight);
 			buf.order(ByteOrder.BIG_ENDIAN);
+			if (this.version >= RELAY_VERSION) {
+				buf.put((byte) (relay ? 1 : 0));
+			}
 		}
 	}
 
@@ -138,6 +159,9 @@ public class VersionMessage extends BitcoinMessage<VersionMessage> {
 		int length = 4 + 8 + 8 + remoteAddress.getLength(this.version);
 		if (this.version > 106) {
 			length += localAddress.getLength(this.version) + 8 + userAgent.getLength(this.version) + 4;
+			if (this.version >= RELAY_VERSION) {
+				length++;
+			}
 		}
 		return length;
 	}
@@ -153,6 +177,7 @@ public class VersionMessage extends BitcoinMessage<VersionMessage> {
 			.add("Nonce", nonce)
 			.add("UserAgent", userAgent.toString())
 			.add("StartHeight", startHeight)
+			.add("Relay", relay)
 			.done();
 	}
 
@@ -36,7 +36,6 @@ public class AddressMessageHandler implements HandshakeMessageHandler<AddressMes
 	public boolean handle(AddressMessage message, BitcoinPeer peer) {
 		for (int i = 0; i < message.getAddressCount(); i++) {
 			NetworkAddress addr = message.getAddresses(i);
-			System.out.println("Peer notify: " + message.getAddresses(0));
 			peer.getManager().getAddressStore().notify(addr, AddressStatus.PEER_NOTIFY);
 		}
 		return true;
@@ -0,0 +1,61 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.message.handler;
+
+import java.io.IOException;
+import java.util.logging.Level;
+
+import com.raphfrk.bitcoin.bcnode.chain.StoredHeader;
+import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.log.LogSubsystem;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.BlockMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p.BitcoinPeer;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.protocol.BitcoinProtocol;
+import com.raphfrk.bitcoin.bcnode.network.elements.InventoryVector;
+import com.raphfrk.bitcoin.bcnode.network.message.handler.MessageHandler;
+
+public class BlockMessageHandler implements MessageHandler<BlockMessage, BitcoinPeer, BitcoinProtocol> {
+
+	@Override
+	public boolean handle(BlockMessage message, BitcoinPeer peer) {
+		try {
+			if (!message.checkMerkleRoot()) {
+				LogManager.log(LogSubsystem.PROTOCOL, Level.FINE, "Disconnecting: Merkle root mismatch for block {}", message.getHeader().getHash());
+				return false;
+			}
+			StoredHeader header = peer.getManager().getHeaderChain().get(message.getHeader().getHash());
+			if (header != null && !message.checkWitnessCommitment(header.getHeight() >= peer.getProtocol().getChainParams().getSegwitHeight())) {
+				LogManager.log(LogSubsystem.PROTOCOL, Level.FINE, "Disconnecting: Witness data of block {} does not match its commitment", message.getHeader().getHash());
+				return false;
+			}
+		} catch (IOException e) {
+			LogManager.log(LogSubsystem.PROTOCOL, Level.FINE, "Disconnecting: Malformed block {}, {}", message.getHeader().getHash(), e.getMessage());
+			return false;
+		}
+		peer.getAnnouncements().markKnown(new InventoryVector(InventoryVector.MSG_BLOCK, message.getHeader().getHash()));
+		peer.getManager().getBlockDownloader().onBlock(peer, message);
+		return true;
+	}
+
+}
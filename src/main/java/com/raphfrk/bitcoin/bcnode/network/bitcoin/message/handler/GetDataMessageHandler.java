@@ -0,0 +1,63 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.message.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.GetDataMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.NotFoundMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p.BitcoinPeer;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p.InventorySource;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.protocol.BitcoinProtocol;
+import com.raphfrk.bitcoin.bcnode.network.elements.InventoryVector;
+import com.raphfrk.bitcoin.bcnode.network.message.Message;
+import com.raphfrk.bitcoin.bcnode.network.message.handler.MessageHandler;
+
+public class GetDataMessageHandler implements MessageHandler<GetDataMessage, BitcoinPeer, BitcoinProtocol> {
+
+	@Override
+	public boolean handle(GetDataMessage message, BitcoinPeer peer) {
+		List<InventoryVector> notFound = null;
+		for (int i = 0; i < message.getInventoryCount(); i++) {
+			InventoryVector inv = message.getInventory(i);
+			InventorySource source = peer.getManager().getInventorySource(inv.getType());
+			Message<?> reply = source == null ? null : source.getMessage(inv);
+			if (reply != null) {
+				peer.getAnnouncements().markKnown(inv);
+				peer.sendMessage(reply);
+			} else {
+				if (notFound == null) {
+					notFound = new ArrayList<InventoryVector>();
+				}
+				notFound.add(inv);
+			}
+		}
+		if (notFound != null) {
+			peer.sendMessage(new NotFoundMessage(peer.getProtocol(), notFound.toArray(new InventoryVector[notFound.size()])));
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,51 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.message.handler;
+
+import com.raphfrk.bitcoin.bcnode.chain.HeaderChain;
+import com.raphfrk.bitcoin.bcnode.chain.StoredHeader;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.GetHeadersMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.HeadersMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p.BitcoinPeer;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.protocol.BitcoinProtocol;
+import com.raphfrk.bitcoin.bcnode.network.elements.BlockHeader;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.InventoryVector;
+import com.raphfrk.bitcoin.bcnode.network.message.handler.MessageHandler;
+
+public class GetHeadersMessageHandler implements MessageHandler<GetHeadersMessage, BitcoinPeer, BitcoinProtocol> {
+
+	@Override
+	public boolean handle(GetHeadersMessage message, BitcoinPeer peer) {
+		HeaderChain chain = peer.getManager().getHeaderChain();
+		StoredHeader fork = chain.findFork(message.getLocator());
+		Hash256 stop = Hash256.ZERO.equals(message.getStop()) ? null : message.getStop();
+		BlockHeader[] headers = chain.getHeadersAfter(fork, stop, HeadersMessage.MAX_HEADERS);
+		Hash256 last = headers.length == 0 ? fork.getHash() : headers[headers.length - 1].getHash();
+		peer.getAnnouncements().markKnown(new InventoryVector(InventoryVector.MSG_BLOCK, last));
+		peer.sendMessage(new HeadersMessage(peer.getProtocol(), headers));
+		return true;
+	}
+
+}
@@ -23,7 +23,10 @@
  */
 package com.raphfrk.bitcoin.bcnode.network.bitcoin.message.handler;
 
+import java.util.logging.Level;
+
 import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.log.LogSubsystem;
 import com.raphfrk.bitcoin.bcnode.network.address.AddressStatus;
 import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.GetAddressMessage;
 import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.VerackMessage;
@@ -38,28 +41,33 @@ public class VersionMessageHandler implements HandshakeMessageHandler<VersionMes
 	public boolean handle(VersionMessage message, BitcoinPeer peer) {
 		long remoteId = message.getNonce();
 		if (peer.getManager().getPeer(remoteId) != null) {
-			LogManager.log("Disconnecting: Connected to self");
+			LogManager.log(LogSubsystem.PROTOCOL, Level.FINE, "Disconnecting: Connected to self");
 			return false;
 		}
 		int remoteVersion = message.getVersion();
 		int localVersion = peer.getVersion();
 		if (localVersion != 0) {
-			LogManager.log("Disconnecting: Two version messages received from peer");
+			LogManager.log(LogSubsystem.PROTOCOL, Level.FINE, "Disconnecting: Two version messages received from peer");
 			return false;
 		}
 		if (remoteVersion == 10300) {
 			remoteVersion = 300;
 		}
 		if (remoteVersion < 209) {
-			LogManager.log("Disconnecting: Peer uses obsolete protocol version, " + remoteVersion);
+			LogManager.log(LogSubsystem.PROTOCOL, Level.FINE, "Disconnecting: Peer uses obsolete protocol version, {}", remoteVersion);
 			return false;
 		}
 		localVersion = Math.min(BitcoinProtocol.PROTOCOL_VERSION, remoteVersion);
 
 		peer.setPeerProtocolVersion(localVersion);
+		peer.setStartHeight(message.getStartHeight());
+		peer.setServices(message.getServices());
+		peer.setRelay(message.isRelay());
 		peer.sendMessage(new VerackMessage(peer.getProtocol()));
 		peer.sendMessage(new GetAddressMessage(peer.getProtocol()));
-		peer.getManager().getAddressStore().notify(peer.getRemoteAddress(), AddressStatus.CONNECT_SUCCESS);
+		if (!peer.isInbound()) {
+			peer.getManager().getAddressStore().notify(peer.getRemoteKey(), AddressStatus.CONNECT_SUCCESS);
+		}
 		
 		return true;
 	}
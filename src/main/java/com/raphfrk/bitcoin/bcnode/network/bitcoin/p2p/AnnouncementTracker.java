@@ -0,0 +1,89 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.InventoryVector;
+import com.raphfrk.bitcoin.bcnode.util.CryptUtils;
+import com.raphfrk.bitcoin.bcnode.util.RollingBloomFilter;
+
+/**
+ * Tracks the inventory a single peer is known to have, because the peer announced it or it was announced 
+ * to the peer, and the inventory which has been requested from the peer.  Both sets are held in rolling 
+ * bloom filters, so the memory used per peer is fixed.  A false positive means an object is not 
+ * announced to or requested from this peer, which is safe, since other peers will announce it.
+ */
+public class AnnouncementTracker {
+	
+	private final static int KNOWN_CAPACITY = 20000;
+	private final static int REQUESTED_CAPACITY = 5000;
+	private final static double FALSE_POSITIVE_RATE = 0.00001;
+	
+	private final RollingBloomFilter known = new RollingBloomFilter(KNOWN_CAPACITY, FALSE_POSITIVE_RATE, CryptUtils.getPseudoRandomLong());
+	private final RollingBloomFilter requested = new RollingBloomFilter(REQUESTED_CAPACITY, FALSE_POSITIVE_RATE, CryptUtils.getPseudoRandomLong());
+	
+	/**
+	 * Records that the peer has the object
+	 * 
+	 * @param inv
+	 */
+	public synchronized void markKnown(InventoryVector inv) {
+		Hash256 hash = inv.getHash();
+		known.add(hash.getWord(0) + inv.getType(), hash.getWord(1));
+	}
+	
+	/**
+	 * Returns true if the peer is known to have the object
+	 * 
+	 * @param inv
+	 * @return
+	 */
+	public synchronized boolean isKnown(InventoryVector inv) {
+		Hash256 hash = inv.getHash();
+		return known.contains(hash.getWord(0) + inv.getType(), hash.getWord(1));
+	}
+	
+	/**
+	 * Checks if the object should be announced to the peer, and marks it as known if so
+	 * 
+	 * @param inv
+	 * @return false if the peer already has the object or it was already announced to the peer
+	 */
+	public synchronized boolean shouldAnnounce(InventoryVector inv) {
+		Hash256 hash = inv.getHash();
+		return known.addIfAbsent(hash.getWord(0) + inv.getType(), hash.getWord(1));
+	}
+	
+	/**
+	 * Checks if the object should be requested from the peer, and marks it as requested if so
+	 * 
+	 * @param inv
+	 * @return false if the object was already requested from the peer
+	 */
+	public synchronized boolean shouldRequest(InventoryVector inv) {
+		Hash256 hash = inv.getHash();
+		return requested.addIfAbsent(hash.getWord(0) + inv.getType(), hash.getWord(1));
+	}
+
+}
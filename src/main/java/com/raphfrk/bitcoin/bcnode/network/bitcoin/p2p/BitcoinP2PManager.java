@@ -23,15 +23,539 @@
  */
 package com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
 
+import com.raphfrk.bitcoin.bcnode.chain.BlockConnector;
+import com.raphfrk.bitcoin.bcnode.chain.BlockListener;
+import com.raphfrk.bitcoin.bcnode.chain.BlockStore;
+import com.raphfrk.bitcoin.bcnode.chain.BlockVerifier;
+import com.raphfrk.bitcoin.bcnode.chain.ChainParams;
+import com.raphfrk.bitcoin.bcnode.chain.HeaderChain;
+import com.raphfrk.bitcoin.bcnode.chain.Mempool;
+import com.raphfrk.bitcoin.bcnode.chain.SignatureCache;
+import com.raphfrk.bitcoin.bcnode.chain.StoredHeader;
+import com.raphfrk.bitcoin.bcnode.chain.UtxoSet;
+import com.raphfrk.bitcoin.bcnode.config.Config;
+import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.log.LogSubsystem;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.BlockMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.GetDataMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.SendHeadersMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.TransactionMessage;
 import com.raphfrk.bitcoin.bcnode.network.bitcoin.protocol.BitcoinProtocol;
+import com.raphfrk.bitcoin.bcnode.network.bootstrap.DnsSeedResolver;
+import com.raphfrk.bitcoin.bcnode.network.bootstrap.SeedBootstrap;
+import com.raphfrk.bitcoin.bcnode.network.bootstrap.SeedResolver;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.InventoryVector;
+import com.raphfrk.bitcoin.bcnode.network.elements.OutPoint;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+import com.raphfrk.bitcoin.bcnode.network.message.Message;
 import com.raphfrk.bitcoin.bcnode.network.p2p.P2PManager;
+import com.raphfrk.bitcoin.bcnode.network.p2p.Peer;
+import com.raphfrk.bitcoin.bcnode.util.NamedThreadFactory;
 
 public class BitcoinP2PManager extends P2PManager {
 	
-	public BitcoinP2PManager(int maxConnections) throws IOException {
-		super(new BitcoinProtocol(), maxConnections);
+	/**
+	 * The number of blocks the UTXO set can be behind the header chain before transactions are ignored
+	 */
+	private final static int MAX_TIP_LAG = 6;
+	
+	private final AtomicReferenceArray<InventorySource> inventorySources = new AtomicReferenceArray<InventorySource>(InventoryVector.MSG_BLOCK + 1);
+	private final ScheduledExecutorService timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("Bitcoin timer", true));
+	private final HeaderChain headerChain;
+	private final HeaderSync headerSync;
+	private final BlockDownloader blockDownloader;
+	private final BlockStore blockStore;
+	private final UtxoSet utxoSet;
+	private final SignatureCache signatureCache = new SignatureCache(Config.SIGNATURE_CACHE_SIZE.get() * 1024L * 1024L);
+	private final BlockConnector blockConnector;
+	private final Mempool mempool;
+	private final OrphanPool orphanPool;
+	private final TransactionRelay transactionRelay;
+	private final BlockAnnouncer blockAnnouncer;
+	private final Set<BitcoinPeer> readyPeers = Collections.newSetFromMap(new ConcurrentHashMap<BitcoinPeer, Boolean>());
+	
+	public BitcoinP2PManager() throws IOException {
+		this(new File("data"), new BitcoinProtocol(), -1);
+	}
+	
+	public BitcoinP2PManager(int maxOutbound) throws IOException {
+		this(new File("data"), new BitcoinProtocol(), maxOutbound);
+	}
+	
+	public BitcoinP2PManager(File dir) throws IOException {
+		this(dir, new BitcoinProtocol(), -1);
+	}
+	
+	public BitcoinP2PManager(File dir, int maxOutbound) throws IOException {
+		this(dir, new BitcoinProtocol(), maxOutbound);
+	}
+	
+	public BitcoinP2PManager(File dir, ChainParams params, int maxOutbound) throws IOException {
+		this(dir, new BitcoinProtocol(params), maxOutbound);
+	}
+	
+	private BitcoinP2PManager(File dir, BitcoinProtocol protocol, int maxOutbound) throws IOException {
+		super(dir, protocol, maxOutbound);
+		this.headerChain = new HeaderChain(protocol.getChainParams());
+		this.headerSync = new HeaderSync(this, headerChain);
+		this.blockDownloader = new BlockDownloader(this, headerChain);
+		this.blockStore = new BlockStore(new File(getDataDirectory(), "blocks"), protocol.getMagicValue());
+		this.utxoSet = new UtxoSet(new File(getDataDirectory(), "chainstate"), Config.COIN_CACHE_SIZE.get() * 1024L * 1024L);
+		this.blockConnector = new BlockConnector(utxoSet, new BlockVerifier(protocol.getChainParams(), Runtime.getRuntime().availableProcessors(), signatureCache), Config.UNDO_DEPTH.get());
+		this.mempool = new Mempool(utxoSet, protocol.getChainParams(), signatureCache, Config.MEMPOOL_SIZE.get() * 1024L * 1024L, utxoSet.getBestHeight());
+		this.orphanPool = new OrphanPool(timer, Config.ORPHAN_POOL_SIZE.get() * 1024L * 1024L, Config.MAX_ORPHANS_PER_PEER.get());
+		this.transactionRelay = new TransactionRelay(this, mempool, Config.TX_RELAY_INTERVAL.get());
+		this.blockAnnouncer = new BlockAnnouncer(headerChain);
+		startBlockStore();
+		startMempool();
+	}
+	
+	public HeaderChain getHeaderChain() {
+		return headerChain;
+	}
+	
+	public HeaderSync getHeaderSync() {
+		return headerSync;
+	}
+	
+	public BlockDownloader getBlockDownloader() {
+		return blockDownloader;
+	}
+	
+	public BlockStore getBlockStore() {
+		return blockStore;
+	}
+	
+	public UtxoSet getUtxoSet() {
+		return utxoSet;
+	}
+	
+	public SignatureCache getSignatureCache() {
+		return signatureCache;
+	}
+	
+	public Mempool getMempool() {
+		return mempool;
+	}
+	
+	public OrphanPool getOrphanPool() {
+		return orphanPool;
+	}
+	
+	public TransactionRelay getTransactionRelay() {
+		return transactionRelay;
+	}
+	
+	/**
+	 * Gets the timer used for periodic chain sync tasks
+	 * 
+	 * @return
+	 */
+	public ScheduledExecutorService getTimer() {
+		return timer;
+	}
+	
+	@Override
+	public BitcoinProtocol getProtocol() {
+		return (BitcoinProtocol) super.getProtocol();
+	}
+	
+	@Override
+	protected void notifyHandshakeComplete(Peer<?> peer) {
+		super.notifyHandshakeComplete(peer);
+		if (((BitcoinPeer) peer).getVersion() >= SendHeadersMessage.SEND_HEADERS_VERSION) {
+			peer.sendMessage(new SendHeadersMessage(getProtocol()));
+		}
+		readyPeers.add((BitcoinPeer) peer);
+		transactionRelay.onPeerReady((BitcoinPeer) peer);
+		headerSync.onPeerReady((BitcoinPeer) peer);
+		blockDownloader.onPeerReady((BitcoinPeer) peer);
+	}
+	
+	@Override
+	protected void removePeer(Peer<?> peer, Peer.CloseReason reason) {
+		super.removePeer(peer, reason);
+		readyPeers.remove(peer);
+		orphanPool.onPeerClosed((BitcoinPeer) peer);
+		transactionRelay.onPeerClosed((BitcoinPeer) peer);
+		headerSync.onPeerClosed((BitcoinPeer) peer);
+		blockDownloader.onPeerClosed((BitcoinPeer) peer);
+	}
+	
+	@Override
+	protected void onShutdown() {
+		timer.shutdownNow();
+		blockDownloader.shutdown();
+		blockConnector.close();
+		blockStore.close();
+		utxoSet.close();
+		super.onShutdown();
+	}
+	
+	/**
+	 * Serves getdata requests for blocks from the block store, and stores downloaded blocks and connects them 
+	 * to the UTXO set.  Blocks connected before a restart are delivered again from the block store and 
+	 * skipped.<br>
+	 * <br>
+	 * If a block's signatures fail, it and its descendants are marked as failed in the header chain and 
+	 * removed from the block store, and the download restarts from the UTXO set's best block.  Blocks are 
+	 * announced to peers once their signatures have been checked.  The checks of the block at the tip of 
+	 * the header chain are waited for straight away, since no later block can overlap with them.<br>
+	 * <br>
+	 * A block which doesn't extend the UTXO set's best block, and isn't already connected, means that the 
+	 * header chain has reorganized below the connected blocks, see reorganize.
+	 */
+	private void startBlockStore() {
+		registerInventorySource(InventoryVector.MSG_BLOCK, new InventorySource() {
+			@Override
+			public boolean contains(InventoryVector inv) {
+				return blockStore.contains(inv.getHash());
+			}
+			
+			@Override
+			public Message<?> getMessage(InventoryVector inv) {
+				ByteBuffer data = blockStore.get(inv.getHash());
+				if (data == null) {
+					return null;
+				}
+				BlockMessage block = new BlockMessage(getProtocol(), data);
+				if ((inv.getType() & InventoryVector.MSG_WITNESS_FLAG) != 0) {
+					return block;
+				}
+				try {
+					return block.withoutWitness();
+				} catch (IOException e) {
+					LogManager.log(LogSubsystem.CHAIN, Level.SEVERE, "Stored block {} is malformed, {}", inv.getHash(), e.getMessage());
+					return null;
+				}
+			}
+		});
+		blockConnector.setListener(new BlockListener() {
+			@Override
+			public void onVerified(StoredHeader header, BlockMessage block) {
+				if (!isInitialBlockDownload()) {
+					blockAnnouncer.announce(header, readyPeers);
+				}
+			}
+			
+			@Override
+			public void onFailed(StoredHeader header, BlockMessage block) {
+				for (StoredHeader failed : headerChain.invalidate(header)) {
+					try {
+						blockStore.remove(failed.getHash());
+					} catch (IOException e) {
+						LogManager.log(LogSubsystem.CHAIN, Level.SEVERE, "Unable to remove block {} from the block store, {}", failed.getHash(), e.getMessage());
+					}
+				}
+				mempool.clear(utxoSet.getBestHeight());
+				blockDownloader.restart(utxoSet.getBestHeight());
+			}
+		});
+		blockDownloader.start(new BlockConsumer() {
+			@Override
+			public void onBlock(StoredHeader header, BlockMessage block) {
+				try {
+					blockStore.put(header.getHash(), block.getData());
+				} catch (IOException e) {
+					LogManager.log(LogSubsystem.CHAIN, Level.SEVERE, "Unable to store block {}, {}", header.getHash(), e.getMessage());
+				}
+				if (!block.getHeader().getPrevHash().equals(utxoSet.getBestBlock())) {
+					reorganize(header);
+					return;
+				}
+				if (blockConnector.connect(header, block) && header.getHeight() >= headerChain.getHeight()) {
+					try {
+						blockConnector.finish();
+					} catch (IOException e) {
+						LogManager.log(LogSubsystem.CHAIN, Level.SEVERE, "Unable to disconnect block {}, {}", header.getHash(), e.getMessage());
+					}
+				}
+				if (header.getHash().equals(utxoSet.getBestBlock())) {
+					try {
+						mempool.removeForBlock(block, header.getHeight());
+						processOrphans(block);
+					} catch (IOException e) {
+						LogManager.log(LogSubsystem.CHAIN, Level.SEVERE, "Unable to remove the transactions of block {} from the mempool, {}", header.getHash(), e.getMessage());
+					}
+				}
+			}
+		}, 0);
+	}
+	
+	/**
+	 * Disconnects the UTXO set back to the fork point between its best block and a delivered block's branch 
+	 * of the header chain, and restarts the download from there.  The disconnected blocks are read from the 
+	 * block store and their spent coins are taken from the block connector, which only holds them for recent 
+	 * blocks.  Deeper reorganizations are logged and block connection stops.
+	 * 
+	 * @param header the delivered block
+	 */
+	private void reorganize(StoredHeader header) {
+		try {
+			if (!blockConnector.finish()) {
+				// the last block failed, and the download has already been restarted
+				return;
+			}
+		} catch (IOException e) {
+			LogManager.log(LogSubsystem.CHAIN, Level.SEVERE, "Unable to disconnect block {}, {}", utxoSet.getBestBlock(), e.getMessage());
+			return;
+		}
+		StoredHeader tip = headerChain.get(utxoSet.getBestBlock());
+		if (tip == null) {
+			LogManager.log(LogSubsystem.CHAIN, Level.SEVERE, "Best block {} of the UTXO set is not in the header chain", utxoSet.getBestBlock());
+			return;
+		}
+		if (tip.getHeight() >= header.getHeight() && headerChain.getAncestor(tip, header.getHeight()).getHash().equals(header.getHash())) {
+			// delivered again from the block store after a restart
+			return;
+		}
+		int fork = Math.min(tip.getHeight(), header.getHeight() - 1);
+		while (fork >= 0 && !headerChain.getAncestor(tip, fork).getHash().equals(headerChain.getAncestor(header, fork).getHash())) {
+			fork--;
+		}
+		LogManager.log(LogSubsystem.CHAIN, Level.INFO, "Header chain reorganized below the UTXO set, disconnecting blocks {} to {}", fork + 1, tip.getHeight());
+		for (StoredHeader current = tip; current.getHeight() > fork; current = headerChain.getParent(current)) {
+			ByteBuffer data = blockStore.get(current.getHash());
+			boolean disconnected = false;
+			try {
+				disconnected = data != null && blockConnector.disconnect(current, new BlockMessage(getProtocol(), data));
+			} catch (IOException e) {
+				LogManager.log(LogSubsystem.CHAIN, Level.SEVERE, "Unable to disconnect block {}, {}", current.getHash(), e.getMessage());
+			}
+			if (!disconnected) {
+				LogManager.log(LogSubsystem.CHAIN, Level.SEVERE, "Unable to disconnect block {} at height {} for a reorganization to height {}, block connection is stopped.  The chain state must be rebuilt.", current.getHash(), current.getHeight(), fork);
+				return;
+			}
+		}
+		mempool.clear(utxoSet.getBestHeight());
+		blockDownloader.restart(utxoSet.getBestHeight());
+	}
+	
+	/**
+	 * Serves getdata requests for transactions from the mempool
+	 */
+	private void startMempool() {
+		registerInventorySource(InventoryVector.MSG_TX, new InventorySource() {
+			@Override
+			public boolean contains(InventoryVector inv) {
+				return mempool.contains(inv.getHash()) || orphanPool.contains(inv.getHash());
+			}
+			
+			@Override
+			public Message<?> getMessage(InventoryVector inv) {
+				Transaction tx = mempool.get(inv.getHash());
+				if (tx == null) {
+					return null;
+				}
+				if ((inv.getType() & InventoryVector.MSG_WITNESS_FLAG) == 0) {
+					tx = tx.withoutWitness();
+				}
+				return new TransactionMessage(getProtocol(), tx);
+			}
+		});
+	}
+	
+	/**
+	 * Adds a transaction received from a peer to the mempool and announces it to the other peers if it is 
+	 * accepted.  Signatures are checked on a worker thread.  Transactions are ignored until the UTXO set 
+	 * has caught up with the header chain.
+	 * 
+	 * @param peer
+	 * @param tx
+	 */
+	public void onTransaction(BitcoinPeer peer, Transaction tx) {
+		if (isInitialBlockDownload()) {
+			return;
+		}
+		final ArrayDeque<OrphanPool.Orphan> queue = new ArrayDeque<OrphanPool.Orphan>();
+		queue.add(new OrphanPool.Orphan(peer, tx, null, 0));
+		submitTask(new Runnable() {
+			@Override
+			public void run() {
+				processTransactions(queue);
+			}
+		});
+	}
+	
+	/**
+	 * Checks if the UTXO set is too far behind the header chain for transactions to be checked
+	 * 
+	 * @return
+	 */
+	public boolean isInitialBlockDownload() {
+		return headerChain.getHeight() - mempool.getHeight() > MAX_TIP_LAG;
+	}
+	
+	/**
+	 * Retries the orphans which spend outputs created by a connected block
+	 * 
+	 * @param block
+	 * @throws IOException
+	 */
+	private void processOrphans(BlockMessage block) throws IOException {
+		if (orphanPool.size() == 0) {
+			return;
+		}
+		final ArrayDeque<OrphanPool.Orphan> queue = new ArrayDeque<OrphanPool.Orphan>();
+		for (int i = 1; i < block.getTransactionCount(); i++) {
+			queue.addAll(orphanPool.removeChildren(block.getTransaction(i)));
+		}
+		if (!queue.isEmpty()) {
+			submitTask(new Runnable() {
+				@Override
+				public void run() {
+					processTransactions(queue);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Adds transactions to the mempool.  When a transaction is accepted, the orphans which spend it are 
+	 * added to the queue.  Transactions with missing inputs are added to the orphan pool, and their 
+	 * parents are requested from the peer which sent them.
+	 * 
+	 * @param queue
+	 */
+	private void processTransactions(ArrayDeque<OrphanPool.Orphan> queue) {
+		while (!queue.isEmpty()) {
+			OrphanPool.Orphan next = queue.poll();
+			BitcoinPeer peer = next.getPeer();
+			Transaction tx = next.getTransaction();
+			List<OutPoint> missing = new ArrayList<OutPoint>();
+			Mempool.Result result;
+			try {
+				result = mempool.accept(tx, missing);
+			} catch (IOException e) {
+				LogManager.log(LogSubsystem.CHAIN, Level.SEVERE, "Unable to check transaction {}, {}", tx.getHash(), e.getMessage());
+				continue;
+			}
+			if (result == Mempool.Result.ACCEPTED) {
+				relayTransaction(tx.getHash());
+				queue.addAll(orphanPool.removeChildren(tx));
+			} else if (result == Mempool.Result.MISSING_INPUTS) {
+				addOrphan(peer, tx, missing, queue);
+			} else {
+				LogManager.log(LogSubsystem.PROTOCOL, Level.FINEST, "Transaction {} from {} not accepted, {}", tx.getHash(), peer, result);
+			}
+		}
+	}
+	
+	/**
+	 * Adds a transaction to the orphan pool and requests its missing parents from the peer.  If a parent 
+	 * was accepted into the mempool after the transaction was checked, the transaction is queued again.
+	 * 
+	 * @param peer
+	 * @param tx
+	 * @param missing
+	 * @param queue
+	 */
+	private void addOrphan(BitcoinPeer peer, Transaction tx, List<OutPoint> missing, ArrayDeque<OrphanPool.Orphan> queue) {
+		List<InventoryVector> parents = new ArrayList<InventoryVector>();
+		List<Transaction> accepted = new ArrayList<Transaction>();
+		for (OutPoint outPoint : missing) {
+			InventoryVector inv = new InventoryVector(InventoryVector.MSG_TX, outPoint.getHash());
+			Transaction parent = mempool.get(outPoint.getHash());
+			if (parent != null) {
+				if (!accepted.contains(parent)) {
+					accepted.add(parent);
+				}
+			} else if (mempool.isRejected(outPoint.getHash())) {
+				LogManager.log(LogSubsystem.PROTOCOL, Level.FINEST, "Transaction {} from {} spends rejected transaction {}", tx.getHash(), peer, outPoint.getHash());
+				return;
+			} else if (!parents.contains(inv) && !orphanPool.contains(outPoint.getHash())) {
+				parents.add(inv);
+			}
+		}
+		if (!readyPeers.contains(peer) || !orphanPool.add(peer, tx, missing)) {
+			return;
+		}
+		for (Transaction parent : accepted) {
+			queue.addAll(orphanPool.removeChildren(parent));
+		}
+		List<InventoryVector> wanted = new ArrayList<InventoryVector>(parents.size());
+		for (InventoryVector inv : parents) {
+			if (peer.getAnnouncements().shouldRequest(inv)) {
+				wanted.add(new InventoryVector(peer.getRequestType(inv.getType()), inv.getHash()));
+			}
+		}
+		if (!wanted.isEmpty()) {
+			peer.sendMessage(new GetDataMessage(getProtocol(), wanted.toArray(new InventoryVector[wanted.size()])));
+		}
+	}
+	
+	/**
+	 * Queues a transaction for announcement to every peer which has completed the handshake and doesn't 
+	 * already know it
+	 * 
+	 * @param hash
+	 */
+	public void relayTransaction(Hash256 hash) {
+		transactionRelay.relay(hash);
+	}
+	
+	/**
+	 * Registers the source for an inventory type, replacing any existing source
+	 * 
+	 * @param type the inventory type, such as InventoryVector.MSG_TX
+	 * @param source
+	 */
+	public void registerInventorySource(int type, InventorySource source) {
+		inventorySources.set(type, source);
+	}
+	
+	/**
+	 * Gets the source for an inventory type.  The witness flag is ignored when finding the source, since 
+	 * objects are stored with their witness data.  Sources strip the witness data from the reply unless the 
+	 * requested type has the witness flag.
+	 * 
+	 * @param type
+	 * @return the source, or null if there is no source for the type
+	 */
+	public InventorySource getInventorySource(int type) {
+		type &= ~InventoryVector.MSG_WITNESS_FLAG;
+		if (type < 0 || type >= inventorySources.length()) {
+			return null;
+		}
+		return inventorySources.get(type);
+	}
+	
+	/**
+	 * Starts resolving the configured DNS seeds in the background
+	 * 
+	 * @return the bootstrap
+	 */
+	public SeedBootstrap bootstrap() {
+		return bootstrap(new DnsSeedResolver());
+	}
+	
+	/**
+	 * Starts resolving the configured DNS seeds in the background, using the given resolver
+	 * 
+	 * @param resolver
+	 * @return the bootstrap
+	 */
+	public SeedBootstrap bootstrap(SeedResolver resolver) {
+		String[] seeds = SeedBootstrap.getConfiguredSeeds(BitcoinProtocol.DNS_SEEDS);
+		String[] fallback = seeds == BitcoinProtocol.DNS_SEEDS ? new String[0] : BitcoinProtocol.DNS_SEEDS;
+		SeedBootstrap bootstrap = new SeedBootstrap(this, seeds, fallback, BitcoinProtocol.DEFAULT_PORT, BitcoinPeer.NODE_NETWORK, resolver);
+		bootstrap.start();
+		return bootstrap;
 	}
 	
 }
@@ -26,9 +26,13 @@ package com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.InventoryMessage;
 import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.VersionMessage;
 import com.raphfrk.bitcoin.bcnode.network.bitcoin.protocol.BitcoinProtocol;
+import com.raphfrk.bitcoin.bcnode.network.elements.InventoryVector;
 import com.raphfrk.bitcoin.bcnode.network.message.Message;
 import com.raphfrk.bitcoin.bcnode.network.p2p.P2PManager;
 import com.raphfrk.bitcoin.bcnode.network.p2p.Peer;
@@ -36,6 +40,18 @@ import com.raphfrk.bitcoin.bcnode.network.p2p.Peer;
 public class BitcoinPeer extends Peer<BitcoinProtocol> {
 	
 	public static long NODE_NETWORK = 1;
+	public static long NODE_WITNESS = 1 << 3;
+	/**
+	 * The services offered to peers.  Witness data is served to peers which request it with the witness flag.
+	 */
+	public static long LOCAL_SERVICES = NODE_NETWORK | NODE_WITNESS;
+	
+	private final AnnouncementTracker announcements = new AnnouncementTracker();
+	private volatile int startHeight;
+	private volatile long services;
+	private volatile boolean relay = true;
+	private volatile long feeFilter;
+	private volatile boolean preferHeaders;
 
 	public BitcoinPeer(long id, InetSocketAddress addr, P2PManager manager) throws IOException {
 		super(id, addr, manager);
@@ -55,7 +71,7 @@ public class BitcoinPeer extends Peer<BitcoinProtocol> {
 		long localPeerId = getId();
 		BitcoinProtocol protocol = (BitcoinProtocol) getManager().getProtocol();
 		
-		VersionMessage versionMessage = new VersionMessage(protocol, NODE_NETWORK, timestamp, getRemoteAddress(), null, localPeerId, getProtocol().getClientName(), 0);
+		VersionMessage versionMessage = new VersionMessage(protocol, LOCAL_SERVICES, timestamp, getRemoteAddress(), null, localPeerId, getProtocol().getClientName(), getManager().getHeaderChain().getHeight());
 		super.sendMessage(versionMessage);
 		return true;
 	}
@@ -68,6 +84,106 @@ public class BitcoinPeer extends Peer<BitcoinProtocol> {
 	public void onReceived(Message<?> message) {
 	}
 	
+	/**
+	 * Gets the chain height which the peer reported in its version message
+	 * 
+	 * @return
+	 */
+	public int getStartHeight() {
+		return startHeight;
+	}
+	
+	public void setStartHeight(int startHeight) {
+		this.startHeight = startHeight;
+	}
+	
+	/**
+	 * Gets the services which the peer reported in its version message
+	 * 
+	 * @return
+	 */
+	public long getServices() {
+		return services;
+	}
+	
+	public void setServices(long services) {
+		this.services = services;
+	}
+	
+	/**
+	 * Checks if the peer wants transactions to be announced to it, as reported in its version message
+	 * 
+	 * @return
+	 */
+	public boolean isRelay() {
+		return relay;
+	}
+	
+	public void setRelay(boolean relay) {
+		this.relay = relay;
+	}
+	
+	/**
+	 * Gets the minimum fee rate of transactions to announce to the peer, as set by its feefilter message
+	 * 
+	 * @return the fee rate in satoshis per 1000 virtual bytes
+	 */
+	public long getFeeFilter() {
+		return feeFilter;
+	}
+	
+	public void setFeeFilter(long feeFilter) {
+		this.feeFilter = feeFilter;
+	}
+	
+	/**
+	 * Checks if the peer wants new blocks to be announced with headers, as requested by its sendheaders message
+	 * 
+	 * @return
+	 */
+	public boolean isPreferHeaders() {
+		return preferHeaders;
+	}
+	
+	public void setPreferHeaders(boolean preferHeaders) {
+		this.preferHeaders = preferHeaders;
+	}
+	
+	/**
+	 * Gets the inventory type to request an object with, which includes witness data if the peer can 
+	 * provide it
+	 * 
+	 * @param type MSG_TX or MSG_BLOCK
+	 * @return
+	 */
+	public int getRequestType(int type) {
+		return (services & NODE_WITNESS) != 0 ? type | InventoryVector.MSG_WITNESS_FLAG : type;
+	}
+	
+	public AnnouncementTracker getAnnouncements() {
+		return announcements;
+	}
+	
+	/**
+	 * Announces objects to the peer, skipping any which the peer already has or which were already announced
+	 * 
+	 * @param inventory
+	 * @return the number of objects announced
+	 */
+	public int announce(InventoryVector... inventory) {
+		List<InventoryVector> filtered = new ArrayList<InventoryVector>(inventory.length);
+		for (InventoryVector inv : inventory) {
+			if (announcements.shouldAnnounce(inv)) {
+				filtered.add(inv);
+			}
+		}
+		for (int i = 0; i < filtered.size(); i += InventoryMessage.MAX_INVENTORY) {
+			List<InventoryVector> batch = filtered.subList(i, Math.min(filtered.size(), i + InventoryMessage.MAX_INVENTORY));
+			sendMessage(new InventoryMessage(getProtocol(), batch.toArray(new InventoryVector[batch.size()])));
+		}
+		return filtered.size();
+	}
+	
 	@Override
 	public BitcoinP2PManager getManager() {
 		return (BitcoinP2PManager) super.getManager();
@@ -0,0 +1,107 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.raphfrk.bitcoin.bcnode.chain.HeaderChain;
+import com.raphfrk.bitcoin.bcnode.chain.StoredHeader;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.HeadersMessage;
+import com.raphfrk.bitcoin.bcnode.network.elements.BlockHeader;
+import com.raphfrk.bitcoin.bcnode.network.elements.InventoryVector;
+
+/**
+ * Announces new blocks to peers.<br>
+ * <br>
+ * Peers which sent a sendheaders message are sent the headers of the new blocks directly, starting after 
+ * the last block the peer is known to have, so that they can request the blocks without a getheaders round 
+ * trip.  If that block is not one of the few most recent ancestors of the new block, the peer is sent an 
+ * inv instead and can catch up with getheaders.
+ */
+public class BlockAnnouncer {
+	
+	/**
+	 * The maximum number of headers to announce in one headers message
+	 */
+	private final static int MAX_HEADERS_TO_ANNOUNCE = 8;
+	
+	private final HeaderChain chain;
+	
+	public BlockAnnouncer(HeaderChain chain) {
+		this.chain = chain;
+	}
+	
+	/**
+	 * Announces a block to the peers which don't already have it
+	 * 
+	 * @param header
+	 * @param peers
+	 */
+	public void announce(StoredHeader header, Iterable<BitcoinPeer> peers) {
+		InventoryVector inv = new InventoryVector(InventoryVector.MSG_BLOCK, header.getHash());
+		for (BitcoinPeer peer : peers) {
+			if (peer.getAnnouncements().isKnown(inv)) {
+				continue;
+			}
+			if (!peer.isPreferHeaders() || !announceHeaders(peer, header)) {
+				peer.announce(inv);
+			}
+		}
+	}
+	
+	/**
+	 * Sends the headers from the last block known to the peer up to a block
+	 * 
+	 * @param peer
+	 * @param header
+	 * @return false if the peer is not known to have a recent ancestor of the block
+	 */
+	private boolean announceHeaders(BitcoinPeer peer, StoredHeader header) {
+		AnnouncementTracker announcements = peer.getAnnouncements();
+		List<StoredHeader> headers = new ArrayList<StoredHeader>(MAX_HEADERS_TO_ANNOUNCE);
+		StoredHeader h = header;
+		while (h != null && !announcements.isKnown(new InventoryVector(InventoryVector.MSG_BLOCK, h.getHash()))) {
+			if (headers.size() == MAX_HEADERS_TO_ANNOUNCE) {
+				return false;
+			}
+			headers.add(h);
+			h = chain.getParent(h);
+		}
+		if (h == null) {
+			return false;
+		}
+		Collections.reverse(headers);
+		BlockHeader[] message = new BlockHeader[headers.size()];
+		for (int i = 0; i < message.length; i++) {
+			StoredHeader stored = headers.get(i);
+			announcements.markKnown(new InventoryVector(InventoryVector.MSG_BLOCK, stored.getHash()));
+			message[i] = stored.getHeader();
+		}
+		peer.sendMessage(new HeadersMessage(peer.getProtocol(), message));
+		return true;
+	}
+
+}
@@ -0,0 +1,495 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import com.raphfrk.bitcoin.bcnode.chain.HeaderChain;
+import com.raphfrk.bitcoin.bcnode.chain.StoredHeader;
+import com.raphfrk.bitcoin.bcnode.config.Config;
+import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.log.LogSubsystem;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.BlockMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.GetDataMessage;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.InventoryVector;
+import com.raphfrk.bitcoin.bcnode.network.message.Message;
+import com.raphfrk.bitcoin.bcnode.util.NamedThreadFactory;
+
+/**
+ * Downloads the blocks of the header chain from all connected peers.<br>
+ * <br>
+ * Blocks are requested within a window which starts at the last block handed to the consumer, so a slow 
+ * peer can only hold up the download by the size of the window.  Each peer has a limited number of requests 
+ * in flight, and faster peers are given new requests first.  If the window is full and the block at the 
+ * start of the window has not arrived within the stall timeout, the request is moved to the fastest other 
+ * peer.  Peers which don't deliver a block within the download timeout are disconnected.<br>
+ * <br>
+ * Received blocks are buffered until all earlier blocks have arrived and are then passed to the consumer, in 
+ * height order, on a single validation thread.  Downloading starts when a consumer is set.  Blocks which 
+ * the manager's block inventory source already holds are taken from the source instead of being requested.
+ */
+public class BlockDownloader {
+	
+	private final BitcoinP2PManager manager;
+	private final HeaderChain chain;
+	private final ExecutorService validator = Executors.newSingleThreadExecutor(new NamedThreadFactory("Block validation", true));
+	
+	private final Map<BitcoinPeer, PeerState> peers = new HashMap<BitcoinPeer, PeerState>();
+	private final TreeMap<Integer, Request> requests = new TreeMap<Integer, Request>();
+	private final TreeSet<Integer> retry = new TreeSet<Integer>();
+	private final TreeMap<Integer, BlockMessage> received = new TreeMap<Integer, BlockMessage>();
+	
+	private BlockConsumer consumer;
+	private int nextRequest;
+	private int nextDeliver;
+	private int delivered;
+	private volatile int generation;
+	private volatile boolean stopped;
+	
+	private final Comparator<Map.Entry<BitcoinPeer, PeerState>> fastestFirst = new Comparator<Map.Entry<BitcoinPeer, PeerState>>() {
+		@Override
+		public int compare(Map.Entry<BitcoinPeer, PeerState> a, Map.Entry<BitcoinPeer, PeerState> b) {
+			return Double.compare(b.getValue().throughput, a.getValue().throughput);
+		}
+	};
+	
+	public BlockDownloader(BitcoinP2PManager manager, HeaderChain chain) {
+		this.manager = manager;
+		this.chain = chain;
+		manager.getTimer().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkStalled(System.nanoTime());
+			}
+		}, 500, 500, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Starts downloading the blocks which follow a height on the header chain
+	 * 
+	 * @param consumer the consumer for the downloaded blocks
+	 * @param height the height of the last block which the consumer already has
+	 */
+	public synchronized void start(BlockConsumer consumer, int height) {
+		this.consumer = consumer;
+		reset(height);
+		fill();
+	}
+	
+	/**
+	 * Restarts the download after the consumer has rejected blocks.  Blocks which are waiting to be passed to 
+	 * the consumer are dropped.
+	 * 
+	 * @param height the height of the last block which the consumer has kept
+	 */
+	public synchronized void restart(int height) {
+		if (consumer == null || stopped) {
+			return;
+		}
+		LogManager.log(LogSubsystem.CHAIN, Level.INFO, "Restarting block download at height {}", height + 1);
+		generation++;
+		reset(height);
+		fill();
+	}
+	
+	/**
+	 * Gets the height of the last block passed to the consumer
+	 * 
+	 * @return
+	 */
+	public synchronized int getDeliveredHeight() {
+		return delivered;
+	}
+	
+	/**
+	 * Gets the number of blocks which have been requested and not yet received
+	 * 
+	 * @return
+	 */
+	public synchronized int getInFlight() {
+		return requests.size();
+	}
+	
+	/**
+	 * Gets the number of blocks which have been requested from a peer and not yet received
+	 * 
+	 * @param peer
+	 * @return
+	 */
+	public synchronized int getInFlight(BitcoinPeer peer) {
+		PeerState state = peers.get(peer);
+		return state == null ? 0 : state.requests.size();
+	}
+	
+	/**
+	 * Gets the measured download rate for a peer
+	 * 
+	 * @param peer
+	 * @return the rate in bytes per second, or 0 if no blocks have been received from the peer
+	 */
+	public synchronized double getThroughput(BitcoinPeer peer) {
+		PeerState state = peers.get(peer);
+		return state == null ? 0 : state.throughput;
+	}
+	
+	/**
+	 * Called when the handshake with a peer completes
+	 * 
+	 * @param peer
+	 */
+	public synchronized void onPeerReady(BitcoinPeer peer) {
+		if ((peer.getServices() & BitcoinPeer.NODE_NETWORK) != 0) {
+			peers.put(peer, new PeerState());
+			fill();
+		}
+	}
+	
+	/**
+	 * Called when a peer disconnects.  The peer's requests are made available to other peers.
+	 * 
+	 * @param peer
+	 */
+	public synchronized void onPeerClosed(BitcoinPeer peer) {
+		PeerState state = peers.remove(peer);
+		if (state != null && !state.requests.isEmpty()) {
+			for (Request r : state.requests) {
+				requests.remove(r.height);
+				retry.add(r.height);
+			}
+			fill();
+		}
+	}
+	
+	/**
+	 * Called when a peer reports that it does not have a block
+	 * 
+	 * @param peer
+	 * @param hash
+	 */
+	public synchronized void onNotFound(BitcoinPeer peer, Hash256 hash) {
+		StoredHeader header = chain.get(hash);
+		if (header == null) {
+			return;
+		}
+		Request r = requests.get(header.getHeight());
+		if (r != null && r.peer == peer && r.hash.equals(hash)) {
+			requests.remove(r.height);
+			peers.get(peer).requests.remove(r);
+			retry.add(r.height);
+			fill();
+		}
+	}
+	
+	/**
+	 * Called when a block is received
+	 * 
+	 * @param peer
+	 * @param block
+	 */
+	public void onBlock(BitcoinPeer peer, BlockMessage block) {
+		Hash256 hash = block.getHeader().getHash();
+		StoredHeader header = chain.get(hash);
+		if (header == null) {
+			return;
+		}
+		int height = header.getHeight();
+		synchronized (this) {
+			long now = System.nanoTime();
+			PeerState state = peers.get(peer);
+			Request r = requests.get(height);
+			long start = 0;
+			if (r != null && !r.hash.equals(hash)) {
+				return;
+			} else if (r != null) {
+				requests.remove(height);
+				PeerState owner = peers.get(r.peer);
+				if (owner != null) {
+					owner.requests.remove(r);
+				}
+				if (r.peer == peer) {
+					start = r.time;
+				}
+			} else if (height < nextDeliver || height >= nextRequest || received.containsKey(height)) {
+				return;
+			} else {
+				retry.remove(height);
+			}
+			if (state != null) {
+				state.onReceived(block.getLength(0), start, now);
+			}
+			received.put(height, block);
+			deliver();
+			fill();
+		}
+	}
+	
+	/**
+	 * Requests blocks from peers with free request slots
+	 */
+	public synchronized void fill() {
+		if (consumer == null) {
+			return;
+		}
+		int limit = Math.min(chain.getHeight(), delivered + Config.BLOCK_DOWNLOAD_WINDOW.get());
+		if (loadLocal(limit)) {
+			deliver();
+		}
+		if (peers.isEmpty()) {
+			return;
+		}
+		int maxInFlight = Config.MAX_BLOCKS_IN_FLIGHT.get();
+		if (nextRequest > limit && retry.isEmpty()) {
+			return;
+		}
+		List<Map.Entry<BitcoinPeer, PeerState>> sorted = new ArrayList<Map.Entry<BitcoinPeer, PeerState>>(peers.entrySet());
+		Collections.sort(sorted, fastestFirst);
+		long now = System.nanoTime();
+		for (Map.Entry<BitcoinPeer, PeerState> entry : sorted) {
+			BitcoinPeer peer = entry.getKey();
+			PeerState state = entry.getValue();
+			List<InventoryVector> batch = null;
+			while (state.requests.size() < maxInFlight) {
+				int height;
+				if (!retry.isEmpty()) {
+					height = retry.pollFirst();
+				} else if (nextRequest <= limit) {
+					height = nextRequest++;
+				} else {
+					break;
+				}
+				StoredHeader header = chain.get(height);
+				if (header == null) {
+					continue;
+				}
+				Request r = new Request(height, header.getHash(), peer, now);
+				requests.put(height, r);
+				state.requests.add(r);
+				if (batch == null) {
+					batch = new ArrayList<InventoryVector>(maxInFlight);
+				}
+				batch.add(new InventoryVector(peer.getRequestType(InventoryVector.MSG_BLOCK), r.hash));
+			}
+			if (batch != null) {
+				peer.sendMessage(new GetDataMessage(peer.getProtocol(), batch.toArray(new InventoryVector[batch.size()])));
+			}
+		}
+	}
+	
+	/**
+	 * Stops the validation thread.  A block which is being passed to the consumer is allowed to complete, so 
+	 * that the consumer isn't interrupted part way through a write.
+	 */
+	public void shutdown() {
+		stopped = true;
+		validator.shutdown();
+		try {
+			if (!validator.awaitTermination(10, TimeUnit.SECONDS)) {
+				LogManager.log(LogSubsystem.CHAIN, Level.WARNING, "Block validation thread did not stop");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Takes the blocks which follow the last requested block from the block inventory source, for as long as 
+	 * the source holds them
+	 * 
+	 * @param limit the last height which may be requested
+	 * @return true if any blocks were taken
+	 */
+	private boolean loadLocal(int limit) {
+		InventorySource source = manager.getInventorySource(InventoryVector.MSG_BLOCK);
+		if (source == null) {
+			return false;
+		}
+		boolean loaded = false;
+		while (nextRequest <= limit) {
+			StoredHeader header = chain.get(nextRequest);
+			if (header == null) {
+				break;
+			}
+			InventoryVector inv = new InventoryVector(InventoryVector.MSG_WITNESS_BLOCK, header.getHash());
+			Message<?> message = source.contains(inv) ? source.getMessage(inv) : null;
+			if (!(message instanceof BlockMessage)) {
+				break;
+			}
+			received.put(nextRequest++, (BlockMessage) message);
+			loaded = true;
+		}
+		return loaded;
+	}
+	
+	/**
+	 * Disconnects peers which have timed out, and moves the request at the start of the window if it has 
+	 * stalled
+	 * 
+	 * @param now the time in nanoseconds
+	 */
+	synchronized void checkStalled(long now) {
+		if (consumer == null) {
+			return;
+		}
+		long timeout = TimeUnit.SECONDS.toNanos(Config.BLOCK_DOWNLOAD_TIMEOUT.get());
+		for (Map.Entry<BitcoinPeer, PeerState> entry : peers.entrySet()) {
+			Iterator<Request> i = entry.getValue().requests.iterator();
+			if (i.hasNext() && now - i.next().time > timeout) {
+				LogManager.log(LogSubsystem.CHAIN, Level.INFO, "Block download from {} timed out, disconnecting", entry.getKey());
+				entry.getKey().disconnect();
+			}
+		}
+		
+		int limit = Math.min(chain.getHeight(), delivered + Config.BLOCK_DOWNLOAD_WINDOW.get());
+		Request blocking = requests.get(nextDeliver);
+		long stallTimeout = TimeUnit.MILLISECONDS.toNanos(Config.BLOCK_STALL_TIMEOUT.get());
+		if (blocking != null && nextRequest > limit && now - blocking.time > stallTimeout) {
+			PeerState owner = peers.get(blocking.peer);
+			BitcoinPeer best = null;
+			PeerState bestState = null;
+			for (Map.Entry<BitcoinPeer, PeerState> entry : peers.entrySet()) {
+				PeerState state = entry.getValue();
+				if (entry.getKey() != blocking.peer && (bestState == null || state.throughput > bestState.throughput)) {
+					best = entry.getKey();
+					bestState = state;
+				}
+			}
+			if (best != null && (owner == null || bestState.throughput >= owner.throughput)) {
+				LogManager.log(LogSubsystem.CHAIN, Level.FINE, "Block {} stalled on {}, moving to {}", blocking.height, blocking.peer, best);
+				if (owner != null) {
+					owner.requests.remove(blocking);
+					owner.throughput /= 2;
+				}
+				blocking.peer = best;
+				blocking.time = now;
+				bestState.requests.add(blocking);
+				best.sendMessage(new GetDataMessage(best.getProtocol(), new InventoryVector[] {new InventoryVector(best.getRequestType(InventoryVector.MSG_BLOCK), blocking.hash)}));
+			}
+		}
+		fill();
+	}
+	
+	private void deliver() {
+		BlockMessage block;
+		while ((block = received.remove(nextDeliver)) != null) {
+			final StoredHeader header = chain.get(nextDeliver);
+			if (header == null || !header.getHash().equals(block.getHeader().getHash())) {
+				LogManager.log(LogSubsystem.CHAIN, Level.INFO, "Header chain changed at height {}, restarting block download", nextDeliver);
+				reset(nextDeliver - 1);
+				return;
+			}
+			nextDeliver++;
+			final BlockConsumer consumer = this.consumer;
+			final BlockMessage b = block;
+			final int current = generation;
+			validator.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (stopped || current != generation) {
+						return;
+					}
+					consumer.onBlock(header, b);
+					onDelivered(current, header.getHeight());
+				}
+			});
+		}
+	}
+	
+	private synchronized void onDelivered(int current, int height) {
+		if (current != generation) {
+			return;
+		}
+		delivered = Math.max(delivered, height);
+		fill();
+	}
+	
+	private void reset(int height) {
+		for (PeerState state : peers.values()) {
+			state.requests.clear();
+		}
+		requests.clear();
+		retry.clear();
+		received.clear();
+		nextRequest = height + 1;
+		nextDeliver = height + 1;
+		delivered = height;
+	}
+	
+	private static class Request {
+		
+		private final int height;
+		private final Hash256 hash;
+		private BitcoinPeer peer;
+		private long time;
+		
+		public Request(int height, Hash256 hash, BitcoinPeer peer, long time) {
+			this.height = height;
+			this.hash = hash;
+			this.peer = peer;
+			this.time = time;
+		}
+		
+	}
+	
+	private static class PeerState {
+		
+		private final Set<Request> requests = new LinkedHashSet<Request>();
+		private double throughput;
+		private long lastReceived;
+		
+		/**
+		 * Updates the throughput estimate.  Requests are pipelined, so the transfer of a block starts when it 
+		 * was requested or when the previous block arrived, whichever is later.
+		 * 
+		 * @param bytes
+		 * @param requested the time the block was requested from this peer, or 0 if unknown
+		 * @param now
+		 */
+		public void onReceived(int bytes, long requested, long now) {
+			long start = Math.max(requested, lastReceived);
+			lastReceived = now;
+			if (start == 0 || now <= start) {
+				return;
+			}
+			double sample = bytes * 1e9 / (now - start);
+			throughput = throughput == 0 ? sample : throughput * 0.75 + sample * 0.25;
+		}
+		
+	}
+
+}
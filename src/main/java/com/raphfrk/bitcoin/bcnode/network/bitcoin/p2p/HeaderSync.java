@@ -0,0 +1,239 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import com.raphfrk.bitcoin.bcnode.chain.HeaderChain;
+import com.raphfrk.bitcoin.bcnode.config.Config;
+import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.log.LogSubsystem;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.GetHeadersMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.HeadersMessage;
+import com.raphfrk.bitcoin.bcnode.network.elements.BlockHeader;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.InventoryVector;
+
+/**
+ * Downloads the header chain.<br>
+ * <br>
+ * While the chain is behind, headers are downloaded from a single sync peer.  When a full headers message 
+ * arrives, the request for the next batch is sent before the batch is validated, so that the next batch 
+ * is in transit while the current one is connected.  If the sync peer stops responding, it is disconnected 
+ * and the peer which claims the highest chain takes over.  Once the chain is close to the current time, 
+ * every peer is asked for headers, so that longer chains are found.
+ */
+public class HeaderSync {
+	
+	/**
+	 * The age, in seconds, of a tip which is considered recent
+	 */
+	private final static long RECENT_TIP_AGE = 24 * 60 * 60;
+	
+	private final BitcoinP2PManager manager;
+	private final HeaderChain chain;
+	private final Set<BitcoinPeer> candidates = new LinkedHashSet<BitcoinPeer>();
+	private BitcoinPeer syncPeer;
+	private long requestTime;
+	
+	public HeaderSync(BitcoinP2PManager manager, HeaderChain chain) {
+		this.manager = manager;
+		this.chain = chain;
+		manager.getTimer().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkStalled();
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+	
+	public HeaderChain getChain() {
+		return chain;
+	}
+	
+	/**
+	 * Gets the peer which headers are currently being downloaded from
+	 * 
+	 * @return the peer, or null if the chain is not being synced
+	 */
+	public synchronized BitcoinPeer getSyncPeer() {
+		return syncPeer;
+	}
+	
+	/**
+	 * Called when the handshake with a peer completes
+	 * 
+	 * @param peer
+	 */
+	public synchronized void onPeerReady(BitcoinPeer peer) {
+		if (syncPeer == null && peer.getStartHeight() > chain.getHeight()) {
+			startSync(peer);
+		} else if (syncPeer == null && isTipRecent()) {
+			request(peer);
+		} else {
+			candidates.add(peer);
+		}
+	}
+	
+	/**
+	 * Called when a peer disconnects
+	 * 
+	 * @param peer
+	 */
+	public synchronized void onPeerClosed(BitcoinPeer peer) {
+		candidates.remove(peer);
+		if (peer == syncPeer) {
+			syncPeer = null;
+			selectSyncPeer();
+		}
+	}
+	
+	/**
+	 * Called when a peer announces a block
+	 * 
+	 * @param peer
+	 * @param hash
+	 */
+	public synchronized void onBlockAnnounced(BitcoinPeer peer, Hash256 hash) {
+		if (syncPeer == null && !chain.contains(hash)) {
+			request(peer);
+		}
+	}
+	
+	/**
+	 * Connects the headers received from a peer
+	 * 
+	 * @param peer
+	 * @param message
+	 * @return false if the peer sent invalid headers
+	 */
+	public boolean onHeaders(BitcoinPeer peer, HeadersMessage message) {
+		int count = message.getHeaderCount();
+		boolean full = count == HeadersMessage.MAX_HEADERS;
+		if (count > 0) {
+			peer.getAnnouncements().markKnown(new InventoryVector(InventoryVector.MSG_BLOCK, message.getHeader(count - 1).getHash()));
+		}
+		if (full && chain.contains(message.getHeader(0).getPrevHash())) {
+			synchronized (this) {
+				if (syncPeer == null) {
+					candidates.remove(peer);
+					syncPeer = peer;
+				}
+				if (peer == syncPeer) {
+					Hash256 last = message.getHeader(count - 1).getHash();
+					requestTime = System.nanoTime();
+					peer.sendMessage(new GetHeadersMessage(peer.getProtocol(), new Hash256[] {last}, Hash256.ZERO));
+				}
+			}
+		}
+		
+		for (int i = 0; i < count; i++) {
+			BlockHeader header = message.getHeader(i);
+			HeaderChain.Result result = chain.add(header);
+			if (result.isInvalid()) {
+				LogManager.log(LogSubsystem.CHAIN, Level.WARNING, "Invalid header from {}, {}, {}", peer, result, header.getHash());
+				return false;
+			} else if (result == HeaderChain.Result.ORPHAN) {
+				if (i > 0) {
+					LogManager.log(LogSubsystem.CHAIN, Level.WARNING, "Non-continuous headers from {}", peer);
+					return false;
+				}
+				request(peer);
+				break;
+			} else if (result == HeaderChain.Result.TIME_TOO_NEW) {
+				LogManager.log(LogSubsystem.CHAIN, Level.FINE, "Header from {} is too far in the future, {}", peer, header.getHash());
+				break;
+			}
+		}
+		
+		if (LogManager.isLoggable(LogSubsystem.CHAIN, Level.FINE)) {
+			LogManager.log(LogSubsystem.CHAIN, Level.FINE, "Received {} headers from {}, height {}", count, peer, chain.getHeight());
+		}
+		manager.getBlockDownloader().fill();
+		
+		if (!full) {
+			synchronized (this) {
+				if (peer == syncPeer) {
+					syncPeer = null;
+					requestTime = 0;
+					LogManager.log(LogSubsystem.CHAIN, Level.INFO, "Header sync with {} complete, height {}", peer, chain.getHeight());
+					selectSyncPeer();
+				}
+			}
+		}
+		return true;
+	}
+	
+	private synchronized void checkStalled() {
+		if (syncPeer == null || requestTime == 0) {
+			return;
+		}
+		long timeout = TimeUnit.SECONDS.toNanos(Config.HEADER_SYNC_TIMEOUT.get());
+		if (System.nanoTime() - requestTime > timeout) {
+			LogManager.log(LogSubsystem.CHAIN, Level.INFO, "Header sync with {} stalled, disconnecting", syncPeer);
+			BitcoinPeer stalled = syncPeer;
+			syncPeer = null;
+			requestTime = 0;
+			stalled.disconnect();
+			selectSyncPeer();
+		}
+	}
+	
+	private void selectSyncPeer() {
+		BitcoinPeer best = null;
+		for (BitcoinPeer peer : candidates) {
+			if (peer.getStartHeight() > chain.getHeight() && (best == null || peer.getStartHeight() > best.getStartHeight())) {
+				best = peer;
+			}
+		}
+		if (best != null) {
+			candidates.remove(best);
+			startSync(best);
+		} else if (isTipRecent()) {
+			for (BitcoinPeer peer : candidates) {
+				request(peer);
+			}
+			candidates.clear();
+		}
+	}
+	
+	private void startSync(BitcoinPeer peer) {
+		LogManager.log(LogSubsystem.CHAIN, Level.INFO, "Starting header sync with {} from height {}", peer, chain.getHeight());
+		syncPeer = peer;
+		requestTime = System.nanoTime();
+		request(peer);
+	}
+	
+	private void request(BitcoinPeer peer) {
+		peer.sendMessage(new GetHeadersMessage(peer.getProtocol(), chain.getLocator(), Hash256.ZERO));
+	}
+	
+	private boolean isTipRecent() {
+		return chain.getTip().getHeader().getTime() > System.currentTimeMillis() / 1000 - RECENT_TIP_AGE;
+	}
+
+}
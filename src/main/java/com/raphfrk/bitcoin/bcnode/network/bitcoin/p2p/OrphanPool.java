@@ -0,0 +1,290 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import com.raphfrk.bitcoin.bcnode.chain.Mempool;
+import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.log.LogSubsystem;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.OutPoint;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+
+/**
+ * Holds transactions which spend outputs that are not yet known, until their parents arrive.<br>
+ * <br>
+ * Orphans are indexed by the outputs they are missing, so the children of an accepted transaction are 
+ * found without a scan.  Each peer may hold a limited number of orphans, and once the pool is over its 
+ * size limit the oldest orphan of the peer using the most memory is evicted, so a peer can only evict 
+ * its own orphans while the other peers are within their share.  Orphans expire after EXPIRE_TIME, and 
+ * are dropped when their peer disconnects.
+ */
+public class OrphanPool {
+	
+	/**
+	 * The time in milliseconds an orphan is kept for
+	 */
+	private final static long EXPIRE_TIME = 20 * 60 * 1000;
+	
+	private final long maxBytes;
+	private final int maxPerPeer;
+	private final HashMap<Hash256, Orphan> orphans = new HashMap<Hash256, Orphan>();
+	private final HashMap<OutPoint, Set<Orphan>> byParent = new HashMap<OutPoint, Set<Orphan>>();
+	private final HashMap<BitcoinPeer, PeerState> peers = new HashMap<BitcoinPeer, PeerState>();
+	private long bytes;
+	
+	/**
+	 * Creates a pool
+	 * 
+	 * @param timer the timer to run the expiry task on
+	 * @param maxBytes the maximum total size of the orphans
+	 * @param maxPerPeer the maximum number of orphans from each peer
+	 */
+	public OrphanPool(ScheduledExecutorService timer, long maxBytes, int maxPerPeer) {
+		this.maxBytes = maxBytes;
+		this.maxPerPeer = maxPerPeer;
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				int expired = expire(System.currentTimeMillis());
+				if (expired > 0) {
+					LogManager.log(LogSubsystem.PROTOCOL, Level.FINE, "Expired {} orphan transactions", expired);
+				}
+			}
+		}, 1, 1, TimeUnit.MINUTES);
+	}
+	
+	/**
+	 * Adds an orphan received from a peer
+	 * 
+	 * @param peer
+	 * @param tx
+	 * @param missing the outputs spent by the transaction which are not known
+	 * @return false if the transaction is too large, already in the pool or was evicted immediately
+	 */
+	public synchronized boolean add(BitcoinPeer peer, Transaction tx, List<OutPoint> missing) {
+		Hash256 hash = tx.getHash();
+		if (maxPerPeer <= 0 || tx.getVirtualSize() > Mempool.MAX_TRANSACTION_SIZE || tx.getLength(0) > maxBytes || orphans.containsKey(hash)) {
+			return false;
+		}
+		PeerState state = peers.get(peer);
+		if (state != null && state.orphans.size() >= maxPerPeer) {
+			remove(state.orphans.iterator().next());
+			// removing the peer's last orphan drops its state
+			state = peers.get(peer);
+		}
+		if (state == null) {
+			state = new PeerState();
+			peers.put(peer, state);
+		}
+		Orphan orphan = new Orphan(peer, tx, missing.toArray(new OutPoint[missing.size()]), System.currentTimeMillis());
+		orphans.put(hash, orphan);
+		for (OutPoint outPoint : orphan.missing) {
+			Set<Orphan> children = byParent.get(outPoint);
+			if (children == null) {
+				children = new HashSet<Orphan>(2);
+				byParent.put(outPoint, children);
+			}
+			children.add(orphan);
+		}
+		state.orphans.add(orphan);
+		state.bytes += orphan.getSize();
+		bytes += orphan.getSize();
+		while (bytes > maxBytes) {
+			remove(getLargestPeer().orphans.iterator().next());
+		}
+		return orphans.containsKey(hash);
+	}
+	
+	/**
+	 * Checks if a transaction is in the pool
+	 * 
+	 * @param hash
+	 * @return
+	 */
+	public synchronized boolean contains(Hash256 hash) {
+		return orphans.containsKey(hash);
+	}
+	
+	/**
+	 * Removes and returns the orphans which spend outputs of a transaction
+	 * 
+	 * @param parent
+	 * @return
+	 */
+	public synchronized List<Orphan> removeChildren(Transaction parent) {
+		if (orphans.isEmpty()) {
+			return new ArrayList<Orphan>(0);
+		}
+		Hash256 hash = parent.getHash();
+		List<Orphan> children = new ArrayList<Orphan>();
+		for (int i = 0; i < parent.getOutputCount(); i++) {
+			Set<Orphan> spending = byParent.get(new OutPoint(hash, i));
+			if (spending != null) {
+				for (Orphan orphan : new ArrayList<Orphan>(spending)) {
+					remove(orphan);
+					children.add(orphan);
+				}
+			}
+		}
+		return children;
+	}
+	
+	/**
+	 * Called when a peer disconnects.  The peer's orphans are removed.
+	 * 
+	 * @param peer
+	 */
+	public synchronized void onPeerClosed(BitcoinPeer peer) {
+		PeerState state = peers.get(peer);
+		if (state != null) {
+			for (Orphan orphan : new ArrayList<Orphan>(state.orphans)) {
+				remove(orphan);
+			}
+		}
+	}
+	
+	/**
+	 * Removes orphans which were added more than EXPIRE_TIME before a time
+	 * 
+	 * @param now
+	 * @return the number of orphans removed
+	 */
+	public synchronized int expire(long now) {
+		int expired = 0;
+		for (PeerState state : new ArrayList<PeerState>(peers.values())) {
+			Iterator<Orphan> i = state.orphans.iterator();
+			while (i.hasNext()) {
+				Orphan orphan = i.next();
+				if (now - orphan.time < EXPIRE_TIME) {
+					break;
+				}
+				i.remove();
+				remove(orphan);
+				expired++;
+			}
+		}
+		return expired;
+	}
+	
+	/**
+	 * Gets the number of orphans in the pool
+	 * 
+	 * @return
+	 */
+	public synchronized int size() {
+		return orphans.size();
+	}
+	
+	/**
+	 * Gets the total size of the orphans in the pool
+	 * 
+	 * @return
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	
+	private void remove(Orphan orphan) {
+		orphans.remove(orphan.tx.getHash());
+		for (OutPoint outPoint : orphan.missing) {
+			Set<Orphan> children = byParent.get(outPoint);
+			if (children != null) {
+				children.remove(orphan);
+				if (children.isEmpty()) {
+					byParent.remove(outPoint);
+				}
+			}
+		}
+		PeerState state = peers.get(orphan.peer);
+		state.orphans.remove(orphan);
+		state.bytes -= orphan.getSize();
+		bytes -= orphan.getSize();
+		if (state.orphans.isEmpty()) {
+			peers.remove(orphan.peer);
+		}
+	}
+	
+	private PeerState getLargestPeer() {
+		PeerState largest = null;
+		for (PeerState state : peers.values()) {
+			if (largest == null || state.bytes > largest.bytes) {
+				largest = state;
+			}
+		}
+		return largest;
+	}
+	
+	/**
+	 * A transaction waiting for its parents
+	 */
+	public static class Orphan {
+		
+		private final BitcoinPeer peer;
+		private final Transaction tx;
+		private final OutPoint[] missing;
+		private final long time;
+		
+		public Orphan(BitcoinPeer peer, Transaction tx, OutPoint[] missing, long time) {
+			this.peer = peer;
+			this.tx = tx;
+			this.missing = missing;
+			this.time = time;
+		}
+		
+		/**
+		 * Gets the peer which sent the transaction
+		 * 
+		 * @return
+		 */
+		public BitcoinPeer getPeer() {
+			return peer;
+		}
+		
+		public Transaction getTransaction() {
+			return tx;
+		}
+		
+		private int getSize() {
+			return tx.getLength(0);
+		}
+		
+	}
+	
+	private static class PeerState {
+		private final LinkedHashSet<Orphan> orphans = new LinkedHashSet<Orphan>();
+		private long bytes;
+	}
+	
+}
@@ -0,0 +1,305 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.raphfrk.bitcoin.bcnode.chain.Mempool;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.FeeFilterMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.InventoryMessage;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.InventoryVector;
+import com.raphfrk.bitcoin.bcnode.util.CryptUtils;
+
+/**
+ * Announces accepted transactions to peers in batches.<br>
+ * <br>
+ * Transactions are queued for each peer which doesn't already know them, and the queue is flushed as one 
+ * inv message at random intervals, drawn from an exponential distribution so that the time a transaction 
+ * was first seen can't be inferred from when it is announced.  Outbound peers each have their own 
+ * interval, with half the mean of the inbound interval.  Inbound peers share one schedule, so that 
+ * connecting many times doesn't give an observer more samples.  Transactions which left the mempool or 
+ * became known to the peer while queued are dropped at flush time.<br>
+ * <br>
+ * Transactions below a peer's feefilter rate are not announced to it.  Peers are sent a feefilter with the 
+ * mempool's minimum fee rate, rounded down to a bucket so the exact rate is not revealed, at random 
+ * intervals averaging FEE_FILTER_INTERVAL, or within FEE_FILTER_MAX_CHANGE_DELAY if the rate changes by more 
+ * than a third.  While the node is catching up with the chain, it asks for no transactions.
+ */
+public class TransactionRelay {
+	
+	/**
+	 * The maximum number of transactions queued for a peer
+	 */
+	private final static int MAX_QUEUED = 100000;
+	/**
+	 * The mean time in milliseconds between feefilter messages
+	 */
+	private final static long FEE_FILTER_INTERVAL = 10 * 60 * 1000;
+	/**
+	 * The maximum time in milliseconds before a significant fee rate change is sent
+	 */
+	private final static long FEE_FILTER_MAX_CHANGE_DELAY = 5 * 60 * 1000;
+	/**
+	 * The ratio between feefilter buckets
+	 */
+	private final static double FEE_FILTER_SPACING = 1.1;
+	
+	private final BitcoinP2PManager manager;
+	private final Mempool mempool;
+	private final long interval;
+	private final Random random = new Random(CryptUtils.getPseudoRandomLong());
+	private final ConcurrentHashMap<BitcoinPeer, PeerState> peers = new ConcurrentHashMap<BitcoinPeer, PeerState>();
+	private final AtomicLong announced = new AtomicLong();
+	private final AtomicLong messages = new AtomicLong();
+	
+	/**
+	 * Creates a relay
+	 * 
+	 * @param manager
+	 * @param mempool
+	 * @param interval the mean time in milliseconds between announcements to inbound peers
+	 */
+	public TransactionRelay(BitcoinP2PManager manager, Mempool mempool, long interval) {
+		this.manager = manager;
+		this.mempool = mempool;
+		this.interval = interval;
+		scheduleInbound();
+		manager.getTimer().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sendFeeFilters(System.currentTimeMillis());
+			}
+		}, 10, 10, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Called when the handshake with a peer completes
+	 * 
+	 * @param peer
+	 */
+	public void onPeerReady(BitcoinPeer peer) {
+		peers.put(peer, new PeerState());
+		if (!peer.isInbound()) {
+			scheduleOutbound(peer);
+		}
+	}
+	
+	/**
+	 * Called when a peer disconnects
+	 * 
+	 * @param peer
+	 */
+	public void onPeerClosed(BitcoinPeer peer) {
+		peers.remove(peer);
+	}
+	
+	/**
+	 * Queues a transaction for announcement to every peer which doesn't know it and wants transactions
+	 * 
+	 * @param hash
+	 */
+	public void relay(Hash256 hash) {
+		InventoryVector inv = new InventoryVector(InventoryVector.MSG_TX, hash);
+		for (Map.Entry<BitcoinPeer, PeerState> entry : peers.entrySet()) {
+			BitcoinPeer peer = entry.getKey();
+			if (peer.isRelay() && !peer.getAnnouncements().isKnown(inv)) {
+				entry.getValue().add(hash);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the number of transactions announced
+	 * 
+	 * @return
+	 */
+	public long getAnnouncedCount() {
+		return announced.get();
+	}
+	
+	/**
+	 * Gets the number of inv messages sent
+	 * 
+	 * @return
+	 */
+	public long getMessageCount() {
+		return messages.get();
+	}
+	
+	/**
+	 * Sends the queued transactions to a peer
+	 * 
+	 * @param peer
+	 */
+	public void flush(BitcoinPeer peer) {
+		PeerState state = peers.get(peer);
+		if (state == null) {
+			return;
+		}
+		Hash256[] hashes = state.drain();
+		if (hashes.length == 0) {
+			return;
+		}
+		long feeFilter = peer.getFeeFilter();
+		List<InventoryVector> inventory = new ArrayList<InventoryVector>(hashes.length);
+		for (Hash256 hash : hashes) {
+			long feeRate = mempool.getFeeRate(hash);
+			if (feeRate >= 0 && feeRate >= feeFilter) {
+				inventory.add(new InventoryVector(InventoryVector.MSG_TX, hash));
+			}
+		}
+		int count = peer.announce(inventory.toArray(new InventoryVector[inventory.size()]));
+		if (count > 0) {
+			announced.addAndGet(count);
+			messages.addAndGet((count + InventoryMessage.MAX_INVENTORY - 1) / InventoryMessage.MAX_INVENTORY);
+		}
+	}
+	
+	private void scheduleInbound() {
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				for (BitcoinPeer peer : peers.keySet()) {
+					if (peer.isInbound()) {
+						flush(peer);
+					}
+				}
+				scheduleInbound();
+			}
+		}, interval);
+	}
+	
+	private void scheduleOutbound(final BitcoinPeer peer) {
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (peers.containsKey(peer)) {
+					flush(peer);
+					scheduleOutbound(peer);
+				}
+			}
+		}, interval / 2);
+	}
+	
+	/**
+	 * Sends feefilter messages to the peers which are due one
+	 * 
+	 * @param now
+	 */
+	private void sendFeeFilters(long now) {
+		long feeRate = manager.isInitialBlockDownload() ? Mempool.MAX_MONEY : roundFeeFilter(mempool.getMinFeeRate(), getRandom());
+		for (Map.Entry<BitcoinPeer, PeerState> entry : peers.entrySet()) {
+			BitcoinPeer peer = entry.getKey();
+			PeerState state = entry.getValue();
+			if (peer.getVersion() < FeeFilterMessage.FEE_FILTER_VERSION) {
+				continue;
+			}
+			synchronized (state) {
+				if (now >= state.nextFeeFilter) {
+					if (feeRate != state.sentFeeFilter) {
+						peer.sendMessage(new FeeFilterMessage(peer.getProtocol(), feeRate));
+						state.sentFeeFilter = feeRate;
+					}
+					state.nextFeeFilter = now + getDelay(FEE_FILTER_INTERVAL);
+				} else if (state.nextFeeFilter > now + FEE_FILTER_MAX_CHANGE_DELAY && 
+						(feeRate * 4 < state.sentFeeFilter * 3 || feeRate * 3 > state.sentFeeFilter * 4)) {
+					state.nextFeeFilter = now + (long) (getRandom() * FEE_FILTER_MAX_CHANGE_DELAY);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Rounds a fee rate down to a bucket, and two times in three to the bucket below that
+	 * 
+	 * @param feeRate
+	 * @param random a random number between 0 and 1, the bucket below is used if it is less than 2/3
+	 * @return
+	 */
+	static long roundFeeFilter(long feeRate, double random) {
+		long base = Mempool.MIN_RELAY_FEE_RATE / 2;
+		if (feeRate < base) {
+			return 0;
+		}
+		int bucket = (int) Math.floor(Math.log((double) feeRate / base) / Math.log(FEE_FILTER_SPACING));
+		if (bucket > 0 && random < 2.0 / 3.0) {
+			bucket--;
+		}
+		return (long) (base * Math.pow(FEE_FILTER_SPACING, bucket));
+	}
+	
+	private double getRandom() {
+		synchronized (random) {
+			return random.nextDouble();
+		}
+	}
+	
+	/**
+	 * Gets a random delay from an exponential distribution
+	 * 
+	 * @param mean
+	 * @return
+	 */
+	private long getDelay(long mean) {
+		return (long) (-Math.log(1.0 - getRandom()) * mean);
+	}
+	
+	private void schedule(Runnable task, long mean) {
+		try {
+			manager.getTimer().schedule(task, getDelay(mean), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// the timer was shut down
+		}
+	}
+	
+	private static class PeerState {
+		
+		private LinkedHashSet<Hash256> hashes = new LinkedHashSet<Hash256>();
+		private long sentFeeFilter = -1;
+		private long nextFeeFilter;
+		
+		public synchronized void add(Hash256 hash) {
+			if (hashes.size() < MAX_QUEUED) {
+				hashes.add(hash);
+			}
+		}
+		
+		public synchronized Hash256[] drain() {
+			Hash256[] drained = hashes.toArray(new Hash256[hashes.size()]);
+			hashes = new LinkedHashSet<Hash256>();
+			return drained;
+		}
+		
+	}
+	
+}
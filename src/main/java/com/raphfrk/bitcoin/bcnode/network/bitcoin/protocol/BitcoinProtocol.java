@@ -28,11 +28,34 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
+import com.raphfrk.bitcoin.bcnode.chain.ChainParams;
+import com.raphfrk.bitcoin.bcnode.config.Config;
 import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.AddressMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.BlockMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.FeeFilterMessage;
 import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.GetAddressMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.GetDataMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.GetHeadersMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.HeadersMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.InventoryMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.NotFoundMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.PingMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.PongMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.TransactionMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.SendHeadersMessage;
 import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.VerackMessage;
 import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.VersionMessage;
 import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.handler.AddressMessageHandler;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.handler.BlockMessageHandler;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.handler.FeeFilterMessageHandler;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.handler.GetDataMessageHandler;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.handler.GetHeadersMessageHandler;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.handler.HeadersMessageHandler;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.handler.InventoryMessageHandler;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.handler.NotFoundMessageHandler;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.handler.PingMessageHandler;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.handler.TransactionMessageHandler;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.handler.SendHeadersMessageHandler;
 import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.handler.VerackMessageHandler;
 import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.handler.VersionMessageHandler;
 import com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p.BitcoinPeer;
@@ -42,10 +65,25 @@ import com.raphfrk.bitcoin.bcnode.network.protocol.Protocol;
 
 public class BitcoinProtocol extends Protocol<BitcoinPeer> {
 	
-	public static final int PROTOCOL_VERSION = 60002;
+	public static final int PROTOCOL_VERSION = 70013;
 	public static final int MAGIC_MAIN_NETWORK = 0xF9BEB4D9;
+	public static final int DEFAULT_PORT = 8333;
+	public static final String[] DNS_SEEDS = new String[] {
+		"seed.bitcoin.sipa.be",
+		"dnsseed.bluematt.me",
+		"dnsseed.bitcoin.dashjr.org",
+		"seed.bitcoinstats.com",
+		"bitseed.xf2.org"
+	};
+	
+	private final ChainParams params;
 	
 	public BitcoinProtocol() {
+		this(ChainParams.get(Config.NETWORK.get()));
+	}
+	
+	public BitcoinProtocol(ChainParams params) {
+		this.params = params;
 		registerMessageDecoders();
 		registerMessageHandlers();
 	}
@@ -67,13 +105,17 @@ public class BitcoinProtocol extends Protocol<BitcoinPeer> {
 
 	@Override
 	public int getMagicValue() {
-		return MAGIC_MAIN_NETWORK;
+		return params.getMagicValue();
+	}
+	
+	public ChainParams getChainParams() {
+		return params;
 	}
 
 	private void registerMessageDecoders() {
 		super.registerMessageDecoder("version", new MessageDecoder() {
 			public VersionMessage decodeMessage(int version, int magic, String command, int length, ByteBuffer in) throws IOException {
-				return new VersionMessage(BitcoinProtocol.this, magic, in);
+				return new VersionMessage(BitcoinProtocol.this, magic, length, in);
 			}
 		});
 		super.registerMessageDecoder("verack", new MessageDecoder() {
@@ -91,12 +133,77 @@ public class BitcoinProtocol extends Protocol<BitcoinPeer> {
 				return new AddressMessage(version, BitcoinProtocol.this, magic, in);
 			}
 		});
+		super.registerMessageDecoder("ping", new MessageDecoder() {
+			public PingMessage decodeMessage(int version, int magic, String command, int length, ByteBuffer in) throws IOException {
+				return new PingMessage(version, BitcoinProtocol.this, magic, in);
+			}
+		});
+		super.registerMessageDecoder("pong", new MessageDecoder() {
+			public PongMessage decodeMessage(int version, int magic, String command, int length, ByteBuffer in) throws IOException {
+				return new PongMessage(BitcoinProtocol.this, magic, in);
+			}
+		});
+		super.registerMessageDecoder("inv", new MessageDecoder() {
+			public InventoryMessage decodeMessage(int version, int magic, String command, int length, ByteBuffer in) throws IOException {
+				return new InventoryMessage(version, BitcoinProtocol.this, magic, in);
+			}
+		});
+		super.registerMessageDecoder("getdata", new MessageDecoder() {
+			public GetDataMessage decodeMessage(int version, int magic, String command, int length, ByteBuffer in) throws IOException {
+				return new GetDataMessage(version, BitcoinProtocol.this, magic, in);
+			}
+		});
+		super.registerMessageDecoder("notfound", new MessageDecoder() {
+			public NotFoundMessage decodeMessage(int version, int magic, String command, int length, ByteBuffer in) throws IOException {
+				return new NotFoundMessage(version, BitcoinProtocol.this, magic, in);
+			}
+		});
+		super.registerMessageDecoder("getheaders", new MessageDecoder() {
+			public GetHeadersMessage decodeMessage(int version, int magic, String command, int length, ByteBuffer in) throws IOException {
+				return new GetHeadersMessage(version, BitcoinProtocol.this, magic, in);
+			}
+		});
+		super.registerMessageDecoder("block", new MessageDecoder() {
+			public BlockMessage decodeMessage(int version, int magic, String command, int length, ByteBuffer in) throws IOException {
+				return new BlockMessage(version, BitcoinProtocol.this, magic, length, in);
+			}
+		});
+		super.registerMessageDecoder("tx", new MessageDecoder() {
+			public TransactionMessage decodeMessage(int version, int magic, String command, int length, ByteBuffer in) throws IOException {
+				return new TransactionMessage(version, BitcoinProtocol.this, magic, length, in);
+			}
+		});
+		super.registerMessageDecoder("feefilter", new MessageDecoder() {
+			public FeeFilterMessage decodeMessage(int version, int magic, String command, int length, ByteBuffer in) throws IOException {
+				return new FeeFilterMessage(version, BitcoinProtocol.this, magic, in);
+			}
+		});
+		super.registerMessageDecoder("headers", new MessageDecoder() {
+			public HeadersMessage decodeMessage(int version, int magic, String command, int length, ByteBuffer in) throws IOException {
+				return new HeadersMessage(version, BitcoinProtocol.this, magic, in);
+			}
+		});
+		super.registerMessageDecoder("sendheaders", new MessageDecoder() {
+			public SendHeadersMessage decodeMessage(int version, int magic, String command, int length, ByteBuffer in) throws IOException {
+				return new SendHeadersMessage(BitcoinProtocol.this, magic, in);
+			}
+		});
 	}
 	
 	private void registerMessageHandlers() {
 		super.registerMessageHandler("version", new VersionMessageHandler());
 		super.registerMessageHandler("verack", new VerackMessageHandler());
 		super.registerMessageHandler("addr", new AddressMessageHandler());
+		super.registerMessageHandler("ping", new PingMessageHandler());
+		super.registerMessageHandler("inv", new InventoryMessageHandler());
+		super.registerMessageHandler("getdata", new GetDataMessageHandler());
+		super.registerMessageHandler("notfound", new NotFoundMessageHandler());
+		super.registerMessageHandler("block", new BlockMessageHandler());
+		super.registerMessageHandler("tx", new TransactionMessageHandler());
+		super.registerMessageHandler("getheaders", new GetHeadersMessageHandler());
+		super.registerMessageHandler("headers", new HeadersMessageHandler());
+		super.registerMessageHandler("feefilter", new FeeFilterMessageHandler());
+		super.registerMessageHandler("sendheaders", new SendHeadersMessageHandler());
 	}
 	
 }
@@ -0,0 +1,196 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bootstrap;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import com.raphfrk.bitcoin.bcnode.config.Config;
+import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.log.LogSubsystem;
+import com.raphfrk.bitcoin.bcnode.network.address.AddressStatus;
+import com.raphfrk.bitcoin.bcnode.network.address.AddressStore;
+import com.raphfrk.bitcoin.bcnode.network.elements.NetworkAddress;
+import com.raphfrk.bitcoin.bcnode.network.p2p.P2PManager;
+import com.raphfrk.bitcoin.bcnode.util.NamedThreadFactory;
+
+/**
+ * Resolves a list of seeds in parallel and adds the results to the AddressStore.  Each new address is 
+ * passed to the P2PManager as it arrives, so connections are opened while the remaining seeds are 
+ * still resolving.<br>
+ * <br>
+ * Seeds which were resolved within the cache TTL are skipped, since their results are already in the 
+ * address store.  If none of the seeds return an address, the fallback seeds are tried.
+ */
+public class SeedBootstrap {
+	
+	private final AddressStore addressStore;
+	private final String[] seeds;
+	private final String[] fallbackSeeds;
+	private final int port;
+	private final long services;
+	private final SeedResolver resolver;
+	private final SeedCache cache;
+	private final ExecutorService executor;
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicInteger found = new AtomicInteger();
+	private final AtomicBoolean fallbackUsed = new AtomicBoolean();
+	
+	public SeedBootstrap(P2PManager manager, String[] seeds, String[] fallbackSeeds, int port, long services, SeedResolver resolver) {
+		this.addressStore = manager.getAddressStore();
+		this.seeds = seeds;
+		this.fallbackSeeds = fallbackSeeds;
+		this.port = port;
+		this.services = services;
+		this.resolver = resolver;
+		this.cache = new SeedCache(manager.getDataDirectory());
+		int threads = Math.max(1, Math.min(Config.SEED_RESOLVE_THREADS.get(), Math.max(seeds.length, fallbackSeeds.length)));
+		this.executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("Seed resolver", true));
+	}
+	
+	/**
+	 * Gets the seeds listed in the config file, or the built-in seeds if the config is set to default
+	 * 
+	 * @param builtIn the built-in seeds
+	 * @return
+	 */
+	public static String[] getConfiguredSeeds(String[] builtIn) {
+		String configured = Config.DNS_SEEDS.get();
+		if (configured == null || configured.trim().isEmpty() || configured.trim().equalsIgnoreCase("default")) {
+			return builtIn;
+		}
+		List<String> seeds = new ArrayList<String>();
+		for (String seed : configured.split(",")) {
+			seed = seed.trim();
+			if (!seed.isEmpty()) {
+				seeds.add(seed);
+			}
+		}
+		return seeds.toArray(new String[seeds.size()]);
+	}
+	
+	/**
+	 * Starts resolving any seeds which are not fresh in the cache.  This method does not block.
+	 */
+	public void start() {
+		int currentTime = AddressStatus.getCurrentTime();
+		boolean haveAddresses = addressStore.addressCount() > 0;
+		List<String> stale = new ArrayList<String>(seeds.length);
+		for (String seed : seeds) {
+			if (haveAddresses && cache.isFresh(seed, currentTime, Config.SEED_CACHE_TTL.get())) {
+				continue;
+			}
+			stale.add(seed);
+		}
+		if (!stale.isEmpty()) {
+			LogManager.log(LogSubsystem.BOOTSTRAP, Level.INFO, "Resolving {} of {} seeds", stale.size(), seeds.length);
+			resolve(stale);
+		} else if (!haveAddresses) {
+			onComplete();
+		} else {
+			LogManager.log(LogSubsystem.BOOTSTRAP, Level.INFO, "Seed cache is fresh, skipping DNS bootstrap");
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Gets the number of addresses returned by the seeds so far
+	 * 
+	 * @return
+	 */
+	public int getFoundCount() {
+		return found.get();
+	}
+	
+	/**
+	 * Returns true once all seeds, including any fallback seeds, have been resolved
+	 * 
+	 * @return
+	 */
+	public boolean isDone() {
+		return executor.isShutdown() && pending.get() == 0;
+	}
+	
+	private void resolve(List<String> hosts) {
+		pending.addAndGet(hosts.size());
+		for (String host : hosts) {
+			executor.execute(new ResolveTask(host));
+		}
+	}
+	
+	private void onComplete() {
+		if (found.get() == 0 && fallbackSeeds.length > 0 && fallbackUsed.compareAndSet(false, true)) {
+			LogManager.log(LogSubsystem.BOOTSTRAP, Level.INFO, "No addresses returned by seeds, trying fallback seeds");
+			resolve(Arrays.asList(fallbackSeeds));
+			return;
+		}
+		LogManager.log(LogSubsystem.BOOTSTRAP, Level.INFO, "Seed bootstrap complete, {} addresses found", found.get());
+		cache.save();
+		executor.shutdown();
+	}
+	
+	private class ResolveTask implements Runnable {
+		
+		private final String host;
+		
+		public ResolveTask(String host) {
+			this.host = host;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				InetAddress[] addrs = resolver.resolve(host);
+				int timestamp = AddressStatus.getCurrentTime();
+				for (InetAddress addr : addrs) {
+					NetworkAddress networkAddress = new NetworkAddress(timestamp, services, new InetSocketAddress(addr, port));
+					addressStore.notify(networkAddress, AddressStatus.PEER_NOTIFY);
+				}
+				found.addAndGet(addrs.length);
+				if (addrs.length > 0) {
+					cache.update(host, timestamp);
+				}
+				LogManager.log(LogSubsystem.BOOTSTRAP, Level.FINE, "Seed {} returned {} addresses", host, addrs.length);
+			} catch (UnknownHostException e) {
+				LogManager.log(LogSubsystem.BOOTSTRAP, Level.FINE, "Unable to resolve seed {}", host);
+			} catch (RuntimeException e) {
+				LogManager.log(LogSubsystem.BOOTSTRAP, Level.WARNING, "Seed resolver failed for {}, {}", host, e.getMessage());
+			} finally {
+				if (pending.decrementAndGet() == 0) {
+					onComplete();
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bootstrap;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.log.LogSubsystem;
+
+/**
+ * Records the last time each seed was successfully resolved.  The addresses themselves are held by the AddressStore.
+ */
+public class SeedCache {
+	
+	private final File file;
+	
+	private final ConcurrentHashMap<String, Integer> lastResolved = new ConcurrentHashMap<String, Integer>();
+	
+	public SeedCache(File dir) {
+		this.file = new File(dir, "seeds.dat");
+		load();
+	}
+	
+	/**
+	 * Returns true if the seed was successfully resolved less than ttl seconds before currentTime
+	 * 
+	 * @param seed
+	 * @param currentTime
+	 * @param ttl
+	 * @return
+	 */
+	public boolean isFresh(String seed, int currentTime, int ttl) {
+		Integer timestamp = lastResolved.get(seed);
+		return timestamp != null && timestamp + ttl > currentTime;
+	}
+	
+	public void update(String seed, int timestamp) {
+		lastResolved.put(seed, timestamp);
+	}
+	
+	public void load() {
+		lastResolved.clear();
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					String seed = in.readUTF();
+					int timestamp = in.readInt();
+					lastResolved.put(seed, timestamp);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (FileNotFoundException e) {
+		} catch (EOFException e) {
+			LogManager.log(LogSubsystem.BOOTSTRAP, Level.WARNING, "Seed cache file {} was truncated", file);
+		} catch (IOException e) {
+			LogManager.log(LogSubsystem.BOOTSTRAP, Level.WARNING, "Read error when reading from {}", file);
+		}
+	}
+	
+	public void save() {
+		try {
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+			try {
+				out.writeInt(lastResolved.size());
+				for (Entry<String, Integer> entry : lastResolved.entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeInt(entry.getValue());
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			LogManager.log(LogSubsystem.BOOTSTRAP, Level.WARNING, "Unable to save {}", file);
+		}
+	}
+
+}
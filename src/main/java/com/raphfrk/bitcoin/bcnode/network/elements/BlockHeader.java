@@ -0,0 +1,227 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.elements;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.raphfrk.bitcoin.bcnode.util.DigestUtils;
+import com.raphfrk.bitcoin.bcnode.util.StringGenerator;
+
+/**
+ * An 80 byte block header.  The hash is calculated when the header is created, so that decoding threads 
+ * do the hashing rather than the thread which connects headers to the chain.
+ */
+public final class BlockHeader implements MessageElement<BlockHeader> {
+	
+	public final static int LENGTH = 80;
+	
+	private final static BigInteger TWO_POW_256 = BigInteger.ONE.shiftLeft(256);
+	
+	private final int version;
+	private final Hash256 prevHash;
+	private final Hash256 merkleRoot;
+	private final int timestamp;
+	private final int bits;
+	private final int nonce;
+	private final Hash256 hash;
+	
+	public BlockHeader(int version, Hash256 prevHash, Hash256 merkleRoot, long timestamp, int bits, int nonce) {
+		this.version = version;
+		this.prevHash = prevHash;
+		this.merkleRoot = merkleRoot;
+		this.timestamp = (int) timestamp;
+		this.bits = bits;
+		this.nonce = nonce;
+		ByteBuffer buf = ByteBuffer.allocate(LENGTH);
+		put(0, buf);
+		this.hash = new Hash256(DigestUtils.doubleSHA256(buf, 0, LENGTH));
+	}
+	
+	/**
+	 * Creates a header with a known hash.  The hash is not checked.
+	 * 
+	 * @param version
+	 * @param prevHash
+	 * @param merkleRoot
+	 * @param timestamp
+	 * @param bits
+	 * @param nonce
+	 * @param hash
+	 */
+	public BlockHeader(int version, Hash256 prevHash, Hash256 merkleRoot, long timestamp, int bits, int nonce, Hash256 hash) {
+		this.version = version;
+		this.prevHash = prevHash;
+		this.merkleRoot = merkleRoot;
+		this.timestamp = (int) timestamp;
+		this.bits = bits;
+		this.nonce = nonce;
+		this.hash = hash;
+	}
+	
+	public BlockHeader(int version, ByteBuffer buf) {
+		int start = buf.position();
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		this.version = buf.getInt();
+		this.prevHash = new Hash256(buf);
+		this.merkleRoot = new Hash256(buf);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		this.timestamp = buf.getInt();
+		this.bits = buf.getInt();
+		this.nonce = buf.getInt();
+		buf.order(ByteOrder.BIG_ENDIAN);
+		this.hash = new Hash256(DigestUtils.doubleSHA256(buf, start, LENGTH));
+	}
+	
+	public int getVersion() {
+		return version;
+	}
+	
+	public Hash256 getPrevHash() {
+		return prevHash;
+	}
+	
+	public Hash256 getMerkleRoot() {
+		return merkleRoot;
+	}
+	
+	/**
+	 * Gets the block timestamp, in seconds since the epoch
+	 * 
+	 * @return
+	 */
+	public long getTime() {
+		return timestamp & 0xFFFFFFFFL;
+	}
+	
+	public int getBits() {
+		return bits;
+	}
+	
+	public int getNonce() {
+		return nonce;
+	}
+	
+	public Hash256 getHash() {
+		return hash;
+	}
+	
+	/**
+	 * Returns true if the hash of the header meets its own target
+	 * 
+	 * @return
+	 */
+	public boolean checkProofOfWork() {
+		BigInteger target = decodeTarget(bits);
+		return target != null && hash.toBigInteger().compareTo(target) <= 0;
+	}
+	
+	/**
+	 * Gets the expected number of hashes required to find a header with this header's target
+	 * 
+	 * @return
+	 */
+	public BigInteger getWork() {
+		BigInteger target = decodeTarget(bits);
+		if (target == null) {
+			return BigInteger.ZERO;
+		}
+		return TWO_POW_256.divide(target.add(BigInteger.ONE));
+	}
+	
+	/**
+	 * Decodes a target from the compact format used in the bits field
+	 * 
+	 * @param bits
+	 * @return the target, or null if the target is zero, negative or too large
+	 */
+	public static BigInteger decodeTarget(int bits) {
+		int exponent = bits >>> 24;
+		int mantissa = bits & 0x007FFFFF;
+		if (mantissa == 0 || (bits & 0x00800000) != 0) {
+			return null;
+		}
+		BigInteger target;
+		if (exponent <= 3) {
+			target = BigInteger.valueOf(mantissa >> (8 * (3 - exponent)));
+		} else {
+			target = BigInteger.valueOf(mantissa).shiftLeft(8 * (exponent - 3));
+		}
+		if (target.signum() == 0 || target.bitLength() > 256) {
+			return null;
+		}
+		return target;
+	}
+	
+	/**
+	 * Encodes a positive target into the compact format used in the bits field, rounding down
+	 * 
+	 * @param target
+	 * @return
+	 */
+	public static int encodeTarget(BigInteger target) {
+		int size = (target.bitLength() + 7) / 8;
+		int mantissa;
+		if (size <= 3) {
+			mantissa = target.intValue() << (8 * (3 - size));
+		} else {
+			mantissa = target.shiftRight(8 * (size - 3)).intValue();
+		}
+		if ((mantissa & 0x00800000) != 0) {
+			mantissa >>= 8;
+			size++;
+		}
+		return (size << 24) | mantissa;
+	}
+
+	@Override
+	public void put(int version, ByteBuffer buf) {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(this.version);
+		prevHash.put(version, buf);
+		merkleRoot.put(version, buf);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(timestamp);
+		buf.putInt(bits);
+		buf.putInt(nonce);
+		buf.order(ByteOrder.BIG_ENDIAN);
+	}
+
+	@Override
+	public int getLength(int version) {
+		return LENGTH;
+	}
+	
+	@Override
+	public String toString() {
+		return new StringGenerator()
+			.add("Hash", hash.toString())
+			.add("Previous", prevHash.toString())
+			.add("Time", getTime())
+			.add("Bits", bits, 16)
+			.done();
+	}
+
+}
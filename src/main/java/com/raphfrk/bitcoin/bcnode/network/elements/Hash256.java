@@ -0,0 +1,200 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.elements;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.raphfrk.bitcoin.bcnode.util.ParseUtils;
+
+/**
+ * An immutable 32 byte hash, such as a block or transaction hash.  The bytes are held in wire order, 
+ * packed into four longs, so hashes can be compared and used as keys without a byte array per hash.
+ */
+public final class Hash256 implements MessageElement<Hash256>, Comparable<Hash256> {
+	
+	public final static int LENGTH = 32;
+	
+	public final static Hash256 ZERO = new Hash256(0, 0, 0, 0);
+	
+	private final long w0;
+	private final long w1;
+	private final long w2;
+	private final long w3;
+	
+	public Hash256(long w0, long w1, long w2, long w3) {
+		this.w0 = w0;
+		this.w1 = w1;
+		this.w2 = w2;
+		this.w3 = w3;
+	}
+	
+	/**
+	 * Creates a hash from 32 bytes in wire order
+	 * 
+	 * @param hash
+	 */
+	public Hash256(byte[] hash) {
+		this(ByteBuffer.wrap(hash));
+	}
+	
+	/**
+	 * Reads a hash from the buffer
+	 * 
+	 * @param buf
+	 */
+	public Hash256(ByteBuffer buf) {
+		buf.order(ByteOrder.BIG_ENDIAN);
+		this.w0 = buf.getLong();
+		this.w1 = buf.getLong();
+		this.w2 = buf.getLong();
+		this.w3 = buf.getLong();
+	}
+	
+	/**
+	 * Reads a hash at an absolute position in the buffer, without changing the buffer's position
+	 * 
+	 * @param buf
+	 * @param index
+	 * @return
+	 */
+	public static Hash256 get(ByteBuffer buf, int index) {
+		buf.order(ByteOrder.BIG_ENDIAN);
+		return new Hash256(buf.getLong(index), buf.getLong(index + 8), buf.getLong(index + 16), buf.getLong(index + 24));
+	}
+	
+	/**
+	 * Parses a hash in the usual display format, which is byte reversed
+	 * 
+	 * @param hex
+	 * @return
+	 */
+	public static Hash256 fromString(String hex) {
+		byte[] bytes = ParseUtils.hexStringToBytes(hex);
+		if (bytes.length != LENGTH) {
+			throw new IllegalArgumentException("Hashes must be " + LENGTH + " bytes long");
+		}
+		reverse(bytes);
+		return new Hash256(bytes);
+	}
+	
+	public long getWord(int i) {
+		switch (i) {
+			case 0: return w0;
+			case 1: return w1;
+			case 2: return w2;
+			case 3: return w3;
+			default: throw new IndexOutOfBoundsException("Hash word index must be between 0 and 3");
+		}
+	}
+	
+	/**
+	 * Gets the 32 bytes of the hash in wire order
+	 * 
+	 * @return
+	 */
+	public byte[] getBytes() {
+		byte[] bytes = new byte[LENGTH];
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		put(0, buf);
+		return bytes;
+	}
+	
+	/**
+	 * Gets the hash as an unsigned integer.  The wire format is little endian.
+	 * 
+	 * @return
+	 */
+	public BigInteger toBigInteger() {
+		byte[] bytes = getBytes();
+		reverse(bytes);
+		return new BigInteger(1, bytes);
+	}
+	
+	@Override
+	public void put(int version, ByteBuffer buf) {
+		buf.order(ByteOrder.BIG_ENDIAN);
+		buf.putLong(w0);
+		buf.putLong(w1);
+		buf.putLong(w2);
+		buf.putLong(w3);
+	}
+
+	@Override
+	public int getLength(int version) {
+		return LENGTH;
+	}
+	
+	@Override
+	public int hashCode() {
+		return (int) (w0 ^ (w0 >>> 32));
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		} else if (!(o instanceof Hash256)) {
+			return false;
+		}
+		Hash256 other = (Hash256) o;
+		return w0 == other.w0 && w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+	}
+
+	@Override
+	public int compareTo(Hash256 o) {
+		int c = compareUnsigned(w0, o.w0);
+		if (c == 0) {
+			c = compareUnsigned(w1, o.w1);
+			if (c == 0) {
+				c = compareUnsigned(w2, o.w2);
+				if (c == 0) {
+					c = compareUnsigned(w3, o.w3);
+				}
+			}
+		}
+		return c;
+	}
+	
+	private static int compareUnsigned(long a, long b) {
+		return Long.compare(a + Long.MIN_VALUE, b + Long.MIN_VALUE);
+	}
+	
+	private static void reverse(byte[] bytes) {
+		for (int i = 0, j = bytes.length - 1; i < j; i++, j--) {
+			byte t = bytes[i];
+			bytes[i] = bytes[j];
+			bytes[j] = t;
+		}
+	}
+	
+	@Override
+	public String toString() {
+		byte[] bytes = getBytes();
+		reverse(bytes);
+		return ParseUtils.bytesToHexString(bytes);
+	}
+
+}
@@ -0,0 +1,126 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.elements;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.raphfrk.bitcoin.bcnode.util.StringGenerator;
+
+/**
+ * An inventory vector, which identifies an object such as a transaction or block by type and hash
+ */
+public final class InventoryVector implements MessageElement<InventoryVector> {
+	
+	public final static int LENGTH = 4 + Hash256.LENGTH;
+	
+	public final static int ERROR = 0;
+	public final static int MSG_TX = 1;
+	public final static int MSG_BLOCK = 2;
+	/**
+	 * The flag which requests an object with its witness data
+	 */
+	public final static int MSG_WITNESS_FLAG = 1 << 30;
+	public final static int MSG_WITNESS_TX = MSG_TX | MSG_WITNESS_FLAG;
+	public final static int MSG_WITNESS_BLOCK = MSG_BLOCK | MSG_WITNESS_FLAG;
+	
+	private final int type;
+	private final Hash256 hash;
+	
+	public InventoryVector(int type, Hash256 hash) {
+		this.type = type;
+		this.hash = hash;
+	}
+	
+	public InventoryVector(int version, ByteBuffer buf) {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		this.type = buf.getInt();
+		buf.order(ByteOrder.BIG_ENDIAN);
+		this.hash = new Hash256(buf);
+	}
+	
+	public int getType() {
+		return type;
+	}
+	
+	/**
+	 * Gets the type without the witness flag
+	 * 
+	 * @return
+	 */
+	public int getBaseType() {
+		return type & ~MSG_WITNESS_FLAG;
+	}
+	
+	public Hash256 getHash() {
+		return hash;
+	}
+
+	@Override
+	public void put(int version, ByteBuffer buf) {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(type);
+		buf.order(ByteOrder.BIG_ENDIAN);
+		hash.put(version, buf);
+	}
+
+	@Override
+	public int getLength(int version) {
+		return LENGTH;
+	}
+	
+	@Override
+	public int hashCode() {
+		return hash.hashCode() + type;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof InventoryVector)) {
+			return false;
+		}
+		InventoryVector other = (InventoryVector) o;
+		return type == other.type && hash.equals(other.hash);
+	}
+	
+	public static String getTypeName(int type) {
+		switch (type) {
+			case ERROR: return "error";
+			case MSG_TX: return "tx";
+			case MSG_BLOCK: return "block";
+			case MSG_WITNESS_TX: return "witness_tx";
+			case MSG_WITNESS_BLOCK: return "witness_block";
+			default: return "unknown(" + type + ")";
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return new StringGenerator(true)
+			.add("Type", getTypeName(type))
+			.add("Hash", hash.toString())
+			.done();
+	}
+
+}
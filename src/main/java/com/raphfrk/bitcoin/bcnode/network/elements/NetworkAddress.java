@@ -26,12 +26,10 @@ package com.raphfrk.bitcoin.bcnode.network.elements;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
-import com.raphfrk.bitcoin.bcnode.util.ComparableByteArray;
-import com.raphfrk.bitcoin.bcnode.util.ParseUtils;
+import com.raphfrk.bitcoin.bcnode.network.address.AddressKey;
 import com.raphfrk.bitcoin.bcnode.util.StringGenerator;
 
 public class NetworkAddress implements MessageElement<NetworkAddress>, Comparable<NetworkAddress> {
@@ -39,16 +37,12 @@ public class NetworkAddress implements MessageElement<NetworkAddress>, Comparabl
 	private final boolean versionMessage;
 	private final int timestamp;
 	private final long services;
-	private final byte[] addr;
-	private final int port;
-	private final int hash;
+	private final AddressKey key;
 	
 	public NetworkAddress(NetworkAddress addr, int newTimestamp) {
 		this.versionMessage = addr.versionMessage;
 		this.services = addr.services;
-		this.addr = addr.addr;
-		this.port = addr.port;
-		this.hash = addr.hash;
+		this.key = addr.key;
 		
 		this.timestamp = newTimestamp;
 	}
@@ -64,13 +58,22 @@ public class NetworkAddress implements MessageElement<NetworkAddress>, Comparabl
 		this(false, timestamp, services, address);
 	}
 	
+	public NetworkAddress(boolean versionMessage, long services, AddressKey key) {
+		this(true, 0, services, key);
+		if (!versionMessage) {
+			throw new IllegalArgumentException("A timestamp must be provided except for version messages");
+		}
+	}
+	
 	private NetworkAddress(boolean versionMessage, int timestamp, long services, InetSocketAddress address) {
+		this(versionMessage, timestamp, services, address == null ? new AddressKey(AddressKey.addrToBytes(null), 0) : AddressKey.get(address));
+	}
+	
+	private NetworkAddress(boolean versionMessage, int timestamp, long services, AddressKey key) {
 		this.versionMessage = versionMessage;
 		this.timestamp = timestamp;
 		this.services = services;
-		this.addr = addrToBytes(address);
-		this.port = address == null ? 0 : address.getPort();
-		this.hash = hashCodeRaw();
+		this.key = key;
 	}
 	
 	public NetworkAddress(int version, ByteBuffer buf) throws IOException {
@@ -85,32 +88,33 @@ public class NetworkAddress implements MessageElement<NetworkAddress>, Comparabl
 			timestamp = 0;
 		}
 		services = buf.getLong();
-		buf.order(ByteOrder.BIG_ENDIAN);
-		addr = new byte[16];
-		buf.get(addr);
-		port = buf.getShort() & 0xFFFF;
+		key = AddressKey.get(buf);
 		this.versionMessage = versionMessage;
-		this.hash = hashCodeRaw();
 	}
 	
 	public int getTimestamp() {
 		return timestamp;
 	}
 	
+	/**
+	 * Gets the compact key for the address and port of this network address
+	 * 
+	 * @return
+	 */
+	public AddressKey getKey() {
+		return key;
+	}
+	
 	public InetSocketAddress getInetSocketAddress() {
-		return new InetSocketAddress(getInetAddress(), getPort());
+		return key.getInetSocketAddress();
 	}
 	
 	public InetAddress getInetAddress() {
-		try {
-			return InetAddress.getByAddress(addr);
-		} catch (UnknownHostException e) {
-			throw new IllegalStateException("The address must always be 16 bytes long, " + addr.length);
-		}
+		return key.getInetAddress();
 	}
 	
 	public int getPort() {
-		return port;
+		return key.getPort();
 	}
 
 	@Override
@@ -120,9 +124,7 @@ public class NetworkAddress implements MessageElement<NetworkAddress>, Comparabl
 			buf.putInt(timestamp);
 		}
 		buf.putLong(services);
-		buf.order(ByteOrder.BIG_ENDIAN);
-		buf.put(addr);
-		buf.putShort((short) port);
+		key.put(buf);
 	}
 
 	@Override
@@ -131,60 +133,7 @@ public class NetworkAddress implements MessageElement<NetworkAddress>, Comparabl
 	}
 	
 	public static byte[] addrToBytes(InetSocketAddress socketAddr) {
-		byte[] bytes = new byte[16];
-		bytes[10] = (byte) 0xFF;
-		bytes[11] = (byte) 0xFF;
-		
-		if (socketAddr == null) {
-			return bytes;
-		}
-		InetAddress inetAddr = socketAddr.getAddress();
-		if (inetAddr == null) {
-			return bytes;
-		}
-		byte[] inetBytes = inetAddr.getAddress();
-		if (inetBytes.length == 4) {
-			bytes[10] = (byte) 0xFF;
-			bytes[11] = (byte) 0xFF;
-			bytes[12] = (byte) inetBytes[0];
-			bytes[13] = (byte) inetBytes[1];
-			bytes[14] = (byte) inetBytes[2];
-			bytes[15] = (byte) inetBytes[3];
-		} else if (inetBytes.length == 16) {
-			return inetBytes;
-		}
-		return bytes;
-	}
-	
-	private String getNetworkAddress() {
-		if (!isIP4Address()) {
-			return ParseUtils.bytesToHexString(addr);
-		}
-		byte arr[] = new byte[4];
-		for (int i = 12; i < 16; i++) {
-			arr[i - 12] = addr[i];
-		}
-		return ParseUtils.bytesToDotDecimal(arr);
-	}
-	
-	private boolean isIP4Address() {
-		for (int i = 0; i < 10; i++) {
-			if (addr[i] != 0) {
-				return false;
-			}
-		}
-		for (int i = 10; i < 12; i++) {
-			if (addr[i] != -1) {
-				return false;
-			}
-		}
-		return true;
-	}
-	
-	private int hashCodeRaw() {
-		int h = ComparableByteArray.hash(addr);
-		h += (h << 5) + port;
-		return h;
+		return AddressKey.addrToBytes(socketAddr == null ? null : socketAddr.getAddress());
 	}
 	
 	public String toString() {
@@ -192,14 +141,14 @@ public class NetworkAddress implements MessageElement<NetworkAddress>, Comparabl
 			.add("VersionMessage", versionMessage)
 			.add("Timestamp", timestamp)
 			.add("Services", services)
-			.add("Address", getNetworkAddress())
-			.add("Port", port)
+			.add("Address", key.getAddressString())
+			.add("Port", key.getPort())
 			.done();
 	}
 	
 	@Override
 	public int hashCode() {
-		return hash;
+		return key.hashCode();
 	}
 	
 	@Override
@@ -209,26 +158,13 @@ public class NetworkAddress implements MessageElement<NetworkAddress>, Comparabl
 		} if (!(o instanceof NetworkAddress)) {
 			return false;
 		} else {
-			NetworkAddress other = ((NetworkAddress) o);
-			if (hash != other.hash) {
-				return false;
-			}
-			if (port != other.port) {
-				return false;
-			}
-			return ComparableByteArray.compareArrays(addr, other.addr) == 0;
+			return key.equals(((NetworkAddress) o).key);
 		}
 	}
 
 	@Override
 	public int compareTo(NetworkAddress o) {
-		if (hash != o.hash) {
-			return hash - o.hash;
-		}
-		if (port != o.port) {
-			return port - o.port;
-		}
-		return ComparableByteArray.compareArrays(addr, o.addr);
+		return key.compareTo(o.key);
 	}
 
 }
@@ -0,0 +1,104 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.elements;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A reference to a transaction output, by transaction hash and output index<br>
+ * <br>
+ * hash, int index
+ */
+public final class OutPoint implements MessageElement<OutPoint> {
+	
+	public final static int LENGTH = Hash256.LENGTH + 4;
+	
+	private final Hash256 hash;
+	private final int index;
+	
+	public OutPoint(Hash256 hash, int index) {
+		this.hash = hash;
+		this.index = index;
+	}
+	
+	public OutPoint(int version, ByteBuffer buf) {
+		this.hash = new Hash256(buf);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		this.index = buf.getInt();
+		buf.order(ByteOrder.BIG_ENDIAN);
+	}
+	
+	/**
+	 * Gets the outpoint spent by an input of a transaction
+	 * 
+	 * @param tx
+	 * @param input
+	 * @return
+	 */
+	public static OutPoint getInput(Transaction tx, int input) {
+		return new OutPoint(tx.getInputHash(input), tx.getInputIndex(input));
+	}
+	
+	public Hash256 getHash() {
+		return hash;
+	}
+	
+	public int getIndex() {
+		return index;
+	}
+
+	@Override
+	public void put(int version, ByteBuffer buf) {
+		hash.put(version, buf);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(index);
+		buf.order(ByteOrder.BIG_ENDIAN);
+	}
+
+	@Override
+	public int getLength(int version) {
+		return LENGTH;
+	}
+	
+	@Override
+	public int hashCode() {
+		return hash.hashCode() * 31 + index;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof OutPoint)) {
+			return false;
+		}
+		OutPoint other = (OutPoint) o;
+		return index == other.index && hash.equals(other.hash);
+	}
+	
+	@Override
+	public String toString() {
+		return hash + ":" + (index & 0xFFFFFFFFL);
+	}
+
+}
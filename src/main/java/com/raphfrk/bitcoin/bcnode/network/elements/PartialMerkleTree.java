@@ -0,0 +1,200 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.elements;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import com.raphfrk.bitcoin.bcnode.util.DigestUtils;
+import com.raphfrk.bitcoin.bcnode.util.StringGenerator;
+
+/**
+ * A merkle tree pruned down to the branches of a set of matched transactions, as sent in merkleblock 
+ * messages (BIP 37).<br>
+ * <br>
+ * The tree is walked depth first from the root.  Each node visited has a flag bit, which is set if a matched 
+ * transaction is below it.  The children of nodes with a set bit are visited, and the hash of every other 
+ * node, and of every leaf, is included.<br>
+ * <br>
+ * int transaction count, var int hash count, hashes, var int flag byte count, flags (least significant bit first)
+ */
+public final class PartialMerkleTree implements MessageElement<PartialMerkleTree> {
+	
+	/**
+	 * The largest number of transactions which fits in a block
+	 */
+	public final static int MAX_TRANSACTIONS = 4000000 / (4 * Transaction.MIN_LENGTH);
+	
+	private final int transactions;
+	private final Hash256[] hashes;
+	private final byte[] flags;
+	
+	/**
+	 * Creates a partial tree, see MerkleTree.getPartialTree
+	 * 
+	 * @param transactions the number of transactions in the block
+	 * @param hashes
+	 * @param flags
+	 */
+	public PartialMerkleTree(int transactions, Hash256[] hashes, byte[] flags) {
+		this.transactions = transactions;
+		this.hashes = hashes;
+		this.flags = flags;
+	}
+	
+	public PartialMerkleTree(int version, ByteBuffer buf) throws IOException {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		this.transactions = buf.getInt();
+		buf.order(ByteOrder.BIG_ENDIAN);
+		long hashCount = VarInt.get(version, buf);
+		if (hashCount > buf.remaining() / Hash256.LENGTH) {
+			throw new IOException("Hash count " + hashCount + " exceeds message length");
+		}
+		this.hashes = new Hash256[(int) hashCount];
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = new Hash256(buf);
+		}
+		long flagCount = VarInt.get(version, buf);
+		if (flagCount > buf.remaining()) {
+			throw new IOException("Flag byte count " + flagCount + " exceeds message length");
+		}
+		this.flags = new byte[(int) flagCount];
+		buf.get(flags);
+	}
+	
+	/**
+	 * Gets the number of transactions in the block
+	 * 
+	 * @return
+	 */
+	public int getTransactionCount() {
+		return transactions;
+	}
+	
+	public int getHashCount() {
+		return hashes.length;
+	}
+	
+	/**
+	 * Recomputes the merkle root and finds the matched transactions.  The root should be checked against the 
+	 * block header.
+	 * 
+	 * @param matches the list to add the matched transaction hashes to
+	 * @param indexes the list to add the positions of the matched transactions to
+	 * @return the merkle root, or null if the tree is malformed
+	 */
+	public Hash256 extract(List<Hash256> matches, List<Integer> indexes) {
+		if (transactions <= 0 || transactions > MAX_TRANSACTIONS) {
+			return null;
+		}
+		if (hashes.length > transactions || (flags.length << 3) < hashes.length) {
+			return null;
+		}
+		int height = 0;
+		while (getWidth(height) > 1) {
+			height++;
+		}
+		int[] used = new int[2];
+		Hash256 root = extract(height, 0, used, new byte[64], matches, indexes);
+		if (root == null || ((used[0] + 7) >> 3) != flags.length || used[1] != hashes.length) {
+			return null;
+		}
+		return root;
+	}
+	
+	private Hash256 extract(int height, int position, int[] used, byte[] pair, List<Hash256> matches, List<Integer> indexes) {
+		if (used[0] >= flags.length << 3) {
+			return null;
+		}
+		boolean parentOfMatch = getFlag(used[0]++);
+		if (height == 0 || !parentOfMatch) {
+			if (used[1] >= hashes.length) {
+				return null;
+			}
+			Hash256 hash = hashes[used[1]++];
+			if (height == 0 && parentOfMatch) {
+				matches.add(hash);
+				indexes.add(position);
+			}
+			return hash;
+		}
+		Hash256 left = extract(height - 1, position << 1, used, pair, matches, indexes);
+		if (left == null) {
+			return null;
+		}
+		Hash256 right;
+		if ((position << 1) + 1 < getWidth(height - 1)) {
+			right = extract(height - 1, (position << 1) + 1, used, pair, matches, indexes);
+			if (right == null || right.equals(left)) {
+				return null;
+			}
+		} else {
+			right = left;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(pair);
+		left.put(0, buf);
+		right.put(0, buf);
+		DigestUtils.doubleSHA256(pair, 0, 64, pair, 0);
+		return Hash256.get(buf, 0);
+	}
+	
+	private int getWidth(int height) {
+		return (int) ((transactions + (1L << height) - 1) >> height);
+	}
+	
+	private boolean getFlag(int bit) {
+		return (flags[bit >> 3] & (1 << (bit & 7))) != 0;
+	}
+
+	@Override
+	public void put(int version, ByteBuffer buf) {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(transactions);
+		buf.order(ByteOrder.BIG_ENDIAN);
+		VarInt.put(version, buf, hashes.length);
+		for (Hash256 hash : hashes) {
+			hash.put(version, buf);
+		}
+		VarInt.put(version, buf, flags.length);
+		buf.put(flags);
+	}
+
+	@Override
+	public int getLength(int version) {
+		return 4 + VarInt.getLength(version, hashes.length) + hashes.length * Hash256.LENGTH + 
+				VarInt.getLength(version, flags.length) + flags.length;
+	}
+	
+	@Override
+	public String toString() {
+		return new StringGenerator(true)
+			.add("Transactions", transactions)
+			.add("Hashes", hashes.length)
+			.add("Flag bytes", flags.length)
+			.done();
+	}
+
+}
@@ -0,0 +1,464 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.elements;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.raphfrk.bitcoin.bcnode.util.DigestUtils;
+import com.raphfrk.bitcoin.bcnode.util.StringGenerator;
+
+/**
+ * A transaction, held as its serialized bytes.<br>
+ * <br>
+ * Decoding only walks the transaction to find where it ends, so a transaction can be forwarded without 
+ * creating an object for each input and output.  The offsets of the inputs, outputs and witnesses are 
+ * recorded in a small index the first time a field is accessed, and fields are read directly from the 
+ * serialized bytes.  Both the legacy and the segregated witness serializations are supported.<br>
+ * <br>
+ * Input: 32 byte previous transaction hash, int previous output index, var int script length, script, 
+ * int sequence<br>
+ * Output: long value, var int script length, script
+ */
+public final class Transaction implements MessageElement<Transaction> {
+	
+	/**
+	 * The size of an input with an empty script
+	 */
+	public final static int MIN_INPUT_LENGTH = 41;
+	/**
+	 * The size of an output with an empty script
+	 */
+	public final static int MIN_OUTPUT_LENGTH = 9;
+	/**
+	 * The size of a transaction with one input and one output, both with empty scripts
+	 */
+	public final static int MIN_LENGTH = 10 + MIN_INPUT_LENGTH + MIN_OUTPUT_LENGTH;
+	
+	private final ByteBuffer data;
+	private final ByteBuffer le;
+	private final boolean witness;
+	private volatile Index index;
+	private volatile Hash256 hash;
+	
+	/**
+	 * Reads a transaction from a buffer.  The transaction keeps a slice of the buffer, so the buffer contents 
+	 * must not be changed afterwards.
+	 * 
+	 * @param version
+	 * @param buf
+	 * @throws IOException if the buffer does not start with a complete transaction
+	 */
+	public Transaction(int version, ByteBuffer buf) throws IOException {
+		int start = buf.position();
+		int length = walk(buf, start, buf.limit(), null);
+		ByteBuffer data = buf.duplicate();
+		data.limit(start + length);
+		data.position(start);
+		this.data = data.slice();
+		this.le = this.data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		this.witness = isWitness(this.data, 0);
+		buf.position(start + length);
+	}
+	
+	/**
+	 * Gets the length of the transaction which starts at an index
+	 * 
+	 * @param buf
+	 * @param index
+	 * @return
+	 * @throws IOException if the buffer does not contain a complete transaction at the index
+	 */
+	public static int getLength(ByteBuffer buf, int index) throws IOException {
+		return walk(buf, index, buf.limit(), null);
+	}
+	
+	public int getVersion() {
+		return le.getInt(0);
+	}
+	
+	/**
+	 * Checks if the transaction was serialized with witness data
+	 * 
+	 * @return
+	 */
+	public boolean hasWitness() {
+		return witness;
+	}
+	
+	public int getInputCount() {
+		return getIndex().inputs.length;
+	}
+	
+	public int getOutputCount() {
+		return getIndex().outputs.length;
+	}
+	
+	/**
+	 * Gets the hash of the transaction which created the output spent by an input
+	 * 
+	 * @param i
+	 * @return
+	 */
+	public Hash256 getInputHash(int i) {
+		return Hash256.get(data.duplicate(), getIndex().inputs[i]);
+	}
+	
+	/**
+	 * Gets the index of the output spent by an input
+	 * 
+	 * @param i
+	 * @return
+	 */
+	public int getInputIndex(int i) {
+		return le.getInt(getIndex().inputs[i] + 32);
+	}
+	
+	/**
+	 * Gets the signature script of an input
+	 * 
+	 * @param i
+	 * @return a slice of the transaction
+	 */
+	public ByteBuffer getInputScript(int i) {
+		return getScript(getIndex().inputs[i] + 36);
+	}
+	
+	public int getInputSequence(int i) {
+		int position = getIndex().inputs[i] + 36;
+		return le.getInt(position + VarInt.getLength(data, position) + (int) VarInt.get(data, position));
+	}
+	
+	/**
+	 * Gets the value of an output in satoshis
+	 * 
+	 * @param i
+	 * @return
+	 */
+	public long getOutputValue(int i) {
+		return le.getLong(getIndex().outputs[i]);
+	}
+	
+	/**
+	 * Gets the public key script of an output
+	 * 
+	 * @param i
+	 * @return a slice of the transaction
+	 */
+	public ByteBuffer getOutputScript(int i) {
+		return getScript(getIndex().outputs[i] + 8);
+	}
+	
+	/**
+	 * Gets the number of witness stack items for an input
+	 * 
+	 * @param i
+	 * @return
+	 */
+	public int getWitnessCount(int i) {
+		if (!witness) {
+			return 0;
+		}
+		return (int) VarInt.get(data, getIndex().witnesses[i]);
+	}
+	
+	/**
+	 * Gets a witness stack item for an input
+	 * 
+	 * @param i the input
+	 * @param j the stack item
+	 * @return a slice of the transaction
+	 */
+	public ByteBuffer getWitness(int i, int j) {
+		if (j < 0 || j >= getWitnessCount(i)) {
+			throw new IndexOutOfBoundsException("Witness item " + j + " does not exist for input " + i);
+		}
+		int position = getIndex().witnesses[i];
+		position += VarInt.getLength(data, position);
+		for (int k = 0; k < j; k++) {
+			position += VarInt.getLength(data, position) + (int) VarInt.get(data, position);
+		}
+		return getScript(position);
+	}
+	
+	public int getLockTime() {
+		return le.getInt(data.limit() - 4);
+	}
+	
+	/**
+	 * Gets the transaction id, which is the hash of the transaction without witness data
+	 * 
+	 * @return
+	 */
+	public Hash256 getHash() {
+		Hash256 hash = this.hash;
+		if (hash == null) {
+			if (witness) {
+				Index index = getIndex();
+				hash = new Hash256(DigestUtils.doubleSHA256(new ByteBuffer[] {
+						slice(0, 4), 
+						slice(6, index.witnessStart - 6), 
+						slice(data.limit() - 4, 4)}));
+			} else {
+				hash = new Hash256(DigestUtils.doubleSHA256(data, 0, data.limit()));
+			}
+			this.hash = hash;
+		}
+		return hash;
+	}
+	
+	/**
+	 * Gets the hash of the transaction including witness data
+	 * 
+	 * @return
+	 */
+	public Hash256 getWitnessHash() {
+		if (!witness) {
+			return getHash();
+		}
+		return new Hash256(DigestUtils.doubleSHA256(data, 0, data.limit()));
+	}
+	
+	/**
+	 * Gets the serialized transaction
+	 * 
+	 * @return
+	 */
+	public ByteBuffer getData() {
+		return data.duplicate();
+	}
+	
+	/**
+	 * Gets the length of the transaction when it is serialized without witness data
+	 * 
+	 * @return
+	 */
+	public int getLengthWithoutWitness() {
+		return witness ? getIndex().witnessStart + 2 : data.limit();
+	}
+	
+	/**
+	 * Writes the transaction without witness data, for peers which did not request it
+	 * 
+	 * @param buf
+	 */
+	public void putWithoutWitness(ByteBuffer buf) {
+		if (!witness) {
+			buf.put(data.duplicate());
+			return;
+		}
+		buf.put(slice(0, 4));
+		buf.put(slice(6, getIndex().witnessStart - 6));
+		buf.put(slice(data.limit() - 4, 4));
+	}
+	
+	/**
+	 * Gets the transaction without witness data
+	 * 
+	 * @return the transaction, or a copy without witness data if it has witnesses
+	 */
+	public Transaction withoutWitness() {
+		if (!witness) {
+			return this;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(getLengthWithoutWitness());
+		putWithoutWitness(buf);
+		buf.flip();
+		try {
+			return new Transaction(0, buf);
+		} catch (IOException e) {
+			throw new IllegalStateException("Transaction was checked when it was decoded", e);
+		}
+	}
+	
+	/**
+	 * Gets the virtual size of the transaction, which counts witness data at a quarter of its length
+	 * 
+	 * @return
+	 */
+	public int getVirtualSize() {
+		if (!witness) {
+			return data.limit();
+		}
+		int stripped = getLengthWithoutWitness();
+		return (stripped * 3 + data.limit() + 3) / 4;
+	}
+
+	@Override
+	public void put(int version, ByteBuffer buf) {
+		buf.put(data.duplicate());
+	}
+
+	@Override
+	public int getLength(int version) {
+		return data.limit();
+	}
+	
+	private ByteBuffer getScript(int position) {
+		return slice(position + VarInt.getLength(data, position), (int) VarInt.get(data, position));
+	}
+	
+	private ByteBuffer slice(int position, int length) {
+		ByteBuffer buf = data.duplicate();
+		buf.limit(position + length);
+		buf.position(position);
+		return buf.slice();
+	}
+	
+	private Index getIndex() {
+		Index index = this.index;
+		if (index == null) {
+			index = new Index();
+			try {
+				walk(data, 0, data.limit(), index);
+			} catch (IOException e) {
+				throw new IllegalStateException("Transaction was checked when it was decoded", e);
+			}
+			this.index = index;
+		}
+		return index;
+	}
+	
+	private static boolean isWitness(ByteBuffer buf, int start) {
+		return buf.get(start + 4) == 0;
+	}
+	
+	/**
+	 * Walks a serialized transaction, checking that each field is within the limit
+	 * 
+	 * @param buf
+	 * @param start the index of the start of the transaction
+	 * @param limit
+	 * @param index the index to fill in, or null
+	 * @return the length of the transaction
+	 * @throws IOException
+	 */
+	private static int walk(ByteBuffer buf, int start, int limit, Index index) throws IOException {
+		int position = start;
+		check(position, 5, limit);
+		position += 4;
+		boolean witness = isWitness(buf, start);
+		if (witness) {
+			check(position, 2, limit);
+			if (buf.get(position + 1) != 1) {
+				throw new IOException("Unknown transaction serialization flag " + buf.get(position + 1));
+			}
+			position += 2;
+		}
+		
+		int inputs = getCount(buf, position, limit, MIN_INPUT_LENGTH);
+		position += VarInt.getLength(buf, position);
+		if (index != null) {
+			index.inputs = new int[inputs];
+		}
+		for (int i = 0; i < inputs; i++) {
+			if (index != null) {
+				index.inputs[i] = position - start;
+			}
+			check(position, 36, limit);
+			position = skipScript(buf, position + 36, limit);
+			check(position, 4, limit);
+			position += 4;
+		}
+		
+		int outputs = getCount(buf, position, limit, MIN_OUTPUT_LENGTH);
+		position += VarInt.getLength(buf, position);
+		if (index != null) {
+			index.outputs = new int[outputs];
+		}
+		for (int i = 0; i < outputs; i++) {
+			if (index != null) {
+				index.outputs[i] = position - start;
+			}
+			check(position, 8, limit);
+			position = skipScript(buf, position + 8, limit);
+		}
+		
+		if (witness) {
+			if (index != null) {
+				index.witnessStart = position - start;
+				index.witnesses = new int[inputs];
+			}
+			for (int i = 0; i < inputs; i++) {
+				if (index != null) {
+					index.witnesses[i] = position - start;
+				}
+				int items = getCount(buf, position, limit, 1);
+				position += VarInt.getLength(buf, position);
+				for (int j = 0; j < items; j++) {
+					position = skipScript(buf, position, limit);
+				}
+			}
+		}
+		
+		check(position, 4, limit);
+		return position + 4 - start;
+	}
+	
+	private static int getCount(ByteBuffer buf, int position, int limit, int minLength) throws IOException {
+		check(position, 1, limit);
+		check(position, VarInt.getLength(buf, position), limit);
+		long count = VarInt.get(buf, position);
+		if (count < 0 || count > (limit - position) / minLength) {
+			throw new IOException("Transaction element count " + count + " exceeds the message length");
+		}
+		return (int) count;
+	}
+	
+	private static int skipScript(ByteBuffer buf, int position, int limit) throws IOException {
+		check(position, 1, limit);
+		int lengthSize = VarInt.getLength(buf, position);
+		check(position, lengthSize, limit);
+		long length = VarInt.get(buf, position);
+		if (length < 0 || length > limit - position - lengthSize) {
+			throw new IOException("Transaction script length " + length + " exceeds the message length");
+		}
+		return position + lengthSize + (int) length;
+	}
+	
+	private static void check(int position, int length, int limit) throws IOException {
+		if (position + length > limit) {
+			throw new IOException("Transaction is truncated");
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return new StringGenerator(true)
+			.add("Hash", getHash().toString())
+			.add("Inputs", getInputCount())
+			.add("Outputs", getOutputCount())
+			.add("Size", data.limit())
+			.done();
+	}
+	
+	private static class Index {
+		private int[] inputs;
+		private int[] outputs;
+		private int[] witnesses;
+		private int witnessStart;
+	}
+
+}
@@ -93,6 +93,41 @@ public class VarInt implements MessageElement<VarInt> {
 		return value;
 	}
 	
+	/**
+	 * Reads a var int at an index, without changing the position or byte order of the buffer
+	 * 
+	 * @param buf
+	 * @param index
+	 * @return
+	 */
+	public static long get(ByteBuffer buf, int index) {
+		int length = getLength(buf, index);
+		if (length == 1) {
+			return buf.get(index) & 0xFFL;
+		}
+		long value = 0;
+		for (int i = length - 1; i > 0; i--) {
+			value = (value << 8) | (buf.get(index + i) & 0xFFL);
+		}
+		return value;
+	}
+	
+	/**
+	 * Gets the encoded length of the var int at an index
+	 * 
+	 * @param buf
+	 * @param index
+	 * @return
+	 */
+	public static int getLength(ByteBuffer buf, int index) {
+		switch (buf.get(index)) {
+			case (byte) 0xff: return 9;
+			case (byte) 0xfe: return 5;
+			case (byte) 0xfd: return 3;
+			default: return 1;
+		}
+	}
+	
 	public static void put(int version, ByteBuffer buf, long value) {
 		buf.order(ByteOrder.LITTLE_ENDIAN);
 		if ((value >>> 32) != 0) {
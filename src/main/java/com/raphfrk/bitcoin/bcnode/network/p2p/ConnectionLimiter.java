@@ -0,0 +1,166 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.p2p;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.raphfrk.bitcoin.bcnode.config.Config;
+import com.raphfrk.bitcoin.bcnode.network.address.AddressKey;
+
+/**
+ * Counts inbound connections, outbound connections and connections per network group, and enforces 
+ * the inbound and per group limits.  Acquiring and releasing a connection is O(1).<br>
+ * <br>
+ * Local addresses are not counted against their group, since they all share a small number of groups.
+ */
+public class ConnectionLimiter {
+	
+	/**
+	 * Marks a group counter which has been removed from the map
+	 */
+	private final static int DEAD = -1;
+	
+	private final AtomicInteger inbound = new AtomicInteger();
+	private final AtomicInteger outbound = new AtomicInteger();
+	private final ConcurrentHashMap<Long, AtomicInteger> groups = new ConcurrentHashMap<Long, AtomicInteger>();
+	
+	public enum Result {
+		ACQUIRED, INBOUND_FULL, GROUP_FULL;
+	}
+	
+	/**
+	 * Attempts to reserve a connection for the given address
+	 * 
+	 * @param addr
+	 * @param inbound
+	 * @param ignoreInboundLimit true to reserve an inbound connection even if the inbound limit has been reached
+	 * @return the result
+	 */
+	public Result acquire(AddressKey addr, boolean inbound, boolean ignoreInboundLimit) {
+		if (!acquireGroup(addr)) {
+			return Result.GROUP_FULL;
+		}
+		if (inbound) {
+			if (ignoreInboundLimit) {
+				this.inbound.incrementAndGet();
+			} else if (!incrementBelow(this.inbound, Config.MAX_INBOUND.get())) {
+				releaseGroup(addr);
+				return Result.INBOUND_FULL;
+			}
+		} else {
+			outbound.incrementAndGet();
+		}
+		return Result.ACQUIRED;
+	}
+	
+	/**
+	 * Releases a connection reserved by acquire
+	 * 
+	 * @param addr
+	 * @param inbound
+	 */
+	public void release(AddressKey addr, boolean inbound) {
+		if (inbound) {
+			this.inbound.decrementAndGet();
+		} else {
+			outbound.decrementAndGet();
+		}
+		releaseGroup(addr);
+	}
+	
+	public int getInbound() {
+		return inbound.get();
+	}
+	
+	public int getOutbound() {
+		return outbound.get();
+	}
+	
+	/**
+	 * Gets the number of connections to the given address's network group
+	 * 
+	 * @param addr
+	 * @return
+	 */
+	public int getGroupCount(AddressKey addr) {
+		AtomicInteger counter = groups.get(addr.getGroup());
+		return counter == null ? 0 : Math.max(0, counter.get());
+	}
+	
+	private boolean acquireGroup(AddressKey addr) {
+		if (addr.isLocal()) {
+			return true;
+		}
+		Long group = addr.getGroup();
+		int max = Config.MAX_CONNECTIONS_PER_GROUP.get();
+		if (max <= 0) {
+			return false;
+		}
+		while (true) {
+			AtomicInteger counter = groups.get(group);
+			if (counter == null) {
+				counter = new AtomicInteger(1);
+				if (groups.putIfAbsent(group, counter) == null) {
+					return true;
+				}
+				continue;
+			}
+			int count = counter.get();
+			if (count == DEAD) {
+				continue;
+			}
+			if (count >= max) {
+				return false;
+			}
+			if (counter.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+	
+	private void releaseGroup(AddressKey addr) {
+		if (addr.isLocal()) {
+			return;
+		}
+		Long group = addr.getGroup();
+		AtomicInteger counter = groups.get(group);
+		if (counter != null && counter.decrementAndGet() == 0 && counter.compareAndSet(0, DEAD)) {
+			groups.remove(group, counter);
+		}
+	}
+	
+	private static boolean incrementBelow(AtomicInteger counter, int max) {
+		while (true) {
+			int count = counter.get();
+			if (count >= max) {
+				return false;
+			}
+			if (counter.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,276 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.p2p;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+import com.raphfrk.bitcoin.bcnode.config.Config;
+import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.log.LogSubsystem;
+import com.raphfrk.bitcoin.bcnode.network.address.AddressKey;
+import com.raphfrk.bitcoin.bcnode.network.p2p.Peer.CloseReason;
+
+/**
+ * Fills outbound connection slots by racing several candidate connections per slot.  The first 
+ * candidate to complete its handshake wins the slot and the other candidates are disconnected.<br>
+ * <br>
+ * The number of candidates per slot adapts to the observed failure rate, so a single connect is 
+ * made per slot when most connects succeed and up to the configured fan out when they don't.
+ */
+public class ConnectionScheduler {
+	
+	private final static double FAILURE_RATE_WEIGHT = 0.1;
+	
+	private final P2PManager manager;
+	private final ConcurrentHashMap<Long, Race> races = new ConcurrentHashMap<Long, Race>();
+	private final AtomicInteger slotsInUse = new AtomicInteger(0);
+	/**
+	 * Set while a thread is starting connections, so address notifications caused by the connects don't 
+	 * start more races from inside the dial
+	 */
+	private final ThreadLocal<Boolean> dialing = new ThreadLocal<Boolean>();
+	private double failureRate = 0.5;
+	
+	public ConnectionScheduler(P2PManager manager) {
+		this.manager = manager;
+	}
+	
+	/**
+	 * Gets the number of outbound slots which either hold a connected peer or are being raced for.  
+	 * Explicit connects don't use a slot.
+	 * 
+	 * @return
+	 */
+	public int getSlotsInUse() {
+		return slotsInUse.get();
+	}
+	
+	/**
+	 * Gets the number of candidates to race for each slot
+	 * 
+	 * @return
+	 */
+	public synchronized int getFanOut() {
+		int maxFanOut = Math.max(1, Config.CONNECT_FAN_OUT.get());
+		return 1 + (int) Math.round(failureRate * (maxFanOut - 1));
+	}
+	
+	/**
+	 * Gets the smoothed fraction of connect attempts which failed before completing the handshake
+	 * 
+	 * @return
+	 */
+	public synchronized double getFailureRate() {
+		return failureRate;
+	}
+	
+	private synchronized void recordOutcome(boolean failure) {
+		failureRate += ((failure ? 1.0 : 0.0) - failureRate) * FAILURE_RATE_WEIGHT;
+	}
+	
+	/**
+	 * Starts races for up to the given number of slots, using addresses from the address store
+	 * 
+	 * @param slots
+	 */
+	public void fill(int slots) {
+		if (slots <= 0 || dialing.get() != null) {
+			return;
+		}
+		dialing.set(Boolean.TRUE);
+		try {
+			int fanOut = getFanOut();
+			AddressKey[] candidates = manager.getAddressStore().getAddress(manager.getConnectedAddresses(), slots * fanOut);
+			int j = 0;
+			for (int i = 0; i < slots && j < candidates.length; i++) {
+				if (!reserveSlot()) {
+					break;
+				}
+				Race race = new Race(true);
+				for (int k = 0; k < fanOut && j < candidates.length; j++) {
+					if (candidates[j] != null) {
+						race.dial(candidates[j]);
+						k++;
+					}
+				}
+				if (!race.close()) {
+					break;
+				}
+			}
+		} finally {
+			dialing.remove();
+		}
+	}
+	
+	/**
+	 * Starts a race with a single candidate for a free outbound slot
+	 * 
+	 * @param addr
+	 * @return the peer, or null if no slot was free or the connection could not be started
+	 */
+	public Peer<?> connectToSlot(AddressKey addr) {
+		if (dialing.get() != null || !reserveSlot()) {
+			return null;
+		}
+		return dial(new Race(true), addr);
+	}
+	
+	/**
+	 * Starts a race with a single candidate.  This is used for explicit connects, which ignore the slot limit 
+	 * and don't use a slot.
+	 * 
+	 * @param addr
+	 * @return the peer, or null if the connection could not be started
+	 */
+	public Peer<?> connect(AddressKey addr) {
+		return dial(new Race(false), addr);
+	}
+	
+	private Peer<?> dial(Race race, AddressKey addr) {
+		Boolean outer = dialing.get();
+		dialing.set(Boolean.TRUE);
+		try {
+			Peer<?> peer = race.dial(addr);
+			race.close();
+			return peer;
+		} finally {
+			if (outer == null) {
+				dialing.remove();
+			}
+		}
+	}
+	
+	private boolean reserveSlot() {
+		int max = manager.getMaxOutbound();
+		while (true) {
+			int slots = slotsInUse.get();
+			if (slots >= max) {
+				return false;
+			}
+			if (slotsInUse.compareAndSet(slots, slots + 1)) {
+				return true;
+			}
+		}
+	}
+	
+	protected void notifyHandshakeComplete(Peer<?> peer) {
+		Race race = races.get(peer.getId());
+		if (race != null) {
+			race.onHandshakeComplete(peer);
+		}
+	}
+	
+	protected void notifyClosed(Peer<?> peer, CloseReason reason) {
+		Race race = races.remove(peer.getId());
+		if (race != null) {
+			race.onClosed(peer, reason);
+		}
+	}
+	
+	private class Race {
+		
+		private final ConcurrentLinkedQueue<Peer<?>> candidates = new ConcurrentLinkedQueue<Peer<?>>();
+		private final AtomicReference<Peer<?>> winner = new AtomicReference<Peer<?>>();
+		/**
+		 * The number of open candidates, plus one until the race is closed to new candidates
+		 */
+		private final AtomicInteger remaining = new AtomicInteger(1);
+		/**
+		 * True if the race holds a reserved outbound slot
+		 */
+		private final boolean counted;
+		
+		public Race(boolean counted) {
+			this.counted = counted;
+		}
+		
+		public Peer<?> dial(AddressKey addr) {
+			Peer<?> peer = manager.createPeer(addr);
+			if (peer == null) {
+				return null;
+			}
+			remaining.incrementAndGet();
+			candidates.add(peer);
+			races.put(peer.getId(), this);
+			try {
+				peer.start();
+			} catch (IOException e) {
+				peer.disconnect();
+				return null;
+			}
+			return peer;
+		}
+		
+		/**
+		 * Closes the race to new candidates
+		 * 
+		 * @return false if the race had no candidates
+		 */
+		public boolean close() {
+			boolean empty = candidates.isEmpty();
+			release();
+			return !empty;
+		}
+		
+		private void release() {
+			if (remaining.decrementAndGet() == 0 && winner.get() == null && counted) {
+				slotsInUse.decrementAndGet();
+			}
+		}
+		
+		public void onHandshakeComplete(Peer<?> peer) {
+			recordOutcome(false);
+			if (winner.compareAndSet(null, peer)) {
+				for (Peer<?> other : candidates) {
+					if (other != peer && !other.isClosed()) {
+						other.disconnect();
+					}
+				}
+			} else if (winner.get() != peer) {
+				LogManager.log(LogSubsystem.NETWORK, Level.FINE, "Dropping {}, connection slot already filled", peer);
+				peer.disconnect();
+			}
+		}
+		
+		public void onClosed(Peer<?> peer, CloseReason reason) {
+			if (winner.get() == peer) {
+				if (counted) {
+					slotsInUse.decrementAndGet();
+				}
+				return;
+			}
+			if (reason != CloseReason.LOCAL_DISCONNECT && !peer.isHandshakeComplete()) {
+				recordOutcome(true);
+			}
+			release();
+		}
+		
+	}
+
+}
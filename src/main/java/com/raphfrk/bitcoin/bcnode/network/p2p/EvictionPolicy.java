@@ -0,0 +1,103 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.p2p;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Selects an inbound peer to disconnect when the inbound slots are full.<br>
+ * <br>
+ * The peers which have sent the most messages and the longest connected half of the remaining peers are 
+ * protected.  Of the rest, the most recently connected peer from the network group with the most 
+ * connections is evicted.  This makes it hard for a single subnet to take over the inbound slots, and 
+ * peers which have proven useful are never evicted in favour of new ones.
+ */
+public class EvictionPolicy {
+	
+	private final static int PROTECT_BY_TRAFFIC = 4;
+	
+	private final static Comparator<Peer<?>> MESSAGES_IN_DESCENDING = new Comparator<Peer<?>>() {
+		@Override
+		public int compare(Peer<?> a, Peer<?> b) {
+			return Long.compare(b.getMetrics().getMessagesIn(), a.getMetrics().getMessagesIn());
+		}
+	};
+	
+	private final static Comparator<Peer<?>> OLDEST_FIRST = new Comparator<Peer<?>>() {
+		@Override
+		public int compare(Peer<?> a, Peer<?> b) {
+			return Long.compare(a.getMetrics().getCreated(), b.getMetrics().getCreated());
+		}
+	};
+	
+	/**
+	 * Selects the peer to evict
+	 * 
+	 * @param peers all registered peers
+	 * @return the peer to evict, or null if all inbound peers are protected
+	 */
+	public Peer<?> select(Collection<Peer<?>> peers) {
+		List<Peer<?>> candidates = new ArrayList<Peer<?>>();
+		for (Peer<?> peer : peers) {
+			if (peer.isInbound() && !peer.isClosed()) {
+				candidates.add(peer);
+			}
+		}
+		
+		Collections.sort(candidates, MESSAGES_IN_DESCENDING);
+		candidates = candidates.subList(Math.min(PROTECT_BY_TRAFFIC, candidates.size()), candidates.size());
+		
+		candidates = new ArrayList<Peer<?>>(candidates);
+		Collections.sort(candidates, OLDEST_FIRST);
+		candidates = candidates.subList(candidates.size() / 2, candidates.size());
+		
+		if (candidates.isEmpty()) {
+			return null;
+		}
+		
+		Map<Long, List<Peer<?>>> groups = new HashMap<Long, List<Peer<?>>>();
+		List<Peer<?>> largest = null;
+		for (Peer<?> peer : candidates) {
+			Long group = peer.getRemoteKey().getGroup();
+			List<Peer<?>> members = groups.get(group);
+			if (members == null) {
+				members = new ArrayList<Peer<?>>();
+				groups.put(group, members);
+			}
+			members.add(peer);
+			// Candidates are oldest first, so ties go to the group with the most recent connection
+			if (largest == null || members.size() >= largest.size()) {
+				largest = members;
+			}
+		}
+		return largest.get(largest.size() - 1);
+	}
+
+}
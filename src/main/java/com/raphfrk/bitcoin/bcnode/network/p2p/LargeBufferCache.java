@@ -32,24 +32,23 @@ import com.raphfrk.bitcoin.bcnode.config.Config;
 
 public class LargeBufferCache {
 	
-	private final static long maxMessageSize = Config.MAX_MESSAGE_SIZE.get();
-	
 	private final static ConcurrentLinkedQueue<Reference<ByteBuffer>> cache = new ConcurrentLinkedQueue<Reference<ByteBuffer>>();
 	
 	public static ByteBuffer getBuffer() {
+		int size = (int) (long) Config.MAX_MESSAGE_SIZE.get();
 		Reference<ByteBuffer> ref;
 		while ((ref = cache.poll()) != null) {
 			ByteBuffer buffer = ref.get();
-			if (buffer != null) {
+			if (buffer != null && buffer.capacity() == size) {
 				buffer.clear();
 				return buffer;
 			}
 		}
-		return ByteBuffer.allocateDirect((int) maxMessageSize);
+		return ByteBuffer.allocateDirect(size);
 	}
 	
 	public static void returnBuffer(ByteBuffer buf) {
-		if (buf.limit() == maxMessageSize) {
+		if (buf.capacity() == Config.MAX_MESSAGE_SIZE.get()) {
 			cache.add(new SoftReference<ByteBuffer>(buf));
 		}
 	}
@@ -28,6 +28,8 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.Iterator;
 import java.util.Queue;
@@ -41,8 +43,14 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
 
+import com.raphfrk.bitcoin.bcnode.config.Config;
+import com.raphfrk.bitcoin.bcnode.log.EventJournal;
 import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.log.LogSubsystem;
+import com.raphfrk.bitcoin.bcnode.metrics.NetworkMetrics;
+import com.raphfrk.bitcoin.bcnode.network.address.AddressKey;
 import com.raphfrk.bitcoin.bcnode.network.address.AddressStatus;
 import com.raphfrk.bitcoin.bcnode.network.address.AddressStore;
 import com.raphfrk.bitcoin.bcnode.network.elements.NetworkAddress;
@@ -57,9 +65,9 @@ public abstract class P2PManager extends Thread {
 	/**
 	 * The peerAddresses map is the canonical peer registry
 	 */
-	private final ConcurrentHashMap<InetSocketAddress, Peer<?>> peerAddresses = new ConcurrentHashMap<InetSocketAddress, Peer<?>>();
+	private final ConcurrentHashMap<AddressKey, Peer<?>> peerAddresses = new ConcurrentHashMap<AddressKey, Peer<?>>();
 	private final ConcurrentHashMap<Long, Peer<?>> peerIdPeerMap = new ConcurrentHashMap<Long, Peer<?>>();
-	private final Set<InetSocketAddress> connectedPeerAddresses = peerAddresses.keySet();
+	private final Set<AddressKey> connectedPeerAddresses = peerAddresses.keySet();
 	
 	private final ReentrantReadWriteLock selectorGuard = new ReentrantReadWriteLock();
 	
@@ -75,63 +83,180 @@ public abstract class P2PManager extends Thread {
 	
 	private final AtomicReference<InetSocketAddress> localAddress; 
 	
-	private final int maxConnections;
+	private final ConnectionScheduler scheduler;
+	
+	private final NetworkMetrics metrics = new NetworkMetrics();
+	private final EventJournal journal;
+	
+	private final int maxOutbound;
 	private final AtomicInteger activeConnections = new AtomicInteger(0);
+	private final ConnectionLimiter limiter = new ConnectionLimiter();
+	private final EvictionPolicy evictionPolicy = new EvictionPolicy();
+	private final ServerSocketChannel serverChannel;
 	
 	private final Queue<Runnable> asyncOpQueue = new ConcurrentLinkedQueue<Runnable>();
 	
-	public P2PManager(Protocol<?> protocol, int maxConnections) throws IOException {
-		this(new File("data"), protocol, maxConnections);
+	public P2PManager(Protocol<?> protocol) throws IOException {
+		this(new File("data"), protocol, -1);
+	}
+	
+	public P2PManager(Protocol<?> protocol, int maxOutbound) throws IOException {
+		this(new File("data"), protocol, maxOutbound);
+	}
+	
+	public P2PManager(File dir, Protocol<?> protocol) throws IOException {
+		this(dir, protocol, -1);
 	}
 	
-	public P2PManager(File dir, Protocol<?> protocol, int maxConnections) throws IOException {
+	/**
+	 * Creates a P2PManager
+	 * 
+	 * @param dir the data directory
+	 * @param protocol
+	 * @param maxOutbound the number of outbound connections to maintain, or -1 to use the max_outbound setting
+	 * @throws IOException
+	 */
+	public P2PManager(File dir, Protocol<?> protocol, int maxOutbound) throws IOException {
 		this.dir = dir;
 		dir.mkdir();
 		this.lock = new LockFile(new File(dir, "lock"));
 		if (!this.lock.lock()) {
-			LogManager.log("Unable to establish lock for directory " + dir);
+			LogManager.log(LogSubsystem.NETWORK, Level.SEVERE, "Unable to establish lock for directory {}", dir);
 			throw new IOException("Unable to establish lock file for directory " + dir);
 		}
 		this.protocol = protocol;
+		this.metrics.registerCommands(protocol.getCommands());
+		this.metrics.register(protocol.getClass().getSimpleName());
+		this.journal = openJournal(dir);
 		selector = SelectorProvider.provider().openSelector();
-		this.maxConnections = maxConnections;
+		this.maxOutbound = maxOutbound;
 		this.addressStore = new AddressStore(dir, this);
 		this.localAddress = new AtomicReference<InetSocketAddress>(null);
+		this.scheduler = new ConnectionScheduler(this);
+		this.serverChannel = openServerChannel();
 		
 		attemptConnectToPeers();
-		LogManager.log("Starting P2P server for " + protocol);
+		LogManager.log(LogSubsystem.NETWORK, Level.INFO, "Starting P2P server for {}", protocol);
 	}
 	
 	public Peer<?> connect(InetSocketAddress addr) {
+		return connect(AddressKey.get(addr));
+	}
+	
+	public Peer<?> connect(AddressKey addr) {
+		return scheduler.connect(addr);
+	}
+	
+	/**
+	 * Creates and registers a peer for the given address.  The peer is not started.
+	 * 
+	 * @param addr
+	 * @return the peer, or null if the address is already connected
+	 */
+	protected Peer<?> createPeer(AddressKey addr) {
 		if (connectedPeerAddresses.contains(addr)) {
-			LogManager.log("Ignoring connect as " + addr + " is already connected");
+			LogManager.log(LogSubsystem.NETWORK, Level.FINE, "Ignoring connect as {} is already connected", addr);
 			Thread.dumpStack();
 			return null;
 		}
+		if (limiter.acquire(addr, false, false) != ConnectionLimiter.Result.ACQUIRED) {
+			LogManager.log(LogSubsystem.NETWORK, Level.FINE, "Ignoring connect as the network group of {} is full", addr);
+			return null;
+		}
 		try {
 			getAddressStore().notify(addr, AddressStatus.CONNECT_ATTEMPT);
-			long id = CryptUtils.getPseudoRandomLong();
-			Peer<?> peer = protocol.getPeer(id, addr, this);
-			if (peerIdPeerMap.putIfAbsent(id, peer) != null) {
-				throw new IllegalStateException("Random number generator returned two equal peer ids");
-			}
-			if (peerAddresses.putIfAbsent(addr, peer) != null) {
+			Peer<?> peer = protocol.getPeer(CryptUtils.getPseudoRandomLong(), addr.getInetSocketAddress(), this);
+			if (!registerPeer(peer)) {
 				peer.cancelStart();
-				LogManager.log("Ignoring connect as " + addr + " is already connected");
-				if (!peerIdPeerMap.remove(id, peer)) {
-					throw new IllegalStateException("Unable to remove peer from peerIdPeerMap");
-				}
+				limiter.release(addr, false);
 				return null;
 			}
-			activeConnections.incrementAndGet();
-			LogManager.log("Attempting to connect to " + addr);
-			peer.start();
+			LogManager.log(LogSubsystem.NETWORK, Level.FINE, "Attempting to connect to {}", addr);
 			return peer;
 		} catch (IOException ioe) {
+			limiter.release(addr, false);
 			return null;
 		}
 	}
 	
+	private boolean registerPeer(Peer<?> peer) {
+		long id = peer.getId();
+		if (peerIdPeerMap.putIfAbsent(id, peer) != null) {
+			throw new IllegalStateException("Random number generator returned two equal peer ids");
+		}
+		if (peerAddresses.putIfAbsent(peer.getRemoteKey(), peer) != null) {
+			LogManager.log(LogSubsystem.NETWORK, Level.FINE, "Ignoring connection as {} is already connected", peer.getRemoteKey());
+			if (!peerIdPeerMap.remove(id, peer)) {
+				throw new IllegalStateException("Unable to remove peer from peerIdPeerMap");
+			}
+			return false;
+		}
+		activeConnections.incrementAndGet();
+		return true;
+	}
+	
+	private ServerSocketChannel openServerChannel() {
+		if (!Config.LISTEN.get()) {
+			return null;
+		}
+		int port = Config.LISTEN_PORT.get();
+		try {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			channel.configureBlocking(false);
+			channel.bind(new InetSocketAddress(port));
+			channel.register(selector, SelectionKey.OP_ACCEPT);
+			LogManager.log(LogSubsystem.NETWORK, Level.INFO, "Listening for connections on port {}", port);
+			return channel;
+		} catch (IOException e) {
+			LogManager.log(LogSubsystem.NETWORK, Level.WARNING, "Unable to listen on port {}, {}", port, e.getMessage());
+			return null;
+		}
+	}
+	
+	private void acceptConnections() {
+		SocketChannel channel;
+		try {
+			while ((channel = serverChannel.accept()) != null) {
+				acceptConnection(channel);
+			}
+		} catch (IOException e) {
+			LogManager.log(LogSubsystem.NETWORK, Level.WARNING, "Unable to accept connection, {}", e.getMessage());
+		}
+	}
+	
+	private void acceptConnection(SocketChannel channel) throws IOException {
+		AddressKey addr = AddressKey.get((InetSocketAddress) channel.getRemoteAddress());
+		ConnectionLimiter.Result result = limiter.acquire(addr, true, false);
+		if (result == ConnectionLimiter.Result.INBOUND_FULL) {
+			Peer<?> evicted = evictionPolicy.select(peerAddresses.values());
+			if (evicted != null) {
+				LogManager.log(LogSubsystem.NETWORK, Level.FINE, "Evicting {} to accept {}", evicted, addr);
+				evicted.disconnect();
+				result = limiter.acquire(addr, true, true);
+			}
+		}
+		if (result != ConnectionLimiter.Result.ACQUIRED) {
+			LogManager.log(LogSubsystem.NETWORK, Level.FINE, "Rejecting connection from {}, {}", addr, result);
+			channel.close();
+			return;
+		}
+		Peer<?> peer;
+		try {
+			peer = protocol.getPeer(CryptUtils.getPseudoRandomLong(), channel, this);
+		} catch (IOException e) {
+			limiter.release(addr, true);
+			channel.close();
+			return;
+		}
+		if (!registerPeer(peer)) {
+			peer.cancelStart();
+			limiter.release(addr, true);
+			return;
+		}
+		LogManager.log(LogSubsystem.NETWORK, Level.FINE, "Accepted connection from {}", addr);
+		peer.start();
+	}
+	
 	public File getDataDirectory() {
 		return dir;
 	}
@@ -149,6 +274,10 @@ public abstract class P2PManager extends Thread {
 	}
 	
 	public Peer<?> getPeer(InetSocketAddress addr) {
+		return getPeer(AddressKey.get(addr));
+	}
+	
+	public Peer<?> getPeer(AddressKey addr) {
 		return peerAddresses.get(addr);
 	}
 	
@@ -160,10 +289,66 @@ public abstract class P2PManager extends Thread {
 		return addressStore;
 	}
 	
+	/**
+	 * Gets the metrics registry for this manager's network layer
+	 * 
+	 * @return
+	 */
+	public NetworkMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Gets the event journal for this manager's peers
+	 * 
+	 * @return the journal, or EventJournal.DISABLED if the journal is switched off
+	 */
+	public EventJournal getJournal() {
+		return journal;
+	}
+	
+	private static EventJournal openJournal(File dir) {
+		if (!Config.EVENT_JOURNAL.get()) {
+			return EventJournal.DISABLED;
+		}
+		try {
+			return new EventJournal(new File(dir, "journal"), Config.EVENT_JOURNAL_SEGMENT_SIZE.get() << 20, Config.EVENT_JOURNAL_SEGMENTS.get());
+		} catch (IOException e) {
+			LogManager.log(LogSubsystem.NETWORK, Level.WARNING, "Unable to open event journal, {}", e.getMessage());
+			return EventJournal.DISABLED;
+		}
+	}
+	
+	public ConnectionLimiter getConnectionLimiter() {
+		return limiter;
+	}
+	
+	/**
+	 * Gets the number of outbound connections to maintain
+	 * 
+	 * @return
+	 */
+	public int getMaxOutbound() {
+		return maxOutbound >= 0 ? maxOutbound : Config.MAX_OUTBOUND.get();
+	}
+	
+	public ConnectionScheduler getConnectionScheduler() {
+		return scheduler;
+	}
+	
+	/**
+	 * Gets a live view of the addresses of all registered peers
+	 * 
+	 * @return
+	 */
+	public Set<AddressKey> getConnectedAddresses() {
+		return connectedPeerAddresses;
+	}
+	
 	public void notifyNewAddress(NetworkAddress addr) {
-		InetSocketAddress socketAddr = addr.getInetSocketAddress();
-		if (socketAddr != null && this.activeConnections.get() < this.maxConnections && !this.connectedPeerAddresses.contains(addr)) {
-			connect(socketAddr);
+		AddressKey key = addr.getKey();
+		if (!this.connectedPeerAddresses.contains(key)) {
+			scheduler.connectToSlot(key);
 		}
 	}
 	
@@ -172,8 +357,12 @@ public abstract class P2PManager extends Thread {
 		selector.wakeup();
 	}
 	
-	protected void removePeer(Peer<?> peer, String reason) {
-		boolean removed = peerAddresses.remove(peer.getRemoteAddress(), peer);
+	protected void notifyHandshakeComplete(Peer<?> peer) {
+		scheduler.notifyHandshakeComplete(peer);
+	}
+	
+	protected void removePeer(Peer<?> peer, Peer.CloseReason reason) {
+		boolean removed = peerAddresses.remove(peer.getRemoteKey(), peer);
 		if (!removed) {
 			throw new IllegalStateException("Failed to successfully remove peer from peer set");
 		}
@@ -181,22 +370,16 @@ public abstract class P2PManager extends Thread {
 			throw new IllegalStateException("Failed to successfully remove peer from id to peer set");
 		}
 		activeConnections.decrementAndGet();
-		LogManager.log(reason + " " + peer + " (" + activeConnections.get() + ")");
+		limiter.release(peer.getRemoteKey(), peer.isInbound());
+		scheduler.notifyClosed(peer, reason);
+		if (LogManager.isLoggable(LogSubsystem.NETWORK, Level.FINE)) {
+			LogManager.log(LogSubsystem.NETWORK, Level.FINE, "{} {} ({})", reason.getString(), peer, activeConnections.get());
+		}
 		attemptConnectToPeers();
 	}
 	
 	private void attemptConnectToPeers() {
-		attemptConnectToPeers(maxConnections - activeConnections.get());
-	}
-	
-	private void attemptConnectToPeers(int limit) {
-		InetSocketAddress[] socketAddr;
-		socketAddr = addressStore.getAddress(connectedPeerAddresses, limit);
-		for (int i = 0; i < limit; i++) {
-			if (socketAddr[i] != null) {
-				connect(socketAddr[i]);
-			}
-		}
+		scheduler.fill(getMaxOutbound() - scheduler.getSlotsInUse());
 	}
 	
 	public Selector getSelector() {
@@ -253,11 +436,21 @@ public abstract class P2PManager extends Thread {
 				while (itr.hasNext()) {
 					SelectionKey key = itr.next();
 					itr.remove();
+					if (key.channel() == serverChannel) {
+						acceptConnections();
+						continue;
+					}
 					Peer<?> peer = (Peer<?>) key.attachment();
 					peer.notifyOps();
 				}
 			}
 		}
+		if (serverChannel != null) {
+			try {
+				serverChannel.close();
+			} catch (IOException e) {
+			}
+		}
 		try {
 			Peer.shutdownTimer();
 		} catch (InterruptedException e) {
@@ -266,12 +459,14 @@ public abstract class P2PManager extends Thread {
 		try {
 			int delay = 1;
 			while (!workers.awaitTermination(delay, TimeUnit.SECONDS)) {
-				LogManager.log("Worker executor service shutdown failure");
+				LogManager.log(LogSubsystem.NETWORK, Level.WARNING, "Worker executor service shutdown failure");
 				delay *= 2;
 			}
 		} catch (InterruptedException e) {
 		}
 		onShutdown();
+		metrics.unregister();
+		journal.close();
 		lock.unlock();
 	}
 	
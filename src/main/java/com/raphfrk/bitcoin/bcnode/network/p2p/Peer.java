@@ -28,6 +28,7 @@ import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NoConnectionPendingException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.TimerTask;
@@ -36,9 +37,16 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 
 import com.raphfrk.bitcoin.bcnode.config.Config;
+import com.raphfrk.bitcoin.bcnode.log.EventJournal;
 import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.log.LogSubsystem;
+import com.raphfrk.bitcoin.bcnode.metrics.NetworkMetrics;
+import com.raphfrk.bitcoin.bcnode.metrics.PeerMetrics;
+import com.raphfrk.bitcoin.bcnode.network.address.AddressKey;
 import com.raphfrk.bitcoin.bcnode.network.address.AddressStatus;
 import com.raphfrk.bitcoin.bcnode.network.message.Message;
 import com.raphfrk.bitcoin.bcnode.network.message.handler.HandshakeMessageHandler;
@@ -48,12 +56,11 @@ import com.raphfrk.bitcoin.bcnode.util.StringGenerator;
 
 public abstract class Peer<T extends Protocol<?>> {
 	
-	private static int localBufferSize = Config.PEER_BUFFER_SIZE.get();
-	private static int connectTimeout = Config.CONNECT_TIMEOUT.get();
 	private final static ScheduledExecutorService timer = new ScheduledThreadPoolExecutor(1);
 	
 	private final SocketChannel channel;
 	private final InetSocketAddress remoteAddress;
+	private final AddressKey remoteKey;
 	private final boolean outgoing;
 	private final InetSocketAddress addr;
 	private final P2PManager manager;
@@ -68,6 +75,7 @@ public abstract class Peer<T extends Protocol<?>> {
 	private final ByteBuffer localReadBuffer;
 	private ByteBuffer readBuffer;
 	private final ConcurrentLinkedQueue<Message<?>> sendQueue = new ConcurrentLinkedQueue<Message<?>>();
+	private final AtomicInteger sendQueueSize = new AtomicInteger();
 	private final ByteBuffer localWriteBuffer;
 	private ByteBuffer writeBuffer;
 	private final AtomicBoolean closed;
@@ -81,6 +89,10 @@ public abstract class Peer<T extends Protocol<?>> {
 	private final AtomicBoolean handshakeComplete = new AtomicBoolean(false);
 	private final ConcurrentLinkedQueue<Runnable> taskQueue = new ConcurrentLinkedQueue<Runnable>();
 	
+	private final NetworkMetrics metrics;
+	private final EventJournal journal;
+	private final PeerMetrics peerMetrics = new PeerMetrics();
+	
 	private final SelectionKey key;
 	
 	public Peer(long id, SocketChannel channel, P2PManager manager) throws IOException {
@@ -94,6 +106,7 @@ public abstract class Peer<T extends Protocol<?>> {
 	@SuppressWarnings("unchecked")
 	public Peer(long id, SocketChannel channel, InetSocketAddress addr, P2PManager manager) throws IOException {
 		this.id = id;
+		int localBufferSize = Config.PEER_BUFFER_SIZE.get();
 		this.localReadBuffer = ByteBuffer.allocateDirect(localBufferSize);
 		this.readBuffer = localReadBuffer;
 		this.localWriteBuffer = ByteBuffer.allocateDirect(localBufferSize);
@@ -101,6 +114,8 @@ public abstract class Peer<T extends Protocol<?>> {
 		this.manager = manager;
 		this.magicValue = manager.getMagicValue();
 		this.protocol = (T) manager.getProtocol();
+		this.metrics = manager.getMetrics();
+		this.journal = manager.getJournal();
 		this.version = 0;
 		this.closed = new AtomicBoolean(false);
 		this.connected = new AtomicBoolean(false);
@@ -118,13 +133,18 @@ public abstract class Peer<T extends Protocol<?>> {
 		} else {
 			this.remoteAddress = (InetSocketAddress) this.channel.getRemoteAddress();
 		}
+		this.remoteKey = AddressKey.get(this.remoteAddress);
 		key = registerWithChannel();
 	}
 	
 	protected void start() throws IOException {
 		if (outgoing) {
 			this.channel.connect(addr);
+			setKeyInterestOps(SelectionKey.OP_CONNECT);
+		} else {
+			submitAsyncTask(channelConnectRunnable);
 		}
+		int connectTimeout = Config.CONNECT_TIMEOUT.get();
 		timer.schedule(connectTimeoutTask, connectTimeout, TimeUnit.SECONDS);
 		timer.schedule(handshakeTimeoutTask, connectTimeout * 2, TimeUnit.SECONDS);
 	}
@@ -136,14 +156,14 @@ public abstract class Peer<T extends Protocol<?>> {
 	private SelectionKey registerWithChannel() throws ClosedChannelException {
 		this.manager.readLockSelector();
 		try {
-			return this.channel.register(manager.getSelector(), SelectionKey.OP_CONNECT, this);			
+			return this.channel.register(manager.getSelector(), 0, this);
 		} finally {
 			this.manager.readUnlockSelector();
 		}
 	}
 	
-	private void setKeyInterestOps(int set) {
-		updateKeyInterestOps(set, 0);
+	private void setKeyInterestOps(int ops) {
+		updateKeyInterestOps(ops, ~ops);
 	}
 	
 	public void clearKeyInterestOps() {
@@ -178,7 +198,23 @@ public abstract class Peer<T extends Protocol<?>> {
 	}
 	
 	public void notifyHandshakeComplete() {
-		handshakeComplete.set(true);
+		if (handshakeComplete.compareAndSet(false, true)) {
+			journal.onConnect(remoteKey);
+			manager.notifyHandshakeComplete(this);
+		}
+	}
+	
+	/**
+	 * Returns true if the connection was made by the remote peer
+	 * 
+	 * @return
+	 */
+	public boolean isInbound() {
+		return !outgoing;
+	}
+	
+	public boolean isHandshakeComplete() {
+		return handshakeComplete.get();
 	}
 	
 	public void setPeerProtocolVersion(int version) {
@@ -220,9 +256,9 @@ public abstract class Peer<T extends Protocol<?>> {
 	
 	public void submitTask(Runnable task) {
 		manager.checkThread();
+		clearKeyInterestOps();
 		taskQueue.add(task);
 		if (running.compareAndSet(false, true)) {
-			clearKeyInterestOps();
 			manager.submitTask(queueRunnable);
 		}
 	}
@@ -254,6 +290,7 @@ public abstract class Peer<T extends Protocol<?>> {
 	 */
 	public void sendMessage(Message<?> message) {
 		sendQueue.add(message);
+		metrics.onSendQueued(sendQueueSize.incrementAndGet());
 		submitAsyncTask(channelWriteRunnable);
 	}
 	
@@ -296,6 +333,15 @@ public abstract class Peer<T extends Protocol<?>> {
 	public InetSocketAddress getRemoteAddress() {
 		return remoteAddress;
 	}
+	
+	/**
+	 * Gets the compact key for the remote address of this peer
+	 * 
+	 * @return
+	 */
+	public AddressKey getRemoteKey() {
+		return remoteKey;
+	}
 
 	public InetSocketAddress getLocalAddress() {
 		return manager.getLocalAddress();
@@ -304,6 +350,15 @@ public abstract class Peer<T extends Protocol<?>> {
 	public boolean isClosed() {
 		return closed.get();
 	}
+	
+	/**
+	 * Gets the traffic counters for this peer
+	 * 
+	 * @return
+	 */
+	public PeerMetrics getMetrics() {
+		return peerMetrics;
+	}
 
 	private boolean closeChannel(CloseReason reason) {
 		return closeChannel(reason, true);
@@ -311,15 +366,21 @@ public abstract class Peer<T extends Protocol<?>> {
 	
 	private boolean closeChannel(CloseReason reason, boolean removePeer) {
 		if (closed.compareAndSet(false, true)) {
+			metrics.onClosed(reason);
+			journal.onDisconnect(remoteKey, reason);
 			onClosed(reason);
-			if (reason == CloseReason.CONNECT || reason == CloseReason.HANDSHAKE) {
-				manager.getAddressStore().notify(getRemoteAddress(), AddressStatus.CONNECT_FAIL);
+			if (outgoing && (reason == CloseReason.CONNECT || reason == CloseReason.HANDSHAKE)) {
+				manager.getAddressStore().notify(getRemoteKey(), AddressStatus.CONNECT_FAIL);
 			}
 			if (key.isValid()) {
 				key.cancel();
 			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
 			if (removePeer) {
-				manager.removePeer(this, reason.getString());
+				manager.removePeer(this, reason);
 			}
 			return true;
 		}
@@ -370,9 +431,15 @@ public abstract class Peer<T extends Protocol<?>> {
 				readBuffer.flip();
 				Message message;
 				do {
+					int position = readBuffer.position();
+					long start = System.nanoTime();
 					message = protocol.decodeMessage(version, magicValue, readBuffer);
 					if (message != null) {
-						MessageHandler handler = protocol.getHandler(message.getCommand());
+						long decoded = System.nanoTime();
+						String command = message.getCommand();
+						metrics.onMessageReceived(peerMetrics, command, readBuffer.position() - position, decoded - start);
+						journal.onReceived(remoteKey, command, readBuffer.position() - position, decoded - start);
+						MessageHandler handler = protocol.getHandler(command);
 						if (version == 0 && !(handler instanceof HandshakeMessageHandler)) {
 							closeChannel(CloseReason.HANDSHAKE);
 							return;
@@ -381,6 +448,9 @@ public abstract class Peer<T extends Protocol<?>> {
 							if (!handler.handle(message, Peer.this)) {
 								closeChannel(CloseReason.HANDLER);
 							}
+							long handled = System.nanoTime() - decoded;
+							metrics.onMessageHandled(command, handled);
+							journal.onHandled(remoteKey, command, handled);
 						}
 					}
 				} while (message != null);
@@ -399,17 +469,21 @@ public abstract class Peer<T extends Protocol<?>> {
 		
 		private boolean drainChannel(ByteBuffer buffer) throws IOException {
 			int read;
+			long total = 0;
 			while ((read = channel.read(buffer)) > 0) {
+				total += read;
 			}
+			metrics.onBytesRead(peerMetrics, total);
 			return read == -1;
 		}
 		
 		private boolean expandBuffer() throws IOException {
 			boolean eof = false;
 			if (readBuffer != localReadBuffer) {
-				LogManager.log("Peer channel read buffer full due to message exceeding allowable size");
+				LogManager.log(LogSubsystem.NETWORK, Level.WARNING, "Peer channel read buffer full due to message exceeding allowable size");
 				eof = true;
 			} else {
+				metrics.onBufferExpanded(true);
 				localReadBuffer.flip();
 				readBuffer = LargeBufferCache.getBuffer();
 				readBuffer.put(localReadBuffer);
@@ -418,9 +492,10 @@ public abstract class Peer<T extends Protocol<?>> {
 		}
 		
 		private void compactAndTrimBuffer() {
-			if (readBuffer != localReadBuffer && readBuffer.remaining() < localBufferSize) {
+			if (readBuffer != localReadBuffer && readBuffer.remaining() < localReadBuffer.capacity()) {
 				localReadBuffer.clear();
 				localReadBuffer.put(readBuffer);
+				LargeBufferCache.returnBuffer(readBuffer);
 				readBuffer = localReadBuffer;
 			} else {
 				readBuffer.compact();
@@ -434,36 +509,35 @@ public abstract class Peer<T extends Protocol<?>> {
 		@Override
 		public void run() {
 			try {
-				flushMessageQueue(writeBuffer);
-				
-				writeBuffer.flip();
-				
-				if (!attemptWrite()) {
-					return;
-				}
-				
-				if (!flushMessageQueue(writeBuffer)) {
-					if (writeBuffer == localWriteBuffer) {
-						expandBuffer();
-
-						if (!flushMessageQueue(writeBuffer)) {
-							LogManager.log("Peer channel read buffer full due to message exceeding allowable size");
+				boolean written;
+				do {
+					if (!flushMessageQueue(writeBuffer) && writeBuffer.position() == 0) {
+						if (writeBuffer != localWriteBuffer) {
+							LogManager.log(LogSubsystem.NETWORK, Level.WARNING, "Peer channel write buffer full due to message exceeding allowable size");
 							closeChannel(CloseReason.WRITE);
 							return;
 						}
-
-						if (!attemptWrite()) {
+						expandBuffer();
+						if (!flushMessageQueue(writeBuffer)) {
+							LogManager.log(LogSubsystem.NETWORK, Level.WARNING, "Peer channel write buffer full due to message exceeding allowable size");
+							closeChannel(CloseReason.WRITE);
 							return;
 						}
 					}
+					
+					writeBuffer.flip();
+					
+					written = attemptWrite();
+				} while (written && !sendQueue.isEmpty());
+				
+				if (written) {
+					trimBuffer();
 				}
 
-				compactAndTrimBuffer();
-
 			} catch (IOException ioe) {
 				closeChannel(CloseReason.WRITE);
 			} finally {
-				writePending.set(writeBuffer.remaining() > 0);
+				writePending.set(writeBuffer.position() > 0);
 				notifyKeyOpDone();
 			}
 		}
@@ -479,7 +553,12 @@ public abstract class Peer<T extends Protocol<?>> {
 					break;
 				}
 				message = sendQueue.poll();
+				sendQueueSize.decrementAndGet();
+				long start = System.nanoTime();
 				if (protocol.encodeMessage(version, message, buffer) == Protocol.SUCCESS) {
+					long encoded = System.nanoTime() - start;
+					metrics.onMessageSent(peerMetrics, message.getCommand(), 24 + length, encoded);
+					journal.onSent(remoteKey, message.getCommand(), 24 + length, encoded);
 					messagesWritten++;
 				} else {
 					closeChannel(CloseReason.WRITE);
@@ -492,7 +571,7 @@ public abstract class Peer<T extends Protocol<?>> {
 		private boolean attemptWrite() throws IOException {
 			try {
 				if (writeBuffer.remaining() > 0) {
-					channel.write(writeBuffer);
+					metrics.onBytesWritten(peerMetrics, channel.write(writeBuffer));
 					if (writeBuffer.remaining() > 0) {
 						return false;
 					}
@@ -508,18 +587,17 @@ public abstract class Peer<T extends Protocol<?>> {
 				closeChannel(CloseReason.WRITE);
 				throw new IllegalStateException("Only the localWriteBuffer can be expanded");
 			}
+			metrics.onBufferExpanded(false);
 			writeBuffer = LargeBufferCache.getBuffer();
 			localWriteBuffer.flip();
 			writeBuffer.put(localWriteBuffer);
 		}
 		
-		private void compactAndTrimBuffer() {
-			if (writeBuffer != localWriteBuffer && writeBuffer.remaining() < localBufferSize) {
+		private void trimBuffer() {
+			if (writeBuffer != localWriteBuffer && writeBuffer.position() == 0) {
+				LargeBufferCache.returnBuffer(writeBuffer);
 				localWriteBuffer.clear();
-				localWriteBuffer.put(writeBuffer);
 				writeBuffer = localWriteBuffer;
-			} else {
-				writeBuffer.compact();
 			}
 		}
 	}
@@ -541,6 +619,7 @@ public abstract class Peer<T extends Protocol<?>> {
 	private class ChannelConnectRunnable implements Runnable {
 		public void run() {
 			if (connected.get()) {
+				Peer.this.notifyKeyOpDone();
 				return;
 			}
 			try {
@@ -549,8 +628,7 @@ public abstract class Peer<T extends Protocol<?>> {
 					closeChannel(CloseReason.CONNECT);
 					return;
 				}
-			} catch (ClosedChannelException | SocketException e) {
-				e.printStackTrace();
+			} catch (ClosedChannelException | SocketException | NoConnectionPendingException e) {
 				closeChannel(CloseReason.CONNECT);
 				return;
 			} catch (IOException e) {
@@ -560,7 +638,7 @@ public abstract class Peer<T extends Protocol<?>> {
 			}
 			connected.compareAndSet(false, true);
 			if (onConnect()) {
-				LogManager.log("Connection established to " + remoteAddress);
+				LogManager.log(LogSubsystem.NETWORK, Level.FINE, "Connection established to {}", remoteAddress);
 				Peer.this.notifyKeyOpDone();
 			} else {
 				closeChannel(CloseReason.CONNECT);
@@ -583,6 +661,8 @@ public abstract class Peer<T extends Protocol<?>> {
 				public void run() {
 					if (!handshakeComplete.get()) {
 						closeChannel(CloseReason.HANDSHAKE);
+					} else {
+						Peer.this.notifyKeyOpDone();
 					}
 				}
 			});
@@ -597,7 +677,12 @@ public abstract class Peer<T extends Protocol<?>> {
 				while (!closed.get()) {
 					Runnable r;
 					while ((r = taskQueue.poll()) != null  && !closed.get()) {
-						r.run();
+						try {
+							r.run();
+						} catch (RuntimeException e) {
+							LogManager.log(LogSubsystem.NETWORK, Level.SEVERE, "Task for peer " + Peer.this + " threw an exception", e);
+							closeChannel(CloseReason.HANDLER);
+						}
 					}
 					running.set(false);
 					if (taskQueue.isEmpty()) {
@@ -608,13 +693,14 @@ public abstract class Peer<T extends Protocol<?>> {
 					}
 				}
 			} catch (Exception e) {
-				e.printStackTrace();
+				LogManager.log(LogSubsystem.NETWORK, Level.SEVERE, "Task queue for peer " + Peer.this + " failed", e);
+				closeChannel(CloseReason.HANDLER);
 			}
 		}
 		
 	}
 	
-	protected enum CloseReason {
+	public enum CloseReason {
 		CONNECT, READ, READ_EOF, WRITE, KEY_REGISTRATION, HANDSHAKE, HANDLER, LOCAL_DISCONNECT;
 		
 		public String getString() {
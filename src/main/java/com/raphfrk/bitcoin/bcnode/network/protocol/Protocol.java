@@ -28,6 +28,8 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 import com.raphfrk.bitcoin.bcnode.network.message.Message;
@@ -46,6 +48,7 @@ public abstract class Protocol<T extends Peer<?>> {
 	
 	private final ConstantHashMap<String, MessageDecoder> decoders;
 	private final ConstantHashMap<String, MessageHandler<?, ?, ?>> handlers;
+	private final Set<String> commands = new LinkedHashSet<String>();
 	private final MessageDecoder unknownDecoder;
 	
 	public Protocol() {
@@ -256,12 +259,22 @@ public abstract class Protocol<T extends Peer<?>> {
 	
 	protected void registerMessageDecoder(String command, MessageDecoder decoder) {
 		decoders.put(command, decoder);
+		commands.add(command);
 	}
 	
 	protected void registerMessageHandler(String command, MessageHandler<?, ?, ?> handler) {
 		handlers.put(command, handler);
 	}
 	
+	/**
+	 * Gets the commands which have a registered decoder
+	 * 
+	 * @return
+	 */
+	public Set<String> getCommands() {
+		return Collections.unmodifiableSet(commands);
+	}
+	
 	public MessageDecoder getDecoder(String command) {
 		MessageDecoder d = decoders.get(command);
 		if (d != null) {
@@ -65,15 +65,17 @@ public class ConstantHashMap<K, V> {
 	 * @param value
 	 */
 	public void put(K key, V value) {
+		int size = keys.length;
 		while (!putRaw(key, value)) {
-			rehash(keys.length << 1);
+			do {
+				size <<= 1;
+			} while (!rehash(size));
 		}
 	}
 	
 	private boolean putRaw(K key, V value) {
 		int h = key.hashCode() & mask;
 		if (keys[h] != null) {
-			System.out.println("Not empty");
 			return false;
 		}
 		keys[h] = key;
@@ -93,9 +95,10 @@ public class ConstantHashMap<K, V> {
 		values = new Object[newSize];
 		mask = newSize - 1;
 		for (int i = 0; i < oldKeys.length; i++) {
-			if (!putRaw((K) oldKeys[i], (V) oldValues[i])) {
+			if (oldKeys[i] != null && !putRaw((K) oldKeys[i], (V) oldValues[i])) {
 				keys = oldKeys;
 				values = oldValues;
+				mask = oldKeys.length - 1;
 				return false;
 			}
 		}
@@ -28,6 +28,9 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 
+import org.bouncycastle.crypto.digests.RIPEMD160Digest;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
 public class DigestUtils {
 	
 	private static final ThreadLocal <MessageDigest> localSHA256 = new ThreadLocal <MessageDigest> () {
@@ -41,6 +44,18 @@ public class DigestUtils {
 			}
 		}
 	};
+	
+	private static final ThreadLocal <SHA256Digest> localDigest = new ThreadLocal <SHA256Digest> () {
+		@Override protected SHA256Digest initialValue() {
+			return new SHA256Digest();
+		}
+	};
+
+	private static final ThreadLocal <RIPEMD160Digest> localRIPEMD160 = new ThreadLocal <RIPEMD160Digest> () {
+		@Override protected RIPEMD160Digest initialValue() {
+			return new RIPEMD160Digest();
+		}
+	};
 
 	public static byte[] SHA256(ByteBuffer buf, int off, int length) {
 		int limit = buf.limit();
@@ -74,6 +89,68 @@ public class DigestUtils {
 		}	
 	}
 	
+	/**
+	 * Gets the double SHA-256 hash of the concatenation of the remaining bytes of several buffers.  The 
+	 * positions of the buffers are not changed.
+	 * 
+	 * @param parts
+	 * @return
+	 */
+	public static byte[] doubleSHA256(ByteBuffer[] parts) {
+		MessageDigest d = localSHA256.get();
+		d.reset();
+		for (ByteBuffer part : parts) {
+			d.update(part.duplicate());
+		}
+		byte[] message = d.digest();
+		d.reset();
+		return d.digest(message);
+	}
+	
+	/**
+	 * Writes the double SHA-256 hash of part of an array to another array, without allocating.  The output 
+	 * may overlap the input.<br>
+	 * <br>
+	 * The JCE digest allocates its result internally, so this uses the Bouncy Castle digest directly.
+	 * 
+	 * @param in
+	 * @param off
+	 * @param length
+	 * @param out
+	 * @param outOff
+	 */
+	public static void doubleSHA256(byte[] in, int off, int length, byte[] out, int outOff) {
+		SHA256Digest d = localDigest.get();
+		d.reset();
+		d.update(in, off, length);
+		d.doFinal(out, outOff);
+		d.update(out, outOff, 32);
+		d.doFinal(out, outOff);
+	}
+	
+	/**
+	 * Gets the RIPEMD-160 hash of the SHA-256 hash of part of an array, as used for public key hashes
+	 * 
+	 * @param in
+	 * @param off
+	 * @param length
+	 * @return
+	 */
+	public static byte[] hash160(byte[] in, int off, int length) {
+		SHA256Digest sha = localDigest.get();
+		sha.reset();
+		sha.update(in, off, length);
+		byte[] out = new byte[32];
+		sha.doFinal(out, 0);
+		RIPEMD160Digest ripemd = localRIPEMD160.get();
+		ripemd.reset();
+		ripemd.update(out, 0, 32);
+		ripemd.doFinal(out, 0);
+		byte[] hash = new byte[20];
+		System.arraycopy(out, 0, hash, 0, 20);
+		return hash;
+	}
+	
 	public static byte[] SHA256(ByteBuffer buf, int n) {
 		MessageDigest d = localSHA256.get();
 		d.reset();
@@ -0,0 +1,125 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.util;
+
+import java.math.BigInteger;
+
+import org.bouncycastle.asn1.sec.SECNamedCurves;
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.math.ec.ECPoint;
+
+/**
+ * ECDSA signature checks on the secp256k1 curve, using the Bouncy Castle lightweight API
+ */
+public class ECDSAUtils {
+	
+	private final static X9ECParameters params = SECNamedCurves.getByName("secp256k1");
+	
+	public final static ECDomainParameters CURVE = new ECDomainParameters(params.getCurve(), params.getG(), params.getN(), params.getH());
+	
+	/**
+	 * Decodes a DER encoded signature.  Only strictly encoded signatures (BIP 66) are accepted.
+	 * 
+	 * @param sig
+	 * @param off
+	 * @param length the length of the signature, not including a trailing hash type
+	 * @return the r and s values, or null if the signature is not strictly encoded
+	 */
+	public static BigInteger[] decodeSignature(byte[] sig, int off, int length) {
+		if (length < 8 || length > 72 || sig[off] != 0x30 || (sig[off + 1] & 0xFF) != length - 2) {
+			return null;
+		}
+		int rOff = off + 4;
+		int rLength = sig[off + 3] & 0xFF;
+		int sOff = rOff + rLength + 2;
+		if (sig[off + 2] != 0x02 || rLength == 0 || sOff > off + length) {
+			return null;
+		}
+		int sLength = sig[sOff - 1] & 0xFF;
+		if (sig[sOff - 2] != 0x02 || sLength == 0 || sOff + sLength != off + length) {
+			return null;
+		}
+		if (!isCanonical(sig, rOff, rLength) || !isCanonical(sig, sOff, sLength)) {
+			return null;
+		}
+		byte[] r = new byte[rLength];
+		byte[] s = new byte[sLength];
+		System.arraycopy(sig, rOff, r, 0, rLength);
+		System.arraycopy(sig, sOff, s, 0, sLength);
+		return new BigInteger[] {new BigInteger(r), new BigInteger(s)};
+	}
+	
+	/**
+	 * Checks that a DER integer is positive and has no unnecessary leading zero
+	 */
+	private static boolean isCanonical(byte[] buf, int off, int length) {
+		if ((buf[off] & 0x80) != 0) {
+			return false;
+		}
+		return length == 1 || buf[off] != 0 || (buf[off + 1] & 0x80) != 0;
+	}
+	
+	/**
+	 * Decodes a compressed or uncompressed public key
+	 * 
+	 * @param key
+	 * @param off
+	 * @param length
+	 * @return the point, or null if the key is not valid
+	 */
+	public static ECPoint decodePublicKey(byte[] key, int off, int length) {
+		if (length == 33 ? key[off] != 0x02 && key[off] != 0x03 : length != 65 || key[off] != 0x04) {
+			return null;
+		}
+		byte[] encoded = new byte[length];
+		System.arraycopy(key, off, encoded, 0, length);
+		try {
+			return CURVE.getCurve().decodePoint(encoded);
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Verifies a signature of a 32 byte hash
+	 * 
+	 * @param hash
+	 * @param signature the r and s values
+	 * @param key
+	 * @return
+	 */
+	public static boolean verify(byte[] hash, BigInteger[] signature, ECPoint key) {
+		ECDSASigner signer = new ECDSASigner();
+		signer.init(false, new ECPublicKeyParameters(key, CURVE));
+		try {
+			return signer.verifySignature(hash, signature[0], signature[1]);
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+}
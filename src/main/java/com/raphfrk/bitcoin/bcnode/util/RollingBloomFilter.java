@@ -0,0 +1,143 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.util;
+
+/**
+ * A bloom filter which remembers at least the most recent capacity entries.<br>
+ * <br>
+ * Entries are added to the current generation.  When it holds capacity entries, the previous generation 
+ * is cleared and becomes the current generation, so the filter holds between capacity and 2 * capacity 
+ * of the most recent entries and never fills up.  Keys are two longs, which should already be well 
+ * distributed, such as words of a hash.  This class is not thread safe.
+ */
+public class RollingBloomFilter {
+	
+	private final int hashCount;
+	private final int bitsMask;
+	private final int capacity;
+	private final long tweak;
+	private long[] current;
+	private long[] previous;
+	private int count;
+	
+	/**
+	 * Creates a filter
+	 * 
+	 * @param capacity the number of entries per generation
+	 * @param falsePositiveRate the false positive rate when both generations are full
+	 * @param tweak a random value mixed into the hash of each key
+	 */
+	public RollingBloomFilter(int capacity, double falsePositiveRate, long tweak) {
+		double bits = -2 * capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+		int size = MathUtils.increaseToPow2((int) Math.min(1 << 30, Math.max(64, bits)));
+		this.bitsMask = size - 1;
+		this.hashCount = Math.max(1, (int) Math.round(-Math.log(falsePositiveRate) / Math.log(2)));
+		this.capacity = capacity;
+		this.tweak = tweak;
+		this.current = new long[size >>> 6];
+		this.previous = new long[size >>> 6];
+	}
+	
+	/**
+	 * Adds a key to the filter
+	 * 
+	 * @param a
+	 * @param b
+	 */
+	public void add(long a, long b) {
+		if (count >= capacity) {
+			long[] cleared = previous;
+			for (int i = 0; i < cleared.length; i++) {
+				cleared[i] = 0;
+			}
+			previous = current;
+			current = cleared;
+			count = 0;
+		}
+		long h1 = mix(a ^ tweak);
+		long h2 = mix(b + h1) | 1;
+		for (int i = 0; i < hashCount; i++) {
+			int bit = (int) (h1 + i * h2) & bitsMask;
+			current[bit >>> 6] |= 1L << bit;
+		}
+		count++;
+	}
+	
+	/**
+	 * Returns true if the key may have been added
+	 * 
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public boolean contains(long a, long b) {
+		long h1 = mix(a ^ tweak);
+		long h2 = mix(b + h1) | 1;
+		return contains(current, h1, h2) || contains(previous, h1, h2);
+	}
+	
+	private boolean contains(long[] bits, long h1, long h2) {
+		for (int i = 0; i < hashCount; i++) {
+			int bit = (int) (h1 + i * h2) & bitsMask;
+			if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Adds the key if it isn't already in the filter
+	 * 
+	 * @param a
+	 * @param b
+	 * @return true if the key was added
+	 */
+	public boolean addIfAbsent(long a, long b) {
+		if (contains(a, b)) {
+			return false;
+		}
+		add(a, b);
+		return true;
+	}
+	
+	/**
+	 * Gets the size of the filter in bytes
+	 * 
+	 * @return
+	 */
+	public int getSizeBytes() {
+		return (current.length + previous.length) * 8;
+	}
+	
+	private static long mix(long x) {
+		x ^= x >>> 33;
+		x *= 0xff51afd7ed558ccdL;
+		x ^= x >>> 33;
+		x *= 0xc4ceb9fe1a85ec53L;
+		x ^= x >>> 33;
+		return x;
+	}
+
+}
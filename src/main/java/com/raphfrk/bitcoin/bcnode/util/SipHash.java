@@ -0,0 +1,86 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.util;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+
+/**
+ * SipHash-2-4, a keyed hash for hash tables whose keys are chosen by peers.  Without the key, colliding 
+ * inputs can't be found any faster than by guessing.
+ */
+public class SipHash {
+	
+	private SipHash() {
+	}
+	
+	/**
+	 * Hashes a 32 byte hash followed by a little endian int, such as an outpoint
+	 * 
+	 * @param k0 the first half of the key
+	 * @param k1 the second half of the key
+	 * @param hash
+	 * @param extra
+	 * @return
+	 */
+	public static long hash(long k0, long k1, Hash256 hash, int extra) {
+		long v0 = 0x736f6d6570736575L ^ k0;
+		long v1 = 0x646f72616e646f6dL ^ k1;
+		long v2 = 0x6c7967656e657261L ^ k0;
+		long v3 = 0x7465646279746573L ^ k1;
+		// 4 words of the hash, the int with the message length in the top byte, then the finalization
+		for (int i = 0; i < 6; i++) {
+			long m;
+			int rounds = 2;
+			if (i < 4) {
+				m = Long.reverseBytes(hash.getWord(i));
+			} else if (i == 4) {
+				m = ((long) (Hash256.LENGTH + 4) << 56) | (extra & 0xFFFFFFFFL);
+			} else {
+				m = 0;
+				v2 ^= 0xff;
+				rounds = 4;
+			}
+			v3 ^= m;
+			for (int r = 0; r < rounds; r++) {
+				v0 += v1;
+				v1 = Long.rotateLeft(v1, 13);
+				v1 ^= v0;
+				v0 = Long.rotateLeft(v0, 32);
+				v2 += v3;
+				v3 = Long.rotateLeft(v3, 16);
+				v3 ^= v2;
+				v0 += v3;
+				v3 = Long.rotateLeft(v3, 21);
+				v3 ^= v0;
+				v2 += v1;
+				v1 = Long.rotateLeft(v1, 17);
+				v1 ^= v2;
+				v2 = Long.rotateLeft(v2, 32);
+			}
+			v0 ^= m;
+		}
+		return v0 ^ v1 ^ v2 ^ v3;
+	}
+
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.BlockMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.protocol.BitcoinProtocol;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.OutPoint;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+
+/**
+ * Connects a chain where the last blocks spend early coinbases, and disconnects it back as far as the 
+ * connector holds spent coins
+ */
+public class BlockConnectorTest {
+	
+	private final static int BLOCKS = UtxoSet.COINBASE_MATURITY + 6;
+	private final static int UNDO_DEPTH = 3;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private UtxoSet utxoSet;
+	private BlockConnector connector;
+	private List<StoredHeader> headers;
+	private List<BlockMessage> blocks;
+	private List<Hash256> coinbases;
+	
+	@BeforeClass
+	public static void addProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+	
+	@Before
+	public void connectChain() throws IOException {
+		BitcoinProtocol protocol = new BitcoinProtocol(ChainParams.REGTEST);
+		utxoSet = new UtxoSet(folder.newFolder("chainstate"), 1 << 20);
+		connector = new BlockConnector(utxoSet, new BlockVerifier(ChainParams.REGTEST, 1, null), UNDO_DEPTH);
+		headers = new ArrayList<StoredHeader>();
+		blocks = new ArrayList<BlockMessage>();
+		coinbases = new ArrayList<Hash256>();
+		Hash256 prev = Hash256.ZERO;
+		for (int height = 0; height < BLOCKS; height++) {
+			List<Transaction> transactions = new ArrayList<Transaction>();
+			transactions.add(ChainFixtures.getCoinbase(height));
+			coinbases.add(transactions.get(0).getHash());
+			if (height > UtxoSet.COINBASE_MATURITY) {
+				OutPoint spent = new OutPoint(coinbases.get(height - UtxoSet.COINBASE_MATURITY), 0);
+				transactions.add(ChainFixtures.getTransaction(new OutPoint[] {spent}, new long[] {1}, height));
+			}
+			BlockMessage block = ChainFixtures.getBlock(protocol, prev, transactions, height);
+			StoredHeader header = new StoredHeader(height, height, block.getHeader(), BigInteger.valueOf(height));
+			assertTrue("Block at height " + height + " was not connected", connector.connect(header, block));
+			headers.add(header);
+			blocks.add(block);
+			prev = block.getHeader().getHash();
+		}
+		assertTrue(connector.finish());
+	}
+	
+	@After
+	public void closeUtxoSet() {
+		connector.close();
+		utxoSet.close();
+	}
+	
+	@Test
+	public void disconnectToDepth() throws IOException {
+		int tip = BLOCKS - 1;
+		assertFalse(connector.disconnect(headers.get(tip - 1), blocks.get(tip - 1)));
+		assertEquals(headers.get(tip).getHash(), utxoSet.getBestBlock());
+		
+		for (int height = tip; height > tip - UNDO_DEPTH; height--) {
+			OutPoint spent = new OutPoint(coinbases.get(height - UtxoSet.COINBASE_MATURITY), 0);
+			assertNull(utxoSet.get(spent));
+			assertTrue(connector.disconnect(headers.get(height), blocks.get(height)));
+			assertEquals(headers.get(height - 1).getHash(), utxoSet.getBestBlock());
+			assertEquals(height - 1, utxoSet.getBestHeight());
+			assertNotNull(utxoSet.get(spent));
+			assertNull(utxoSet.get(new OutPoint(coinbases.get(height), 0)));
+		}
+		
+		// the spent coins of older blocks are no longer held
+		int height = tip - UNDO_DEPTH;
+		assertFalse(connector.disconnect(headers.get(height), blocks.get(height)));
+		assertEquals(headers.get(height).getHash(), utxoSet.getBestBlock());
+	}
+	
+	@Test
+	public void reconnectAfterDisconnect() throws IOException {
+		int tip = BLOCKS - 1;
+		assertTrue(connector.disconnect(headers.get(tip), blocks.get(tip)));
+		assertTrue(connector.connect(headers.get(tip), blocks.get(tip)));
+		assertTrue(connector.finish());
+		assertEquals(headers.get(tip).getHash(), utxoSet.getBestBlock());
+		assertTrue(connector.disconnect(headers.get(tip), blocks.get(tip)));
+	}
+
+}
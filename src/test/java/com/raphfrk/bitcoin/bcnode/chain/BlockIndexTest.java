@@ -0,0 +1,137 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.security.Security;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.BlockHeader;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+
+/**
+ * Checks the block index against a naive tree of parent links
+ */
+public class BlockIndexTest {
+	
+	private final static int ENTRIES = 200000;
+	
+	@BeforeClass
+	public static void addProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+	
+	@Test
+	public void randomForkedTree() {
+		Random r = new Random(1);
+		BlockIndex index = new BlockIndex();
+		BlockHeader[] headers = new BlockHeader[ENTRIES];
+		int[] parents = new int[ENTRIES];
+		int[] heights = new int[ENTRIES];
+		BigInteger[] work = new BigInteger[ENTRIES];
+		for (int i = 0; i < ENTRIES; i++) {
+			int parent = i == 0 ? BlockIndex.NONE : (r.nextInt(10) == 0 ? r.nextInt(i) : i - 1);
+			Hash256 prevHash = parent == BlockIndex.NONE ? Hash256.ZERO : headers[parent].getHash();
+			int bits = r.nextBoolean() ? 0x1d00ffff : 0x207fffff;
+			headers[i] = new BlockHeader(r.nextInt(), prevHash, getRandomHash(r), r.nextInt() & 0xFFFFFFFFL, bits, r.nextInt());
+			parents[i] = parent;
+			heights[i] = parent == BlockIndex.NONE ? 0 : heights[parent] + 1;
+			work[i] = parent == BlockIndex.NONE ? headers[i].getWork() : work[parent].add(headers[i].getWork());
+			assertEquals(i, index.add(headers[i], parent));
+		}
+		assertEquals(ENTRIES, index.size());
+		
+		for (int i = 0; i < ENTRIES; i++) {
+			assertEquals(i, index.find(headers[i].getHash()));
+			assertEquals(heights[i], index.getHeight(i));
+			assertEquals(parents[i], index.getParent(i));
+			assertEquals(work[i], index.getChainWork(i));
+			BlockHeader header = index.getHeader(i);
+			assertEquals(headers[i].getHash(), header.getHash());
+			assertEquals(headers[i].getPrevHash(), header.getPrevHash());
+			assertEquals(headers[i].getMerkleRoot(), header.getMerkleRoot());
+			assertEquals(headers[i].getVersion(), header.getVersion());
+			assertEquals(headers[i].getTime(), header.getTime());
+			assertEquals(headers[i].getBits(), header.getBits());
+			assertEquals(headers[i].getNonce(), header.getNonce());
+		}
+		assertEquals(BlockIndex.NONE, index.find(getRandomHash(r)));
+		
+		for (int k = 0; k < 20000; k++) {
+			int i = r.nextInt(ENTRIES);
+			int height = r.nextInt(heights[i] + 1);
+			int ancestor = i;
+			while (heights[ancestor] > height) {
+				ancestor = parents[ancestor];
+			}
+			assertEquals(ancestor, index.getAncestor(i, height));
+			int j = r.nextInt(ENTRIES);
+			assertEquals(Integer.signum(work[i].compareTo(work[j])), Integer.signum(index.compareWork(i, j)));
+		}
+		assertEquals(BlockIndex.NONE, index.getAncestor(ENTRIES - 1, heights[ENTRIES - 1] + 1));
+	}
+	
+	@Test
+	public void workCarry() {
+		// each header has just under 2^63 work, so the low word of the sum overflows at the third header
+		int bits = BlockHeader.encodeTarget(BigInteger.ONE.shiftLeft(193));
+		BlockIndex index = new BlockIndex();
+		BigInteger total = BigInteger.ZERO;
+		int parent = BlockIndex.NONE;
+		Hash256 prevHash = Hash256.ZERO;
+		for (int i = 0; i < 8; i++) {
+			BlockHeader header = new BlockHeader(1, prevHash, Hash256.ZERO, i, bits, i);
+			total = total.add(header.getWork());
+			parent = index.add(header, parent);
+			prevHash = header.getHash();
+			assertEquals(total, index.getChainWork(parent));
+		}
+		assertTrue(total.bitLength() > 64);
+		assertTrue(index.compareWork(parent, index.getParent(parent)) > 0);
+		assertTrue(index.compareWork(2, 1) > 0);
+	}
+	
+	@Test
+	public void status() {
+		BlockIndex index = new BlockIndex();
+		int id = index.add(new BlockHeader(1, Hash256.ZERO, Hash256.ZERO, 0, 0x207fffff, 0), BlockIndex.NONE);
+		index.setStatus(id, BlockIndex.STATUS_HEADER_VALID | BlockIndex.STATUS_FAILED);
+		index.clearStatus(id, BlockIndex.STATUS_FAILED);
+		assertEquals(BlockIndex.STATUS_HEADER_VALID, index.getStatus(id));
+		assertEquals(BlockIndex.NONE, index.getAncestor(id, -1));
+		assertEquals(id, index.getAncestor(id, 0));
+	}
+	
+	private static Hash256 getRandomHash(Random r) {
+		return new Hash256(r.nextLong(), r.nextLong(), r.nextLong(), r.nextLong());
+	}
+
+}
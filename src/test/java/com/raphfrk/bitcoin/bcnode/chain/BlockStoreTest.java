@@ -0,0 +1,101 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.BlockHeader;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+
+public class BlockStoreTest {
+	
+	private final static int MAGIC = 0x12345678;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@BeforeClass
+	public static void addProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+	
+	private static ByteBuffer block(int i) {
+		ByteBuffer block = ByteBuffer.allocate(200);
+		block.putInt(i);
+		block.clear();
+		return block;
+	}
+	
+	@Test
+	public void remove() throws IOException {
+		File dir = folder.newFolder("blocks");
+		BlockStore store = new BlockStore(dir, MAGIC);
+		Hash256[] hashes = new Hash256[3];
+		for (int i = 0; i < hashes.length; i++) {
+			ByteBuffer block = block(i);
+			hashes[i] = new BlockHeader(0, block.duplicate()).getHash();
+			assertTrue(store.put(hashes[i], block));
+		}
+		assertEquals(3, store.size());
+		
+		assertTrue(store.remove(hashes[1]));
+		assertFalse(store.remove(hashes[1]));
+		assertFalse(store.contains(hashes[1]));
+		assertNull(store.get(hashes[1]));
+		assertEquals(2, store.size());
+		store.close();
+		
+		// the removed record is skipped when the segment is scanned
+		store = new BlockStore(dir, MAGIC);
+		try {
+			assertEquals(2, store.size());
+			assertTrue(store.contains(hashes[0]));
+			assertFalse(store.contains(hashes[1]));
+			assertTrue(store.contains(hashes[2]));
+			assertEquals(block(2), store.get(hashes[2]));
+			
+			// a removed block can be stored again
+			assertTrue(store.put(hashes[1], block(1)));
+			assertEquals(block(1), store.get(hashes[1]));
+			assertEquals(3, store.size());
+		} finally {
+			store.close();
+		}
+	}
+	
+}
@@ -0,0 +1,166 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Test;
+
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.BlockMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.protocol.BitcoinProtocol;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.OutPoint;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+import com.raphfrk.bitcoin.bcnode.util.ECDSAUtils;
+
+/**
+ * Measures signature checks per second for a synthetic block of pay to public key hash inputs.  Run with 
+ * mvn test -Pbenchmark.<br>
+ * <br>
+ * The block has -Dbenchmark.inputs inputs, two per transaction, and is checked -Dbenchmark.iterations 
+ * times with one thread and with one thread per processor, and then with every signature already in the 
+ * signature cache.
+ */
+public class BlockVerifierBenchmark {
+	
+	private final static int inputs = Integer.getInteger("benchmark.inputs", 500);
+	private final static int iterations = Integer.getInteger("benchmark.iterations", 2);
+	
+	private final static int KEYS = 16;
+	
+	private final SecureRandom random = new SecureRandom();
+	
+	@Test
+	public void verify() throws Exception {
+		Security.addProvider(new BouncyCastleProvider());
+		
+		BigInteger[] keys = new BigInteger[KEYS];
+		byte[][] publicKeys = new byte[KEYS][];
+		Coin[] coins = new Coin[KEYS];
+		for (int i = 0; i < KEYS; i++) {
+			keys[i] = new BigInteger(256, random).mod(ECDSAUtils.CURVE.getN());
+			publicKeys[i] = ECDSAUtils.CURVE.getG().multiply(keys[i]).getEncoded();
+			coins[i] = new Coin(100000L, 1, false, ChainFixtures.getPayToPublicKeyHash(publicKeys[i]));
+		}
+		
+		List<Transaction> transactions = new ArrayList<Transaction>();
+		transactions.add(getTransaction(new Hash256[] {Hash256.ZERO}, new byte[][] {new byte[4]}));
+		Coin[] spent = new Coin[inputs];
+		for (int k = 0; k < inputs; k += 2) {
+			Hash256[] prevouts = new Hash256[] {getRandomHash(), getRandomHash()};
+			int[] signers = new int[] {k % KEYS, (k + 1) % KEYS};
+			byte[][] scripts = new byte[2][0];
+			Transaction unsigned = getTransaction(prevouts, scripts);
+			for (int j = 0; j < 2; j++) {
+				spent[k + j] = coins[signers[j]];
+				byte[] hash = SignatureHash.getLegacyHash(unsigned, j, coins[signers[j]].getScript(), SignatureHash.SIGHASH_ALL);
+				scripts[j] = ChainFixtures.getSignatureScript(ChainFixtures.sign(hash, keys[signers[j]]), publicKeys[signers[j]]);
+			}
+			transactions.add(getTransaction(prevouts, scripts));
+		}
+		BlockMessage block = ChainFixtures.getBlock(new BitcoinProtocol(ChainParams.REGTEST), Hash256.ZERO, transactions, 0);
+		BlockUndo undo = new BlockUndo(spent);
+		
+		Coin[] corrupt = spent.clone();
+		corrupt[0] = coins[1];
+		BlockUndo badUndo = new BlockUndo(corrupt);
+		
+		int processors = Runtime.getRuntime().availableProcessors();
+		report("Processors", processors);
+		report("Inputs", inputs);
+		for (int threads : processors > 1 ? new int[] {1, processors} : new int[] {1}) {
+			BlockVerifier verifier = new BlockVerifier(ChainParams.REGTEST, threads, null);
+			BlockVerifier.Verification verification = verifier.verify(block, 1, undo);
+			assertTrue(verification.isValid());
+			assertEquals(inputs, verification.getCheckedCount());
+			
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				assertTrue(verifier.verify(block, 1, undo).isValid());
+			}
+			long nanos = System.nanoTime() - start;
+			System.out.println("Threads: " + threads);
+			report("Block check (ms)", nanos / 1000000L / iterations);
+			report("Signatures (per s)", inputs * 1000000000L * iterations / nanos);
+			
+			start = System.nanoTime();
+			verification = verifier.verify(block, 1, badUndo);
+			assertFalse(verification.isValid());
+			report("Invalid block rejection (ms)", (System.nanoTime() - start) / 1000000L);
+			report("Signatures checked before failure", verification.getCheckedCount());
+			verifier.shutdown();
+		}
+		
+		SignatureCache cache = new SignatureCache(32L * 1024L * 1024L);
+		int k = 0;
+		for (int i = 1; i < block.getTransactionCount(); i++) {
+			Transaction tx = block.getTransaction(i);
+			for (int j = 0; j < tx.getInputCount(); j++) {
+				assertEquals(SignatureChecker.Result.VALID, SignatureChecker.check(tx, j, spent[k++], false, null, cache, true));
+			}
+		}
+		BlockVerifier verifier = new BlockVerifier(ChainParams.REGTEST, 1, cache);
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			assertTrue(verifier.verify(block, 1, undo).isValid());
+		}
+		long nanos = System.nanoTime() - start;
+		verifier.shutdown();
+		System.out.println("Cached:");
+		report("Block check (us)", nanos / 1000L / iterations);
+		report("Signatures (per s)", inputs * 1000000000L * iterations / nanos);
+		report("Cache hits", cache.getHits());
+		report("Cache misses", cache.getMisses());
+	}
+	
+	private static void report(String name, long value) {
+		System.out.println(String.format("%-36s %12d", name, value));
+	}
+	
+	private Hash256 getRandomHash() {
+		return new Hash256(random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong());
+	}
+	
+	/**
+	 * Creates a transaction with one output, spending output 0 of each prevout
+	 */
+	private static Transaction getTransaction(Hash256[] prevouts, byte[][] scripts) {
+		OutPoint[] inputs = new OutPoint[prevouts.length];
+		for (int i = 0; i < prevouts.length; i++) {
+			inputs[i] = new OutPoint(prevouts[i], prevouts[i].equals(Hash256.ZERO) ? -1 : 0);
+		}
+		byte[][] outputScripts = new byte[][] {ChainFixtures.getPayToPublicKeyHash(new byte[0])};
+		return ChainFixtures.getTransaction(inputs, scripts, new long[] {50000L}, outputScripts, 0);
+	}
+
+}
@@ -0,0 +1,239 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.BlockMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.protocol.BitcoinProtocol;
+import com.raphfrk.bitcoin.bcnode.network.elements.BlockHeader;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.OutPoint;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+import com.raphfrk.bitcoin.bcnode.network.elements.VarInt;
+import com.raphfrk.bitcoin.bcnode.util.DigestUtils;
+import com.raphfrk.bitcoin.bcnode.util.ECDSAUtils;
+
+/**
+ * Builds the synthetic transactions, blocks and headers used by the tests.  Blocks have no merkle root, and 
+ * are only mined when their header has to be added to a header chain, since the UTXO set, mempool and 
+ * verifier don't check either.
+ */
+public class ChainFixtures {
+	
+	public final static long COINBASE_VALUE = 5000000000L;
+	public final static int REGTEST_BITS = 0x207fffff;
+	
+	private ChainFixtures() {
+	}
+	
+	/**
+	 * Creates a version 1 transaction.  Every input has a sequence of 0xffffffff.
+	 * 
+	 * @param inputs
+	 * @param inputScripts the signature script of each input
+	 * @param values
+	 * @param outputScripts the public key script of each output
+	 * @param lockTime
+	 * @return
+	 */
+	public static Transaction getTransaction(OutPoint[] inputs, byte[][] inputScripts, long[] values, byte[][] outputScripts, int lockTime) {
+		int length = 4 + VarInt.getLength(0, inputs.length) + VarInt.getLength(0, values.length) + 4;
+		for (byte[] script : inputScripts) {
+			length += OutPoint.LENGTH + VarInt.getLength(0, script.length) + script.length + 4;
+		}
+		for (byte[] script : outputScripts) {
+			length += 8 + VarInt.getLength(0, script.length) + script.length;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(1);
+		VarInt.put(0, buf, inputs.length);
+		for (int i = 0; i < inputs.length; i++) {
+			inputs[i].put(0, buf);
+			VarInt.put(0, buf, inputScripts[i].length);
+			buf.put(inputScripts[i]);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(-1);
+		}
+		VarInt.put(0, buf, values.length);
+		for (int i = 0; i < values.length; i++) {
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			buf.putLong(values[i]);
+			VarInt.put(0, buf, outputScripts[i].length);
+			buf.put(outputScripts[i]);
+		}
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(lockTime);
+		buf.flip();
+		try {
+			return new Transaction(0, buf);
+		} catch (IOException e) {
+			throw new IllegalStateException("Fixture transaction is malformed", e);
+		}
+	}
+	
+	/**
+	 * Creates a transaction with a 4 byte signature script per input and a 5 byte output script per output, 
+	 * both holding the tag so that transactions are distinct.  The scripts can't be satisfied, so these 
+	 * transactions are only valid where scripts aren't checked.
+	 * 
+	 * @param inputs
+	 * @param values
+	 * @param tag
+	 * @return
+	 */
+	public static Transaction getTransaction(OutPoint[] inputs, long[] values, int tag) {
+		byte[] inputScript = new byte[] {(byte) tag, (byte) (tag >> 8), (byte) (tag >> 16), (byte) (tag >> 24)};
+		byte[][] inputScripts = new byte[inputs.length][];
+		Arrays.fill(inputScripts, inputScript);
+		byte[][] outputScripts = new byte[values.length][];
+		Arrays.fill(outputScripts, new byte[] {0x76, inputScript[0], inputScript[1], inputScript[2], inputScript[3]});
+		return getTransaction(inputs, inputScripts, values, outputScripts, 0);
+	}
+	
+	/**
+	 * Creates a coinbase transaction paying {@link #COINBASE_VALUE}, using {@link #getTransaction(OutPoint[], long[], int)}
+	 * 
+	 * @param tag
+	 * @return
+	 */
+	public static Transaction getCoinbase(int tag) {
+		return getTransaction(new OutPoint[] {new OutPoint(Hash256.ZERO, -1)}, new long[] {COINBASE_VALUE}, tag);
+	}
+	
+	/**
+	 * Creates a block.  The height is used as the block's time and nonce, so blocks with the same 
+	 * transactions at different heights are distinct.
+	 * 
+	 * @param protocol
+	 * @param prev
+	 * @param transactions
+	 * @param height
+	 * @return
+	 */
+	public static BlockMessage getBlock(BitcoinProtocol protocol, Hash256 prev, List<Transaction> transactions, int height) {
+		return getBlock(protocol, new BlockHeader(1, prev, Hash256.ZERO, height, REGTEST_BITS, height), transactions);
+	}
+	
+	/**
+	 * Creates a block with the given header
+	 * 
+	 * @param protocol
+	 * @param header
+	 * @param transactions
+	 * @return
+	 */
+	public static BlockMessage getBlock(BitcoinProtocol protocol, BlockHeader header, List<Transaction> transactions) {
+		int length = BlockHeader.LENGTH + VarInt.getLength(0, transactions.size());
+		for (Transaction tx : transactions) {
+			length += tx.getLength(0);
+		}
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		header.put(0, buf);
+		VarInt.put(0, buf, transactions.size());
+		for (Transaction tx : transactions) {
+			tx.put(0, buf);
+		}
+		return new BlockMessage(protocol, buf.array());
+	}
+	
+	/**
+	 * Mines a header which follows a parent, 600 seconds later.  This is quick at the regtest difficulty.
+	 * 
+	 * @param parent
+	 * @param salt added to the time, so that siblings are distinct
+	 * @return
+	 */
+	public static BlockHeader mine(BlockHeader parent, int salt) {
+		for (int nonce = 0; ; nonce++) {
+			BlockHeader header = new BlockHeader(1, parent.getHash(), Hash256.ZERO, parent.getTime() + 600 + salt, parent.getBits(), nonce);
+			if (header.checkProofOfWork()) {
+				return header;
+			}
+		}
+	}
+	
+	/**
+	 * Gets the pay to public key hash script for a public key
+	 * 
+	 * @param publicKey
+	 * @return
+	 */
+	public static byte[] getPayToPublicKeyHash(byte[] publicKey) {
+		ByteBuffer script = ByteBuffer.allocate(25);
+		script.put(new byte[] {0x76, (byte) 0xa9, 20});
+		script.put(DigestUtils.hash160(publicKey, 0, publicKey.length));
+		script.put(new byte[] {(byte) 0x88, (byte) 0xac});
+		return script.array();
+	}
+	
+	/**
+	 * Signs a hash with SIGHASH_ALL, using a low S value as required for standard transactions
+	 * 
+	 * @param hash
+	 * @param key
+	 * @return the DER encoded signature followed by the hash type
+	 */
+	public static byte[] sign(byte[] hash, BigInteger key) {
+		ECDSASigner signer = new ECDSASigner();
+		signer.init(true, new ECPrivateKeyParameters(key, ECDSAUtils.CURVE));
+		BigInteger[] rs = signer.generateSignature(hash);
+		BigInteger s = rs[1];
+		if (s.compareTo(ECDSAUtils.CURVE.getN().shiftRight(1)) > 0) {
+			s = ECDSAUtils.CURVE.getN().subtract(s);
+		}
+		byte[] r = rs[0].toByteArray();
+		byte[] sBytes = s.toByteArray();
+		ByteBuffer der = ByteBuffer.allocate(7 + r.length + sBytes.length);
+		der.put((byte) 0x30).put((byte) (4 + r.length + sBytes.length));
+		der.put((byte) 0x02).put((byte) r.length).put(r);
+		der.put((byte) 0x02).put((byte) sBytes.length).put(sBytes);
+		der.put((byte) SignatureHash.SIGHASH_ALL);
+		return der.array();
+	}
+	
+	/**
+	 * Gets the signature script which spends a pay to public key hash output
+	 * 
+	 * @param signature
+	 * @param publicKey
+	 * @return
+	 */
+	public static byte[] getSignatureScript(byte[] signature, byte[] publicKey) {
+		ByteBuffer script = ByteBuffer.allocate(2 + signature.length + publicKey.length);
+		script.put((byte) signature.length).put(signature);
+		script.put((byte) publicKey.length).put(publicKey);
+		return script.array();
+	}
+
+}
@@ -0,0 +1,122 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.OutPoint;
+
+public class CoinStoreTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private static void check(CoinStore store, Map<OutPoint, Coin> expected, OutPoint[] outPoints) throws IOException {
+		assertEquals(expected.size(), store.size());
+		for (OutPoint outPoint : outPoints) {
+			Coin coin = expected.get(outPoint);
+			assertEquals(coin != null, store.contains(outPoint));
+			Coin stored = store.get(outPoint);
+			if (coin == null) {
+				assertNull(stored);
+			} else {
+				assertEquals(coin.getValue(), stored.getValue());
+				assertEquals(coin.getHeight(), stored.getHeight());
+				assertTrue(Arrays.equals(coin.getScript(), stored.getScript()));
+			}
+		}
+	}
+	
+	@Test
+	public void randomBatches() throws IOException {
+		File dir = folder.newFolder("coins");
+		Random random = new Random(1);
+		// several outputs per transaction, so outpoints share their hash
+		OutPoint[] outPoints = new OutPoint[6000];
+		for (int i = 0; i < outPoints.length; i++) {
+			Hash256 hash = i % 3 == 0 ? new Hash256(random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong()) : outPoints[i - 1].getHash();
+			outPoints[i] = new OutPoint(hash, i % 3);
+		}
+		Map<OutPoint, Coin> expected = new HashMap<OutPoint, Coin>();
+		CoinStore store = new CoinStore(dir);
+		try {
+			for (int height = 0; height < 60; height++) {
+				Map<OutPoint, Coin> changes = new HashMap<OutPoint, Coin>();
+				for (int j = 0; j < 300; j++) {
+					OutPoint outPoint = outPoints[random.nextInt(outPoints.length)];
+					if (expected.containsKey(outPoint) && random.nextInt(3) != 0) {
+						changes.put(outPoint, null);
+						expected.remove(outPoint);
+					} else {
+						byte[] script = new byte[1 + random.nextInt(40)];
+						random.nextBytes(script);
+						Coin coin = new Coin(random.nextInt(1000000), height, random.nextBoolean(), script);
+						changes.put(outPoint, coin);
+						expected.put(outPoint, coin);
+					}
+				}
+				store.commit(new Hash256(0, 0, 0, height), height, changes);
+				if (height % 20 == 0) {
+					check(store, expected, outPoints);
+				}
+			}
+			check(store, expected, outPoints);
+			assertEquals(59, store.getBestHeight());
+			store.close();
+			
+			// the index is rebuilt from the log, with a new salt
+			store = new CoinStore(dir);
+			assertEquals(new Hash256(0, 0, 0, 59), store.getBestBlock());
+			check(store, expected, outPoints);
+			
+			// spending every coin empties the table
+			Map<OutPoint, Coin> changes = new HashMap<OutPoint, Coin>();
+			for (OutPoint outPoint : expected.keySet()) {
+				changes.put(outPoint, null);
+			}
+			store.commit(new Hash256(0, 0, 0, 60), 60, changes);
+			expected.clear();
+			check(store, expected, outPoints);
+			assertFalse(store.contains(outPoints[0]));
+		} finally {
+			store.close();
+		}
+	}
+	
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.Security;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.BlockHeader;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+
+public class HeaderChainTest {
+	
+	@BeforeClass
+	public static void addProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+	
+	@Test
+	public void invalidate() {
+		HeaderChain chain = new HeaderChain(ChainParams.REGTEST);
+		BlockHeader h1 = ChainFixtures.mine(ChainParams.REGTEST.getGenesis(), 0);
+		BlockHeader h2 = ChainFixtures.mine(h1, 0);
+		BlockHeader h3 = ChainFixtures.mine(h2, 0);
+		BlockHeader b2 = ChainFixtures.mine(h1, 1);
+		assertEquals(HeaderChain.Result.CONNECTED, chain.add(h1));
+		assertEquals(HeaderChain.Result.CONNECTED, chain.add(h2));
+		assertEquals(HeaderChain.Result.CONNECTED, chain.add(h3));
+		assertEquals(HeaderChain.Result.CONNECTED, chain.add(b2));
+		assertEquals(3, chain.getHeight());
+		assertEquals(h3.getHash(), chain.getTip().getHash());
+		
+		List<StoredHeader> failed = chain.invalidate(chain.get(h2.getHash()));
+		Set<Hash256> hashes = new HashSet<Hash256>();
+		for (StoredHeader header : failed) {
+			hashes.add(header.getHash());
+		}
+		assertEquals(2, failed.size());
+		assertTrue(hashes.contains(h2.getHash()));
+		assertTrue(hashes.contains(h3.getHash()));
+		
+		// the tip moves to the remaining fork
+		assertEquals(2, chain.getHeight());
+		assertEquals(b2.getHash(), chain.getTip().getHash());
+		assertEquals(h1.getHash(), chain.get(1).getHash());
+		
+		// descendants of failed headers are rejected, the fork can still be extended
+		assertEquals(HeaderChain.Result.FAILED_PARENT, chain.add(ChainFixtures.mine(h3, 0)));
+		assertTrue(HeaderChain.Result.FAILED_PARENT.isInvalid());
+		assertEquals(HeaderChain.Result.CONNECTED, chain.add(ChainFixtures.mine(b2, 0)));
+		assertEquals(3, chain.getHeight());
+		
+		// invalidating again has no effect
+		assertTrue(chain.invalidate(chain.get(h2.getHash())).isEmpty());
+		assertEquals(3, chain.getHeight());
+		
+		assertFalse(chain.get(3).getHash().equals(h3.getHash()));
+		assertNull(chain.get(4));
+	}
+	
+}
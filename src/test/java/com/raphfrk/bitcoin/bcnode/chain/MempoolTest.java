@@ -0,0 +1,258 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.BlockMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.protocol.BitcoinProtocol;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.OutPoint;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+import com.raphfrk.bitcoin.bcnode.util.ECDSAUtils;
+
+/**
+ * Checks the mempool against a UTXO set holding 130 coinbases paid to a single pay to public key hash key.  
+ * Transactions are signed for real, since the pool checks signatures.
+ */
+public class MempoolTest {
+	
+	private final static int BLOCKS = 130;
+	private final static long COINBASE_VALUE = ChainFixtures.COINBASE_VALUE;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private BitcoinProtocol protocol;
+	private BigInteger key;
+	private byte[] publicKey;
+	private byte[] script;
+	private UtxoSet utxoSet;
+	private Hash256 tip;
+	private BlockMessage lastBlock;
+	private List<Hash256> coinbases;
+	
+	@BeforeClass
+	public static void addProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+	
+	@Before
+	public void createUtxoSet() throws IOException {
+		protocol = new BitcoinProtocol(ChainParams.REGTEST);
+		key = new BigInteger(256, new Random(1)).mod(ECDSAUtils.CURVE.getN());
+		publicKey = ECDSAUtils.CURVE.getG().multiply(key).getEncoded();
+		script = ChainFixtures.getPayToPublicKeyHash(publicKey);
+		
+		utxoSet = new UtxoSet(folder.newFolder("chainstate"), 1 << 24);
+		tip = Hash256.ZERO;
+		coinbases = new ArrayList<Hash256>();
+		for (int height = 0; height < BLOCKS; height++) {
+			Transaction coinbase = getCoinbase(height);
+			coinbases.add(coinbase.getHash());
+			connect(Arrays.asList(coinbase), height);
+		}
+	}
+	
+	@After
+	public void closeUtxoSet() {
+		utxoSet.close();
+	}
+	
+	@Test
+	public void accept() throws IOException {
+		Mempool mempool = createMempool(1 << 24);
+		List<OutPoint> missing = new ArrayList<OutPoint>();
+		Transaction a = spend(1, COINBASE_VALUE - 10000, 1);
+		assertEquals(Mempool.Result.ACCEPTED, mempool.accept(a, missing));
+		assertEquals(Mempool.Result.DUPLICATE, mempool.accept(a, missing));
+		assertTrue(mempool.contains(a.getHash()));
+		assertEquals(a, mempool.get(a.getHash()));
+		
+		Transaction b = sign(new OutPoint[] {new OutPoint(a.getHash(), 0)}, new long[] {COINBASE_VALUE - 110000}, 2, false);
+		assertEquals(Mempool.Result.ACCEPTED, mempool.accept(b, missing));
+		assertEquals(b, mempool.getSpender(new OutPoint(a.getHash(), 0)));
+		
+		Transaction orphan = sign(new OutPoint[] {new OutPoint(new Hash256(1, 2, 3, 4), 0)}, new long[] {1000}, 3, false);
+		assertEquals(Mempool.Result.MISSING_INPUTS, mempool.accept(orphan, missing));
+		assertEquals(Arrays.asList(new OutPoint(new Hash256(1, 2, 3, 4), 0)), missing);
+		assertFalse(mempool.isRejected(orphan.getHash()));
+		
+		assertEquals(Mempool.Result.INVALID, mempool.accept(spend(BLOCKS - 10, COINBASE_VALUE - 10000, 4), missing));
+		assertEquals(Mempool.Result.INVALID, mempool.accept(spend(2, COINBASE_VALUE + 1, 5), missing));
+		assertEquals(Mempool.Result.INSUFFICIENT_FEE, mempool.accept(spend(3, COINBASE_VALUE - 50, 6), missing));
+		
+		Transaction badSignature = sign(new OutPoint[] {new OutPoint(coinbases.get(4), 0)}, new long[] {COINBASE_VALUE - 10000}, 7, true);
+		assertEquals(Mempool.Result.INVALID, mempool.accept(badSignature, missing));
+		assertTrue(mempool.isRejected(badSignature.getHash()));
+		assertTrue(mempool.contains(badSignature.getHash()));
+		assertNull(mempool.get(badSignature.getHash()));
+		assertEquals(2, mempool.size());
+	}
+	
+	@Test
+	public void conflicts() throws IOException {
+		Mempool mempool = createMempool(1 << 24);
+		List<OutPoint> missing = new ArrayList<OutPoint>();
+		Transaction a = spend(1, COINBASE_VALUE - 10000, 1);
+		Transaction b = sign(new OutPoint[] {new OutPoint(a.getHash(), 0)}, new long[] {COINBASE_VALUE - 110000}, 2, false);
+		Transaction c = spend(5, COINBASE_VALUE - 10000000, 3);
+		assertEquals(Mempool.Result.ACCEPTED, mempool.accept(a, missing));
+		assertEquals(Mempool.Result.ACCEPTED, mempool.accept(b, missing));
+		assertEquals(Mempool.Result.ACCEPTED, mempool.accept(c, missing));
+		assertEquals(Mempool.Result.CONFLICT, mempool.accept(spend(1, COINBASE_VALUE - 1000000, 4), missing));
+		
+		// highest ancestor fee rate first, and parents before children
+		List<Transaction> template = mempool.getBlockTemplate(1000000);
+		assertEquals(Arrays.asList(c, a, b), template);
+		
+		// a confirmed parent leaves its child in the pool
+		connect(Arrays.asList(getCoinbase(BLOCKS), a), BLOCKS);
+		mempool.removeForBlock(lastBlock, BLOCKS);
+		assertEquals(BLOCKS, mempool.getHeight());
+		assertNull(mempool.get(a.getHash()));
+		assertNotNull(mempool.get(b.getHash()));
+		
+		// a block which double spends a pool transaction removes it
+		connect(Arrays.asList(getCoinbase(BLOCKS + 1), spend(5, COINBASE_VALUE - 20000000, 5)), BLOCKS + 1);
+		mempool.removeForBlock(lastBlock, BLOCKS + 1);
+		assertNull(mempool.get(c.getHash()));
+		assertEquals(1, mempool.size());
+		
+		mempool.clear(BLOCKS);
+		assertEquals(0, mempool.size());
+		assertEquals(0, mempool.getUsage());
+		assertEquals(BLOCKS, mempool.getHeight());
+	}
+	
+	@Test
+	public void eviction() throws IOException {
+		Mempool probe = createMempool(1 << 24);
+		Transaction first = spend(10, COINBASE_VALUE - 5000, 100);
+		assertEquals(Mempool.Result.ACCEPTED, probe.accept(first, new ArrayList<OutPoint>()));
+		long entryUsage = probe.getUsage();
+		
+		// room for four transactions
+		Mempool mempool = createMempool(entryUsage * 4 + entryUsage / 2);
+		List<OutPoint> missing = new ArrayList<OutPoint>();
+		assertEquals(Mempool.MIN_RELAY_FEE_RATE, mempool.getMinFeeRate());
+		Transaction parent = spend(10, COINBASE_VALUE - 1000, 100);
+		Transaction child = sign(new OutPoint[] {new OutPoint(parent.getHash(), 0)}, new long[] {COINBASE_VALUE - 1000 - 40000}, 101, false);
+		assertEquals(Mempool.Result.ACCEPTED, mempool.accept(parent, missing));
+		assertEquals(Mempool.Result.ACCEPTED, mempool.accept(child, missing));
+		List<Transaction> singles = new ArrayList<Transaction>();
+		for (int i = 0; i < 4; i++) {
+			Transaction tx = spend(20 + i, COINBASE_VALUE - 5000 - 3000 * i, 200 + i);
+			singles.add(tx);
+			assertEquals(Mempool.Result.ACCEPTED, mempool.accept(tx, missing));
+		}
+		assertEquals(4, mempool.size());
+		assertTrue(mempool.getUsage() <= mempool.getMaxBytes());
+		
+		// the low fee parent is kept, since its child pays for it
+		assertNotNull(mempool.get(parent.getHash()));
+		assertNotNull(mempool.get(child.getHash()));
+		assertNull(mempool.get(singles.get(0).getHash()));
+		assertNull(mempool.get(singles.get(1).getHash()));
+		assertNotNull(mempool.get(singles.get(3).getHash()));
+		
+		long minFeeRate = mempool.getMinFeeRate();
+		assertTrue(minFeeRate > Mempool.MIN_RELAY_FEE_RATE);
+		Transaction cheap = spend(30, COINBASE_VALUE - 2000, 300);
+		assertEquals(Mempool.Result.INSUFFICIENT_FEE, mempool.accept(cheap, missing));
+		assertEquals(Mempool.Result.ACCEPTED, probe.accept(cheap, missing));
+	}
+	
+	private Mempool createMempool(long maxBytes) {
+		return new Mempool(utxoSet, ChainParams.REGTEST, null, maxBytes, utxoSet.getBestHeight());
+	}
+	
+	private void connect(List<Transaction> transactions, int height) throws IOException {
+		lastBlock = ChainFixtures.getBlock(protocol, tip, transactions, height);
+		assertNotNull(utxoSet.connect(lastBlock, height));
+		tip = lastBlock.getHeader().getHash();
+	}
+	
+	private Transaction spend(int coinbase, long value, int tag) throws IOException {
+		return sign(new OutPoint[] {new OutPoint(coinbases.get(coinbase), 0)}, new long[] {value}, tag, false);
+	}
+	
+	private Transaction getCoinbase(int height) {
+		byte[][] scripts = new byte[][] {new byte[] {4, 0, 0, 0, (byte) height, (byte) (height >> 8)}};
+		return getTransaction(new OutPoint[] {new OutPoint(Hash256.ZERO, -1)}, scripts, new long[] {COINBASE_VALUE}, height);
+	}
+	
+	/**
+	 * Creates a transaction which spends pay to public key hash outputs
+	 * 
+	 * @param inputs
+	 * @param values
+	 * @param tag the lock time, which keeps otherwise identical transactions distinct
+	 * @param corrupt true to sign the wrong hash
+	 * @return
+	 * @throws IOException
+	 */
+	private Transaction sign(OutPoint[] inputs, long[] values, int tag, boolean corrupt) throws IOException {
+		byte[][] scripts = new byte[inputs.length][0];
+		Transaction unsigned = getTransaction(inputs, scripts, values, tag);
+		for (int i = 0; i < inputs.length; i++) {
+			byte[] hash = SignatureHash.getLegacyHash(unsigned, i, script, SignatureHash.SIGHASH_ALL);
+			if (corrupt) {
+				hash[0] ^= 1;
+			}
+			scripts[i] = ChainFixtures.getSignatureScript(ChainFixtures.sign(hash, key), publicKey);
+		}
+		return getTransaction(inputs, scripts, values, tag);
+	}
+	
+	/**
+	 * Creates a transaction which pays every output to the test key
+	 */
+	private Transaction getTransaction(OutPoint[] inputs, byte[][] scripts, long[] values, int lockTime) {
+		byte[][] outputScripts = new byte[values.length][];
+		Arrays.fill(outputScripts, script);
+		return ChainFixtures.getTransaction(inputs, scripts, values, outputScripts, lockTime);
+	}
+
+}
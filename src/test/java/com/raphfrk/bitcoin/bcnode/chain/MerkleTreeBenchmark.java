@@ -0,0 +1,189 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.security.Security;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Test;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+import com.raphfrk.bitcoin.bcnode.util.DigestUtils;
+
+/**
+ * Times merkle root computation for blocks of different sizes.  Run with mvn test -Pbenchmark.<br>
+ * <br>
+ * Blocks of 256 transactions, and then 4 times larger, up to -Dbenchmark.transactions are hashed 
+ * -Dbenchmark.iterations times each.  A simple tree which allocates arrays per node is timed for comparison.
+ */
+public class MerkleTreeBenchmark {
+	
+	private final static int maxTransactions = Integer.getInteger("benchmark.transactions", 16384);
+	private final static int iterations = Integer.getInteger("benchmark.iterations", 50);
+	
+	@Test
+	public void merkle() throws Exception {
+		Security.addProvider(new BouncyCastleProvider());
+		
+		report("Processors", Runtime.getRuntime().availableProcessors());
+		Random random = new Random(1);
+		for (int size = 256; size <= maxTransactions; size <<= 2) {
+			ByteBuffer[] data = new ByteBuffer[size];
+			for (int i = 0; i < size; i++) {
+				data[i] = getTransaction(random);
+			}
+			Hash256[] leaves = MerkleTree.getLeaves(getTransactions(data), false);
+			Hash256 root = MerkleTree.computeRoot(leaves, false);
+			assertEquals(root, getSimpleRoot(leaves));
+			assertEquals(root, MerkleTree.computeRoot(leaves, true));
+			
+			// warm up
+			for (int i = 0; i < iterations; i++) {
+				getSimpleRoot(leaves);
+				MerkleTree.computeRoot(leaves, false);
+				MerkleTree.computeRoot(leaves, true);
+			}
+			
+			System.out.println("Transactions: " + size);
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				getSimpleRoot(leaves);
+			}
+			report("Simple root (us)", (System.nanoTime() - start) / 1000L / iterations);
+			report("Simple root allocation (bytes)", (allocatedBytes() - allocated) / iterations);
+			
+			allocated = allocatedBytes();
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				MerkleTree.computeRoot(leaves, false);
+			}
+			report("Sequential root (us)", (System.nanoTime() - start) / 1000L / iterations);
+			report("Sequential root allocation (bytes)", (allocatedBytes() - allocated) / iterations);
+			
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				MerkleTree.computeRoot(leaves, true);
+			}
+			report("Parallel root (us)", (System.nanoTime() - start) / 1000L / iterations);
+			
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				MerkleTree.build(leaves, true);
+			}
+			report("Parallel tree build (us)", (System.nanoTime() - start) / 1000L / iterations);
+			
+			long sequential = 0;
+			long parallel = 0;
+			for (int i = 0; i < iterations; i++) {
+				Transaction[] transactions = getTransactions(data);
+				start = System.nanoTime();
+				MerkleTree.getLeaves(transactions, false);
+				sequential += System.nanoTime() - start;
+				transactions = getTransactions(data);
+				start = System.nanoTime();
+				MerkleTree.getLeaves(transactions, true);
+				parallel += System.nanoTime() - start;
+			}
+			report("Sequential leaves (us)", sequential / 1000L / iterations);
+			report("Parallel leaves (us)", parallel / 1000L / iterations);
+		}
+	}
+	
+	private static void report(String name, long value) {
+		System.out.println(String.format("%-36s %12d", name, value));
+	}
+	
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+	
+	/**
+	 * Creates a transaction with one input and one output, and empty scripts
+	 * 
+	 * @param random
+	 * @return
+	 */
+	private static ByteBuffer getTransaction(Random random) {
+		ByteBuffer buf = ByteBuffer.allocate(Transaction.MIN_LENGTH);
+		buf.putInt(1);
+		buf.put((byte) 1);
+		byte[] hash = new byte[Hash256.LENGTH];
+		random.nextBytes(hash);
+		buf.put(hash);
+		buf.putInt(random.nextInt());
+		buf.put((byte) 0);
+		buf.putInt(-1);
+		buf.put((byte) 1);
+		buf.putLong(random.nextInt(Integer.MAX_VALUE));
+		buf.put((byte) 0);
+		buf.putInt(0);
+		buf.flip();
+		return buf;
+	}
+	
+	private static Transaction[] getTransactions(ByteBuffer[] data) throws IOException {
+		Transaction[] transactions = new Transaction[data.length];
+		for (int i = 0; i < data.length; i++) {
+			transactions[i] = new Transaction(0, data[i].duplicate());
+		}
+		return transactions;
+	}
+	
+	/**
+	 * Computes a root with a new array for each node
+	 * 
+	 * @param leaves
+	 * @return
+	 */
+	private static Hash256 getSimpleRoot(Hash256[] leaves) {
+		Hash256[] level = leaves;
+		while (level.length > 1) {
+			Hash256[] next = new Hash256[(level.length + 1) >> 1];
+			for (int i = 0; i < next.length; i++) {
+				Hash256 left = level[i << 1];
+				Hash256 right = (i << 1) + 1 < level.length ? level[(i << 1) + 1] : left;
+				ByteBuffer pair = ByteBuffer.allocate(64);
+				pair.put(left.getBytes());
+				pair.put(right.getBytes());
+				next[i] = new Hash256(DigestUtils.doubleSHA256(pair, 0, 64));
+			}
+			level = next;
+		}
+		return level[0];
+	}
+
+}
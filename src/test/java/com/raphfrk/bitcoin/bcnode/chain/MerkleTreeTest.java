@@ -0,0 +1,175 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.PartialMerkleTree;
+import com.raphfrk.bitcoin.bcnode.util.DigestUtils;
+
+/**
+ * Checks merkle roots, branches and partial trees against a naive recursive implementation
+ */
+public class MerkleTreeTest {
+	
+	private final static int[] SIZES = new int[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 15, 16, 17, 31, 33, 100, 1000, 2049, 5000};
+	
+	@BeforeClass
+	public static void addProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+	
+	@Test
+	public void roots() {
+		Random r = new Random(1);
+		for (int n : SIZES) {
+			Hash256[] leaves = getRandomLeaves(r, n);
+			Hash256 expected = getNaiveRoot(Arrays.asList(leaves));
+			MerkleTree tree = MerkleTree.build(leaves, true);
+			assertEquals(expected, tree.getRoot());
+			assertEquals(expected, MerkleTree.computeRoot(leaves, false));
+			assertEquals(expected, MerkleTree.computeRoot(leaves, true));
+			assertEquals(n, tree.getLeafCount());
+			assertEquals(MerkleTree.getDepth(n), tree.getDepth());
+			assertFalse(tree.isMutated());
+			assertTrue(MerkleTree.checkRoot(leaves, expected, true));
+			for (int i = 0; i < n; i += Math.max(1, n / 7)) {
+				assertEquals(expected, MerkleTree.getBranchRoot(leaves[i], tree.getBranch(i), i));
+			}
+		}
+		assertEquals(Hash256.ZERO, MerkleTree.computeRoot(new Hash256[0], false));
+	}
+	
+	@Test
+	public void mutation() {
+		// CVE-2012-2459, duplicating the last leaf of an odd level gives the same root
+		Hash256 a = new Hash256(1, 2, 3, 4);
+		Hash256 b = new Hash256(5, 6, 7, 8);
+		Hash256 c = new Hash256(9, 9, 9, 9);
+		Hash256[] odd = new Hash256[] {a, b, c};
+		Hash256[] duplicated = new Hash256[] {a, b, c, c};
+		Hash256 root = MerkleTree.computeRoot(odd, false);
+		assertEquals(root, MerkleTree.computeRoot(duplicated, false));
+		assertFalse(MerkleTree.build(odd, false).isMutated());
+		assertTrue(MerkleTree.build(duplicated, false).isMutated());
+		assertTrue(MerkleTree.checkRoot(odd, root, false));
+		assertFalse(MerkleTree.checkRoot(duplicated, root, false));
+		
+		Random r = new Random(2);
+		Hash256[] leaves = getRandomLeaves(r, 5000);
+		Hash256[] mutated = Arrays.copyOf(leaves, leaves.length + 8);
+		System.arraycopy(leaves, leaves.length - 8, mutated, leaves.length, 8);
+		Hash256 expected = MerkleTree.computeRoot(leaves, true);
+		assertEquals(expected, MerkleTree.computeRoot(mutated, true));
+		assertFalse(MerkleTree.checkRoot(mutated, expected, true));
+	}
+	
+	@Test
+	public void partialTrees() throws IOException {
+		Random r = new Random(3);
+		for (int n : SIZES) {
+			Hash256[] leaves = getRandomLeaves(r, n);
+			MerkleTree tree = MerkleTree.build(leaves, false);
+			for (int k = 0; k < 5; k++) {
+				boolean[] matches = new boolean[n];
+				List<Integer> expected = new ArrayList<Integer>();
+				for (int i = 0; i < n; i++) {
+					if (r.nextInt(k + 2) == 0 && r.nextInt(n) < 8) {
+						matches[i] = true;
+						expected.add(i);
+					}
+				}
+				PartialMerkleTree partial = tree.getPartialTree(matches);
+				ByteBuffer buf = ByteBuffer.allocate(partial.getLength(0));
+				partial.put(0, buf);
+				buf.flip();
+				PartialMerkleTree decoded = new PartialMerkleTree(0, buf);
+				assertFalse(buf.hasRemaining());
+				
+				List<Hash256> hashes = new ArrayList<Hash256>();
+				List<Integer> indexes = new ArrayList<Integer>();
+				assertEquals(tree.getRoot(), decoded.extract(hashes, indexes));
+				assertEquals(expected, indexes);
+				for (int j = 0; j < indexes.size(); j++) {
+					assertEquals(leaves[indexes.get(j)], hashes.get(j));
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void malformedPartialTrees() {
+		Hash256[] leaves = getRandomLeaves(new Random(4), 7);
+		boolean[] matches = new boolean[7];
+		matches[6] = true;
+		PartialMerkleTree partial = MerkleTree.build(leaves, false).getPartialTree(matches);
+		List<Hash256> hashes = new ArrayList<Hash256>();
+		List<Integer> indexes = new ArrayList<Integer>();
+		assertNull(new PartialMerkleTree(0, new Hash256[0], new byte[0]).extract(hashes, indexes));
+		assertNull(new PartialMerkleTree(7, new Hash256[] {leaves[0]}, new byte[] {(byte) 0xff}).extract(hashes, indexes));
+		assertNull(new PartialMerkleTree(8, new Hash256[] {leaves[0], leaves[0]}, new byte[] {0x01}).extract(hashes, indexes));
+		assertEquals(MerkleTree.computeRoot(leaves, false), partial.extract(hashes, indexes));
+	}
+	
+	private static Hash256[] getRandomLeaves(Random r, int n) {
+		Hash256[] leaves = new Hash256[n];
+		for (int i = 0; i < n; i++) {
+			leaves[i] = new Hash256(r.nextLong(), r.nextLong(), r.nextLong(), r.nextLong());
+		}
+		return leaves;
+	}
+	
+	private static Hash256 getNaiveRoot(List<Hash256> level) {
+		if (level.size() == 1) {
+			return level.get(0);
+		}
+		List<Hash256> next = new ArrayList<Hash256>();
+		for (int i = 0; i < level.size(); i += 2) {
+			Hash256 left = level.get(i);
+			Hash256 right = i + 1 < level.size() ? level.get(i + 1) : left;
+			byte[] pair = new byte[64];
+			System.arraycopy(left.getBytes(), 0, pair, 0, 32);
+			System.arraycopy(right.getBytes(), 0, pair, 32, 32);
+			next.add(new Hash256(DigestUtils.doubleSHA256(ByteBuffer.wrap(pair), 0, 64)));
+		}
+		return getNaiveRoot(next);
+	}
+
+}
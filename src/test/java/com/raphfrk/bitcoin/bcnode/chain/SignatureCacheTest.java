@@ -0,0 +1,132 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SignatureCacheTest {
+	
+	private final static int SIGNATURES = 64;
+	
+	private byte[][] hashes;
+	private byte[][] sigs;
+	private byte[][] keys;
+	
+	@Before
+	public void createSignatures() {
+		Random random = new Random(1);
+		hashes = new byte[SIGNATURES][32];
+		sigs = new byte[SIGNATURES][72];
+		keys = new byte[SIGNATURES][33];
+		for (int i = 0; i < SIGNATURES; i++) {
+			random.nextBytes(hashes[i]);
+			random.nextBytes(sigs[i]);
+			random.nextBytes(keys[i]);
+		}
+	}
+	
+	@Test
+	public void hitsAndMisses() {
+		SignatureCache cache = new SignatureCache(1 << 16);
+		assertFalse(contains(cache, 0));
+		add(cache, 0);
+		assertTrue(contains(cache, 0));
+		assertTrue(contains(cache, 0));
+		assertFalse(contains(cache, 1));
+		// the key and signature are checked over their ranges only
+		assertTrue(cache.contains(hashes[0], copy(sigs[0]), 3, sigs[0].length, copy(keys[0]), 3, keys[0].length));
+		assertFalse(cache.contains(hashes[0], keys[0], 0, keys[0].length, sigs[0], 0, sigs[0].length));
+		assertEquals(3, cache.getHits());
+		assertEquals(3, cache.getMisses());
+	}
+	
+	@Test
+	public void saltIsPerInstance() {
+		SignatureCache a = new SignatureCache(SIGNATURES * SignatureCache.SLOT_BYTES);
+		SignatureCache b = new SignatureCache(SIGNATURES * SignatureCache.SLOT_BYTES);
+		assertEquals(SIGNATURES, a.getCapacity());
+		for (int i = 0; i < SIGNATURES; i++) {
+			add(a, i);
+			add(b, i);
+		}
+		// the signatures are spread over the buckets differently, so different entries are evicted
+		boolean differ = false;
+		for (int i = 0; i < SIGNATURES; i++) {
+			differ |= contains(a, i) != contains(b, i);
+		}
+		assertTrue(differ);
+		assertFalse(contains(new SignatureCache(1 << 16), 0));
+	}
+	
+	@Test
+	public void clockEviction() {
+		SignatureCache cache = new SignatureCache(SignatureCache.WAYS * SignatureCache.SLOT_BYTES);
+		assertEquals(SignatureCache.WAYS, cache.getCapacity());
+		for (int i = 0; i < SignatureCache.WAYS; i++) {
+			add(cache, i);
+		}
+		assertTrue(contains(cache, 0));
+		assertTrue(contains(cache, 3));
+		
+		// the hand passes 0, clearing its reference, and evicts 1 and then 2
+		add(cache, 8);
+		add(cache, 9);
+		// the hand passes 3 and evicts 4, and then the unreferenced 5 to 7
+		for (int i = 10; i < 14; i++) {
+			add(cache, i);
+		}
+		// 0 was not hit again after its reference was cleared, so it is evicted when the hand wraps
+		add(cache, 14);
+		
+		boolean[] expected = new boolean[15];
+		for (int i : new int[] {3, 8, 9, 10, 11, 12, 13, 14}) {
+			expected[i] = true;
+		}
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("Signature " + i, expected[i], contains(cache, i));
+		}
+	}
+	
+	private void add(SignatureCache cache, int i) {
+		cache.add(hashes[i], sigs[i], 0, sigs[i].length, keys[i], 0, keys[i].length);
+	}
+	
+	private boolean contains(SignatureCache cache, int i) {
+		return cache.contains(hashes[i], sigs[i], 0, sigs[i].length, keys[i], 0, keys[i].length);
+	}
+	
+	private static byte[] copy(byte[] data) {
+		byte[] copy = new byte[data.length + 6];
+		System.arraycopy(data, 0, copy, 3, data.length);
+		return copy;
+	}
+
+}
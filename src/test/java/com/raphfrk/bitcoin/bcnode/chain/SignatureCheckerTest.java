@@ -0,0 +1,98 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+import com.raphfrk.bitcoin.bcnode.util.ParseUtils;
+
+public class SignatureCheckerTest {
+	
+	/**
+	 * The signed native P2WPKH example from BIP 143, spending a P2PK output and a P2WPKH output
+	 */
+	private final static String SEGWIT_TX = "01000000000102fff7f7881a8099afa6940d42d1e7f6362bec38171ea3edf433541db4e4ad969f00000000494830450221008b9d1dc26ba6a9cb62127b02742fa9d754cd3bebf337f7a55d114c8e5cdd30be022040529b194ba3f9281a99f2b1c0a19c0489bc22ede944ccf4ecbab4cc618ef3ed01eeffffffef51e1b804cc89d182d279655c3aa89e815b1b309fe287d9b2b55d57b90ec68a0100000000ffffffff02202cb206000000001976a9148280b37df378db99f66f85c95a783a76ac7a6d5988ac9093510d000000001976a9143bde42dbee7e4dbe6a21b2d50ce2f0167faa815988ac000247304402203609e17b84f6a7d30c80bfa610b5b4542f32a8a0d5447a12fb1366d7f01cc44a0220573a954c4518331561406f90300e8f3358f51928d43c212a8caed02de67eebee0121025476c2e83188368da1ff3e292e7acafcdb3566bb0ad253f62fc70f07aeee635711000000";
+	private final static String P2PK_SCRIPT = "2103c9f4836b9a4f77fc0d81f7bcb01b7f1b35916864b9476c241ce9fc198bd25432ac";
+	private final static String P2WPKH_SCRIPT = "00141d0f172a0ecb48aee1be1f2687d2963ae33f71a1";
+	
+	private Transaction tx;
+	private SignatureHash.Precomputed precomputed;
+	private Coin p2pk;
+	private Coin p2wpkh;
+	
+	@BeforeClass
+	public static void addProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+	
+	@Before
+	public void parse() throws IOException {
+		tx = new Transaction(0, ByteBuffer.wrap(ParseUtils.hexStringToBytes(SEGWIT_TX)));
+		precomputed = new SignatureHash.Precomputed(tx);
+		p2pk = new Coin(625000000L, 1, false, ParseUtils.hexStringToBytes(P2PK_SCRIPT));
+		p2wpkh = new Coin(600000000L, 1, false, ParseUtils.hexStringToBytes(P2WPKH_SCRIPT));
+	}
+	
+	@Test
+	public void valid() {
+		assertEquals(SignatureChecker.Result.VALID, SignatureChecker.check(tx, 0, p2pk, true, precomputed, null, false));
+		assertEquals(SignatureChecker.Result.VALID, SignatureChecker.check(tx, 1, p2wpkh, true, precomputed, null, false));
+	}
+	
+	@Test
+	public void invalid() {
+		// the witness hash commits to the spent value
+		Coin wrongValue = new Coin(p2wpkh.getValue() + 1, 1, false, p2wpkh.getScript());
+		assertEquals(SignatureChecker.Result.INVALID, SignatureChecker.check(tx, 1, wrongValue, true, precomputed, null, false));
+		
+		byte[] script = p2pk.getScript().clone();
+		script[5] ^= 1;
+		Coin wrongKey = new Coin(p2pk.getValue(), 1, false, script);
+		assertEquals(SignatureChecker.Result.INVALID, SignatureChecker.check(tx, 0, wrongKey, true, precomputed, null, false));
+	}
+	
+	@Test
+	public void cache() {
+		SignatureCache cache = new SignatureCache(1024 * 1024);
+		assertEquals(SignatureChecker.Result.VALID, SignatureChecker.check(tx, 1, p2wpkh, true, precomputed, cache, true));
+		assertEquals(0, cache.getHits());
+		assertEquals(SignatureChecker.Result.VALID, SignatureChecker.check(tx, 1, p2wpkh, true, precomputed, cache, false));
+		assertEquals(1, cache.getHits());
+		
+		// a cached signature must not validate a different signed hash
+		Coin wrongValue = new Coin(p2wpkh.getValue() + 1, 1, false, p2wpkh.getScript());
+		assertEquals(SignatureChecker.Result.INVALID, SignatureChecker.check(tx, 1, wrongValue, true, precomputed, cache, false));
+	}
+	
+}
@@ -0,0 +1,230 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.chain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.BlockMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.protocol.BitcoinProtocol;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.OutPoint;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+
+/**
+ * Connects a chain of synthetic blocks, where each block from height 101 spends the coinbase from 100 blocks 
+ * earlier, and checks the UTXO set after disconnects, flushes and reopens
+ */
+public class UtxoSetTest {
+	
+	private final static int BLOCKS = 200;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private BitcoinProtocol protocol;
+	private File dir;
+	private List<BlockMessage> blocks;
+	private List<Hash256> coinbases;
+	
+	@BeforeClass
+	public static void addProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+	
+	@Before
+	public void createChain() throws IOException {
+		protocol = new BitcoinProtocol(ChainParams.REGTEST);
+		dir = folder.newFolder("chainstate");
+		blocks = new ArrayList<BlockMessage>();
+		coinbases = new ArrayList<Hash256>();
+		Hash256 prev = Hash256.ZERO;
+		for (int height = 0; height < BLOCKS; height++) {
+			List<Transaction> transactions = new ArrayList<Transaction>();
+			Transaction coinbase = ChainFixtures.getCoinbase(height);
+			transactions.add(coinbase);
+			coinbases.add(coinbase.getHash());
+			if (height > UtxoSet.COINBASE_MATURITY) {
+				Transaction spend = ChainFixtures.getTransaction(new OutPoint[] {new OutPoint(coinbases.get(height - UtxoSet.COINBASE_MATURITY), 0)}, new long[] {1, 2}, height);
+				transactions.add(spend);
+				transactions.add(ChainFixtures.getTransaction(new OutPoint[] {new OutPoint(spend.getHash(), 0)}, new long[] {3}, height));
+			}
+			BlockMessage block = ChainFixtures.getBlock(protocol, prev, transactions, height);
+			blocks.add(block);
+			prev = block.getHeader().getHash();
+		}
+	}
+	
+	@Test
+	public void connectAndDisconnect() throws IOException {
+		UtxoSet utxoSet = new UtxoSet(dir, 1 << 20);
+		assertEquals(Hash256.ZERO, utxoSet.getBestBlock());
+		assertEquals(-1, utxoSet.getBestHeight());
+		List<BlockUndo> undos = connect(utxoSet, 0, BLOCKS);
+		assertEquals(BLOCKS - 1, utxoSet.getBestHeight());
+		assertEquals(getTip().getHeader().getHash(), utxoSet.getBestBlock());
+		// genesis outputs are never added
+		assertNull(utxoSet.get(new OutPoint(coinbases.get(0), 0)));
+		assertEquals(100, countUnspentCoinbases(utxoSet));
+		
+		Transaction spend = blocks.get(150).getTransaction(1);
+		Coin change = utxoSet.get(new OutPoint(spend.getHash(), 1));
+		assertNotNull(change);
+		assertEquals(2, change.getValue());
+		assertEquals(150, change.getHeight());
+		assertFalse(change.isCoinbase());
+		assertNull(utxoSet.get(new OutPoint(spend.getHash(), 0)));
+		
+		for (int height = BLOCKS - 1; height >= 150; height--) {
+			utxoSet.disconnect(blocks.get(height), undos.get(height));
+		}
+		assertEquals(149, utxoSet.getBestHeight());
+		assertEquals(blocks.get(149).getHeader().getHash(), utxoSet.getBestBlock());
+		assertNull(utxoSet.get(new OutPoint(spend.getHash(), 1)));
+		for (int height = 150; height < BLOCKS; height++) {
+			assertNull(utxoSet.get(new OutPoint(coinbases.get(height), 0)));
+		}
+		// the coinbases spent by the disconnected blocks are restored
+		for (int height = 50; height < 150; height++) {
+			assertNotNull(utxoSet.get(new OutPoint(coinbases.get(height), 0)));
+		}
+		utxoSet.close();
+	}
+	
+	@Test
+	public void rejectedBlocksLeaveTheSetUnchanged() throws IOException {
+		UtxoSet utxoSet = new UtxoSet(dir, 1 << 20);
+		connect(utxoSet, 0, BLOCKS);
+		Hash256 tip = getTip().getHeader().getHash();
+		
+		List<Transaction> transactions = new ArrayList<Transaction>();
+		transactions.add(ChainFixtures.getCoinbase(1000));
+		transactions.add(ChainFixtures.getTransaction(new OutPoint[] {new OutPoint(coinbases.get(150), 0)}, new long[] {1}, 1000));
+		assertNull(utxoSet.connect(ChainFixtures.getBlock(protocol, tip, transactions, BLOCKS), BLOCKS));
+		assertNotNull(utxoSet.get(new OutPoint(coinbases.get(150), 0)));
+		
+		// the first spend succeeds before the second transaction finds a missing input
+		transactions = new ArrayList<Transaction>();
+		transactions.add(ChainFixtures.getCoinbase(1001));
+		Transaction spend = ChainFixtures.getTransaction(new OutPoint[] {new OutPoint(coinbases.get(100), 0)}, new long[] {1, 2}, 1001);
+		transactions.add(spend);
+		transactions.add(ChainFixtures.getTransaction(new OutPoint[] {new OutPoint(spend.getHash(), 0), new OutPoint(new Hash256(1, 1, 1, 1), 0)}, new long[] {1}, 1001));
+		assertNull(utxoSet.connect(ChainFixtures.getBlock(protocol, tip, transactions, BLOCKS), BLOCKS));
+		assertNotNull(utxoSet.get(new OutPoint(coinbases.get(100), 0)));
+		assertNull(utxoSet.get(new OutPoint(spend.getHash(), 0)));
+		assertNull(utxoSet.get(new OutPoint(spend.getHash(), 1)));
+		assertEquals(tip, utxoSet.getBestBlock());
+		assertEquals(BLOCKS - 1, utxoSet.getBestHeight());
+		utxoSet.close();
+	}
+	
+	@Test
+	public void flushAndReopen() throws IOException {
+		UtxoSet utxoSet = new UtxoSet(dir, 1 << 20);
+		connect(utxoSet, 0, 120);
+		utxoSet.flush();
+		assertEquals(0, utxoSet.getCacheSize());
+		assertEquals(0, utxoSet.getCacheBytes());
+		assertNotNull(utxoSet.get(new OutPoint(coinbases.get(119), 0)));
+		assertNull(utxoSet.get(new OutPoint(coinbases.get(10), 0)));
+		connect(utxoSet, 120, BLOCKS);
+		utxoSet.close();
+		
+		utxoSet = new UtxoSet(dir, 1 << 20);
+		assertEquals(getTip().getHeader().getHash(), utxoSet.getBestBlock());
+		assertEquals(BLOCKS - 1, utxoSet.getBestHeight());
+		assertEquals(100, countUnspentCoinbases(utxoSet));
+		Coin coin = utxoSet.get(new OutPoint(coinbases.get(150), 0));
+		assertEquals(ChainFixtures.COINBASE_VALUE, coin.getValue());
+		assertEquals(150, coin.getHeight());
+		assertTrue(coin.isCoinbase());
+		utxoSet.close();
+	}
+	
+	@Test
+	public void tornBatchIsDiscarded() throws IOException {
+		UtxoSet utxoSet = new UtxoSet(dir, 1 << 20);
+		connect(utxoSet, 0, 120);
+		utxoSet.flush();
+		connect(utxoSet, 120, BLOCKS);
+		utxoSet.close();
+		
+		RandomAccessFile raf = new RandomAccessFile(new File(dir, "coins.dat"), "rw");
+		try {
+			raf.setLength(raf.length() - 3);
+		} finally {
+			raf.close();
+		}
+		utxoSet = new UtxoSet(dir, 1 << 20);
+		assertEquals(blocks.get(119).getHeader().getHash(), utxoSet.getBestBlock());
+		assertEquals(119, utxoSet.getBestHeight());
+		assertNotNull(utxoSet.get(new OutPoint(coinbases.get(119), 0)));
+		assertNull(utxoSet.get(new OutPoint(coinbases.get(120), 0)));
+		connect(utxoSet, 120, BLOCKS);
+		assertEquals(100, countUnspentCoinbases(utxoSet));
+		utxoSet.close();
+	}
+	
+	private List<BlockUndo> connect(UtxoSet utxoSet, int start, int end) throws IOException {
+		List<BlockUndo> undos = new ArrayList<BlockUndo>();
+		for (int height = start; height < end; height++) {
+			BlockUndo undo = utxoSet.connect(blocks.get(height), height);
+			assertNotNull("Block at height " + height + " was not connected", undo);
+			undos.add(undo);
+		}
+		return undos;
+	}
+	
+	private int countUnspentCoinbases(UtxoSet utxoSet) throws IOException {
+		int count = 0;
+		for (int height = 0; height < BLOCKS; height++) {
+			if (utxoSet.get(new OutPoint(coinbases.get(height), 0)) != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	private BlockMessage getTip() {
+		return blocks.get(blocks.size() - 1);
+	}
+
+}
@@ -0,0 +1,58 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class NetworkMetricsTest {
+	
+	@Test
+	public void unregisteredCommandsShareOneEntry() {
+		NetworkMetrics metrics = new NetworkMetrics();
+		metrics.registerCommands(Arrays.asList("ping", "pong"));
+		int entries = metrics.snapshot().size();
+		
+		CommandMetrics unknown = metrics.getCommand(NetworkMetrics.UNKNOWN_COMMAND);
+		for (int i = 0; i < 1000; i++) {
+			assertSame(unknown, metrics.getCommand("junk" + i));
+			metrics.onMessageHandled("junk" + i, i);
+		}
+		metrics.onMessageHandled("ping", 5);
+		
+		Map<String, Long> snapshot = metrics.snapshot();
+		assertEquals(entries, snapshot.size());
+		assertFalse(snapshot.containsKey("command.junk0.in.messages"));
+		assertEquals(1000, unknown.getHandlerTime().getCount());
+		assertEquals(1, metrics.getCommand("ping").getHandlerTime().getCount());
+		assertEquals(0, metrics.getCommand("pong").getHandlerTime().getCount());
+	}
+
+}
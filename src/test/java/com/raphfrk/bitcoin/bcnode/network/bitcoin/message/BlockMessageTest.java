@@ -0,0 +1,153 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.raphfrk.bitcoin.bcnode.chain.ChainParams;
+import com.raphfrk.bitcoin.bcnode.chain.MerkleTree;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.protocol.BitcoinProtocol;
+import com.raphfrk.bitcoin.bcnode.network.elements.BlockHeader;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+import com.raphfrk.bitcoin.bcnode.util.DigestUtils;
+import com.raphfrk.bitcoin.bcnode.util.ParseUtils;
+
+public class BlockMessageTest {
+	
+	/**
+	 * The signed native P2WPKH example from BIP 143
+	 */
+	private final static String SEGWIT_TX = "01000000000102fff7f7881a8099afa6940d42d1e7f6362bec38171ea3edf433541db4e4ad969f00000000494830450221008b9d1dc26ba6a9cb62127b02742fa9d754cd3bebf337f7a55d114c8e5cdd30be022040529b194ba3f9281a99f2b1c0a19c0489bc22ede944ccf4ecbab4cc618ef3ed01eeffffffef51e1b804cc89d182d279655c3aa89e815b1b309fe287d9b2b55d57b90ec68a0100000000ffffffff02202cb206000000001976a9148280b37df378db99f66f85c95a783a76ac7a6d5988ac9093510d000000001976a9143bde42dbee7e4dbe6a21b2d50ce2f0167faa815988ac000247304402203609e17b84f6a7d30c80bfa610b5b4542f32a8a0d5447a12fb1366d7f01cc44a0220573a954c4518331561406f90300e8f3358f51928d43c212a8caed02de67eebee0121025476c2e83188368da1ff3e292e7acafcdb3566bb0ad253f62fc70f07aeee635711000000";
+	
+	private BitcoinProtocol protocol;
+	private Transaction segwit;
+	
+	@BeforeClass
+	public static void addProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+	
+	@Before
+	public void setup() throws IOException {
+		protocol = new BitcoinProtocol(ChainParams.REGTEST);
+		segwit = new Transaction(0, ByteBuffer.wrap(ParseUtils.hexStringToBytes(SEGWIT_TX)));
+	}
+	
+	/**
+	 * Builds a coinbase with a witness reserved value and, if the commitment is not null, a commitment output
+	 * 
+	 * @param commitment
+	 * @return
+	 * @throws IOException
+	 */
+	private static Transaction getCoinbase(byte[] commitment) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(200);
+		buf.put(new byte[] {1, 0, 0, 0, 0, 1, 1});
+		buf.put(new byte[Hash256.LENGTH]);
+		buf.put(new byte[] {-1, -1, -1, -1, 2, 0x51, 0x51, -1, -1, -1, -1});
+		buf.put((byte) (commitment == null ? 1 : 2));
+		buf.put(new byte[] {0, (byte) 0xf2, 0x05, 0x2a, 1, 0, 0, 0, 1, 0x51});
+		if (commitment != null) {
+			buf.put(new byte[] {0, 0, 0, 0, 0, 0, 0, 0, 38, 0x6a, 0x24, (byte) 0xaa, 0x21, (byte) 0xa9, (byte) 0xed});
+			buf.put(commitment);
+		}
+		buf.put(new byte[] {1, Hash256.LENGTH});
+		buf.put(new byte[Hash256.LENGTH]);
+		buf.put(new byte[] {0, 0, 0, 0});
+		buf.flip();
+		return new Transaction(0, buf);
+	}
+	
+	private BlockMessage getBlock(Transaction... transactions) {
+		Hash256[] leaves = MerkleTree.getLeaves(transactions, false);
+		BlockHeader header = new BlockHeader(1, Hash256.ZERO, MerkleTree.computeRoot(leaves, false), 0, 0x207fffff, 0);
+		ByteBuffer buf = ByteBuffer.allocate(BlockHeader.LENGTH + 1 + 1000);
+		header.put(0, buf);
+		buf.put((byte) transactions.length);
+		for (Transaction tx : transactions) {
+			tx.put(0, buf);
+		}
+		buf.flip();
+		return new BlockMessage(protocol, buf);
+	}
+	
+	private byte[] getCommitment() {
+		Hash256 root = MerkleTree.computeRoot(new Hash256[] {Hash256.ZERO, segwit.getWitnessHash()}, false);
+		return DigestUtils.doubleSHA256(new ByteBuffer[] {ByteBuffer.wrap(root.getBytes()), ByteBuffer.wrap(new byte[Hash256.LENGTH])});
+	}
+	
+	@Test
+	public void witnessCommitment() throws IOException {
+		BlockMessage block = getBlock(getCoinbase(getCommitment()), segwit);
+		assertTrue(block.checkMerkleRoot());
+		assertTrue(block.checkWitnessCommitment(true));
+		
+		// witnesses are not allowed before activation
+		assertFalse(block.checkWitnessCommitment(false));
+		
+		// witnesses are not allowed without a commitment
+		assertFalse(getBlock(getCoinbase(null), segwit).checkWitnessCommitment(true));
+		
+		// changed witness data breaks the commitment, but not the merkle root
+		byte[] commitment = getCommitment();
+		commitment[0] ^= 1;
+		BlockMessage altered = getBlock(getCoinbase(commitment), segwit);
+		assertTrue(altered.checkMerkleRoot());
+		assertFalse(altered.checkWitnessCommitment(true));
+	}
+	
+	@Test
+	public void withoutWitness() throws IOException {
+		Transaction coinbase = getCoinbase(getCommitment());
+		BlockMessage block = getBlock(coinbase, segwit);
+		BlockMessage stripped = block.withoutWitness();
+		
+		assertEquals(block.getHeader().getHash(), stripped.getHeader().getHash());
+		assertEquals(2, stripped.getTransactionCount());
+		assertEquals(getBlock(coinbase.withoutWitness(), segwit.withoutWitness()).getData(), stripped.getData());
+		assertEquals(stripped.getData().remaining(), stripped.getLength(0));
+		for (int i = 0; i < 2; i++) {
+			assertFalse(stripped.getTransaction(i).hasWitness());
+			assertEquals(block.getTransaction(i).getHash(), stripped.getTransaction(i).getHash());
+		}
+		assertTrue(stripped.checkMerkleRoot());
+		assertTrue(stripped.checkWitnessCommitment(false));
+		
+		// blocks without witnesses are sent as they are
+		assertTrue(stripped == stripped.withoutWitness());
+	}
+	
+}
@@ -0,0 +1,172 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.raphfrk.bitcoin.bcnode.chain.ChainFixtures;
+import com.raphfrk.bitcoin.bcnode.chain.ChainParams;
+import com.raphfrk.bitcoin.bcnode.chain.HeaderChain;
+import com.raphfrk.bitcoin.bcnode.chain.StoredHeader;
+import com.raphfrk.bitcoin.bcnode.config.Config;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.BlockMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.protocol.BitcoinProtocol;
+import com.raphfrk.bitcoin.bcnode.network.elements.BlockHeader;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+
+/**
+ * Downloads a short header chain from peers which are never connected.  Their getdata requests stay queued, 
+ * and the blocks are passed to the downloader directly.
+ */
+public class BlockDownloaderTest {
+	
+	private final static int BLOCKS = 6;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private final BlockingQueue<Integer> consumed = new LinkedBlockingQueue<Integer>();
+	private BitcoinP2PManager manager;
+	private BlockDownloader downloader;
+	private List<BlockMessage> blocks;
+	private int nextPort = 18444;
+	
+	@BeforeClass
+	public static void addProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+	
+	@Before
+	public void startDownload() throws IOException {
+		manager = new BitcoinP2PManager(folder.newFolder("data"), ChainParams.REGTEST, 0);
+		BitcoinProtocol protocol = (BitcoinProtocol) manager.getProtocol();
+		HeaderChain chain = new HeaderChain(ChainParams.REGTEST);
+		blocks = new ArrayList<BlockMessage>();
+		blocks.add(null);
+		BlockHeader header = ChainParams.REGTEST.getGenesis();
+		for (int height = 1; height <= BLOCKS; height++) {
+			header = ChainFixtures.mine(header, 0);
+			assertEquals(HeaderChain.Result.CONNECTED, chain.add(header));
+			blocks.add(ChainFixtures.getBlock(protocol, header, Arrays.<Transaction>asList(ChainFixtures.getCoinbase(height))));
+		}
+		downloader = new BlockDownloader(manager, chain);
+		downloader.start(new BlockConsumer() {
+			@Override
+			public void onBlock(StoredHeader header, BlockMessage block) {
+				consumed.add(header.getHeight());
+			}
+		}, 0);
+	}
+	
+	@After
+	public void shutdown() {
+		downloader.shutdown();
+		manager.onShutdown();
+		manager.getMetrics().unregister();
+	}
+	
+	@Test
+	public void inOrderDelivery() throws InterruptedException, IOException {
+		BitcoinPeer peer = createPeer();
+		assertEquals(BLOCKS, downloader.getInFlight(peer));
+		
+		downloader.onBlock(peer, blocks.get(3));
+		downloader.onBlock(peer, blocks.get(2));
+		assertNull(consumed.poll(100, TimeUnit.MILLISECONDS));
+		downloader.onBlock(peer, blocks.get(1));
+		assertConsumed(1, 2, 3);
+		
+		// duplicates are ignored
+		downloader.onBlock(peer, blocks.get(2));
+		downloader.onBlock(peer, blocks.get(6));
+		downloader.onBlock(peer, blocks.get(6));
+		downloader.onBlock(peer, blocks.get(4));
+		assertConsumed(4);
+		downloader.onBlock(peer, blocks.get(5));
+		assertConsumed(5, 6);
+		assertNull(consumed.poll(100, TimeUnit.MILLISECONDS));
+		assertEquals(0, downloader.getInFlight());
+	}
+	
+	@Test
+	public void stalledRequestIsMoved() throws InterruptedException, IOException {
+		BitcoinPeer slow = createPeer();
+		BitcoinPeer fast = createPeer();
+		assertEquals(BLOCKS, downloader.getInFlight(slow));
+		assertEquals(0, downloader.getInFlight(fast));
+		
+		long stallTimeout = TimeUnit.MILLISECONDS.toNanos(Config.BLOCK_STALL_TIMEOUT.get());
+		downloader.checkStalled(System.nanoTime());
+		assertEquals(BLOCKS, downloader.getInFlight(slow));
+		
+		// only the block at the start of the window is moved
+		downloader.checkStalled(System.nanoTime() + stallTimeout + 1);
+		assertEquals(BLOCKS - 1, downloader.getInFlight(slow));
+		assertEquals(1, downloader.getInFlight(fast));
+		downloader.onBlock(fast, blocks.get(1));
+		assertConsumed(1);
+		assertEquals(0, downloader.getInFlight(fast));
+		
+		// the requests of a closed peer go to the remaining peers
+		downloader.onPeerClosed(slow);
+		assertEquals(BLOCKS - 1, downloader.getInFlight(fast));
+		for (int height = 2; height <= BLOCKS; height++) {
+			downloader.onBlock(fast, blocks.get(height));
+		}
+		assertConsumed(2, 3, 4, 5, 6);
+	}
+	
+	private void assertConsumed(int... heights) throws InterruptedException {
+		for (int height : heights) {
+			assertEquals(Integer.valueOf(height), consumed.poll(5, TimeUnit.SECONDS));
+		}
+	}
+	
+	private BitcoinPeer createPeer() throws IOException {
+		BitcoinPeer peer = new BitcoinPeer(nextPort, new InetSocketAddress("127.0.0.1", nextPort++), manager);
+		peer.setServices(BitcoinPeer.NODE_NETWORK);
+		downloader.onPeerReady(peer);
+		return peer;
+	}
+
+}
@@ -0,0 +1,185 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.OutPoint;
+import com.raphfrk.bitcoin.bcnode.network.elements.Transaction;
+
+/**
+ * Checks the orphan pool limits.  Orphans are added without a peer, so they all count against one quota.
+ */
+public class OrphanPoolTest {
+	
+	private final static long EXPIRE_TIME = 20 * 60 * 1000;
+	
+	private final ScheduledExecutorService timer = new ScheduledThreadPoolExecutor(1);
+	
+	@BeforeClass
+	public static void addProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+	
+	@After
+	public void stopTimer() {
+		timer.shutdownNow();
+	}
+	
+	@Test
+	public void peerQuota() throws IOException {
+		OrphanPool pool = new OrphanPool(timer, 1 << 20, 5);
+		Transaction parent = getTransaction(new Hash256(9, 9, 9, 9), 0, 10);
+		List<Transaction> children = new ArrayList<Transaction>();
+		for (int i = 0; i < 8; i++) {
+			Transaction child = getTransaction(parent.getHash(), i, 100);
+			children.add(child);
+			assertTrue(pool.add(null, child, getMissing(parent)));
+		}
+		assertEquals(5, pool.size());
+		// the oldest orphans are evicted first
+		for (int i = 0; i < 8; i++) {
+			assertEquals(i >= 3, pool.contains(children.get(i).getHash()));
+		}
+		assertFalse(pool.add(null, children.get(7), getMissing(parent)));
+		
+		List<OrphanPool.Orphan> removed = pool.removeChildren(parent);
+		assertEquals(5, removed.size());
+		assertEquals(0, pool.size());
+		assertEquals(0, pool.getBytes());
+	}
+	
+	@Test
+	public void singleOrphanQuota() throws IOException {
+		OrphanPool pool = new OrphanPool(timer, 1 << 20, 1);
+		Transaction parent = getTransaction(new Hash256(9, 9, 9, 9), 0, 10);
+		Transaction last = null;
+		for (int i = 0; i < 4; i++) {
+			last = getTransaction(parent.getHash(), i, 100);
+			assertTrue(pool.add(null, last, getMissing(parent)));
+			assertEquals(1, pool.size());
+		}
+		assertTrue(pool.contains(last.getHash()));
+		assertEquals(last.getLength(0), pool.getBytes());
+		
+		assertFalse(new OrphanPool(timer, 1 << 20, 0).add(null, last, getMissing(parent)));
+	}
+	
+	@Test
+	public void byteLimit() throws IOException {
+		OrphanPool pool = new OrphanPool(timer, 10000, 100);
+		for (int i = 0; i < 10; i++) {
+			Hash256 parent = new Hash256(1, 1, 1, i + 1);
+			pool.add(null, getTransaction(parent, i, 3000), Arrays.asList(new OutPoint(parent, 0)));
+			assertTrue(pool.getBytes() <= 10000);
+		}
+		assertEquals(3, pool.size());
+		assertTrue(pool.contains(getTransaction(new Hash256(1, 1, 1, 10), 9, 3000).getHash()));
+		
+		assertFalse(pool.add(null, getTransaction(new Hash256(2, 2, 2, 2), 0, 20000), Arrays.asList(new OutPoint(new Hash256(2, 2, 2, 2), 0))));
+		assertEquals(3, pool.size());
+	}
+	
+	@Test
+	public void expiry() throws IOException {
+		OrphanPool pool = new OrphanPool(timer, 1 << 20, 100);
+		Transaction parent = getTransaction(new Hash256(9, 9, 9, 9), 0, 10);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 3; i++) {
+			pool.add(null, getTransaction(parent.getHash(), i, 100), getMissing(parent));
+		}
+		assertEquals(0, pool.expire(start));
+		assertEquals(3, pool.size());
+		assertEquals(3, pool.expire(System.currentTimeMillis() + EXPIRE_TIME + 1));
+		assertEquals(0, pool.size());
+		assertEquals(0, pool.getBytes());
+		assertTrue(pool.add(null, getTransaction(parent.getHash(), 0, 100), getMissing(parent)));
+	}
+	
+	@Test
+	public void peerClosed() throws IOException {
+		OrphanPool pool = new OrphanPool(timer, 1 << 20, 100);
+		Transaction parent = getTransaction(new Hash256(9, 9, 9, 9), 0, 10);
+		for (int i = 0; i < 3; i++) {
+			pool.add(null, getTransaction(parent.getHash(), i, 100), getMissing(parent));
+		}
+		pool.onPeerClosed(null);
+		assertEquals(0, pool.size());
+		assertEquals(0, pool.getBytes());
+		assertTrue(pool.removeChildren(parent).isEmpty());
+	}
+	
+	private static List<OutPoint> getMissing(Transaction parent) {
+		return Arrays.asList(new OutPoint(parent.getHash(), 0));
+	}
+	
+	/**
+	 * Creates a transaction which spends output 0 of a parent
+	 * 
+	 * @param parent
+	 * @param tag the output script, which keeps otherwise identical transactions distinct
+	 * @param padding the length of the signature script
+	 * @return
+	 * @throws IOException
+	 */
+	private static Transaction getTransaction(Hash256 parent, int tag, int padding) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(4 + 1 + 36 + 3 + padding + 4 + 1 + 8 + 1 + 4 + 4);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(1);
+		buf.put((byte) 1);
+		parent.put(0, buf);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(0);
+		buf.put((byte) 0xfd);
+		buf.putShort((short) padding);
+		buf.put(new byte[padding]);
+		buf.putInt(-1);
+		buf.put((byte) 1);
+		buf.putLong(1);
+		buf.put((byte) 4);
+		buf.putInt(tag);
+		buf.putInt(0);
+		buf.flip();
+		return new Transaction(0, buf);
+	}
+
+}
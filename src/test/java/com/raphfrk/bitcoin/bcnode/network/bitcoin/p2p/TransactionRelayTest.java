@@ -0,0 +1,193 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.Security;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.raphfrk.bitcoin.bcnode.chain.ChainParams;
+import com.raphfrk.bitcoin.bcnode.chain.Mempool;
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+import com.raphfrk.bitcoin.bcnode.network.elements.InventoryVector;
+
+/**
+ * Checks which queued transactions are announced.  The manager is never started, so the peers are not 
+ * connected and their messages stay queued.  Fee rates come from a stub mempool.
+ */
+public class TransactionRelayTest {
+	
+	/**
+	 * A mean relay interval long enough that the timer never flushes during a test
+	 */
+	private final static long INTERVAL = 1L << 40;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private final ConcurrentHashMap<Hash256, Long> feeRates = new ConcurrentHashMap<Hash256, Long>();
+	private BitcoinP2PManager manager;
+	private TransactionRelay relay;
+	private int nextPort = 18444;
+	
+	@BeforeClass
+	public static void addProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+	
+	@Before
+	public void createRelay() throws IOException {
+		manager = new BitcoinP2PManager(folder.newFolder("data"), ChainParams.REGTEST, 0);
+		Mempool mempool = new Mempool(manager.getUtxoSet(), ChainParams.REGTEST, null, 1 << 20, 0) {
+			@Override
+			public long getFeeRate(Hash256 hash) {
+				Long feeRate = feeRates.get(hash);
+				return feeRate == null ? -1 : feeRate;
+			}
+		};
+		relay = new TransactionRelay(manager, mempool, INTERVAL);
+	}
+	
+	@After
+	public void shutdown() {
+		manager.onShutdown();
+		manager.getMetrics().unregister();
+	}
+	
+	@Test
+	public void knownInventoryIsDropped() throws IOException {
+		BitcoinPeer a = createPeer(true);
+		BitcoinPeer b = createPeer(true);
+		BitcoinPeer quiet = createPeer(false);
+		Hash256 h1 = addTransaction(1, 5000);
+		Hash256 h2 = addTransaction(2, 5000);
+		Hash256 h3 = addTransaction(3, 5000);
+		
+		a.getAnnouncements().markKnown(getInv(h1));
+		relay.relay(h1);
+		relay.relay(h2);
+		relay.relay(h3);
+		// learnt while queued, and removed from the mempool while queued
+		b.getAnnouncements().markKnown(getInv(h2));
+		feeRates.remove(h3);
+		
+		relay.flush(a);
+		assertEquals(1, relay.getAnnouncedCount());
+		assertTrue(a.getAnnouncements().isKnown(getInv(h2)));
+		assertFalse(a.getAnnouncements().isKnown(getInv(h3)));
+		relay.flush(b);
+		assertEquals(2, relay.getAnnouncedCount());
+		assertTrue(b.getAnnouncements().isKnown(getInv(h1)));
+		relay.flush(quiet);
+		assertEquals(2, relay.getAnnouncedCount());
+		assertEquals(2, relay.getMessageCount());
+		
+		// already announced
+		relay.relay(h2);
+		relay.flush(a);
+		assertEquals(2, relay.getAnnouncedCount());
+		
+		relay.onPeerClosed(b);
+		relay.relay(addTransaction(4, 5000));
+		relay.flush(b);
+		assertEquals(2, relay.getAnnouncedCount());
+		relay.flush(a);
+		assertEquals(3, relay.getAnnouncedCount());
+	}
+	
+	@Test
+	public void feeFilter() throws IOException {
+		BitcoinPeer peer = createPeer(true);
+		peer.setFeeFilter(2000);
+		Hash256 cheap = addTransaction(1, 1999);
+		Hash256 exact = addTransaction(2, 2000);
+		Hash256 high = addTransaction(3, 3000);
+		relay.relay(cheap);
+		relay.relay(exact);
+		relay.relay(high);
+		relay.flush(peer);
+		assertEquals(2, relay.getAnnouncedCount());
+		assertFalse(peer.getAnnouncements().isKnown(getInv(cheap)));
+		assertTrue(peer.getAnnouncements().isKnown(getInv(exact)));
+		assertTrue(peer.getAnnouncements().isKnown(getInv(high)));
+	}
+	
+	@Test
+	public void feeFilterBuckets() {
+		long base = Mempool.MIN_RELAY_FEE_RATE / 2;
+		assertEquals(0, TransactionRelay.roundFeeFilter(0, 0.9));
+		assertEquals(0, TransactionRelay.roundFeeFilter(base - 1, 0.9));
+		assertEquals(base, TransactionRelay.roundFeeFilter(base, 0.1));
+		
+		Set<Long> buckets = new HashSet<Long>();
+		long last = 0;
+		for (long feeRate = base; feeRate < base * 100; feeRate += 7) {
+			long rounded = TransactionRelay.roundFeeFilter(feeRate, 0.9);
+			assertTrue(rounded <= feeRate);
+			assertTrue(feeRate < (rounded + 1) * 1.1);
+			assertTrue(rounded >= last);
+			last = rounded;
+			buckets.add(rounded);
+			
+			// two times in three the bucket below is sent
+			long lower = TransactionRelay.roundFeeFilter(feeRate, 0.1);
+			assertEquals(rounded == base ? base : TransactionRelay.roundFeeFilter(rounded - 1, 0.9), lower);
+		}
+		// the exact rate is hidden, 1.1^49 is just over 100
+		assertTrue(buckets.size() <= 50);
+	}
+	
+	private BitcoinPeer createPeer(boolean relayTransactions) throws IOException {
+		BitcoinPeer peer = new BitcoinPeer(nextPort, new InetSocketAddress("127.0.0.1", nextPort++), manager);
+		peer.setRelay(relayTransactions);
+		relay.onPeerReady(peer);
+		return peer;
+	}
+	
+	private Hash256 addTransaction(int i, long feeRate) {
+		Hash256 hash = new Hash256(i, i, 7, 7);
+		feeRates.put(hash, feeRate);
+		return hash;
+	}
+	
+	private static InventoryVector getInv(Hash256 hash) {
+		return new InventoryVector(InventoryVector.MSG_TX, hash);
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.elements;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.Security;
+import java.util.Arrays;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.raphfrk.bitcoin.bcnode.util.DigestUtils;
+import com.raphfrk.bitcoin.bcnode.util.ParseUtils;
+
+public class TransactionTest {
+	
+	/**
+	 * The coinbase of the main network genesis block
+	 */
+	private final static String GENESIS_COINBASE = "01000000010000000000000000000000000000000000000000000000000000000000000000ffffffff4d04ffff001d0104455468652054696d65732030332f4a616e2f32303039204368616e63656c6c6f72206f6e206272696e6b206f66207365636f6e64206261696c6f757420666f722062616e6b73ffffffff0100f2052a01000000434104678afdb0fe5548271967f1a67130b7105cd6a828e03909a67962e0ea1f61deb649f6bc3f4cef38c4f35504e51ec112de5c384df7ba0b8d578a4c702b6bf11d5fac00000000";
+	
+	// the signed native P2WPKH example from BIP 143, split around the marker, flag and witnesses
+	private final static String SEGWIT_VERSION = "01000000";
+	private final static String SEGWIT_MARKER = "0001";
+	private final static String SEGWIT_BODY = "02fff7f7881a8099afa6940d42d1e7f6362bec38171ea3edf433541db4e4ad969f00000000494830450221008b9d1dc26ba6a9cb62127b02742fa9d754cd3bebf337f7a55d114c8e5cdd30be022040529b194ba3f9281a99f2b1c0a19c0489bc22ede944ccf4ecbab4cc618ef3ed01eeffffffef51e1b804cc89d182d279655c3aa89e815b1b309fe287d9b2b55d57b90ec68a0100000000ffffffff02202cb206000000001976a9148280b37df378db99f66f85c95a783a76ac7a6d5988ac9093510d000000001976a9143bde42dbee7e4dbe6a21b2d50ce2f0167faa815988ac";
+	private final static String SEGWIT_WITNESS = "000247304402203609e17b84f6a7d30c80bfa610b5b4542f32a8a0d5447a12fb1366d7f01cc44a0220573a954c4518331561406f90300e8f3358f51928d43c212a8caed02de67eebee0121025476c2e83188368da1ff3e292e7acafcdb3566bb0ad253f62fc70f07aeee6357";
+	private final static String SEGWIT_LOCK_TIME = "11000000";
+	
+	@BeforeClass
+	public static void addProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+	
+	@Test
+	public void legacy() throws IOException {
+		byte[] data = ParseUtils.hexStringToBytes(GENESIS_COINBASE);
+		Transaction tx = new Transaction(0, ByteBuffer.wrap(data));
+		assertFalse(tx.hasWitness());
+		assertEquals(Hash256.fromString("4a5e1e4baab89f3a32518a88c31bc87f618f76673e2cc77ab2127b7afdeda33b"), tx.getHash());
+		assertEquals(tx.getHash(), tx.getWitnessHash());
+		assertEquals(data.length, tx.getVirtualSize());
+		assertEquals(1, tx.getInputCount());
+		assertEquals(Hash256.ZERO, tx.getInputHash(0));
+		assertEquals(-1, tx.getInputIndex(0));
+		assertEquals(77, tx.getInputScript(0).remaining());
+		assertEquals(1, tx.getOutputCount());
+		assertEquals(5000000000L, tx.getOutputValue(0));
+		assertEquals(67, tx.getOutputScript(0).remaining());
+		assertEquals(0, tx.getLockTime());
+	}
+	
+	@Test
+	public void segwit() throws IOException {
+		byte[] data = ParseUtils.hexStringToBytes(SEGWIT_VERSION + SEGWIT_MARKER + SEGWIT_BODY + SEGWIT_WITNESS + SEGWIT_LOCK_TIME);
+		byte[] stripped = ParseUtils.hexStringToBytes(SEGWIT_VERSION + SEGWIT_BODY + SEGWIT_LOCK_TIME);
+		Transaction tx = new Transaction(0, ByteBuffer.wrap(data));
+		assertTrue(tx.hasWitness());
+		assertEquals(2, tx.getInputCount());
+		assertEquals(2, tx.getOutputCount());
+		assertEquals(0xffffffee, tx.getInputSequence(0));
+		assertEquals(223450000L, tx.getOutputValue(1));
+		assertEquals(0x11, tx.getLockTime());
+		assertEquals(0, tx.getWitnessCount(0));
+		assertEquals(2, tx.getWitnessCount(1));
+		assertEquals(71, tx.getWitness(1, 0).remaining());
+		assertEquals(33, tx.getWitness(1, 1).remaining());
+		
+		// the txid covers the serialization without the marker, flag and witnesses
+		Hash256 txid = new Hash256(DigestUtils.doubleSHA256(ByteBuffer.wrap(stripped), 0, stripped.length));
+		assertEquals(txid, tx.getHash());
+		assertEquals(Hash256.fromString("e8151a2af31c368a35053ddd4bdb285a8595c769a3ad83e0fa02314a602d4609"), tx.getHash());
+		assertEquals(new Transaction(0, ByteBuffer.wrap(stripped)).getHash(), tx.getHash());
+		
+		Hash256 wtxid = new Hash256(DigestUtils.doubleSHA256(ByteBuffer.wrap(data), 0, data.length));
+		assertEquals(wtxid, tx.getWitnessHash());
+		assertFalse(tx.getHash().equals(tx.getWitnessHash()));
+		
+		assertEquals((stripped.length * 3 + data.length + 3) / 4, tx.getVirtualSize());
+		assertEquals(data.length, tx.getLength(0));
+	}
+	
+	@Test
+	public void withoutWitness() throws IOException {
+		byte[] data = ParseUtils.hexStringToBytes(SEGWIT_VERSION + SEGWIT_MARKER + SEGWIT_BODY + SEGWIT_WITNESS + SEGWIT_LOCK_TIME);
+		byte[] stripped = ParseUtils.hexStringToBytes(SEGWIT_VERSION + SEGWIT_BODY + SEGWIT_LOCK_TIME);
+		Transaction tx = new Transaction(0, ByteBuffer.wrap(data));
+		assertEquals(stripped.length, tx.getLengthWithoutWitness());
+		ByteBuffer buf = ByteBuffer.allocate(stripped.length);
+		tx.putWithoutWitness(buf);
+		assertFalse(buf.hasRemaining());
+		assertEquals(ByteBuffer.wrap(stripped), (ByteBuffer) buf.flip());
+		
+		Transaction legacy = tx.withoutWitness();
+		assertFalse(legacy.hasWitness());
+		assertEquals(tx.getHash(), legacy.getHash());
+		assertEquals(ByteBuffer.wrap(stripped), legacy.getData());
+		assertTrue(legacy == legacy.withoutWitness());
+	}
+	
+	@Test
+	public void slice() throws IOException {
+		byte[] tx = ParseUtils.hexStringToBytes(SEGWIT_VERSION + SEGWIT_MARKER + SEGWIT_BODY + SEGWIT_WITNESS + SEGWIT_LOCK_TIME);
+		byte[] data = new byte[tx.length + 10];
+		System.arraycopy(tx, 0, data, 5, tx.length);
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		buf.position(5);
+		Transaction t = new Transaction(0, buf);
+		assertEquals(5 + tx.length, buf.position());
+		assertEquals(tx.length, Transaction.getLength(ByteBuffer.wrap(data), 5));
+		assertEquals(new Transaction(0, ByteBuffer.wrap(tx)).getWitnessHash(), t.getWitnessHash());
+		ByteBuffer copy = t.getData();
+		assertEquals(tx.length, copy.remaining());
+		assertEquals(ByteBuffer.wrap(tx), copy);
+	}
+	
+	@Test
+	public void malformed() {
+		byte[] data = ParseUtils.hexStringToBytes(SEGWIT_VERSION + SEGWIT_MARKER + SEGWIT_BODY + SEGWIT_WITNESS + SEGWIT_LOCK_TIME);
+		try {
+			new Transaction(0, ByteBuffer.wrap(Arrays.copyOf(data, data.length - 1)));
+			fail("Truncated transaction was accepted");
+		} catch (IOException e) {
+		}
+		byte[] count = data.clone();
+		// input count of 0x7fffffff
+		count[6] = (byte) 0xfe;
+		count[7] = (byte) 0xff;
+		count[8] = (byte) 0xff;
+		count[9] = (byte) 0xff;
+		count[10] = (byte) 0x7f;
+		try {
+			new Transaction(0, ByteBuffer.wrap(count));
+			fail("Oversized input count was accepted");
+		} catch (IOException e) {
+		}
+	}
+
+}
@@ -0,0 +1,254 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.p2p;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.security.Security;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Test;
+
+import com.raphfrk.bitcoin.bcnode.log.LogManager;
+import com.raphfrk.bitcoin.bcnode.network.address.AddressKey;
+import com.raphfrk.bitcoin.bcnode.network.address.AddressStatus;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p.BitcoinP2PManager;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p.BitcoinPeer;
+import com.raphfrk.bitcoin.bcnode.network.elements.NetworkAddress;
+
+/**
+ * Drives a BitcoinP2PManager against a FakePeerNetwork on loopback.  Run with mvn test -Pbenchmark.<br>
+ * <br>
+ * The size of the run can be set with -Dbenchmark.peers, -Dbenchmark.connections and -Dbenchmark.seconds.
+ */
+public class ConnectionChurnBenchmark {
+	
+	private final static int peers = Integer.getInteger("benchmark.peers", 400);
+	private final static int connections = Integer.getInteger("benchmark.connections", 100);
+	private final static int seconds = Integer.getInteger("benchmark.seconds", 10);
+	
+	@Test
+	public void churn() throws Exception {
+		Security.addProvider(new BouncyCastleProvider());
+		LogManager.getLogger().setLevel(Level.WARNING);
+		
+		File dir = new File("benchmark-data");
+		deleteDirectory(dir);
+		
+		FakePeerNetwork network = new FakePeerNetwork(peers, 10);
+		network.start();
+		
+		long heapBefore = usedHeap();
+		long directBefore = usedDirect();
+		
+		BenchmarkP2PManager manager = new BenchmarkP2PManager(dir, connections);
+		manager.start();
+		
+		long start = System.nanoTime();
+		int timestamp = AddressStatus.getCurrentTime();
+		for (InetSocketAddress addr : network.getAddresses()) {
+			manager.getAddressStore().notify(new NetworkAddress(timestamp, BitcoinPeer.NODE_NETWORK, addr), AddressStatus.PEER_NOTIFY);
+		}
+		
+		while (manager.established.get() < connections && System.nanoTime() - start < 60000000000L) {
+			Thread.sleep(10);
+		}
+		long connectNanos = System.nanoTime() - start;
+		int connected = manager.established.get();
+		
+		report("Fake peers", peers);
+		report("Target connections", connections);
+		report("Connections established", connected);
+		report("Connect time (ms)", connectNanos / 1000000L);
+		report("Connect rate (per s)", connected * 1000000000L / Math.max(1, connectNanos));
+		report("Mean handshake latency (ms)", manager.getMeanLatencyMicros() / 1000L);
+		report("Max handshake latency (ms)", manager.maxLatency.get() / 1000L);
+		report("Connect attempts", manager.attempts.get());
+		report("Accepted by fake peers", network.getAccepted());
+		
+		Thread.sleep(1000);
+		report("Heap per peer (bytes)", (usedHeap() - heapBefore - network.getBufferBytes()) / Math.max(1, connected));
+		report("Direct memory per peer (bytes)", (usedDirect() - directBefore) / Math.max(1, connected));
+		
+		network.setPingsInFlight(4);
+		long pongsStart = network.getPongs();
+		long messagesStart = network.getMessagesIn() + network.getMessagesOut();
+		long cpuStart = processCpuNanos();
+		long steadyStart = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		long steadyNanos = System.nanoTime() - steadyStart;
+		long cpuNanos = processCpuNanos() - cpuStart;
+		network.setPingsInFlight(0);
+		
+		report("Ping round trips (per s)", (network.getPongs() - pongsStart) * 1000000000L / steadyNanos);
+		report("Messages (per s)", (network.getMessagesIn() + network.getMessagesOut() - messagesStart) * 1000000000L / steadyNanos);
+		report("CPU under load (%)", cpuNanos >= 0 ? cpuNanos * 100L / steadyNanos : -1);
+		report("Decode p99 (ns)", manager.getMetrics().getDecodeTime().getPercentile(99));
+		report("Encode p99 (ns)", manager.getMetrics().getEncodeTime().getPercentile(99));
+		report("Ping handler p99 (ns)", manager.getMetrics().getCommand("ping").getHandlerTime().getPercentile(99));
+		report("Send queue depth p99", manager.getMetrics().getSendQueueDepth().getPercentile(99));
+		
+		cpuStart = processCpuNanos();
+		steadyStart = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		steadyNanos = System.nanoTime() - steadyStart;
+		cpuNanos = processCpuNanos() - cpuStart;
+		report("CPU idle (%)", cpuNanos >= 0 ? cpuNanos * 100L / steadyNanos : -1);
+		
+		int handshakesStart = manager.handshakes.get();
+		manager.resetLatency();
+		int drops = Math.max(1, connections / 10);
+		for (int i = 0; i < seconds; i++) {
+			network.drop(drops);
+			Thread.sleep(1000);
+		}
+		Thread.sleep(2000);
+		report("Churn drops", drops * seconds);
+		report("Churn reconnects", manager.handshakes.get() - handshakesStart);
+		report("Churn mean handshake latency (ms)", manager.getMeanLatencyMicros() / 1000L);
+		report("Established after churn", manager.established.get());
+		report("Open connections after churn", network.getOpenConnections());
+		
+		manager.interrupt();
+		manager.join(10000);
+		network.shutdown();
+		
+		assertTrue("No connections were established", connected > 0);
+	}
+	
+	private static void report(String name, long value) {
+		System.out.println(String.format("%-36s %12d", name, value));
+	}
+	
+	private static long usedHeap() {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+	
+	private static long usedDirect() {
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (pool.getName().equals("direct")) {
+				return pool.getMemoryUsed();
+			}
+		}
+		return 0;
+	}
+	
+	private static long processCpuNanos() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		}
+		return -1;
+	}
+	
+	private static void deleteDirectory(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					deleteDirectory(file);
+				} else {
+					file.delete();
+				}
+			}
+		}
+		dir.delete();
+	}
+	
+	private static class BenchmarkP2PManager extends BitcoinP2PManager {
+		
+		private final ConcurrentHashMap<Long, Long> dialTimes = new ConcurrentHashMap<Long, Long>();
+		private final AtomicInteger handshakes = new AtomicInteger();
+		private final AtomicInteger established = new AtomicInteger();
+		private final AtomicInteger attempts = new AtomicInteger();
+		private final AtomicLong totalLatency = new AtomicLong();
+		private final AtomicLong maxLatency = new AtomicLong();
+		private final AtomicInteger latencyCount = new AtomicInteger();
+		
+		public BenchmarkP2PManager(File dir, int maxConnections) throws IOException {
+			super(dir, maxConnections);
+		}
+		
+		@Override
+		protected Peer<?> createPeer(AddressKey addr) {
+			Peer<?> peer = super.createPeer(addr);
+			if (peer != null) {
+				attempts.incrementAndGet();
+				dialTimes.put(peer.getId(), System.nanoTime());
+			}
+			return peer;
+		}
+		
+		@Override
+		protected void notifyHandshakeComplete(Peer<?> peer) {
+			Long dialTime = dialTimes.remove(peer.getId());
+			if (dialTime != null) {
+				long latency = (System.nanoTime() - dialTime) / 1000L;
+				totalLatency.addAndGet(latency);
+				latencyCount.incrementAndGet();
+				long max;
+				while ((max = maxLatency.get()) < latency && !maxLatency.compareAndSet(max, latency)) {
+				}
+			}
+			handshakes.incrementAndGet();
+			established.incrementAndGet();
+			super.notifyHandshakeComplete(peer);
+		}
+		
+		@Override
+		protected void removePeer(Peer<?> peer, Peer.CloseReason reason) {
+			if (peer.isHandshakeComplete()) {
+				established.decrementAndGet();
+			}
+			super.removePeer(peer, reason);
+		}
+		
+		public long getMeanLatencyMicros() {
+			return totalLatency.get() / Math.max(1, latencyCount.get());
+		}
+		
+		public void resetLatency() {
+			totalLatency.set(0);
+			latencyCount.set(0);
+			maxLatency.set(0);
+		}
+		
+	}
+
+}
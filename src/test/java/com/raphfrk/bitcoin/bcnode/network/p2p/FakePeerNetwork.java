@@ -0,0 +1,332 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.network.p2p;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.AddressMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.PingMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.VerackMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.message.VersionMessage;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.p2p.BitcoinPeer;
+import com.raphfrk.bitcoin.bcnode.network.bitcoin.protocol.BitcoinProtocol;
+import com.raphfrk.bitcoin.bcnode.network.elements.NetworkAddress;
+import com.raphfrk.bitcoin.bcnode.network.message.Message;
+
+/**
+ * A set of fake Bitcoin peers listening on loopback and served by a single selector thread.  The peers 
+ * answer version, getaddr and pong messages using BitcoinProtocol, and can keep a number of pings in 
+ * flight on each connection to generate load.
+ */
+public class FakePeerNetwork extends Thread {
+	
+	public final static int BUFFER_SIZE = 16384;
+	
+	private final BitcoinProtocol protocol = new BitcoinProtocol();
+	private final int magic = protocol.getMagicValue();
+	private final int version = protocol.getVersion();
+	private final Selector selector;
+	private final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+	private final List<ServerSocketChannel> servers = new ArrayList<ServerSocketChannel>();
+	private final List<Connection> connections = new ArrayList<Connection>();
+	private final ConcurrentLinkedQueue<Integer> dropRequests = new ConcurrentLinkedQueue<Integer>();
+	private final Random random = new Random(1);
+	private final int addrPerReply;
+	private volatile int pingsInFlight = 0;
+	
+	private final AtomicInteger open = new AtomicInteger();
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong messagesIn = new AtomicLong();
+	private final AtomicLong messagesOut = new AtomicLong();
+	private final AtomicLong pongs = new AtomicLong();
+	
+	public FakePeerNetwork(int peers, int addrPerReply) throws IOException {
+		super("Fake peer network");
+		setDaemon(true);
+		this.addrPerReply = addrPerReply;
+		selector = Selector.open();
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		for (int i = 0; i < peers; i++) {
+			ServerSocketChannel server = ServerSocketChannel.open();
+			server.configureBlocking(false);
+			server.socket().bind(new InetSocketAddress(loopback, 0), 64);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			servers.add(server);
+			addresses.add((InetSocketAddress) server.socket().getLocalSocketAddress());
+		}
+	}
+	
+	public List<InetSocketAddress> getAddresses() {
+		return addresses;
+	}
+	
+	/**
+	 * Sets the number of pings each connection keeps in flight after its handshake
+	 * 
+	 * @param pingsInFlight
+	 */
+	public void setPingsInFlight(int pingsInFlight) {
+		this.pingsInFlight = pingsInFlight;
+		selector.wakeup();
+	}
+	
+	/**
+	 * Requests that the given number of random connections are closed
+	 * 
+	 * @param count
+	 */
+	public void drop(int count) {
+		dropRequests.add(count);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Gets the heap used by the buffers of the open fake connections
+	 * 
+	 * @return
+	 */
+	public long getBufferBytes() {
+		return open.get() * 2L * BUFFER_SIZE;
+	}
+	
+	public int getOpenConnections() {
+		return open.get();
+	}
+	
+	public long getAccepted() {
+		return accepted.get();
+	}
+	
+	public long getMessagesIn() {
+		return messagesIn.get();
+	}
+	
+	public long getMessagesOut() {
+		return messagesOut.get();
+	}
+	
+	public long getPongs() {
+		return pongs.get();
+	}
+	
+	public void shutdown() throws InterruptedException {
+		interrupt();
+		selector.wakeup();
+		join();
+		for (Connection c : new ArrayList<Connection>(connections)) {
+			c.close();
+		}
+		for (ServerSocketChannel server : servers) {
+			try {
+				server.close();
+			} catch (IOException e) {
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+		}
+	}
+	
+	@Override
+	public void run() {
+		while (!isInterrupted()) {
+			try {
+				selector.select(100);
+			} catch (IOException e) {
+				throw new IllegalStateException("Fake peer selector failed", e);
+			}
+			Iterator<SelectionKey> itr = selector.selectedKeys().iterator();
+			while (itr.hasNext()) {
+				SelectionKey key = itr.next();
+				itr.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isAcceptable()) {
+					accept((ServerSocketChannel) key.channel());
+				} else {
+					Connection c = (Connection) key.attachment();
+					if (key.isReadable()) {
+						c.read();
+					}
+					if (key.isValid() && key.isWritable()) {
+						c.write();
+					}
+				}
+			}
+			Integer drop;
+			while ((drop = dropRequests.poll()) != null) {
+				for (int i = 0; i < drop && !connections.isEmpty(); i++) {
+					connections.get(random.nextInt(connections.size())).close();
+				}
+			}
+			for (Connection c : new ArrayList<Connection>(connections)) {
+				c.topUpPings();
+			}
+		}
+	}
+	
+	private void accept(ServerSocketChannel server) {
+		try {
+			SocketChannel channel;
+			while ((channel = server.accept()) != null) {
+				channel.configureBlocking(false);
+				Connection c = new Connection(channel, (InetSocketAddress) server.socket().getLocalSocketAddress());
+				c.key = channel.register(selector, SelectionKey.OP_READ, c);
+				connections.add(c);
+				open.incrementAndGet();
+				accepted.incrementAndGet();
+			}
+		} catch (IOException e) {
+		}
+	}
+	
+	private class Connection {
+		
+		private final SocketChannel channel;
+		private final InetSocketAddress local;
+		private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+		private final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+		private SelectionKey key;
+		private boolean handshake;
+		private boolean closed;
+		private int inFlight;
+		
+		public Connection(SocketChannel channel, InetSocketAddress local) {
+			this.channel = channel;
+			this.local = local;
+		}
+		
+		public void read() {
+			try {
+				if (channel.read(in) == -1) {
+					close();
+					return;
+				}
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			in.flip();
+			Message<?> message;
+			while ((message = protocol.decodeMessage(version, magic, in)) != null) {
+				messagesIn.incrementAndGet();
+				handle(message);
+			}
+			in.compact();
+			write();
+		}
+		
+		private void handle(Message<?> message) {
+			String command = message.getCommand();
+			if (command.equals("version")) {
+				send(new VersionMessage(protocol, BitcoinPeer.NODE_NETWORK, System.currentTimeMillis() / 1000L, (InetSocketAddress) channel.socket().getRemoteSocketAddress(), local, random.nextLong(), "FakePeer", 0));
+				send(new VerackMessage(protocol));
+			} else if (command.equals("verack")) {
+				handshake = true;
+			} else if (command.equals("getaddr")) {
+				NetworkAddress[] addrs = new NetworkAddress[Math.min(addrPerReply, addresses.size())];
+				int timestamp = (int) (System.currentTimeMillis() / 1000L);
+				for (int i = 0; i < addrs.length; i++) {
+					addrs[i] = new NetworkAddress(timestamp, BitcoinPeer.NODE_NETWORK, addresses.get(random.nextInt(addresses.size())));
+				}
+				send(new AddressMessage(protocol, addrs));
+			} else if (command.equals("pong")) {
+				pongs.incrementAndGet();
+				inFlight--;
+			}
+		}
+		
+		public void topUpPings() {
+			if (!handshake || closed) {
+				return;
+			}
+			boolean sent = false;
+			while (inFlight < pingsInFlight && out.remaining() > 64) {
+				send(new PingMessage(protocol, random.nextLong()));
+				inFlight++;
+				sent = true;
+			}
+			if (sent) {
+				write();
+			}
+		}
+		
+		private void send(Message<?> message) {
+			if (protocol.encodeMessage(version, message, out) != BitcoinProtocol.SUCCESS) {
+				throw new IllegalStateException("Fake peer output buffer full");
+			}
+			messagesOut.incrementAndGet();
+		}
+		
+		public void write() {
+			if (closed) {
+				return;
+			}
+			out.flip();
+			try {
+				channel.write(out);
+			} catch (IOException e) {
+				out.compact();
+				close();
+				return;
+			}
+			out.compact();
+			if (key.isValid()) {
+				key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+			}
+		}
+		
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			connections.remove(this);
+			open.decrementAndGet();
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+		
+	}
+
+}
@@ -0,0 +1,56 @@
+/*
+ * This file is part of BCNode.
+ *
+ * Copyright (c) Raphfrk 2013 <www.raphfrk.com/bcnode>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.raphfrk.bitcoin.bcnode.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+import com.raphfrk.bitcoin.bcnode.network.elements.Hash256;
+
+public class SipHashTest {
+	
+	private final static long K0 = 0x0706050403020100L;
+	private final static long K1 = 0x0f0e0d0c0b0a0908L;
+	
+	@Test
+	public void vector() {
+		// the 36 byte message 00 01 .. 23 with the key 00 01 .. 0f from the reference implementation
+		byte[] bytes = new byte[Hash256.LENGTH];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) i;
+		}
+		assertEquals(0x314dffbe0815a3b4L, SipHash.hash(K0, K1, new Hash256(bytes), 0x23222120));
+	}
+	
+	@Test
+	public void keyed() {
+		Hash256 hash = new Hash256(1, 2, 3, 4);
+		assertEquals(SipHash.hash(K0, K1, hash, 5), SipHash.hash(K0, K1, hash, 5));
+		assertFalse(SipHash.hash(K0, K1, hash, 5) == SipHash.hash(K0 + 1, K1, hash, 5));
+		assertFalse(SipHash.hash(K0, K1, hash, 5) == SipHash.hash(K0, K1, hash, 6));
+	}
+	
+}